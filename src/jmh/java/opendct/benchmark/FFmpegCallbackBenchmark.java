@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.benchmark;
+
+import opendct.video.ffmpeg.FFmpegCallbackRegistry;
+import opendct.video.ffmpeg.FFmpegOutputStage;
+import opendct.video.java.VideoUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The Java side of the FFmpeg read and write callbacks made for every packet.
+ * <p/>
+ * Every callback looks up its context by the opaque value and every write copies the muxed packet
+ * into an output stage. The locked lookup is how contexts were looked up before the lock-free
+ * registry. Run with <b>-Pjmh.prof=gc</b> and check <i>gc.alloc.rate.norm</i>, which should be
+ * close to 0 bytes per operation for the registry and the output stage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class FFmpegCallbackBenchmark {
+    private static final int CONTEXTS = 16;
+
+    private FFmpegCallbackRegistry<Object> registry;
+    private int registryIndexes[];
+
+    private ReentrantReadWriteLock lock;
+    private Object lockedMap[];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        registry = new FFmpegCallbackRegistry<>("benchmark", 1024);
+        registryIndexes = new int[CONTEXTS];
+
+        lock = new ReentrantReadWriteLock();
+        lockedMap = new Object[1025];
+
+        for (int i = 0; i < CONTEXTS; i++) {
+            Object context = new Object();
+            registryIndexes[i] = registry.register(context);
+            lockedMap[i + 1] = context;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private int next;
+        private ByteBuffer packet;
+        private FFmpegOutputStage outputStage;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            // FFmpeg writes muxed TS in multiples of 7 packets.
+            packet = ByteBuffer.allocateDirect(VideoUtil.MTS_PACKET_LEN * 7);
+
+            outputStage = new FFmpegOutputStage("benchmark", new FFmpegOutputStage.Sink() {
+                @Override
+                public void write(ByteBuffer buffer) {
+                    buffer.position(buffer.limit());
+                }
+            }, 4, 131072, 65536, 250);
+
+            outputStage.start("benchmark");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            outputStage.close();
+        }
+    }
+
+    @Benchmark
+    public Object registryLookup(ThreadState state) {
+        return registry.get(registryIndexes[state.next++ & (CONTEXTS - 1)]);
+    }
+
+    @Benchmark
+    public Object lockedLookup(ThreadState state) {
+        lock.readLock().lock();
+
+        try {
+            return lockedMap[(state.next++ & (CONTEXTS - 1)) + 1];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Benchmark
+    public int outputStageWrite(ThreadState state) {
+        state.packet.clear();
+        return state.outputStage.write(state.packet);
+    }
+}
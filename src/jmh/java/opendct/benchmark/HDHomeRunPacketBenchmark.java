@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.benchmark;
+
+import opendct.tuning.hdhomerun.HDHomeRunPacket;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CRC calculation for HDHomeRun control and discovery packets.
+ * <p/>
+ * 64 bytes is about the size of a get/set request and 1460 bytes is the largest reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HDHomeRunPacketBenchmark {
+
+    @Param({"64", "1460"})
+    public int packetSize;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private ByteBuffer packet;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte bytes[] = new byte[packetSize];
+        new Random(packetSize).nextBytes(bytes);
+
+        packet = direct ? ByteBuffer.allocateDirect(packetSize) : ByteBuffer.allocate(packetSize);
+        packet.put(bytes);
+        packet.flip();
+    }
+
+    @Benchmark
+    public int calculateCRC() {
+        return HDHomeRunPacket.calculateCRC(packet);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.benchmark;
+
+import opendct.video.rtsp.rtp.RTPPacketProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per datagram cost of RTP sequence tracking in the RTP producers.
+ * <p/>
+ * The sequence numbers keep counting up across invocations, so they roll over regularly and no
+ * packets are ever reported missing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTPPacketProcessorBenchmark {
+    private static final int DATAGRAMS = 64;
+
+    private RTPPacketProcessor packetProcessor;
+    private ByteBuffer datagrams[];
+    private int sequence;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        packetProcessor = new RTPPacketProcessor();
+
+        byte stream[] = TsStream.create(DATAGRAMS * TsStream.TS_PER_DATAGRAM, 0, 0, 1);
+        datagrams = TsStream.createDatagrams(stream, 0, true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DATAGRAMS)
+    public boolean findMissingRTPPackets() {
+        boolean returnValue = false;
+
+        for (ByteBuffer datagram : datagrams) {
+            datagram.rewind();
+            datagram.putShort(2, (short) sequence++);
+            returnValue |= packetProcessor.findMissingRTPPackets(datagram);
+        }
+
+        return returnValue;
+    }
+}
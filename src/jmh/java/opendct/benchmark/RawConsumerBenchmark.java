@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.benchmark;
+
+import opendct.config.Config;
+import opendct.consumer.RawSageTVConsumerImpl;
+import opendct.video.java.VideoUtil;
+import opendct.video.rtsp.rtp.RTPPacketProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The path from an RTP producer to a file written by the raw consumer.
+ * <p/>
+ * The benchmark thread does what the RTP producers do for every datagram and then waits for the
+ * consumer thread to write everything it can to disk, so the result includes the hand off between
+ * the threads and the file writes. The file is written as a circular file like a SageTV
+ * buffered recording so it doesn't grow for the length of the run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawConsumerBenchmark {
+    private static final int DATAGRAMS = 256;
+    private static final long RECORD_BUFFER_SIZE = 64 * 1024 * 1024;
+    private static final long STREAMING_TIMEOUT = 10000;
+
+    private RawSageTVConsumerImpl consumer;
+    private Thread consumerThread;
+    private File recording;
+
+    private RTPPacketProcessor packetProcessor;
+    private ByteBuffer datagrams[];
+    private int sequence;
+
+    private long bytesWritten;
+    private long minTransferSize;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        recording = File.createTempFile("opendct-benchmark", ".ts");
+        recording.deleteOnExit();
+
+        consumer = new RawSageTVConsumerImpl();
+        consumer.setRecordBufferSize(RECORD_BUFFER_SIZE);
+
+        if (!consumer.consumeToFilename(recording.getAbsolutePath())) {
+            throw new IOException("Unable to create " + recording.getAbsolutePath());
+        }
+
+        consumerThread = new Thread(consumer, "RawSageTVConsumerImpl-benchmark");
+        consumerThread.start();
+
+        packetProcessor = new RTPPacketProcessor();
+
+        // The PES start is in the second packet. The first packet is skipped by the consumer.
+        byte stream[] = TsStream.create(DATAGRAMS * TsStream.TS_PER_DATAGRAM, 0, 0, 1);
+        datagrams = TsStream.createDatagrams(stream, 0, true);
+
+        bytesWritten = -VideoUtil.MTS_PACKET_LEN;
+        minTransferSize = Config.getInteger("consumer.raw.min_transfer_size", 65536);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        consumer.stopConsumer();
+        consumerThread.interrupt();
+        consumerThread.join(STREAMING_TIMEOUT);
+
+        if (!recording.delete()) {
+            recording.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DATAGRAMS)
+    public long producerToFile() throws IOException, InterruptedException {
+        for (ByteBuffer datagram : datagrams) {
+            datagram.rewind();
+            datagram.putShort(2, (short) sequence++);
+
+            // This leaves the position after the RTP header.
+            packetProcessor.findMissingRTPPackets(datagram);
+            bytesWritten += datagram.remaining();
+            consumer.write(datagram);
+        }
+
+        // The consumer doesn't write anything smaller than the minimum transfer size, so that
+        // much can be left in the buffer.
+        long target = bytesWritten - minTransferSize;
+        long timeout = System.currentTimeMillis() + STREAMING_TIMEOUT;
+        long bytesStreamed;
+
+        while ((bytesStreamed = consumer.getBytesStreamed()) < target) {
+            if (System.currentTimeMillis() > timeout) {
+                throw new IllegalStateException("The consumer stopped streaming after " +
+                        bytesStreamed + " of " + bytesWritten + " bytes.");
+            }
+
+            Thread.yield();
+        }
+
+        return bytesStreamed;
+    }
+}
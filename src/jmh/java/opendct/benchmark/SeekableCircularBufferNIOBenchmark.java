@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.benchmark;
+
+import opendct.consumer.buffers.SeekableCircularBufferNIO;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write, read and seek throughput of the buffer used between producers and consumers.
+ * <p/>
+ * Every operation writes one RTP payload worth of data (7 TS packets) and reads it back, so the
+ * buffer never needs to grow.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeekableCircularBufferNIOBenchmark {
+
+    @Param({"false", "true"})
+    public boolean singleProducerConsumer;
+
+    @Param({"true", "false"})
+    public boolean directSource;
+
+    private SeekableCircularBufferNIO buffer;
+    private ByteBuffer source;
+    private ByteBuffer destination;
+    private byte destinationArray[];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        buffer = new SeekableCircularBufferNIO(7 * 1024 * 1024, singleProducerConsumer);
+
+        byte payload[] = TsStream.create(TsStream.TS_PER_DATAGRAM, 0, 0, 1);
+
+        source = directSource ?
+                ByteBuffer.allocateDirect(payload.length) :
+                ByteBuffer.allocate(payload.length);
+        source.put(payload);
+        source.flip();
+
+        destination = ByteBuffer.allocateDirect(payload.length);
+        destinationArray = new byte[payload.length];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        buffer.close();
+    }
+
+    @Benchmark
+    public int writeReadByteBuffer() throws InterruptedException {
+        source.rewind();
+        buffer.write(source);
+
+        destination.clear();
+        return buffer.read(destination);
+    }
+
+    @Benchmark
+    public int writeReadArray() throws InterruptedException {
+        source.rewind();
+        buffer.write(source);
+
+        return buffer.read(destinationArray, 0, destinationArray.length);
+    }
+
+    /**
+     * Seeking back to re-read the last payload is what the FFmpeg detection does after probing.
+     */
+    @Benchmark
+    public int writeSeekRead() throws InterruptedException {
+        source.rewind();
+        buffer.write(source);
+
+        destination.clear();
+        buffer.read(destination);
+
+        buffer.setReadIndex(buffer.totalBytesReadIndex() - destination.capacity());
+
+        destination.clear();
+        return buffer.read(destination);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.benchmark;
+
+import opendct.TsTestStreams;
+import opendct.video.java.VideoUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic transport stream and RTP data for benchmarks.
+ * <p/>
+ * The content is random, but the packet headers are laid out so the VideoUtil methods find what
+ * they are looking for in the places a real stream would have them.
+ */
+public class TsStream {
+    public static final int VIDEO_PID = 0x100;
+    public static final int TS_PER_DATAGRAM = 7;
+    public static final int RTP_HEADER = 12;
+
+    /**
+     * Create a transport stream.
+     *
+     * @param packets The number of 188 byte packets.
+     * @param leadingBytes The number of bytes of garbage before the first sync byte.
+     * @param patPacket The index of the first PAT packet.
+     * @param pesPacket The index of the first video packet with a PES start.
+     * @return The stream.
+     */
+    public static byte[] create(int packets, int leadingBytes, int patPacket, int pesPacket) {
+        Random random = new Random(packets);
+        byte stream[] = new byte[leadingBytes + packets * VideoUtil.MTS_PACKET_LEN];
+        byte pesHeader[] = TsTestStreams.createPes(0xe0, new byte[0]);
+
+        random.nextBytes(stream);
+
+        for (int i = 0; i < leadingBytes; i++) {
+            if (stream[i] == VideoUtil.MTS_SYNC_BYTE) {
+                stream[i] = 0;
+            }
+        }
+
+        for (int i = 0; i < packets; i++) {
+            int offset = leadingBytes + i * VideoUtil.MTS_PACKET_LEN;
+            int pid = i == patPacket ? 0 : VIDEO_PID;
+
+            TsTestStreams.writeHeader(stream, offset, pid, i == patPacket || i == pesPacket, i);
+
+            // Random payloads will contain PES start codes, so they are removed from every packet
+            // that isn't supposed to have one.
+            for (int j = offset + 4; j < offset + VideoUtil.MTS_PACKET_LEN; j++) {
+                if (stream[j] == 0x01) {
+                    stream[j] = 0x02;
+                }
+            }
+
+            if (i == pesPacket) {
+                // VideoUtil looks for a zero byte before the PES start code.
+                stream[offset + 4] = 0x00;
+                System.arraycopy(pesHeader, 0, stream, offset + 5, pesHeader.length);
+            }
+        }
+
+        return stream;
+    }
+
+    /**
+     * Split a transport stream into RTP datagrams with sequential sequence numbers.
+     *
+     * @param stream A transport stream without any leading bytes.
+     * @param firstSequence The sequence number of the first datagram.
+     * @param direct <i>true</i> to return direct buffers.
+     * @return One buffer per datagram ready to be read.
+     */
+    public static ByteBuffer[] createDatagrams(byte stream[], int firstSequence, boolean direct) {
+        int payloadSize = VideoUtil.MTS_PACKET_LEN * TS_PER_DATAGRAM;
+        ByteBuffer datagrams[] = new ByteBuffer[stream.length / payloadSize];
+
+        for (int i = 0; i < datagrams.length; i++) {
+            ByteBuffer datagram = direct ?
+                    ByteBuffer.allocateDirect(RTP_HEADER + payloadSize) :
+                    ByteBuffer.allocate(RTP_HEADER + payloadSize);
+
+            // Version 2, MPEG-TS payload type.
+            datagram.put((byte) 0x80);
+            datagram.put((byte) 33);
+            datagram.putShort((short) (firstSequence + i));
+            datagram.putInt(i * 3003);
+            datagram.putInt(0x12345678);
+            datagram.put(stream, i * payloadSize, payloadSize);
+            datagram.flip();
+
+            datagrams[i] = datagram;
+        }
+
+        return datagrams;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.benchmark;
+
+import opendct.video.java.VideoUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TS packet scanning as done by the consumers when starting and switching.
+ * <p/>
+ * The data is the size of a typical consumer transfer with some garbage before the first sync byte
+ * and the PAT about half way through so most of the buffer needs to be scanned.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoUtilBenchmark {
+
+    @Param({"65536", "1048576"})
+    public int transferSize;
+
+    private byte array[];
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int packets = transferSize / VideoUtil.MTS_PACKET_LEN;
+
+        array = TsStream.create(packets, 100, packets / 2, packets / 2 + 1);
+
+        heapBuffer = ByteBuffer.wrap(array);
+
+        directBuffer = ByteBuffer.allocateDirect(array.length);
+        directBuffer.put(array);
+        directBuffer.flip();
+    }
+
+    @Benchmark
+    public int getTsSyncByteArray() {
+        return VideoUtil.getTsSyncByte(array, 0, array.length);
+    }
+
+    @Benchmark
+    public int getTsSyncByteHeap() {
+        return VideoUtil.getTsSyncByte(heapBuffer);
+    }
+
+    @Benchmark
+    public int getTsSyncByteDirect() {
+        return VideoUtil.getTsSyncByte(directBuffer);
+    }
+
+    @Benchmark
+    public int getTsVideoPatStartByteArray() {
+        return VideoUtil.getTsVideoPatStartByte(array, 0, array.length, false);
+    }
+
+    @Benchmark
+    public int getTsVideoPatStartByteHeap() {
+        return VideoUtil.getTsVideoPatStartByte(heapBuffer, false);
+    }
+
+    @Benchmark
+    public int getTsVideoPatStartByteDirect() {
+        return VideoUtil.getTsVideoPatStartByte(directBuffer, false);
+    }
+}
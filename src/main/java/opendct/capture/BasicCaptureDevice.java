@@ -77,6 +77,10 @@ public abstract class BasicCaptureDevice implements CaptureDevice {
     protected static boolean streamErrors;
     protected boolean offlineChannelScan;
 
+    // This is set while the device is being tuned ahead of a recording that hasn't been requested
+    // yet, so the consumer is the one a recording would use instead of the channel scan consumer.
+    private volatile String preTuneChannel = null;
+
     // Pre-pend this value for saving and getting properties related to just this tuner.
     protected final String propertiesDeviceRoot;
 
@@ -777,12 +781,22 @@ public abstract class BasicCaptureDevice implements CaptureDevice {
             sageTVConsumerRunnable.setChannel(channel);
             sageTVConsumerRunnable.setRecordBufferSize(recordBufferSize);
 
+            // The lineup is used to keep the stream detection cache separate for each lineup.
+            SageTVConsumer selectedConsumer = sageTVConsumerRunnable;
+            if (selectedConsumer instanceof DynamicConsumerImpl) {
+                selectedConsumer = ((DynamicConsumerImpl) selectedConsumer).getSelectedConsumer();
+            }
+
+            if (selectedConsumer instanceof FFmpegTransSageTVConsumerImpl) {
+                ((FFmpegTransSageTVConsumerImpl) selectedConsumer).setChannelLineup(encoderLineup);
+            }
+
             if (sageTVConsumer instanceof FFmpegTransSageTVConsumerImpl) {
                 sageTVConsumerRunnable.setEncodingQuality(getTranscodeProfile());
             } else {
                 sageTVConsumerRunnable.setEncodingQuality(recordEncodingQuality);
             }
-            sageTVConsumerFuture = ThreadPool.submit(sageTVConsumerRunnable, Thread.NORM_PRIORITY,
+            sageTVConsumerFuture = ThreadPool.submit(ThreadPool.Lane.STREAMING, sageTVConsumerRunnable, Thread.NORM_PRIORITY,
                     sageTVConsumerRunnable.getClass().getSimpleName(), encoderName);
         } catch (Exception e) {
             logger.error("startConsuming created an unexpected exception => ", e);
@@ -813,6 +827,12 @@ public abstract class BasicCaptureDevice implements CaptureDevice {
      * @return A new consumer.
      */
     protected SageTVConsumer getNewChannelScanSageTVConsumer() {
+        String channel = preTuneChannel;
+
+        if (channel != null) {
+            return getNewSageTVConsumer(channel);
+        }
+
         return Config.getSageTVConsumer(
                 propertiesDeviceRoot + "channel_scan_consumer",
                 Config.getString("sagetv.new.default_channel_scan_consumer_impl",
@@ -875,6 +895,26 @@ public abstract class BasicCaptureDevice implements CaptureDevice {
         return logger.exit(returnValue);
     }
 
+    /**
+     * Tune a channel without recording it.
+     * <p/>
+     * The stream is consumed to nowhere by the consumer a recording of the channel would use, so
+     * the stream is immediately available to be shared with a recording when one is requested.
+     * The device is stopped with <b>stopEncoding()</b> like any other recording.
+     *
+     * @param channel The channel to tune.
+     * @return <i>true</i> if the channel was tuned.
+     */
+    public boolean preTune(String channel) {
+        preTuneChannel = channel;
+
+        try {
+            return startEncoding(channel, null, "", 0, SageTVDeviceCrossbar.DIGITAL_TV_TUNER, 0, 0, null);
+        } finally {
+            preTuneChannel = null;
+        }
+    }
+
     /**
      * Get the currently in use consumer.
      *
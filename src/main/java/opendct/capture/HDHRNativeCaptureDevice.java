@@ -20,6 +20,7 @@ import opendct.capture.services.HTTPCaptureDeviceServices;
 import opendct.capture.services.RTPCaptureDeviceServices;
 import opendct.channel.*;
 import opendct.config.Config;
+import opendct.consumer.RawSageTVConsumerImpl;
 import opendct.consumer.SageTVConsumer;
 import opendct.producer.HTTPProducer;
 import opendct.producer.RTPProducer;
@@ -61,6 +62,11 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
     private HTTPProducer httpProducer;
     private boolean httpProducing;
 
+    // When the entire frequency is being streamed, these are the frequency and the program the
+    // consumer is filtering for.
+    private volatile int muxFrequency = -1;
+    private volatile int muxProgram = 0;
+
     /**
      * Create a new HDHomeRun capture device.
      *
@@ -520,6 +526,11 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
             recordLastFilename = filename;
         }
 
+        if (!retune) {
+            muxFrequency = -1;
+            muxProgram = 0;
+        }
+
         long currentTime = System.currentTimeMillis();
         if (retune) {
             if (currentTime - lastTuneTime < 2000) {
@@ -916,7 +927,19 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
                     if (!httpProducing) {
                         tuner.setChannel(modulation, frequency, false);
 
-                        tuner.setProgram(program);
+                        if (program > 0 && !scanOnly &&
+                                HDHomeRunDiscoverer.getQamFullMux() &&
+                                newConsumer instanceof RawSageTVConsumerImpl) {
+
+                            // Stream every program on the frequency so other recordings on
+                            // this frequency can share this tuner. The consumer removes
+                            // everything that doesn't belong to the requested program.
+                            tuner.setFilter("0x0000-0x1fff");
+                            muxFrequency = frequency;
+                            muxProgram = program;
+                        } else {
+                            tuner.setProgram(program);
+                        }
                     }
 
                 } catch (IOException e) {
@@ -964,7 +987,16 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
         // If we are trying to restart the stream, we don't need to stop the consumer.
         if (!retune) {
             try {
-                newConsumer.setProgram(tuner.getProgram());
+                if (muxProgram > 0) {
+                    // The tuner is not filtering for a program, so it can't tell us the program.
+                    newConsumer.setProgram(muxProgram);
+                    ((RawSageTVConsumerImpl) newConsumer).setProgramFilter(muxProgram);
+
+                    logger.info("Streaming the full frequency {} for the program {}.",
+                            muxFrequency, muxProgram);
+                } else {
+                    newConsumer.setProgram(tuner.getProgram());
+                }
 
                 int timeout = 20;
 
@@ -1556,6 +1588,25 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
         return true;
     }
 
+    /**
+     * Is this device streaming every program on the tuned frequency?
+     * <p/>
+     * The consumer of this device only records the program that was requested, but the stream
+     * in its buffer contains every program on the frequency.
+     */
+    public boolean isStreamingFullMux() {
+        return muxProgram > 0;
+    }
+
+    /**
+     * The frequency being streamed when every program on the frequency is being streamed.
+     *
+     * @return The frequency or -1 if the full frequency is not being streamed.
+     */
+    public int getMuxFrequency() {
+        return muxFrequency;
+    }
+
     @Override
     public long getProducedPackets() {
         SageTVProducer producer;
@@ -1634,6 +1685,8 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
             }
 
             super.stopEncoding();
+            muxFrequency = -1;
+            muxProgram = 0;
 
             try {
                 if (httpProducing) {
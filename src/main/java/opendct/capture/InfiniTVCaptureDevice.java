@@ -26,6 +26,7 @@ import opendct.sagetv.SageTVDeviceCrossbar;
 import opendct.tuning.discovery.CaptureDeviceLoadException;
 import opendct.tuning.discovery.discoverers.UpnpDiscoverer;
 import opendct.tuning.http.InfiniTVStatus;
+import opendct.tuning.http.InfiniTVStatusSnapshot;
 import opendct.tuning.http.InfiniTVTuning;
 import opendct.tuning.upnp.InfiniTVDiscoveredDevice;
 import opendct.tuning.upnp.InfiniTVDiscoveredDeviceParent;
@@ -316,6 +317,7 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
             super.stopEncoding();
 
             InfiniTVTuning.stopRTSP(parent.getRemoteAddress().getHostAddress(), encoderNumber);
+            InfiniTVStatusSnapshot.invalidate(parent.getRemoteAddress().getHostAddress(), encoderNumber);
         }
     }
 
@@ -471,6 +473,8 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
             logger.error("Unable to start RTSP. Will try again on re-tune.");
         }
 
+        InfiniTVStatusSnapshot.invalidate(encoderAddress, encoderNumber);
+
         if (!retune) {
             try {
                 int getProgram = InfiniTVStatus.getProgram(encoderAddress, encoderNumber, 5);
@@ -559,8 +563,8 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
         int signal = 0;
 
         try {
-            signal = (int)InfiniTVStatus.getSignalNoiseRatio(
-                    parent.getRemoteAddress().getHostAddress(), encoderNumber);
+            signal = (int)InfiniTVStatusSnapshot.get(
+                    parent.getRemoteAddress().getHostAddress(), encoderNumber).getSignalNoiseRatio();
         } catch (IOException e) {
             logger.debug("Unable to get signal noise ratio from capture device.");
         }
@@ -575,8 +579,8 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
         CopyProtection returnValue = CopyProtection.UNKNOWN;
 
         try {
-            returnValue = InfiniTVStatus.getCCIStatus(
-                    parent.getRemoteAddress().getHostAddress(), encoderNumber);
+            returnValue = InfiniTVStatusSnapshot.get(
+                    parent.getRemoteAddress().getHostAddress(), encoderNumber).getCCIStatus();
         } catch (Exception e) {
             logger.debug("Unable to get CCI status from capture device.");
         }
@@ -591,47 +595,21 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
 
         String encoderAddress = parent.getRemoteAddress().getHostAddress();
 
-        try {
-            stringBuilder.append("CarrierLock: ")
-                    .append(InfiniTVStatus.getCarrierLock(encoderAddress, encoderNumber));
-        } catch (Exception e) {
-            logger.debug("Unable to get CarrierLock status from capture device.");
-        }
-
-        try {
-            stringBuilder.append(", PCRLock: ")
-                    .append(InfiniTVStatus.getPCRLock(encoderAddress, encoderNumber));
-        } catch (Exception e) {
-            logger.debug("Unable to get PCRLock status from capture device.");
-        }
-
-        try {
-            stringBuilder.append(", StreamingIP: ")
-                    .append(InfiniTVStatus.getStreamingIP(encoderAddress, encoderNumber));
-        } catch (Exception e) {
-            logger.debug("Unable to get StreamingIP status from capture device.");
-        }
-
-        try {
-            stringBuilder.append(", StreamingPort: ")
-                    .append(InfiniTVStatus.getStreamingPort(encoderAddress, encoderNumber));
-        } catch (Exception e) {
-            logger.debug("Unable to get StreamingPort status from capture device.");
-        }
-
-        try {
-            stringBuilder.append(", Temperature: ")
-                    .append(InfiniTVStatus.getTemperature(encoderAddress, encoderNumber));
-        } catch (Exception e) {
-            logger.debug("Unable to get Temperature status from capture device.");
-        }
-
-        try {
-            stringBuilder.append(", TransportState: ")
-                    .append(InfiniTVStatus.getTransportState(encoderAddress, encoderNumber));
-        } catch (Exception e) {
-            logger.debug("Unable to get TransportState status from capture device.");
-        }
+        InfiniTVStatusSnapshot status = InfiniTVStatusSnapshot.get(encoderAddress, encoderNumber);
+
+        // A value that can't be requested is reported as unknown without hiding the others.
+        stringBuilder.append("CarrierLock: ")
+                .append(status.getVar(InfiniTVStatusSnapshot.Variable.CARRIER_LOCK, "unknown"))
+                .append(", PCRLock: ")
+                .append(status.getVar(InfiniTVStatusSnapshot.Variable.PCR_LOCK, "unknown"))
+                .append(", StreamingIP: ")
+                .append(status.getVar(InfiniTVStatusSnapshot.Variable.STREAMING_IP, "unknown"))
+                .append(", StreamingPort: ")
+                .append(status.getVar(InfiniTVStatusSnapshot.Variable.STREAMING_PORT, "unknown"))
+                .append(", Temperature: ")
+                .append(status.getVar(InfiniTVStatusSnapshot.Variable.TEMPERATURE, "unknown"))
+                .append(", TransportState: ")
+                .append(status.getVar(InfiniTVStatusSnapshot.Variable.TRANSPORT_STATE, "unknown"));
 
         return logger.exit(stringBuilder.toString());
     }
@@ -95,7 +95,7 @@ public class HTTPCaptureDeviceServices {
             }
             httpProducerRunnable.setSourceUrls(httpURLs);
 
-            httpProducerFuture = ThreadPool.submit(httpProducerRunnable, Thread.NORM_PRIORITY,
+            httpProducerFuture = ThreadPool.submit(ThreadPool.Lane.STREAMING, httpProducerRunnable, Thread.NORM_PRIORITY,
                     httpProducerRunnable.getClass().getSimpleName(), encoderName);
 
             returnValue = true;
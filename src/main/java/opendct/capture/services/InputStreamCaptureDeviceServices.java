@@ -69,7 +69,7 @@ public class InputStreamCaptureDeviceServices {
             inputStreamProducerRunnable.setConsumer(sageTVConsumer);
             inputStreamProducerRunnable.setInputStream(inputStream);
 
-            inputStreamProducerFuture = ThreadPool.submit(inputStreamProducerRunnable,
+            inputStreamProducerFuture = ThreadPool.submit(ThreadPool.Lane.STREAMING, inputStreamProducerRunnable,
                     Thread.NORM_PRIORITY, inputStreamProducerRunnable.getClass().getSimpleName(),
                     encoderName);
 
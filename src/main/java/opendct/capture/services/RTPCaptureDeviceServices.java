@@ -100,7 +100,7 @@ public class RTPCaptureDeviceServices {
 
                     // In case the port was dynamically assigned.
                     this.rtpLocalPort = rtpProducerRunnable.getLocalPort();
-                    rtpProducerFuture = ThreadPool.submit(rtpProducerRunnable, Thread.NORM_PRIORITY,
+                    rtpProducerFuture = ThreadPool.submit(ThreadPool.Lane.STREAMING, rtpProducerRunnable, Thread.NORM_PRIORITY,
                             rtpProducerRunnable.getClass().getSimpleName(), encoderName);
 
                     returnValue = true;
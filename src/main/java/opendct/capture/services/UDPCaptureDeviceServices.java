@@ -113,7 +113,7 @@ public class UDPCaptureDeviceServices {
 
                 // In case the port was dynamically assigned.
                 this.udpLocalPort = udpProducerRunnable.getLocalPort();
-                udpProducerFuture = ThreadPool.submit(udpProducerRunnable, Thread.NORM_PRIORITY,
+                udpProducerFuture = ThreadPool.submit(ThreadPool.Lane.STREAMING, udpProducerRunnable, Thread.NORM_PRIORITY,
                         udpProducerRunnable.getClass().getSimpleName(), encoderName);
 
                 returnValue = true;
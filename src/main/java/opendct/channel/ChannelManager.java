@@ -25,6 +25,7 @@ import opendct.config.Config;
 import opendct.config.ConfigBag;
 import opendct.power.PowerEventListener;
 import opendct.sagetv.SageTVManager;
+import opendct.util.ThreadPool;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -36,6 +37,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChannelManager implements PowerEventListener {
@@ -513,33 +518,32 @@ public class ChannelManager implements PowerEventListener {
                 }
             });
 
+            Future futures[] = new Future[lineups.length];
+            String names[] = new String[lineups.length];
             int i = 0;
-            // The last channel lineup will be loaded on the current thread.
-            Thread threads[] = new Thread[lineups.length];
 
             for (File lineup : lineups) {
                 final String lineupName = lineup.getName().substring(0, lineup.getName().length() - ".properties".length());
 
-                threads[i] = new Thread(new Runnable() {
+                names[i] = lineupName;
+                futures[i++] = ThreadPool.submit(ThreadPool.Lane.BACKGROUND, new Runnable() {
                     @Override
                     public void run() {
                         loadChannelLineup(lineupName);
                     }
-                });
-
-                threads[i].setName("LineupAsyncInit:" + lineupName + "-" + threads[i].getId());
-                threads[i].setPriority(Thread.MAX_PRIORITY);
-                threads[i++].start();
+                }, Thread.MAX_PRIORITY, "LineupAsyncInit", lineupName);
             }
 
-            for (i = 0; i < threads.length; i++) {
+            for (i = 0; i < futures.length; i++) {
                 try {
                     // Nothing should be take a full minute to load on it's own. The average lineup
                     // should load in under 5 seconds and at most take 15 seconds if it needs to
                     // retrieve an update immediately.
-                    threads[i].join(60000);
+                    futures[i].get(60000, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    logger.warn("The lineup {} did not finish loading => ", names[i], e);
                 } catch (InterruptedException e) {
-                    logger.warn("Interrupted while waiting for the thread {} to stop.", threads[i].getName());
+                    logger.warn("Interrupted while waiting for the lineup {} to load.", names[i]);
                     break;
                 }
             }
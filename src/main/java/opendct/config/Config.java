@@ -1068,18 +1068,20 @@ public class Config {
         String returnValues[];
 
         if (MEDIA_SERVER_ENABLED) {
-            returnValues = new String[4];
+            returnValues = new String[5];
 
             returnValues[0] = FFmpegTransSageTVConsumerImpl.class.getCanonicalName();
             returnValues[1] = MediaServerConsumerImpl.class.getCanonicalName();
             returnValues[2] = RawSageTVConsumerImpl.class.getCanonicalName();
-            returnValues[3] = DynamicConsumerImpl.class.getCanonicalName();
+            returnValues[3] = TsRemuxSageTVConsumerImpl.class.getCanonicalName();
+            returnValues[4] = DynamicConsumerImpl.class.getCanonicalName();
         } else {
-            returnValues = new String[3];
+            returnValues = new String[4];
 
             returnValues[0] = FFmpegTransSageTVConsumerImpl.class.getCanonicalName();
             returnValues[1] = RawSageTVConsumerImpl.class.getCanonicalName();
-            returnValues[2] = DynamicConsumerImpl.class.getCanonicalName();
+            returnValues[2] = TsRemuxSageTVConsumerImpl.class.getCanonicalName();
+            returnValues[3] = DynamicConsumerImpl.class.getCanonicalName();
         }
 
         return returnValues;
@@ -1089,16 +1091,18 @@ public class Config {
         String returnValues[];
 
         if (MEDIA_SERVER_ENABLED) {
-            returnValues = new String[3];
+            returnValues = new String[4];
 
             returnValues[0] = FFmpegTransSageTVConsumerImpl.class.getCanonicalName();
             returnValues[1] = MediaServerConsumerImpl.class.getCanonicalName();
             returnValues[2] = RawSageTVConsumerImpl.class.getCanonicalName();
+            returnValues[3] = TsRemuxSageTVConsumerImpl.class.getCanonicalName();
         } else {
-            returnValues = new String[2];
+            returnValues = new String[3];
 
             returnValues[0] = FFmpegTransSageTVConsumerImpl.class.getCanonicalName();
             returnValues[1] = RawSageTVConsumerImpl.class.getCanonicalName();
+            returnValues[2] = TsRemuxSageTVConsumerImpl.class.getCanonicalName();
         }
 
         return returnValues;
@@ -1107,6 +1111,7 @@ public class Config {
     private static final String FFMPEG_CONSUMER = "FFmpeg";
     private static final String MEDIA_SERVER_CONSUMER = "Media Server";
     private static final String RAW_CONSUMER = "Raw";
+    private static final String TS_REMUX_CONSUMER = "TS Remux";
     private static final String DYNAMIC_CONSUMER = "Dynamic";
 
     /**
@@ -1126,6 +1131,8 @@ public class Config {
             return MEDIA_SERVER_CONSUMER;
         } else if (canonical.endsWith(RawSageTVConsumerImpl.class.getSimpleName())) {
             return RAW_CONSUMER;
+        } else if (canonical.endsWith(TsRemuxSageTVConsumerImpl.class.getSimpleName())) {
+            return TS_REMUX_CONSUMER;
         } else if (canonical.endsWith(DynamicConsumerImpl.class.getSimpleName())) {
             return DYNAMIC_CONSUMER;
         }
@@ -1149,6 +1156,8 @@ public class Config {
             return MediaServerConsumerImpl.class.getCanonicalName();
         } else if (RAW_CONSUMER.equalsIgnoreCase(friendlyName)) {
             return RawSageTVConsumerImpl.class.getCanonicalName();
+        } else if (TS_REMUX_CONSUMER.equalsIgnoreCase(friendlyName)) {
+            return TsRemuxSageTVConsumerImpl.class.getCanonicalName();
         } else if (DYNAMIC_CONSUMER.equalsIgnoreCase(friendlyName)) {
             return DynamicConsumerImpl.class.getCanonicalName();
         }
@@ -1181,6 +1190,8 @@ public class Config {
 
         if (consumerName.endsWith(RawSageTVConsumerImpl.class.getSimpleName())) {
             returnValue = new RawSageTVConsumerImpl();
+        } else if (consumerName.endsWith(TsRemuxSageTVConsumerImpl.class.getSimpleName())) {
+            returnValue = new TsRemuxSageTVConsumerImpl();
         } else if (consumerName.endsWith(FFmpegTransSageTVConsumerImpl.class.getSimpleName())) {
             returnValue = new FFmpegTransSageTVConsumerImpl();
         } else if (MEDIA_SERVER_ENABLED && consumerName.endsWith(MediaServerConsumerImpl.class.getSimpleName())) {
@@ -1225,6 +1236,8 @@ public class Config {
 
         if (clientName.endsWith(NIORTPProducerImpl.class.getSimpleName())) {
             returnValue = new NIORTPProducerImpl();
+        } else if (clientName.endsWith(SelectorRTPProducerImpl.class.getSimpleName())) {
+            returnValue = new SelectorRTPProducerImpl();
         } else {
             try {
                 returnValue = (RTPProducer) Class.forName(clientName).newInstance();
@@ -1257,6 +1270,8 @@ public class Config {
 
         if (clientName.endsWith(NIORTPProducerImpl.class.getSimpleName())) {
             returnValue = new NIOUDPProducerImpl();
+        } else if (clientName.endsWith(SelectorUDPProducerImpl.class.getSimpleName())) {
+            returnValue = new SelectorUDPProducerImpl();
         } else {
             try {
                 returnValue = (UDPProducer) Class.forName(clientName).newInstance();
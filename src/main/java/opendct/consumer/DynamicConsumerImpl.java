@@ -166,6 +166,27 @@ public class DynamicConsumerImpl implements SageTVConsumer {
         return Config.getSageTVConsumer(null, consumerName, channel);
     }
 
+    /**
+     * Get the name of the consumer that would be used for a channel without creating it.
+     *
+     * @param channel The channel.
+     * @return The canonical class name of the consumer.
+     */
+    public static String getConsumerName(String channel) {
+        String consumerName = channel == null ? null : dynamicMaps.get(channel);
+
+        return consumerName == null ? defaultConsumer.getCanonicalValue() : consumerName;
+    }
+
+    /**
+     * Get the consumer that was selected for the channel.
+     *
+     * @return The consumer or <i>null</i> if a consumer has not been selected yet.
+     */
+    public SageTVConsumer getSelectedConsumer() {
+        return sageTVConsumer;
+    }
+
     private void updateConsumer(SageTVConsumer consumer) {
         if (consumer != null) {
             consumer.setRecordBufferSize(bufferSize);
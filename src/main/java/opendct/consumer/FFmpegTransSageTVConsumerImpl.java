@@ -41,7 +41,9 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
@@ -75,6 +77,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
     private AtomicBoolean running = new AtomicBoolean(false);
     private boolean streaming = false;
     private String currentChannel = "";
+    private String currentLineup = null;
     private String currentEncoderFilename = "";
     private FFmpegWriter currentWriter = null;
     private FFmpegWriter switchWriter = null;
@@ -85,6 +88,13 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
     private final Object streamingMonitor = new Object();
     private InetSocketAddress uploadSocketAddress = null;
 
+    // The recording, including the writer for the next SWITCH, has an I/O thread of its own so a
+    // slow closed captions or rendition output can never hold it up. Those outputs share the
+    // second thread and drop data instead of waiting when they fall behind.
+    private final FFmpegOutputThread outputThread = new FFmpegOutputThread("FFmpegTransSageTVConsumer");
+    private final FFmpegOutputThread secondaryOutputThread =
+            new FFmpegOutputThread("FFmpegTransSageTVConsumer-Secondary");
+
     int desiredProgram = 0;
     private FFmpegCircularBufferNIO circularBuffer;
     private FFmpegContext ctx;
@@ -148,10 +158,22 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             ctx = new FFmpegContext(circularBuffer, RW_BUFFER_SIZE, new FFmpegTranscoder());
 
             ctx.setProgram(desiredProgram);
+            ctx.setDetectionKey(FFmpegDetectionCache.getKey(currentLineup, currentChannel));
 
             FFmpegProfile profile = FFmpegProfileManager.getEncoderProfile(currentRecordingQuality);
             ctx.setEncodeProfile(profile);
 
+            // Renditions are written next to the recording, so they are only possible when the
+            // recording is a file that isn't being used as a buffer.
+            if (profile != null &&
+                    stvRecordBufferSize == 0 &&
+                    currentWriter instanceof FFmpegDirectWriter) {
+
+                for (FFmpegRendition rendition : createRenditions(profile, currentEncoderFilename)) {
+                    ctx.addRendition(rendition);
+                }
+            }
+
             if (!ctx.initTsStream(currentEncoderFilename)) {
                 logger.info("Unable to detect any video.");
                 return;
@@ -179,17 +201,94 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                 currentWriter.closeFile();
             }
 
+            // The transcoder closes the renditions it started. This closes any that were never
+            // started.
+            closeRenditions(ctx.getRenditions());
+            closeRenditions(ctx.takeSwitchRenditions());
+
             ctx.dispose();
 
-            // This probably needs to be done differently if the class is to be reused.
-            //buffers.offer(circularBuffer);
-            //circularBuffer = null;
+            // This is acquired again by clear() if the consumer is started again.
+            circularBuffer.release();
 
             running.set(false);
             logger.info("FFmpeg Transcoder consumer thread stopped.");
         }
     }
 
+    /**
+     * Create the renditions for a recording.
+     * <p/>
+     * This also starts removing any renditions in the same directory left behind by recordings
+     * that have since been deleted.
+     *
+     * @param profile The profile of the recording.
+     * @param filename The filename of the recording.
+     * @return The renditions to be written next to the recording.
+     */
+    private List<FFmpegRendition> createRenditions(FFmpegProfile profile, String filename) {
+        final String renditionNames[] = profile.getRenditions();
+        List<FFmpegRendition> renditions = new ArrayList<>(renditionNames.length);
+
+        if (renditionNames.length == 0) {
+            return renditions;
+        }
+
+        for (String renditionName : renditionNames) {
+            FFmpegProfile renditionProfile = FFmpegProfileManager.getEncoderProfile(renditionName);
+
+            if (renditionProfile == null) {
+                logger.warn("The rendition profile '{}' does not exist.", renditionName);
+                continue;
+            }
+
+            String renditionFilename = FFmpegRendition.getFilename(filename, renditionName);
+
+            try {
+                renditions.add(new FFmpegRendition(renditionProfile, renditionFilename,
+                        new FFmpegRenditionWriter(renditionFilename)));
+            } catch (IOException e) {
+                logger.error("Unable to open rendition '{}' for writing => ", renditionFilename, e);
+            }
+        }
+
+        if (renditions.isEmpty()) {
+            return renditions;
+        }
+
+        final List<String> createdFilenames = new ArrayList<>(renditions.size());
+
+        for (FFmpegRendition rendition : renditions) {
+            createdFilenames.add(rendition.FILENAME);
+        }
+
+        final String primaryFilename = filename;
+        final boolean deleteOrphans = FFmpegConfig.getRenditionCleanup();
+
+        try {
+            ThreadPool.submit(ThreadPool.Lane.BACKGROUND, new Runnable() {
+                @Override
+                public void run() {
+                    for (String createdFilename : createdFilenames) {
+                        FFmpegRendition.addToManifest(createdFilename, primaryFilename);
+                    }
+
+                    FFmpegRendition.cleanupManifest(deleteOrphans);
+                }
+            }, Thread.NORM_PRIORITY, "RenditionManifest", new File(filename).getName());
+        } catch (RejectedExecutionException e) {
+            logger.warn("Unable to add the renditions for '{}' to the manifest => ", filename, e);
+        }
+
+        return renditions;
+    }
+
+    private void closeRenditions(List<FFmpegRendition> renditions) {
+        for (FFmpegRendition rendition : renditions) {
+            rendition.WRITER.closeFile();
+        }
+    }
+
     @Override
     public void write(byte[] bytes, int offset, int length) throws IOException {
         if (circularBuffer != null) {
@@ -302,6 +401,8 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         try {
             switchWriter = new FFmpegUploadIDWriter(uploadSocketAddress, filename, uploadId);
 
+            // Renditions are only written next to files, so the current ones just end.
+            ctx.setSwitchRenditions(new ArrayList<FFmpegRendition>());
             ctx.STREAM_PROCESSOR.switchOutput(filename, switchWriter, null);
 
             currentWriter.closeFile();
@@ -333,7 +434,17 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                 switchCcWriter = new FFmpegCCExtractorWriter(filename);
             }
 
-            ctx.STREAM_PROCESSOR.switchOutput(filename, switchWriter, switchCcWriter);
+            FFmpegProfile profile = FFmpegProfileManager.getEncoderProfile(currentRecordingQuality);
+
+            ctx.setSwitchRenditions(profile != null && bufferSize == 0 ?
+                    createRenditions(profile, filename) : new ArrayList<FFmpegRendition>());
+
+            try {
+                ctx.STREAM_PROCESSOR.switchOutput(filename, switchWriter, switchCcWriter);
+            } finally {
+                // These are left over if the SWITCH didn't happen.
+                closeRenditions(ctx.takeSwitchRenditions());
+            }
 
             currentWriter.closeFile();
             currentEncoderFilename = filename;
@@ -385,6 +496,18 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         return currentChannel;
     }
 
+    /**
+     * Set the lineup the channel belongs to.
+     * <p/>
+     * The lineup and channel are used to look up the results of the last stream detection for
+     * this channel.
+     *
+     * @param lineup The name of the lineup or <i>null</i> if it is not known.
+     */
+    public void setChannelLineup(String lineup) {
+        currentLineup = lineup;
+    }
+
     @Override
     public boolean isStreaming(long timeout) {
         synchronized (streamingMonitor) {
@@ -410,17 +533,18 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         FFmpegConfig.setOptions(deviceOptions);
     }
 
-    public class FFmpegUploadIDWriter implements FFmpegWriter {
-        private ByteBuffer streamBuffer = ByteBuffer.allocateDirect(minUploadIDTransfer * 2);
+    public class FFmpegUploadIDWriter implements FFmpegWriter, FFmpegOutputStage.Sink {
+        private final FFmpegOutputStage outputStage;
         protected NIOSageTVMediaServer mediaServer = new NIOSageTVMediaServer();
 
         private InetSocketAddress uploadSocket;
         private String uploadFilename;
         private int uploadID;
 
-        private long bytesFlushCounter;
         private boolean firstWrite;
-        private boolean isFailed;
+        // This is written on the output thread and read by the thread writing.
+        private volatile boolean isFailed;
+        private boolean closed;
 
         public FFmpegUploadIDWriter (InetSocketAddress uploadSocket, String uploadFilename, int uploadID) throws IOException {
             mediaServer.startUpload(uploadSocket, uploadFilename, uploadID);
@@ -429,13 +553,29 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             this.uploadFilename = uploadFilename;
             this.uploadID = uploadID;
 
-            bytesFlushCounter = 0;
             firstWrite = true;
             isFailed = false;
+            closed = false;
+
+            outputStage = new FFmpegOutputStage(outputThread, "FFmpegUploadIDWriter", this,
+                    FFmpegConfig.getOutputSlots(), minUploadIDTransfer * 2, minUploadIDTransfer,
+                    FFmpegConfig.getOutputFlushMs());
+
+            outputStage.start(uploadFilename);
         }
 
         @Override
         public void closeFile() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            outputStage.close();
+
+            logger.info("Closing the file '{}' upload ID {} {}",
+                    uploadFilename, uploadID, outputStage);
+
             try {
                 mediaServer.endUpload();
             } catch (IOException e) {
@@ -453,7 +593,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         protected ByteBuffer writeBuffer = null;
 
         @Override
-        public synchronized int write(BytePointer data, int length) throws IOException {
+        public int write(BytePointer data, int length) throws IOException {
             if (isFailed)
                 return 0;
 
@@ -469,21 +609,23 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             writeAddress = data.address();
 
             if (writeBuffer == null || writeAddress != lastWriteAddress || lastWriteCapacity < length) {
-                writeBuffer = data.position(0).limit(length).asByteBuffer();;
+                writeBuffer = data.position(0).limit(length).asByteBuffer();
                 lastWriteAddress = writeAddress;
                 lastWriteCapacity = length;
             } else {
                 writeBuffer.limit(length).position(0);
             }
 
-            streamBuffer.put(writeBuffer);
-
-            if (streamBuffer.position() < minUploadIDTransfer) {
-                return logger.exit(length);
-            }
-
-            streamBuffer.flip();
+            return outputStage.write(writeBuffer);
+        }
 
+        /**
+         * Uploads to the SageTV server on the output stage thread.
+         *
+         * @param streamBuffer The data to upload.
+         */
+        @Override
+        public void write(ByteBuffer streamBuffer) throws IOException {
             int bytesToStream = streamBuffer.remaining();
 
             try {
@@ -527,12 +669,10 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                 }
                 logger.error("Unable to stream '{}' via upload ID {} => ",
                         uploadFilename, uploadID, e);
-                bytesToStream = 0;
-            } finally {
-                streamBuffer.clear();
-            }
 
-            return bytesToStream;
+                // This fails the output stage, so the next write from FFmpeg fails too.
+                throw e;
+            }
         }
 
         @Override
@@ -541,8 +681,9 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         }
     }
 
-    public class FFmpegCCExtractorWriter implements FFmpegWriter {
+    public class FFmpegCCExtractorWriter implements FFmpegWriter, FFmpegOutputStage.Sink {
         private CCExtractorSrtInstance ccInstance;
+        private final FFmpegOutputStage outputStage;
         protected DatagramChannel datagramChannel;
         protected SocketAddress targetAddress;
         protected int portNumber;
@@ -597,6 +738,14 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             // Create the CCExtractor instance before the recording file so that the .srt files will
             // already exist providing the subtitle option during playback.
             ccInstance = new CCExtractorSrtInstance(paramBuilder.toString(), baseFilename);
+
+            outputStage = new FFmpegOutputStage(secondaryOutputThread, "FFmpegCCExtractorWriter",
+                    this, FFmpegConfig.getOutputSlots(), RW_BUFFER_SIZE * 2, RW_BUFFER_SIZE,
+                    FFmpegConfig.getOutputFlushMs());
+
+            outputStage.setDropWhenFull(true);
+
+            outputStage.start(new File(filename).getName());
         }
 
         protected long lastWriteAddress = 0;
@@ -605,7 +754,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         protected ByteBuffer writeBuffer = null;
 
         @Override
-        public synchronized int write(BytePointer data, int length) throws IOException {
+        public int write(BytePointer data, int length) throws IOException {
 
             if (length == 0) {
                 return length;
@@ -614,18 +763,26 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             writeAddress = data.address();
 
             if (writeBuffer == null || writeAddress != lastWriteAddress || lastWriteCapacity < length) {
-                writeBuffer = data.position(0).limit(length).asByteBuffer();;
+                writeBuffer = data.position(0).limit(length).asByteBuffer();
                 lastWriteAddress = writeAddress;
                 lastWriteCapacity = length;
             } else {
                 writeBuffer.limit(length).position(0);
             }
 
-            int bytesSent = length;
+            return outputStage.write(writeBuffer);
+        }
 
-            if (ccInstance != null) {
-                bytesSent = 0;
+        /**
+         * Sends data to CCExtractor on the output stage thread.
+         *
+         * @param writeBuffer The data to send.
+         */
+        @Override
+        public synchronized void write(ByteBuffer writeBuffer) throws IOException {
+            int length = writeBuffer.remaining();
 
+            if (ccInstance != null) {
                 if (datagramChannel != null) {
                     if (length > 31960) {
                         ByteBuffer slice;
@@ -637,7 +794,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                             writeBuffer.position(writeBuffer.position() + increment);
 
                             while (slice.hasRemaining() && datagramChannel.isOpen()) {
-                                bytesSent += datagramChannel.write(slice);
+                                datagramChannel.write(slice);
                                 try {
                                     Thread.sleep(1);
                                 } catch (InterruptedException e) {
@@ -648,34 +805,38 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                         }
                     } else {
                         while (writeBuffer.hasRemaining() && datagramChannel.isOpen()) {
-                            bytesSent += datagramChannel.write(writeBuffer);
+                            datagramChannel.write(writeBuffer);
                         }
                     }
                 } else {
                     ccInstance.streamIn(writeBuffer);
                 }
             }
-
-            return bytesSent;
         }
 
         @Override
-        public synchronized void closeFile() {
-            if (ccInstance != null) {
-                ccInstance.setClosed();
-            }
-
-            ccInstance = null;
+        public void closeFile() {
+            // This must not hold the lock on this writer or the output stage can't finish writing.
+            outputStage.close();
 
-            if (datagramChannel != null) {
-                try {
-                    datagramChannel.close();
-                } catch (IOException e) {
-                    logger.debug("Error while closing datagram channel => ", e);
+            synchronized (this) {
+                if (ccInstance != null) {
+                    ccInstance.setClosed();
                 }
 
-                datagramChannel.socket().close();
-                Config.returnFreeRTSPPort(portNumber);
+                ccInstance = null;
+
+                if (datagramChannel != null) {
+                    try {
+                        datagramChannel.close();
+                    } catch (IOException e) {
+                        logger.debug("Error while closing datagram channel => ", e);
+                    }
+
+                    datagramChannel.socket().close();
+                    Config.returnFreeRTSPPort(portNumber);
+                    datagramChannel = null;
+                }
             }
         }
 
@@ -685,19 +846,14 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         }
     }
 
-    public class FFmpegDirectWriter implements FFmpegWriter {
+    public class FFmpegDirectWriter implements FFmpegWriter, FFmpegOutputStage.Sink {
         private long autoOffset;
         private boolean firstWrite;
         private boolean closed;
 
-        private final ByteBuffer asyncBuffer = ByteBuffer.allocateDirect(RW_BUFFER_SIZE * 2);
-        private final int minWrite = RW_BUFFER_SIZE;
-        private volatile boolean canWrite = false;
-
-        private Future asyncWriter;
+        private final FFmpegOutputStage outputStage;
         private FileChannel fileChannel;
         private final String directFilename;
-        private final File recordingFile;
 
         public FFmpegDirectWriter(final String filename) throws IOException {
 
@@ -707,13 +863,17 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                     StandardOpenOption.CREATE);
 
             directFilename = filename;
-            recordingFile = new File(directFilename);
 
             autoOffset = 0;
             firstWrite = true;
             closed = false;
 
-            asyncWriter = ThreadPool.submit(new AsyncWriter(), Thread.NORM_PRIORITY, "AsyncWriter", new File(directFilename).getName());
+            // When SageTV is using the file as a buffer, every write is passed along right away.
+            outputStage = new FFmpegOutputStage(outputThread, "FFmpegDirectWriter", this,
+                    FFmpegConfig.getOutputSlots(), RW_BUFFER_SIZE * 2,
+                    stvRecordBufferSize > 0 ? 1 : RW_BUFFER_SIZE, FFmpegConfig.getOutputFlushMs());
+
+            outputStage.start(new File(directFilename).getName());
         }
 
         protected long lastWriteAddress = 0;
@@ -721,8 +881,6 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         protected long writeAddress = 0;
         protected ByteBuffer writeBuffer = null;
 
-        private long lastFilelength;
-
         @Override
         public int write(BytePointer data, int length) throws IOException {
             if (closed) {
@@ -736,110 +894,108 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             if (firstWrite) {
                 bytesStreamed = 0;
                 firstWrite = false;
-                asyncBuffer.clear();
             }
 
             writeAddress = data.address();
 
             if (writeBuffer == null || writeAddress != lastWriteAddress || lastWriteCapacity < length) {
-                writeBuffer = data.position(0).limit(length).asByteBuffer();;
+                writeBuffer = data.position(0).limit(length).asByteBuffer();
                 lastWriteAddress = writeAddress;
                 lastWriteCapacity = length;
             } else {
                 writeBuffer.limit(length).position(0);
             }
 
-            if (stvRecordBufferSize > 0 && stvRecordBufferSize < autoOffset + length) {
-                ByteBuffer slice = writeBuffer.slice();
-                slice.limit((int) (stvRecordBufferSize - autoOffset));
+            return outputStage.write(writeBuffer);
+        }
 
-                synchronized (asyncBuffer) {
-                    while(canWrite) {
-                        try {
-                            asyncBuffer.wait(500);
-                        } catch (InterruptedException e) {
-                            logger.error("Interrupted while waiting for the buffer => ",
-                                    directFilename, e);
-                            break;
-                        }
+        /**
+         * Writes to the file on the output stage thread.
+         *
+         * @param buffer The data to write.
+         */
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            int writeBytes = buffer.remaining();
+
+            try {
+                while (buffer.hasRemaining()) {
+                    // Wrap around to the start of the file when it's being used as a buffer.
+                    if (stvRecordBufferSize > 0 && autoOffset >= stvRecordBufferSize) {
+                        autoOffset = 0;
                     }
 
-                    asyncBuffer.put(slice);
-                    asyncBuffer.flip();
-                    canWrite = true;
-                    asyncBuffer.notifyAll();
-
-                    while(canWrite) {
-                        try {
-                            asyncBuffer.wait(500);
-                        } catch (InterruptedException e) {
-                            logger.error("Interrupted while waiting for the buffer => ",
-                                    directFilename, e);
-                            break;
-                        }
+                    ByteBuffer slice = buffer;
+
+                    if (stvRecordBufferSize > 0 &&
+                            stvRecordBufferSize < autoOffset + buffer.remaining()) {
+
+                        slice = buffer.slice();
+                        slice.limit((int) (stvRecordBufferSize - autoOffset));
                     }
 
-                    data.position((int) (data.position() + (stvRecordBufferSize - autoOffset)));
-                    autoOffset = 0;
+                    while (slice.hasRemaining()) {
+                        int bytesWritten = fileChannel.write(slice, autoOffset);
+                        autoOffset += bytesWritten;
+
+                        if (slice != buffer) {
+                            buffer.position(buffer.position() + bytesWritten);
+                        }
+                    }
                 }
-            }
+            } catch (IOException e) {
+                logger.error("File '{}' write failed => ", directFilename, e);
 
-            synchronized (asyncBuffer) {
-                while(canWrite) {
+                if (fileChannel.isOpen()) {
                     try {
-                        asyncBuffer.wait(500);
-                    } catch (InterruptedException e) {
-                        logger.error("Interrupted while waiting for the buffer => ",
-                                directFilename, e);
-                        break;
+                        fileChannel.close();
+                    } catch (IOException e0) {
+                        logger.debug("Consumer created an exception while" +
+                                " closing the current file => {}", e0);
                     }
                 }
 
-                if (stvRecordBufferSize == 0) {
-                    asyncBuffer.put(writeBuffer);
-
-                    int remains = asyncBuffer.remaining();
-                    if (remains > minWrite) {
-                        return length;
-                    }
-                } else {
-                    asyncBuffer.put(writeBuffer);
+                try {
+                    fileChannel = FileChannel.open(
+                            Paths.get(directFilename),
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE);
+                } catch (IOException e0) {
+                    logger.error("Unable to re-open file '{}' => ", directFilename, e0);
                 }
 
-                asyncBuffer.flip();
-                canWrite = true;
-                asyncBuffer.notifyAll();
+                return;
             }
 
-            return length;
+            long currentBytes = bytesStreamed += writeBytes;
+
+            if (currentBytes > initBufferedData) {
+                synchronized (streamingMonitor) {
+                    streamingMonitor.notifyAll();
+                }
+            }
         }
 
         @Override
         public void closeFile() {
-            synchronized (asyncBuffer) {
-                while(canWrite) {
-                    try {
-                        asyncBuffer.wait(500);
-                    } catch (InterruptedException e) {
-                        logger.error("Interrupted while waiting for the buffer to return" +
-                                " for filename '{}' => ", directFilename, e);
-                        break;
-                    }
-                }
+            if (closed) {
+                return;
+            }
 
-                closed = true;
-                canWrite = true;
-                asyncBuffer.notifyAll();
+            closed = true;
+            outputStage.close();
 
-                while (fileChannel != null) {
-                    try {
-                        asyncBuffer.wait(500);
-                    } catch (InterruptedException e) {
-                        logger.error("Interrupted while waiting for the buffer to return" +
-                                " for filename '{}' => ", directFilename, e);
-                        break;
-                    }
-                }
+            logger.info("Closing the file '{}' {}", directFilename, outputStage);
+
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                logger.error("Unable to close the file '{}' => ", directFilename, e);
+            }
+
+            if (ccExtractorAvailable && currentCcWriter != null) {
+                currentCcWriter.closeFile();
+                currentCcWriter = switchCcWriter;
             }
         }
 
@@ -847,104 +1003,89 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         public Logger getLogger() {
             return logger;
         }
+    }
 
-        public class AsyncWriter implements Runnable {
-            private long bytesFlushCounter = 0;
-
-            @Override
-            public void run() {
-                int bytesWritten;
-                int writeBytes;
-                long currentBytes;
-                long currentBytesStreamed;
+    public class FFmpegRenditionWriter implements FFmpegWriter, FFmpegOutputStage.Sink {
+        private final FileChannel fileChannel;
+        private final FFmpegOutputStage outputStage;
+        private final String renditionFilename;
+        private boolean closed;
 
-                while (true) {
-                    synchronized (asyncBuffer) {
-                        while (!canWrite) {
-                            try {
-                                asyncBuffer.wait(500);
-                            } catch (InterruptedException e) {
-                                logger.error("Interrupted while waiting for the buffer => ",
-                                        directFilename, e);
-                                break;
-                            }
-                        }
+        public FFmpegRenditionWriter(String filename) throws IOException {
+            fileChannel = FileChannel.open(
+                    Paths.get(filename),
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
 
-                        if (closed) {
-                            if (fileChannel != null && fileChannel.isOpen()) {
-                                logger.info("Closing the file '{}'", directFilename);
+            renditionFilename = filename;
+            closed = false;
 
-                                try {
-                                    fileChannel.close();
-                                    fileChannel = null;
-                                } catch (IOException e) {
-                                    logger.error("Unable to close the file '{}' => ",
-                                            directFilename, e);
-                                }
+            outputStage = new FFmpegOutputStage(secondaryOutputThread, "FFmpegRenditionWriter",
+                    this, FFmpegConfig.getOutputSlots(), RW_BUFFER_SIZE * 2, RW_BUFFER_SIZE,
+                    FFmpegConfig.getOutputFlushMs());
 
-                                if (ccExtractorAvailable && currentCcWriter != null) {
-                                    currentCcWriter.closeFile();
-                                    currentCcWriter = switchCcWriter;
-                                }
-                            }
+            outputStage.setDropWhenFull(true);
 
-                            canWrite = false;
-                            asyncBuffer.clear();
-                            return;
-                        }
+            outputStage.start(new File(filename).getName());
+        }
 
-                        writeBytes = 0;
+        protected long lastWriteAddress = 0;
+        protected int lastWriteCapacity = 0;
+        protected long writeAddress = 0;
+        protected ByteBuffer writeBuffer = null;
 
-                        try {
-                            while (asyncBuffer.hasRemaining()) {
-                                bytesWritten = fileChannel.write(asyncBuffer, autoOffset);
-                                autoOffset += bytesWritten;
-                                writeBytes += bytesWritten;
-                            }
-                        } catch (Exception e) {
-                            logger.error("File '{}' write failed => ", directFilename, e);
+        @Override
+        public int write(BytePointer data, int length) throws IOException {
+            if (closed) {
+                return -1;
+            }
 
-                            if (fileChannel != null && fileChannel.isOpen()) {
-                                try {
-                                    fileChannel.close();
-                                } catch (IOException e0) {
-                                    logger.debug("Consumer created an exception while" +
-                                            " closing the current file => {}", e0);
-                                }
-                            }
+            writeAddress = data.address();
 
-                            try {
-                                fileChannel = FileChannel.open(
-                                        Paths.get(directFilename),
-                                        StandardOpenOption.WRITE,
-                                        StandardOpenOption.CREATE);
-                            } catch (IOException e0) {
-                                logger.error("Unable to re-open file '{}' => ", directFilename, e0);
-                            }
+            if (writeBuffer == null || writeAddress != lastWriteAddress || lastWriteCapacity < length) {
+                writeBuffer = data.position(0).limit(length).asByteBuffer();
+                lastWriteAddress = writeAddress;
+                lastWriteCapacity = length;
+            } else {
+                writeBuffer.limit(length).position(0);
+            }
 
-                            asyncBuffer.clear();
-                            canWrite = false;
-                            asyncBuffer.notifyAll();
-                            continue;
-                        }
+            return outputStage.write(writeBuffer);
+        }
 
-                        asyncBuffer.clear();
-                        canWrite = false;
-                        asyncBuffer.notifyAll();
-                    }
+        /**
+         * Writes to the file on the output stage thread.
+         *
+         * @param buffer The data to write.
+         */
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+        }
 
-                    currentBytes = bytesStreamed += writeBytes;
+        @Override
+        public synchronized void closeFile() {
+            if (closed) {
+                return;
+            }
 
-                    bytesFlushCounter += writeBytes;
+            closed = true;
+            outputStage.close();
 
-                    if (currentBytes > initBufferedData) {
-                        synchronized (streamingMonitor) {
-                            streamingMonitor.notifyAll();
-                        }
-                    }
-                }
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                logger.error("Unable to close the rendition '{}' => ", renditionFilename, e);
             }
         }
+
+        @Override
+        public Logger getLogger() {
+            return logger;
+        }
     }
 
     public class FFmpegNullWriter implements FFmpegWriter {
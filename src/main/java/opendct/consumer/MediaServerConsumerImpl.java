@@ -20,6 +20,7 @@ import opendct.config.options.BooleanDeviceOption;
 import opendct.config.options.DeviceOption;
 import opendct.config.options.DeviceOptionException;
 import opendct.config.options.IntegerDeviceOption;
+import opendct.consumer.buffers.DirectBufferPool;
 import opendct.consumer.buffers.SeekableCircularBufferNIO;
 import opendct.consumer.upload.NIOSageTVMediaServer;
 import opendct.nanohttpd.pojo.JsonOption;
@@ -71,7 +72,7 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
     private final Object switchMonitor = new Object();
 
     private NIOSageTVMediaServer mediaServer = new NIOSageTVMediaServer();
-    private ByteBuffer streamBuffer = ByteBuffer.allocateDirect(maxTransferSize);
+    private ByteBuffer streamBuffer = null;
     private SeekableCircularBufferNIO seekableBuffer = new SeekableCircularBufferNIO(bufferSize);
 
     private final int uploadIDPort = uploadIdPortOpt.getInteger();
@@ -94,6 +95,14 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
         logger.debug("Thread priority is {}.", rawThreadPriority);
         Thread.currentThread().setPriority(rawThreadPriority);
 
+        streamBuffer = DirectBufferPool.acquire(maxTransferSize, "MediaServerConsumerImpl");
+
+        // The buffer is only cleared if it was released by a previous run so nothing written
+        // before the consumer started is lost.
+        if (seekableBuffer.isReleased()) {
+            seekableBuffer.clear();
+        }
+
         try {
             if (consumeToNull) {
                 while (!seekableBuffer.isClosed()) {
@@ -166,17 +175,24 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
 
             logger.info("Media Server consumer is now streaming...");
 
-            // Start actual streaming.
-            streamBuffer.clear();
+            // Start actual streaming. The data is uploaded directly from the seek buffer, so
+            // nothing is copied. When the data wraps around the end of the buffer, both parts are
+            // sent in the same WRITE.
+            ByteBuffer segments[] = new ByteBuffer[2];
+
             while (!seekableBuffer.isClosed()) {
 
-                seekableBuffer.read(streamBuffer);
+                if (seekableBuffer.waitForBytes(minTransferSize, 1000) < minTransferSize &&
+                        !seekableBuffer.isClosed()) {
 
-                if (streamBuffer.position() < minTransferSize && !seekableBuffer.isClosed()) {
                     continue;
                 }
 
-                streamBuffer.flip();
+                int segmentCount = seekableBuffer.peek(segments, maxTransferSize);
+
+                if (segmentCount == 0) {
+                    continue;
+                }
 
                 if (switchFile) {
                     synchronized (switchMonitor) {
@@ -210,15 +226,15 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
                     }
                 }
 
-                int bytesToStream = streamBuffer.remaining();
+                int bytesToStream = segments[0].remaining() +
+                        (segmentCount > 1 ? segments[1].remaining() : 0);
 
-                mediaServer.uploadAutoIncrement(streamBuffer);
+                mediaServer.uploadAutoIncrement(segments[0], segmentCount > 1 ? segments[1] : null);
+                seekableBuffer.skip(bytesToStream);
 
                 if (consumeToNull) {
                     bytesStreamed.addAndGet(bytesToStream);
                 }
-
-                streamBuffer.clear();
             }
 
         } catch (InterruptedException e) {
@@ -234,6 +250,11 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
                 logger.debug("There was a problem while disconnecting from MediaServer.");
             }
 
+            DirectBufferPool.release(streamBuffer);
+            streamBuffer = null;
+
+            seekableBuffer.release();
+
             logger.info("MediaServer thread stopped.");
             running.getAndSet(false);
         }
@@ -21,9 +21,15 @@ import opendct.config.options.BooleanDeviceOption;
 import opendct.config.options.DeviceOption;
 import opendct.config.options.DeviceOptionException;
 import opendct.config.options.IntegerDeviceOption;
+import opendct.config.options.StringDeviceOption;
+import opendct.consumer.buffers.CircularBufferReader;
+import opendct.consumer.buffers.DirectBufferPool;
+import opendct.consumer.buffers.MappedCircularFile;
 import opendct.consumer.buffers.SeekableCircularBufferNIO;
+import opendct.consumer.buffers.TsPacketIndex;
 import opendct.consumer.upload.NIOSageTVMediaServer;
 import opendct.nanohttpd.pojo.JsonOption;
+import opendct.video.java.TsProgramFilter;
 import opendct.video.java.VideoUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -48,11 +54,18 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     private final int maxTransferSize = maxTransferSizeOpt.getInteger();
     private final int bufferSize = bufferSizeOpt.getInteger();
     private final int rawThreadPriority = threadPriorityOpt.getInteger();
+    private final boolean mappedRecordBuffer = mappedRecordBufferOpt.getBoolean();
+    private final MappedCircularFile.SyncPolicy mappedSyncPolicy =
+            MappedCircularFile.SyncPolicy.valueOf(mappedSyncPolicyOpt.getValue().toUpperCase());
+    private final long mappedForceInterval = mappedForceIntervalOpt.getInteger();
+    private final boolean packetIndexEnabled = packetIndexOpt.getBoolean();
 
     // volatile long is atomic as long as only one thread ever updates it.
     private volatile long bytesStreamed = 0;
 
     private boolean consumeToNull = false;
+    private volatile boolean detachOutput = false;
+    private volatile int filterProgram = 0;
     private FileOutputStream currentFileOutputStream = null;
     private FileOutputStream switchFileOutputStream = null;
     private String currentRecordingFilename = null;
@@ -71,8 +84,11 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     private volatile boolean switchFile = false;
     private final Object switchMonitor = new Object();
 
-    private ByteBuffer streamBuffer = ByteBuffer.allocateDirect(maxTransferSize);
+    private ByteBuffer streamBuffer = null;
     private SeekableCircularBufferNIO seekableBuffer = new SeekableCircularBufferNIO(bufferSize);
+    private final TsPacketIndex packetIndex =
+            packetIndexEnabled ? seekableBuffer.enablePacketIndex() : null;
+    private long streamBufferOffset = 0;
 
     private NIOSageTVMediaServer mediaServer = null;
 
@@ -100,8 +116,23 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         boolean uploadEnabled = false;
         int bytesToStream = 0;
         FileChannel currentFile = null;
+        MappedCircularFile recordBuffer = null;
         switchFile = false;
+        detachOutput = false;
         seekableBuffer.clear();
+        streamBuffer = DirectBufferPool.acquire(maxTransferSize, "RawSageTVConsumerImpl");
+
+        TsProgramFilter programFilter = null;
+        ByteBuffer muxBuffer = null;
+        if (filterProgram > 0 || filterProgram == TsProgramFilter.FIRST_PROGRAM) {
+            programFilter = new TsProgramFilter(filterProgram);
+            muxBuffer = DirectBufferPool.acquire(maxTransferSize, "RawSageTVConsumerImpl");
+            logger.info("Filtering the stream to only include program {}.", filterProgram);
+        }
+
+        // The packet index is for the full stream in the buffer, so it can't be used to find
+        // positions in a filtered stream.
+        boolean useIndex = packetIndex != null && programFilter == null;
 
         try {
             logger.info("Raw consumer thread is now running.");
@@ -133,7 +164,11 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                         logger.info("Attempting to write the file directly...");
                         try {
                             this.currentFileOutputStream = new FileOutputStream(currentRecordingFilename);
-                            currentFile = currentFileOutputStream.getChannel();
+                            recordBuffer = openRecordBuffer(currentRecordingFilename, currentFileOutputStream);
+
+                            if (recordBuffer == null) {
+                                currentFile = currentFileOutputStream.getChannel();
+                            }
                         } catch (FileNotFoundException e) {
                             logger.error("Unable to create the recording file '{}'.", currentRecordingFilename);
                             currentRecordingFilename = null;
@@ -143,7 +178,11 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                     uploadEnabled = true;
                 }
             } else if (currentRecordingFilename != null) {
-                currentFile = currentFileOutputStream.getChannel();
+                recordBuffer = openRecordBuffer(currentRecordingFilename, currentFileOutputStream);
+
+                if (recordBuffer == null) {
+                    currentFile = currentFileOutputStream.getChannel();
+                }
             } else if (consumeToNull) {
                 logger.debug("Consuming to a null output...");
             } else {
@@ -156,10 +195,26 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
             logger.info("Waiting for PES start byte...");
             while (!Thread.currentThread().isInterrupted()) {
                 streamBuffer.clear();
+                streamBufferOffset = seekableBuffer.getReadOffset();
 
                 while (streamBuffer.position() < minTransferSize && !Thread.currentThread().isInterrupted()) {
 
-                    seekableBuffer.read(streamBuffer);
+                    if (programFilter != null) {
+                        // Leave room for a packet that was split by the last read.
+                        int readLength = streamBuffer.remaining() - VideoUtil.MTS_PACKET_LEN;
+
+                        if (readLength <= 0) {
+                            break;
+                        }
+
+                        muxBuffer.clear();
+                        muxBuffer.limit(Math.min(readLength, muxBuffer.capacity()));
+                        seekableBuffer.read(muxBuffer);
+                        muxBuffer.flip();
+                        programFilter.filter(muxBuffer, streamBuffer);
+                    } else {
+                        seekableBuffer.read(streamBuffer);
+                    }
 
                     if (switchFile) {
                         break;
@@ -170,12 +225,17 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 streamBuffer.flip();
 
                 if (start) {
-                    int startIndex = VideoUtil.getTsVideoPesStartByte(
-                            streamBuffer,
-                            false
-                    );
+                    int startIndex = useIndex ?
+                            findPacket(TsPacketIndex.Kind.VIDEO_PES) :
+                            VideoUtil.getTsVideoPesStartByte(
+                                    streamBuffer,
+                                    false
+                            );
 
-                    if (startIndex > 0) {
+                    // Both searches return -1 when nothing was found. A video PES that starts at
+                    // the first byte of the buffer is a valid start and is very common when the
+                    // index is used since reads often begin on a packet boundary.
+                    if (startIndex > -1) {
                         streamBuffer.position(startIndex);
                         start = false;
                         logger.info("Raw consumer is now streaming...");
@@ -184,26 +244,67 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                     }
                 }
 
+                if (detachOutput && !consumeToNull) {
+                    logger.info("Raw consumer output is being closed. The stream will continue to be read.");
+
+                    if (uploadEnabled) {
+                        try {
+                            mediaServer.endUpload();
+                        } catch (IOException e) {
+                            logger.debug("Raw consumer created an exception while ending the current upload id session => ", e);
+                        }
+
+                        uploadEnabled = false;
+                    }
+
+                    if (currentFile != null) {
+                        try {
+                            currentFile.close();
+                        } catch (IOException e) {
+                            logger.debug("Raw consumer created an exception while closing the current file => {}", e);
+                        } finally {
+                            currentFile = null;
+                        }
+                    }
+
+                    if (recordBuffer != null) {
+                        try {
+                            recordBuffer.close();
+                        } catch (IOException e) {
+                            logger.debug("Raw consumer created an exception while closing the current file => {}", e);
+                        } finally {
+                            recordBuffer = null;
+                        }
+                    }
+
+                    currentRecordingFilename = null;
+                    consumeToNull = true;
+                }
+
                 try {
                     if (uploadEnabled) {
                         if (switchFile) {
                             int switchIndex;
 
                             if (switchAttempts-- > 0) {
-                                switchIndex = VideoUtil.getTsVideoRandomAccessIndicator(
-                                        streamBuffer,
-                                        false
-                                );
+                                switchIndex = useIndex ?
+                                        findPacket(TsPacketIndex.Kind.RANDOM_ACCESS) :
+                                        VideoUtil.getTsVideoRandomAccessIndicator(
+                                                streamBuffer,
+                                                false
+                                        );
                             } else {
                                 if (switchAttempts == -1) {
                                     logger.warn("Stream does not appear to contain any random access" +
                                             " indicators. Using the nearest PES packet.");
                                 }
 
-                                switchIndex = VideoUtil.getTsVideoPesStartByte(
-                                        streamBuffer,
-                                        false
-                                );
+                                switchIndex = useIndex ?
+                                        findPacket(TsPacketIndex.Kind.VIDEO_PES) :
+                                        VideoUtil.getTsVideoPesStartByte(
+                                                streamBuffer,
+                                                false
+                                        );
                             }
 
                             if (switchIndex > -1) {
@@ -282,10 +383,12 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                         bytesStreamed += bytesToStream;
                     } else if (!consumeToNull) {
                         if (switchFile) {
-                            int switchIndex = VideoUtil.getTsVideoPatStartByte(
-                                    streamBuffer,
-                                    false
-                            );
+                            int switchIndex = useIndex ?
+                                    findPacket(TsPacketIndex.Kind.PAT) :
+                                    VideoUtil.getTsVideoPatStartByte(
+                                            streamBuffer,
+                                            false
+                                    );
 
                             if (switchIndex > -1) {
                                 synchronized (switchMonitor) {
@@ -297,7 +400,11 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
                                         lastBytesToStream = lastWriteBuffer.remaining();
 
-                                        while (lastWriteBuffer.hasRemaining()) {
+                                        if (recordBuffer != null) {
+                                            bytesStreamed += recordBuffer.write(lastWriteBuffer);
+                                        }
+
+                                        while (currentFile != null && lastWriteBuffer.hasRemaining()) {
                                             int savedSize = currentFile.write(lastWriteBuffer);
                                             bytesStreamed += savedSize;
 
@@ -323,7 +430,20 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                                                 currentFile = null;
                                             }
                                         }
-                                        currentFile = switchFileOutputStream.getChannel();
+                                        if (recordBuffer != null) {
+                                            try {
+                                                recordBuffer.close();
+                                            } catch (IOException e) {
+                                                logger.error("Raw consumer created an exception" +
+                                                        " while closing the current file => {}", e);
+                                            } finally {
+                                                recordBuffer = null;
+                                            }
+                                        }
+                                        recordBuffer = openRecordBuffer(switchRecordingFilename, switchFileOutputStream);
+                                        if (recordBuffer == null) {
+                                            currentFile = switchFileOutputStream.getChannel();
+                                        }
                                         currentFileOutputStream = switchFileOutputStream;
                                         currentRecordingFilename = switchRecordingFilename;
                                         switchFileOutputStream = null;
@@ -337,6 +457,10 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                             }
                         }
 
+                        if (recordBuffer != null) {
+                            bytesStreamed += recordBuffer.write(streamBuffer);
+                        }
+
                         while (currentFile != null && streamBuffer.hasRemaining()) {
                             int savedSize = currentFile.write(streamBuffer);
 
@@ -366,7 +490,15 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
             bytesStreamed = 0;
 
-            seekableBuffer.clear();
+            // This is acquired again by clear() if the consumer is started again.
+            seekableBuffer.release();
+
+            DirectBufferPool.release(streamBuffer);
+            streamBuffer = null;
+
+            if (muxBuffer != null) {
+                DirectBufferPool.release(muxBuffer);
+            }
 
             currentRecordingFilename = null;
             if (currentFile != null && currentFile.isOpen()) {
@@ -379,6 +511,16 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 }
             }
 
+            if (recordBuffer != null) {
+                try {
+                    recordBuffer.close();
+                } catch (IOException e) {
+                    logger.debug("Raw consumer created an exception while closing the current file => {}", e);
+                } finally {
+                    recordBuffer = null;
+                }
+            }
+
             if (mediaServer != null) {
                 try {
                     mediaServer.endUpload();
@@ -399,6 +541,61 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         }
     }
 
+    /**
+     * Get the index of the first packet of a kind in the stream buffer from the packet index.
+     *
+     * @param kind The kind of packet.
+     * @return The index of the packet relative to the beginning of the stream buffer or -1 if
+     *         there isn't a complete packet of that kind after the current position.
+     */
+    private int findPacket(TsPacketIndex.Kind kind) {
+        long offset = packetIndex.next(kind, streamBufferOffset + streamBuffer.position());
+
+        // The whole packet must be in the stream buffer.
+        if (offset < 0 || offset + VideoUtil.MTS_PACKET_LEN > streamBufferOffset + streamBuffer.limit()) {
+            return -1;
+        }
+
+        return (int) (offset - streamBufferOffset);
+    }
+
+    /**
+     * Open a memory mapped circular file if it is enabled and SageTV requested a record buffer.
+     * <p/>
+     * The output stream that was opened for the file is closed when the mapped file is used.
+     *
+     * @param filename The full path to the recording.
+     * @param outputStream The output stream already opened for the recording.
+     * @return The mapped file or <i>null</i> if the output stream should be used.
+     */
+    private MappedCircularFile openRecordBuffer(String filename, FileOutputStream outputStream) {
+        long recordBufferSize = stvRecordBufferSize;
+
+        if (!mappedRecordBuffer || recordBufferSize <= 0) {
+            return null;
+        }
+
+        MappedCircularFile returnValue;
+
+        try {
+            returnValue = new MappedCircularFile(filename, recordBufferSize,
+                    mappedSyncPolicy, mappedForceInterval);
+        } catch (Exception e) {
+            logger.error("Unable to memory map the record buffer '{}'. Using file output stream" +
+                    " => ", filename, e);
+            return null;
+        }
+
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            logger.debug("Raw consumer created an exception while closing the file output stream => ", e);
+        }
+
+        logger.info("Writing {} byte record buffer using memory mapping.", recordBufferSize);
+        return returnValue;
+    }
+
     public void write(byte[] bytes, int offset, int length) throws IOException {
         seekableBuffer.write(bytes, offset, length);
     }
@@ -413,6 +610,30 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         seekableBuffer.clear();
     }
 
+    /**
+     * Stop writing to the current file or upload ID, but keep reading the stream.
+     * <p/>
+     * This is used when SageTV stops a recording, but readers added with
+     * <i>addStreamReader()</i> still need the stream.
+     */
+    public void detachOutput() {
+        detachOutput = true;
+    }
+
+    /**
+     * Read the stream this consumer is receiving without making another copy of it.
+     * <p/>
+     * The reader starts with the next bytes written and must be closed when it is no longer
+     * needed.
+     *
+     * @param name A name for the reader used in logging.
+     * @param policy What to do when the reader can't keep up with the stream.
+     * @return A new reader of the stream.
+     */
+    public CircularBufferReader addStreamReader(String name, CircularBufferReader.SlowReaderPolicy policy) {
+        return seekableBuffer.addReader(name, policy);
+    }
+
     public void setRecordBufferSize(long bufferSize) {
         this.stvRecordBufferSize = bufferSize;
     }
@@ -434,6 +655,17 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 logger.debug("There was a problem while disconnecting from Media Server => ", e);
             }
         }
+
+        // The file opened by consumeToFilename() is normally closed when the consumer thread
+        // stops, but that never happens if the consumer was never started.
+        FileOutputStream fileOutputStream = currentFileOutputStream;
+        if (!running.get() && fileOutputStream != null) {
+            try {
+                fileOutputStream.close();
+            } catch (IOException e) {
+                logger.debug("Raw consumer created an exception while closing the unused file => {}", e);
+            }
+        }
     }
 
     public long getBytesStreamed() {
@@ -547,6 +779,25 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         return desiredProgram;
     }
 
+    /**
+     * Only keep one program when the stream contains an entire frequency.
+     * <p/>
+     * The PAT is rewritten to only contain this program and every PID that doesn't belong to the
+     * program is removed before the stream is written. Readers added with
+     * <i>addStreamReader()</i> still get the full stream. This must be set before the consumer is
+     * started.
+     *
+     * @param program The program to keep, <i>TsProgramFilter.FIRST_PROGRAM</i> to keep the first
+     *                program in the PAT or 0 to keep everything.
+     */
+    public void setProgramFilter(int program) {
+        filterProgram = program;
+    }
+
+    public int getProgramFilter() {
+        return filterProgram;
+    }
+
     public void consumeToNull(boolean consumeToNull) {
         this.consumeToNull = consumeToNull;
     }
@@ -593,6 +844,10 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     private static IntegerDeviceOption bufferSizeOpt;
     private static IntegerDeviceOption threadPriorityOpt;
     private static IntegerDeviceOption uploadIdPortOpt;
+    private static BooleanDeviceOption mappedRecordBufferOpt;
+    private static StringDeviceOption mappedSyncPolicyOpt;
+    private static IntegerDeviceOption mappedForceIntervalOpt;
+    private static BooleanDeviceOption packetIndexOpt;
 
     private static void initDeviceOptions() {
         while (true) {
@@ -663,6 +918,49 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                         1024,
                         65535);
 
+                mappedRecordBufferOpt = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.raw.mapped_record_buffer", false),
+                        false,
+                        "Memory Map Record Buffers",
+                        "consumer.raw.mapped_record_buffer",
+                        "When SageTV requests a record buffer (live TV) and the consumer is writing" +
+                                " directly to the file, the file is created at its full size and" +
+                                " written through memory mapping instead of a write for every" +
+                                " transfer. This does not apply when using upload ID.");
+
+                mappedSyncPolicyOpt = new StringDeviceOption(
+                        Config.getString("consumer.raw.mapped_sync_policy", "periodic"),
+                        false,
+                        "Memory Mapped Sync Policy",
+                        "consumer.raw.mapped_sync_policy",
+                        "This determines when memory mapped record buffers are forced to disk." +
+                                " none leaves it to the OS, periodic forces at the interval set" +
+                                " by Memory Mapped Force Interval and window forces each mapped" +
+                                " window when it is full.",
+                        "none",
+                        "periodic",
+                        "window");
+
+                mappedForceIntervalOpt = new IntegerDeviceOption(
+                        Config.getInteger("consumer.raw.mapped_force_interval_ms", 5000),
+                        false,
+                        "Memory Mapped Force Interval",
+                        "consumer.raw.mapped_force_interval_ms",
+                        "This is the number of milliseconds between forcing memory mapped record" +
+                                " buffers to disk when the sync policy is periodic. This value" +
+                                " cannot be less than 100 and cannot be greater than 60000.",
+                        100,
+                        60000);
+
+                packetIndexOpt = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.raw.packet_index", true),
+                        false,
+                        "Index Transport Stream Packets",
+                        "consumer.raw.packet_index",
+                        "This indexes the PAT, PES start and random access packets as they are" +
+                                " buffered so the start and SWITCH points can be found without" +
+                                " searching through the buffered data.");
+
             } catch (DeviceOptionException e) {
                 logger.warn("Invalid options. Reverting to defaults => ", e);
 
@@ -672,6 +970,10 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 Config.setInteger("consumer.raw.stream_buffer_size", 2097152);
                 Config.setInteger("consumer.raw.thread_priority", Thread.MAX_PRIORITY - 2);
                 Config.setInteger("consumer.raw.upload_id_port", 7818);
+                Config.setBoolean("consumer.raw.mapped_record_buffer", false);
+                Config.setString("consumer.raw.mapped_sync_policy", "periodic");
+                Config.setInteger("consumer.raw.mapped_force_interval_ms", 5000);
+                Config.setBoolean("consumer.raw.packet_index", true);
                 continue;
             }
 
@@ -685,7 +987,11 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 maxTransferSizeOpt,
                 bufferSizeOpt,
                 threadPriorityOpt,
-                uploadIdPortOpt
+                uploadIdPortOpt,
+                mappedRecordBufferOpt,
+                mappedSyncPolicyOpt,
+                mappedForceIntervalOpt,
+                packetIndexOpt
         );
     }
 
@@ -697,7 +1003,11 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 maxTransferSizeOpt,
                 bufferSizeOpt,
                 threadPriorityOpt,
-                uploadIdPortOpt
+                uploadIdPortOpt,
+                mappedRecordBufferOpt,
+                mappedSyncPolicyOpt,
+                mappedForceIntervalOpt,
+                packetIndexOpt
         };
     }
 
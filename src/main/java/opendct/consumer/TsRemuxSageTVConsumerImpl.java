@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer;
+
+import opendct.video.java.TsProgramFilter;
+
+/**
+ * Remuxes the transport stream in Java so that only the desired program is recorded.
+ * <p/>
+ * This is the raw consumer with the program filter always enabled. The PAT and PMT are rewritten
+ * to only contain the desired program and every PID the program doesn't reference, including
+ * null packets, is removed. The packets that are kept are not otherwise changed, so the
+ * continuity counters and PCRs of the program are the same as the source. If a program hasn't
+ * been selected, the first program in the PAT is recorded.
+ * <p/>
+ * This is much lighter than using FFmpeg to remux and is useful when a capture device provides
+ * more than one program and the recording only needs one of them.
+ */
+public class TsRemuxSageTVConsumerImpl extends RawSageTVConsumerImpl {
+
+    public TsRemuxSageTVConsumerImpl() {
+        super();
+
+        setProgramFilter(TsProgramFilter.FIRST_PROGRAM);
+    }
+
+    @Override
+    public void setProgram(int program) {
+        super.setProgram(program);
+
+        setProgramFilter(program > 0 ? program : TsProgramFilter.FIRST_PROGRAM);
+    }
+
+    @Override
+    public void setProgramFilter(int program) {
+        // This consumer always filters, so 0 selects the first program instead of everything.
+        super.setProgramFilter(program != 0 ? program : TsProgramFilter.FIRST_PROGRAM);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.buffers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An additional read cursor over the data in a <i>SeekableCircularBufferNIO</i>.
+ * <p/>
+ * Every reader sees every byte written into the buffer after the reader was added, independent of
+ * the primary reader and of every other reader. Nothing is copied per reader, so one tuned stream
+ * can feed a recording, a live preview and anything else that wants the same data.
+ * <p/>
+ * Readers are created with <i>SeekableCircularBufferNIO.addReader()</i>. Only one thread may read
+ * from a reader at a time, but each reader can have its own thread.
+ */
+public class CircularBufferReader {
+    private static final Logger logger = LogManager.getLogger(CircularBufferReader.class);
+
+    public enum SlowReaderPolicy {
+        /**
+         * The writer will not overwrite data this reader has not read yet. This is the same
+         * behavior as the primary reader, so a stalled reader will push the writer into the
+         * overflow queue.
+         */
+        BLOCK,
+
+        /**
+         * The writer never waits for this reader. If the reader falls too far behind, everything
+         * it missed is skipped and it continues from the newest data in the buffer.
+         */
+        SKIP
+    }
+
+    private final SeekableCircularBufferNIO circularBuffer;
+    private final String name;
+    private final SlowReaderPolicy policy;
+    private final PaddedCursor cursor = new PaddedCursor();
+
+    // These are only accessed by the reading thread.
+    private ByteBuffer sourceBuffer;
+    private ByteBuffer readBuffer;
+    private int generation;
+
+    private volatile long bytesRead;
+    private volatile long bytesSkipped;
+    private volatile long skips;
+    private volatile boolean closed;
+
+    CircularBufferReader(SeekableCircularBufferNIO circularBuffer, String name,
+                         SlowReaderPolicy policy, long cursor, int generation) {
+
+        this.circularBuffer = circularBuffer;
+        this.name = name;
+        this.policy = policy;
+        this.cursor.set(cursor);
+        this.generation = generation;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public SlowReaderPolicy getPolicy() {
+        return policy;
+    }
+
+    long getCursor() {
+        return cursor.get();
+    }
+
+    /**
+     * Move this reader to a new position.
+     * <p/>
+     * This is only used when the buffer is cleared, so nothing can be reading at the same time.
+     */
+    void reset(long newCursor, int newGeneration) {
+        cursor.set(newCursor);
+        generation = newGeneration;
+    }
+
+    /**
+     * Read bytes into a buffer.
+     * <p/>
+     * This method blocks until at least one byte is available to be read, the buffer is closed or
+     * this reader is closed.
+     *
+     * @param outBuffer The buffer to receive the data.
+     * @return The number of bytes read or -1 if the buffer or this reader is closed and there is
+     *         nothing left to read.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public int read(ByteBuffer outBuffer) throws InterruptedException {
+        if (outBuffer.remaining() == 0) {
+            return 0;
+        }
+
+        while (true) {
+            waitForBytes();
+
+            // The generation must be read before the write cursor so an expansion that happens
+            // after this point is always noticed.
+            int currentGeneration = circularBuffer.getGeneration();
+            long write = circularBuffer.getWriteCursor();
+            ByteBuffer buffer = circularBuffer.buffer;
+            int capacity = buffer.capacity();
+
+            if (buffer != sourceBuffer) {
+                sourceBuffer = buffer;
+                readBuffer = buffer.duplicate();
+            }
+
+            if (policy == SlowReaderPolicy.SKIP && currentGeneration != generation) {
+                // The buffer was expanded, so the distance to the writer can't be calculated from
+                // the passes anymore.
+                generation = currentGeneration;
+                skipTo(write, 0);
+                continue;
+            }
+
+            long read = cursor.get();
+            int available = available(read, write, capacity);
+
+            if (available == 0) {
+                if (closed || circularBuffer.isClosed()) {
+                    return -1;
+                }
+
+                continue;
+            }
+
+            if (available < 0) {
+                skipTo(write, lag(read, write, capacity));
+                continue;
+            }
+
+            int position = outBuffer.position();
+            int length = Math.min(available, outBuffer.remaining());
+            long newCursor = copy(read, outBuffer, length, capacity);
+
+            if (policy == SlowReaderPolicy.SKIP) {
+                // The writer doesn't wait for this reader, so it might have started overwriting
+                // what we just copied. If it did, throw the copy away.
+                long newWrite = circularBuffer.getWriteCursor();
+
+                if (circularBuffer.getGeneration() != currentGeneration ||
+                        lag(read, newWrite, capacity) > maxLag(capacity)) {
+
+                    outBuffer.position(position);
+                    skipTo(newWrite, lag(read, newWrite, capacity));
+                    continue;
+                }
+
+                cursor.set(newCursor);
+            } else {
+                cursor.set(newCursor);
+                circularBuffer.signalWriterFromReader();
+            }
+
+            bytesRead += length;
+            return length;
+        }
+    }
+
+    private long copy(long read, ByteBuffer outBuffer, int length, int capacity) {
+        int readIndex = SeekableCircularBufferNIO.cursorIndex(read);
+        int readPasses = SeekableCircularBufferNIO.cursorPasses(read);
+
+        if (readIndex + length > capacity) {
+            int end = capacity - readIndex;
+            readBuffer.limit(capacity).position(readIndex);
+            outBuffer.put(readBuffer);
+
+            int readRemaining = length - end;
+            readBuffer.limit(readRemaining).position(0);
+            outBuffer.put(readBuffer);
+
+            return SeekableCircularBufferNIO.toCursor(readPasses + 1, readRemaining);
+        }
+
+        readBuffer.limit(readIndex + length).position(readIndex);
+        outBuffer.put(readBuffer);
+
+        return SeekableCircularBufferNIO.toCursor(readPasses, readIndex + length);
+    }
+
+    private void skipTo(long write, long skipped) {
+        cursor.set(write);
+
+        if (skipped > 0) {
+            bytesSkipped += skipped;
+            skips += 1;
+
+            logger.warn("Reader '{}' fell behind and skipped {} bytes.", name, skipped);
+        }
+    }
+
+    /**
+     * The number of bytes that can be read or -1 if the writer has overwritten data this reader
+     * has not read yet.
+     */
+    private int available(long read, long write, int capacity) {
+        if (policy == SlowReaderPolicy.BLOCK) {
+            int readIndex = SeekableCircularBufferNIO.cursorIndex(read);
+            int writeIndex = SeekableCircularBufferNIO.cursorIndex(write);
+
+            return readIndex <= writeIndex ?
+                    writeIndex - readIndex : capacity - (readIndex - writeIndex);
+        }
+
+        long lag = lag(read, write, capacity);
+
+        if (lag > maxLag(capacity)) {
+            return -1;
+        }
+
+        return (int) lag;
+    }
+
+    private static long lag(long read, long write, int capacity) {
+        long passes = (long) SeekableCircularBufferNIO.cursorPasses(write) -
+                SeekableCircularBufferNIO.cursorPasses(read);
+
+        return passes * capacity +
+                SeekableCircularBufferNIO.cursorIndex(write) -
+                SeekableCircularBufferNIO.cursorIndex(read);
+    }
+
+    /**
+     * The writer copies into the buffer before it moves the write cursor, so the last part of the
+     * buffer might already be changing. Anything further behind than this is considered lost.
+     */
+    private static long maxLag(int capacity) {
+        return capacity - capacity / 8;
+    }
+
+    private void waitForBytes() throws InterruptedException {
+        if (hasBytes()) {
+            return;
+        }
+
+        circularBuffer.waitForReader(this);
+    }
+
+    /**
+     * <i>true</i> if a read would not need to wait.
+     */
+    boolean hasBytes() {
+        return closed || circularBuffer.isClosed() ||
+                circularBuffer.getWriteCursor() != cursor.get() ||
+                (policy == SlowReaderPolicy.SKIP && circularBuffer.getGeneration() != generation);
+    }
+
+    /**
+     * Get how many bytes are available to be read by this reader.
+     * <p/>
+     * For a reader that skips, this can be more than the reader will be able to read if it has
+     * fallen too far behind.
+     */
+    public long readAvailable() {
+        return Math.max(0, getLag());
+    }
+
+    /**
+     * The number of bytes between this reader and the writer.
+     */
+    public long getLag() {
+        return lag(cursor.get(), circularBuffer.getWriteCursor(), circularBuffer.capacity);
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * The number of bytes this reader never saw because it fell too far behind.
+     */
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+
+    /**
+     * The number of times this reader fell too far behind.
+     */
+    public long getSkips() {
+        return skips;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Remove this reader from the buffer.
+     * <p/>
+     * The writer stops waiting for this reader and any blocked read returns.
+     */
+    public void close() {
+        closed = true;
+        circularBuffer.removeReader(this);
+    }
+}
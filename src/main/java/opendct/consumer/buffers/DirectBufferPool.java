@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.buffers;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared pool of direct byte buffers.
+ * <p/>
+ * Direct memory is only returned to the OS after the garbage collector has cleaned up the buffer
+ * that owns it, so creating and discarding direct buffers every time a consumer or producer starts
+ * leads to large spikes in direct memory and full garbage collections. Buffers acquired from this
+ * pool must be returned with <b>release()</b> when they are no longer in use. Buffers are rounded
+ * up to a power of two size class. Size classes smaller than the slab size are carved out of a
+ * shared slab instead of being allocated individually.
+ * <p/>
+ * The returned buffer always has a capacity exactly equal to the requested size.
+ */
+public class DirectBufferPool {
+    private static final Logger logger = LogManager.getLogger(DirectBufferPool.class);
+
+    private static final int MIN_CLASS_SHIFT = 12; // 4KB
+    private static final int MAX_CLASS_SHIFT = 26; // 64MB
+    private static final int SLAB_SIZE = 1048576;
+
+    private static final long maxRetainedBytes =
+            Config.getLong("buffers.pool.max_retained_bytes", 134217728);
+
+    private static final SizeClass sizeClasses[] = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    private static final Map<ByteBuffer, Allocation> outstanding = new IdentityHashMap<>();
+
+    private static final AtomicLong allocatedBytes = new AtomicLong(0);
+    private static final AtomicLong retainedBytes = new AtomicLong(0);
+    private static final AtomicLong acquires = new AtomicLong(0);
+    private static final AtomicLong releases = new AtomicLong(0);
+    private static final AtomicLong poolHits = new AtomicLong(0);
+    private static final AtomicLong unknownReleases = new AtomicLong(0);
+
+    static {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(1 << (i + MIN_CLASS_SHIFT));
+        }
+    }
+
+    /**
+     * Get a cleared direct buffer from the pool.
+     *
+     * @param size The capacity of the returned buffer.
+     * @param owner A short description of who is using the buffer. This is used to find buffers
+     *              that were never released.
+     * @return A direct buffer with a capacity of exactly <b>size</b>.
+     */
+    public static ByteBuffer acquire(int size, String owner) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The buffer size must be greater than 0.");
+        }
+
+        acquires.incrementAndGet();
+
+        SizeClass sizeClass = getSizeClass(size);
+        ByteBuffer chunk;
+
+        if (sizeClass == null) {
+            // This is too large to be worth keeping around.
+            chunk = ByteBuffer.allocateDirect(size);
+            allocatedBytes.addAndGet(size);
+        } else {
+            chunk = sizeClass.free.poll();
+
+            if (chunk != null) {
+                poolHits.incrementAndGet();
+                retainedBytes.addAndGet(-sizeClass.size);
+            } else {
+                chunk = sizeClass.allocate();
+            }
+
+            sizeClass.outstanding.incrementAndGet();
+        }
+
+        chunk.clear().limit(size);
+        ByteBuffer returnValue = chunk.slice();
+
+        synchronized (outstanding) {
+            outstanding.put(returnValue, new Allocation(chunk, sizeClass, owner, size));
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * <p/>
+     * The buffer and any duplicates or slices of it must not be used after this method is called.
+     * Buffers that did not come from this pool are ignored.
+     *
+     * @param buffer The buffer returned by <b>acquire()</b>.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        Allocation allocation;
+
+        synchronized (outstanding) {
+            allocation = outstanding.remove(buffer);
+        }
+
+        if (allocation == null) {
+            if (buffer.isDirect()) {
+                unknownReleases.incrementAndGet();
+                logger.debug("A buffer that was not acquired from the pool was released.");
+            }
+
+            return;
+        }
+
+        releases.incrementAndGet();
+
+        SizeClass sizeClass = allocation.sizeClass;
+
+        if (sizeClass == null) {
+            allocatedBytes.addAndGet(-allocation.size);
+            return;
+        }
+
+        sizeClass.outstanding.decrementAndGet();
+
+        // Slab chunks can't be freed individually, so they always go back into the pool.
+        if (sizeClass.fromSlab || retainedBytes.get() + sizeClass.size <= maxRetainedBytes) {
+            retainedBytes.addAndGet(sizeClass.size);
+            sizeClass.free.add(allocation.chunk);
+        } else {
+            allocatedBytes.addAndGet(-sizeClass.size);
+        }
+    }
+
+    private static SizeClass getSizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+
+        if (shift > MAX_CLASS_SHIFT) {
+            return null;
+        }
+
+        return sizeClasses[Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT];
+    }
+
+    public static long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public static long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public static long getAcquires() {
+        return acquires.get();
+    }
+
+    public static long getReleases() {
+        return releases.get();
+    }
+
+    public static long getPoolHits() {
+        return poolHits.get();
+    }
+
+    public static long getUnknownReleases() {
+        return unknownReleases.get();
+    }
+
+    /**
+     * Get the number of buffers per size class that are currently acquired and available.
+     *
+     * @return An array of <i>{size, outstanding, free}</i> for every size class that has ever been
+     *         used.
+     */
+    public static long[][] getSizeClassStatistics() {
+        List<long[]> returnValue = new ArrayList<>();
+
+        for (SizeClass sizeClass : sizeClasses) {
+            int outstanding = sizeClass.outstanding.get();
+            int free = sizeClass.free.size();
+
+            if (outstanding == 0 && free == 0) {
+                continue;
+            }
+
+            returnValue.add(new long[] { sizeClass.size, outstanding, free });
+        }
+
+        return returnValue.toArray(new long[returnValue.size()][]);
+    }
+
+    /**
+     * Get the buffers that have not been released grouped by owner.
+     * <p/>
+     * Buffers should only be outstanding while the owner is actively streaming. An owner that keeps
+     * growing or has very old buffers is leaking.
+     *
+     * @return A map of owners to <i>{buffers, bytes, oldest age in milliseconds}</i>.
+     */
+    public static Map<String, long[]> getOutstandingByOwner() {
+        Map<String, long[]> returnValue = new HashMap<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (outstanding) {
+            for (Allocation allocation : outstanding.values()) {
+                long stats[] = returnValue.get(allocation.owner);
+
+                if (stats == null) {
+                    stats = new long[3];
+                    returnValue.put(allocation.owner, stats);
+                }
+
+                stats[0] += 1;
+                stats[1] += allocation.size;
+                stats[2] = Math.max(stats[2], now - allocation.acquired);
+            }
+        }
+
+        return returnValue;
+    }
+
+    private static class SizeClass {
+        private final int size;
+        private final boolean fromSlab;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+
+        private SizeClass(int size) {
+            this.size = size;
+            fromSlab = size < SLAB_SIZE;
+        }
+
+        private ByteBuffer allocate() {
+            if (!fromSlab) {
+                allocatedBytes.addAndGet(size);
+                return ByteBuffer.allocateDirect(size);
+            }
+
+            // Carve up a new slab. The first chunk is returned and the rest are made available.
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            allocatedBytes.addAndGet(SLAB_SIZE);
+
+            ByteBuffer returnValue = null;
+
+            for (int offset = 0; offset < SLAB_SIZE; offset += size) {
+                slab.limit(offset + size).position(offset);
+                ByteBuffer chunk = slab.slice();
+
+                if (returnValue == null) {
+                    returnValue = chunk;
+                } else {
+                    free.add(chunk);
+                    retainedBytes.addAndGet(size);
+                }
+            }
+
+            return returnValue;
+        }
+    }
+
+    private static class Allocation {
+        private final ByteBuffer chunk;
+        private final SizeClass sizeClass;
+        private final String owner;
+        private final int size;
+        private final long acquired;
+
+        private Allocation(ByteBuffer chunk, SizeClass sizeClass, String owner, int size) {
+            this.chunk = chunk;
+            this.sizeClass = sizeClass;
+            this.owner = owner;
+            this.size = size;
+            acquired = System.currentTimeMillis();
+        }
+    }
+}
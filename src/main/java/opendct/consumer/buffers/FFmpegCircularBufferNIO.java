@@ -43,6 +43,18 @@ public class FFmpegCircularBufferNIO extends SeekableCircularBufferNIO {
         super(buffer);
     }
 
+    /**
+     * Create a new seekable circular buffer.
+     *
+     * @param bufferSize This is the static size of the buffer.
+     * @param singleProducerConsumer If <i>true</i>, the buffer will not use any locks and will
+     *                               assume that there is only ever one thread writing and one
+     *                               thread reading.
+     */
+    public FFmpegCircularBufferNIO(int bufferSize, boolean singleProducerConsumer) {
+        super(bufferSize, singleProducerConsumer);
+    }
+
     /**
      * Read data from the buffer into the provided JavaCPP BytePointer
      * <p/>
@@ -69,47 +81,13 @@ public class FFmpegCircularBufferNIO extends SeekableCircularBufferNIO {
             return 0;
         }
 
-        if (length > buffer.capacity()) {
+        if (length > capacity) {
             throw new IndexOutOfBoundsException("You cannot read more data than the buffer is able to allocate.");
         }
 
-        int returnLength = 0;
-
-        waitForBytes();
-
-        synchronized (readLock) {
-            returnLength = Math.min(length, readAvailable());
-            ByteBuffer returnBuffer = bytePtr.position(offset).limit(returnLength).asByteBuffer();
+        ByteBuffer returnBuffer = bytePtr.position(offset).limit(offset + length).asByteBuffer();
 
-            /*if (logger.isTraceEnabled()) {
-                logger.trace("{} bytes are currently available with a length of {} bytes being requested.", readAvailable(), length);
-            }*/
-
-            if (readIndex + returnLength > buffer.capacity()) {
-                int end = buffer.capacity() - readIndex;
-                //logger.debug("offset = {}, buffer.length = {}, readIndex = {}, , end = {}", offset, buffer.length, readIndex, end);
-
-                readBuffer.position(readIndex).limit(readIndex + end);
-                returnBuffer.put(returnBuffer);
-
-                int readRemaining = returnLength - end;
-
-                if (readIndex > 0) {
-                    //logger.debug("offset = {}, buffer.length = {},  readRemaining = {}", offset, buffer.length, readRemaining);
-                    readBuffer.position(0).limit(readRemaining);
-                    returnBuffer.put(readBuffer);
-                }
-
-                synchronized (rwPassLock) {
-                    readIndex = readRemaining;
-                    readPasses += 1;
-                }
-            } else {
-                readBuffer.position(readIndex).limit(readIndex + returnLength);
-                returnBuffer.put(readBuffer);
-                readIndex += returnLength;
-            }
-        }
+        int returnLength = read(returnBuffer);
 
         /*if (logger.isTraceEnabled()) {
             logger.trace("{} bytes remain available. Returning {} bytes.", readAvailable(), returnLength);
@@ -131,7 +109,7 @@ public class FFmpegCircularBufferNIO extends SeekableCircularBufferNIO {
 
         long returnValue = -1;
 
-        logger.debug("Seek: wence = {}, offset = {}, readIndex = {}", wence, offset, readIndex);
+        logger.debug("Seek: wence = {}, offset = {}, readIndex = {}", wence, offset, getReadIndex());
 
         switch (wence) {
             case 0:
@@ -172,7 +150,7 @@ public class FFmpegCircularBufferNIO extends SeekableCircularBufferNIO {
         }
 
 
-        logger.debug("Seek: wence = {}, offset = {}, readIndex = {}, returnValue = {}", wence, offset, readIndex, returnValue);
+        logger.debug("Seek: wence = {}, offset = {}, readIndex = {}, returnValue = {}", wence, offset, getReadIndex(), returnValue);
         //return logger.exit(returnValue);
         return returnValue;
     }
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.buffers;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed size file that is written as a circular buffer through memory mapping.
+ * <p/>
+ * This is used for SageTV record buffers (live TV) where the file never grows past the requested
+ * size and the writes wrap back to the beginning of the file. Only one window of the file is
+ * mapped at a time so very large buffers can be used on 32-bit systems. Writes within a window are
+ * memory copies and do not make any system calls. A new window is mapped when the current one is
+ * full.
+ * <p/>
+ * This class is not thread-safe. It is expected that only the consumer thread will write to it.
+ */
+public class MappedCircularFile implements Closeable {
+    private static final Logger logger = LogManager.getLogger(MappedCircularFile.class);
+
+    public enum SyncPolicy {
+        /**
+         * Never force writes to disk. The OS will write the pages whenever it wants to.
+         */
+        NONE,
+
+        /**
+         * Force the current window to disk at a fixed interval and on close.
+         */
+        PERIODIC,
+
+        /**
+         * Force each window to disk when it is full and on close.
+         */
+        WINDOW
+    }
+
+    private static final int defaultWindowSize =
+            Math.max(Config.getInteger("consumer.raw.mapped_window_size", 67108864), 1048576);
+
+    private static Method cleanerMethod;
+    private static Method cleanMethod;
+    private static boolean unmapSupported = true;
+
+    private final RandomAccessFile file;
+    private final FileChannel fileChannel;
+    private final long size;
+    private final int windowSize;
+    private final SyncPolicy syncPolicy;
+    private final long forceInterval;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long lastForce;
+
+    /**
+     * Create a new circular file or replace an existing one.
+     *
+     * @param filename The full path to the file.
+     * @param size The size of the file. Writes will wrap around to the beginning when this many
+     *             bytes have been written.
+     * @param syncPolicy When to force the written data to disk.
+     * @param forceInterval The number of milliseconds between forcing data to disk when the policy
+     *                      is <i>PERIODIC</i>.
+     * @throws IOException If the file could not be created or mapped.
+     */
+    public MappedCircularFile(String filename, long size, SyncPolicy syncPolicy, long forceInterval) throws IOException {
+        this(filename, size, defaultWindowSize, syncPolicy, forceInterval);
+    }
+
+    /**
+     * Create a new circular file or replace an existing one.
+     *
+     * @param filename The full path to the file.
+     * @param size The size of the file. Writes will wrap around to the beginning when this many
+     *             bytes have been written.
+     * @param windowSize The number of bytes to map at one time.
+     * @param syncPolicy When to force the written data to disk.
+     * @param forceInterval The number of milliseconds between forcing data to disk when the policy
+     *                      is <i>PERIODIC</i>.
+     * @throws IOException If the file could not be created or mapped.
+     */
+    public MappedCircularFile(String filename, long size, int windowSize, SyncPolicy syncPolicy, long forceInterval) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The file size must be greater than 0.");
+        }
+
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("The window size must be greater than 0.");
+        }
+
+        this.size = size;
+        this.syncPolicy = syncPolicy;
+        this.forceInterval = forceInterval;
+        this.windowSize = (int) Math.min(size, windowSize);
+
+        file = new RandomAccessFile(filename, "rw");
+
+        try {
+            // The space is claimed up front so the file doesn't need to grow while we are
+            // streaming and so SageTV sees the final size immediately.
+            file.setLength(size);
+            fileChannel = file.getChannel();
+
+            windowStart = 0;
+            window = map(windowStart);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        lastForce = System.currentTimeMillis();
+    }
+
+    /**
+     * Write all of the remaining bytes in a buffer.
+     * <p/>
+     * When the end of the file is reached, writing continues from the beginning of the file.
+     *
+     * @param source The data to be written.
+     * @return The number of bytes written.
+     * @throws IOException If the next window of the file could not be mapped.
+     */
+    public int write(ByteBuffer source) throws IOException {
+        int returnValue = source.remaining();
+        int sourceLimit = source.limit();
+
+        while (source.hasRemaining()) {
+            if (!window.hasRemaining()) {
+                nextWindow();
+            }
+
+            int length = Math.min(source.remaining(), window.remaining());
+            source.limit(source.position() + length);
+            window.put(source);
+            source.limit(sourceLimit);
+        }
+
+        if (syncPolicy == SyncPolicy.PERIODIC) {
+            long now = System.currentTimeMillis();
+
+            if (now - lastForce >= forceInterval) {
+                window.force();
+                lastForce = now;
+            }
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * The position in the file that the next byte will be written.
+     */
+    public long getPosition() {
+        return windowStart + window.position();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Force everything written so far to disk.
+     */
+    public void force() {
+        window.force();
+        lastForce = System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (syncPolicy != SyncPolicy.NONE) {
+                window.force();
+            }
+        } finally {
+            unmap(window);
+            window = null;
+
+            file.close();
+        }
+    }
+
+    private void nextWindow() throws IOException {
+        if (syncPolicy == SyncPolicy.WINDOW) {
+            window.force();
+        }
+
+        unmap(window);
+
+        windowStart += windowSize;
+
+        if (windowStart >= size) {
+            windowStart = 0;
+        }
+
+        window = map(windowStart);
+    }
+
+    private MappedByteBuffer map(long position) throws IOException {
+        long length = Math.min(windowSize, size - position);
+        return fileChannel.map(FileChannel.MapMode.READ_WRITE, position, length);
+    }
+
+    /**
+     * Release the mapping immediately instead of waiting for garbage collection.
+     * <p/>
+     * The windows can be very large and Windows will not allow the file to be deleted while any of
+     * it is still mapped. There is no public API for this, so if it isn't available, the mapping is
+     * left for the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null || !unmapSupported) {
+            return;
+        }
+
+        try {
+            if (cleanerMethod == null) {
+                cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+            }
+
+            Object cleaner = cleanerMethod.invoke(buffer);
+
+            if (cleaner == null) {
+                return;
+            }
+
+            if (cleanMethod == null) {
+                cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+            }
+
+            cleanMethod.invoke(cleaner);
+        } catch (Throwable e) {
+            unmapSupported = false;
+            logger.debug("Unable to unmap buffers. Old windows will be unmapped by the garbage" +
+                    " collector => ", e);
+        }
+    }
+}
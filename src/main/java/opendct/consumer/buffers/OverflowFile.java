@@ -0,0 +1,501 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.buffers;
+
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A first in, first out queue of bytes stored in a fixed size file.
+ * <p/>
+ * This is used by <i>SeekableCircularBufferNIO</i> to hold data that doesn't fit in the buffer
+ * when whatever is reading from the buffer stalls. The file is allocated to its full size when it
+ * is created and is used as a ring, so the data is always appended and read back sequentially.
+ * <p/>
+ * The thread writing into the buffer never touches the file. Appended bytes are copied into a
+ * small number of preallocated memory blocks and full blocks are written to the file by a task on
+ * the streaming thread pool. The same task reads the oldest data back into memory ahead of time so
+ * it can be removed without waiting on the disk. If nothing is in the file yet, blocks are passed
+ * straight through without being written. If the disk can't keep up or the file is full, new
+ * bytes are dropped, logged and counted instead of waiting.
+ * <p/>
+ * Only one thread can append and remove bytes. The writing task is the only other thread that
+ * uses the file.
+ */
+public class OverflowFile implements Closeable, Runnable {
+    private static final Logger logger = LogManager.getLogger(OverflowFile.class);
+
+    private static final int BLOCK_SIZE = 524288;
+    // Blocks for data waiting to be written to the file. This is how much can be absorbed while
+    // the disk is busy.
+    private static final int SPILL_BLOCKS = 8;
+    // Blocks for data that has been read back from the file and is waiting to be removed.
+    private static final int READ_AHEAD_BLOCKS = 2;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final long size;
+
+    private final Object lock = new Object();
+    private final ByteBuffer blocks[];
+    private final ArrayDeque<ByteBuffer> freeBlocks;
+    private final ArrayDeque<ByteBuffer> spillBlocks;
+    private final ArrayDeque<ByteBuffer> readBlocks;
+
+    // Everything below is only accessed while holding the lock except the file positions which
+    // are only used by the writing task.
+    private ByteBuffer fillBlock;
+    private long available;
+    private long reserved;
+    private long fileBytes;
+    private long readPosition;
+    private long writePosition;
+    private boolean scheduled;
+    private boolean closed;
+    private IOException failure;
+
+    private boolean dropping;
+    private long bytesDropped;
+
+    /**
+     * Create a new overflow file in a directory.
+     * <p/>
+     * The file is deleted when it is closed or when the JVM exits.
+     *
+     * @param directory The directory to create the file in.
+     * @param size The maximum number of bytes the file can hold.
+     * @throws IOException If the file could not be created.
+     */
+    public OverflowFile(File directory, long size) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The file size must be greater than 0.");
+        }
+
+        this.size = size;
+        file = File.createTempFile("opendct-overflow-", ".ts", directory);
+        file.deleteOnExit();
+
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            deleteFile();
+            throw e;
+        }
+
+        try {
+            randomAccessFile.setLength(size);
+            fileChannel = randomAccessFile.getChannel();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            deleteFile();
+            throw e;
+        }
+
+        blocks = new ByteBuffer[SPILL_BLOCKS + READ_AHEAD_BLOCKS];
+        freeBlocks = new ArrayDeque<>(blocks.length);
+        spillBlocks = new ArrayDeque<>(blocks.length);
+        readBlocks = new ArrayDeque<>(blocks.length);
+
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = DirectBufferPool.acquire(BLOCK_SIZE, "OverflowFile");
+            freeBlocks.add(blocks[i]);
+        }
+
+        logger.info("Created {} byte overflow file '{}'.", size, file);
+    }
+
+    /**
+     * Append all of the remaining bytes in a buffer.
+     * <p/>
+     * Nothing is appended if there isn't enough space for all of the bytes.
+     *
+     * @param bytes The data to append.
+     * @return <i>true</i> if the bytes were appended or <i>false</i> if they were dropped.
+     * @throws IOException If the file could not be written or read.
+     */
+    public boolean write(ByteBuffer bytes) throws IOException {
+        int length = bytes.remaining();
+
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (closed) {
+                return false;
+            }
+
+            if (reserved + length > size) {
+                drop(length, "The overflow file is full at " + size + " bytes.");
+                return false;
+            }
+
+            int fillRemaining = fillBlock == null ? 0 : fillBlock.remaining();
+            int neededBlocks = length <= fillRemaining ? 0 :
+                    (length - fillRemaining + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+            if (neededBlocks > freeBlocks.size()) {
+                drop(length, "The overflow file is not being written fast enough.");
+                return false;
+            }
+
+            if (dropping) {
+                logger.warn("The overflow file is accepting data again. {} bytes have been dropped.",
+                        bytesDropped);
+                dropping = false;
+            }
+
+            int limit = bytes.limit();
+
+            while (bytes.hasRemaining()) {
+                if (fillBlock != null && !fillBlock.hasRemaining()) {
+                    fillBlock.flip();
+                    spillBlocks.add(fillBlock);
+                    fillBlock = null;
+                }
+
+                if (fillBlock == null) {
+                    fillBlock = freeBlocks.poll();
+                    fillBlock.clear();
+                }
+
+                bytes.limit(bytes.position() + Math.min(bytes.remaining(), fillBlock.remaining()));
+                fillBlock.put(bytes);
+                bytes.limit(limit);
+            }
+
+            if (!fillBlock.hasRemaining()) {
+                fillBlock.flip();
+                spillBlocks.add(fillBlock);
+                fillBlock = null;
+            }
+
+            available += length;
+            reserved += length;
+            schedule();
+        }
+
+        return true;
+    }
+
+    /**
+     * Append bytes from an array.
+     *
+     * @param bytes The array containing the data.
+     * @param offset The offset within the array to start copying data.
+     * @param length The number of bytes to copy starting at the offset.
+     * @return <i>true</i> if the bytes were appended or <i>false</i> if they were dropped.
+     * @throws IOException If the file could not be written or read.
+     */
+    public boolean write(byte bytes[], int offset, int length) throws IOException {
+        return write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Remove the oldest bytes that are ready in memory.
+     * <p/>
+     * This never waits for the file. If the oldest bytes are still in the file, they are read in
+     * the background and nothing is returned until they are ready.
+     *
+     * @param bytes The buffer to fill.
+     * @return The number of bytes removed.
+     * @throws IOException If the file could not be written or read.
+     */
+    public int read(ByteBuffer bytes) throws IOException {
+        int readBytes = 0;
+
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (closed) {
+                return 0;
+            }
+
+            while (bytes.hasRemaining()) {
+                ByteBuffer readBlock = readBlocks.peek();
+
+                if (readBlock != null) {
+                    readBytes += copy(readBlock, bytes);
+
+                    if (!readBlock.hasRemaining()) {
+                        readBlocks.poll();
+                        freeBlocks.add(readBlock);
+                    }
+
+                    continue;
+                }
+
+                // The block still being filled is only next when nothing older is left.
+                if (fileBytes == 0 && spillBlocks.isEmpty() &&
+                        fillBlock != null && fillBlock.position() > 0) {
+
+                    fillBlock.flip();
+                    int length = copy(fillBlock, bytes);
+                    fillBlock.compact();
+
+                    readBytes += length;
+                    reserved -= length;
+                    continue;
+                }
+
+                break;
+            }
+
+            available -= readBytes;
+            schedule();
+        }
+
+        return readBytes;
+    }
+
+    private static int copy(ByteBuffer source, ByteBuffer destination) {
+        int length = Math.min(source.remaining(), destination.remaining());
+        int limit = source.limit();
+
+        source.limit(source.position() + length);
+        destination.put(source);
+        source.limit(limit);
+
+        return length;
+    }
+
+    private void drop(int length, String reason) {
+        bytesDropped += length;
+
+        if (!dropping) {
+            logger.warn("{} Dropping data.", reason);
+            dropping = true;
+        }
+    }
+
+    /**
+     * Start the writing task if there's anything for it to do. This must be called while holding
+     * the lock.
+     */
+    private void schedule() {
+        if (scheduled || closed || !hasWork()) {
+            return;
+        }
+
+        scheduled = true;
+
+        try {
+            ThreadPool.submit(ThreadPool.Lane.STREAMING, this, Thread.MAX_PRIORITY - 1,
+                    "OverflowFile", file.getName());
+        } catch (RejectedExecutionException e) {
+            // Nothing is lost. The next write or read will try again.
+            scheduled = false;
+            logger.warn("Unable to start writing to the overflow file '{}' => ", file, e);
+        }
+    }
+
+    private boolean hasWork() {
+        return !spillBlocks.isEmpty() ||
+                (fileBytes > 0 && readBlocks.size() < READ_AHEAD_BLOCKS && !freeBlocks.isEmpty());
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            ByteBuffer block;
+            boolean write;
+            int length;
+
+            synchronized (lock) {
+                if (closed || failure != null || !hasWork()) {
+                    scheduled = false;
+                    lock.notifyAll();
+                    return;
+                }
+
+                block = spillBlocks.peek();
+
+                if (block != null && fileBytes == 0 && readBlocks.size() < READ_AHEAD_BLOCKS) {
+                    // Nothing older is in the file, so there's no reason to write this block.
+                    spillBlocks.poll();
+                    readBlocks.add(block);
+                    reserved -= block.remaining();
+                    continue;
+                }
+
+                if (block != null) {
+                    write = true;
+                    length = block.remaining();
+                } else {
+                    block = freeBlocks.poll();
+                    write = false;
+                    length = (int) Math.min(fileBytes, BLOCK_SIZE);
+                }
+            }
+
+            try {
+                if (write) {
+                    writePosition = transfer(block, writePosition, true);
+                } else {
+                    block.clear().limit(length);
+                    readPosition = transfer(block, readPosition, false);
+                    block.flip();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    if (!write) {
+                        freeBlocks.add(block);
+                    }
+
+                    if (!closed && !(e instanceof ClosedChannelException)) {
+                        logger.error("Unable to use the overflow file '{}' => ", file, e);
+                        failure = e;
+                    }
+
+                    scheduled = false;
+                    lock.notifyAll();
+                }
+
+                return;
+            }
+
+            synchronized (lock) {
+                if (write) {
+                    spillBlocks.poll();
+                    block.clear();
+                    freeBlocks.add(block);
+                    fileBytes += length;
+                } else {
+                    readBlocks.add(block);
+                    fileBytes -= length;
+                    reserved -= length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write or read all of the remaining bytes in a block at a position in the file.
+     *
+     * @return The next position in the file.
+     */
+    private long transfer(ByteBuffer block, long position, boolean write) throws IOException {
+        while (block.hasRemaining()) {
+            int limit = block.limit();
+
+            if (position + block.remaining() > size) {
+                block.limit(block.position() + (int) (size - position));
+            }
+
+            while (block.hasRemaining()) {
+                int bytes = write ?
+                        fileChannel.write(block, position) : fileChannel.read(block, position);
+
+                if (bytes < 0) {
+                    throw new IOException("Unexpected end of overflow file '" + file + "'.");
+                }
+
+                position += bytes;
+            }
+
+            block.limit(limit);
+
+            if (position == size) {
+                position = 0;
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * The number of bytes waiting to be removed.
+     */
+    public long available() {
+        synchronized (lock) {
+            return available;
+        }
+    }
+
+    /**
+     * The number of bytes that have been dropped because the file was full or the disk wasn't
+     * keeping up.
+     */
+    public long getBytesDropped() {
+        synchronized (lock) {
+            return bytesDropped;
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            // The blocks can't be returned while the writing task might still be using one.
+            while (scheduled) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    logger.debug("Interrupted while waiting for the overflow file to be idle.");
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if (!scheduled) {
+                for (ByteBuffer block : blocks) {
+                    DirectBufferPool.release(block);
+                }
+            }
+
+            fillBlock = null;
+            freeBlocks.clear();
+            spillBlocks.clear();
+            readBlocks.clear();
+        }
+
+        try {
+            randomAccessFile.close();
+        } finally {
+            deleteFile();
+        }
+    }
+
+    private void deleteFile() {
+        if (!file.delete() && file.exists()) {
+            logger.warn("Unable to delete the overflow file '{}'.", file);
+        }
+    }
+}
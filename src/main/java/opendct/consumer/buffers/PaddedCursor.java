@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.buffers;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A volatile long surrounded by enough padding that two cursors allocated next to each other will
+ * not end up on the same cache line.
+ * <p/>
+ * The read and write cursors of a ring buffer are updated by different threads on every transfer,
+ * so without the padding each update would invalidate the other thread's cached copy. The JVM is
+ * free to reorder the fields of a class, but the fields of a superclass are always laid out before
+ * the fields of a subclass, so the padding and the value are each declared in their own class.
+ */
+class PaddedCursor extends PaddedCursorValue {
+    private static final AtomicLongFieldUpdater<PaddedCursorValue> VALUE_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(PaddedCursorValue.class, "value");
+
+    // Right padding.
+    protected long p11, p12, p13, p14, p15, p16, p17;
+
+    PaddedCursor() {
+        value = 0;
+    }
+
+    long get() {
+        return value;
+    }
+
+    /**
+     * Volatile write. Use this when another thread might be parked waiting on the new value.
+     */
+    void set(long newValue) {
+        value = newValue;
+    }
+
+    /**
+     * Ordered write. Everything written before this call will be visible to another thread that
+     * reads this value, but the write itself might not be visible immediately.
+     */
+    void lazySet(long newValue) {
+        VALUE_UPDATER.lazySet(this, newValue);
+    }
+}
+
+abstract class PaddedCursorLeftPad {
+    // Left padding.
+    protected long p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class PaddedCursorValue extends PaddedCursorLeftPad {
+    protected volatile long value;
+}
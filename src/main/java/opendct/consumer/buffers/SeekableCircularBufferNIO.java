@@ -17,46 +17,122 @@
 package opendct.consumer.buffers;
 
 import opendct.config.Config;
+import opendct.util.ThreadPool;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class SeekableCircularBufferNIO {
     private final Logger logger = LogManager.getLogger(SeekableCircularBufferNIO.class);
     private static boolean allocateDirect = Config.getBoolean("buffers.nio.direct2", true);
-
-    private int maxOverflowBytes;
-    protected int capacity;
-    protected ByteBuffer buffer;
-    protected ByteBuffer readBuffer;
-    protected ByteBuffer writeBuffer;
-    protected byte[] writeInterBuffer = new byte[32768];
-    protected int writeIndex = 0;
-    protected int readIndex = 0;
-    protected int writePasses = 0;
-    protected int readPasses = 0;
+    private static boolean singleProducerConsumer = Config.getBoolean("buffers.nio.spsc", false);
+    private static boolean overflowFileEnabled = Config.getBoolean("buffers.nio.overflow_file", false);
+    private static long overflowFileSize =
+            Math.max(Config.getLong("buffers.nio.overflow_file_size", 268435456L), 1048576L);
+    private static String overflowFileDirectory =
+            Config.getString("buffers.nio.overflow_file_dir", System.getProperty("java.io.tmpdir"));
+
+    private static final long READ_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long WRITE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long maxOverflowBytes;
+    protected volatile int capacity;
+    protected volatile ByteBuffer buffer;
+    protected volatile ByteBuffer readBuffer;
+    protected volatile ByteBuffer writeBuffer;
+
+    // The buffer allocated when this buffer was created. Expanded buffers come from the pool and
+    // are returned when the buffer is cleared since the reader might still be using the previous
+    // buffer when running without locks. If the base buffer came from the pool, it is returned by
+    // release() and acquired again by clear().
+    private ByteBuffer baseBuffer;
+    private final int baseSize;
+    private final boolean pooled;
+    private volatile boolean released;
+    private final List<ByteBuffer> retiredBuffers = new ArrayList<>();
+
+    // The index and the number of passes are packed into one long, (passes << 32) | index, so they
+    // can always be read together without a lock. The write cursor is only ever changed by the
+    // producer and the read cursor is only ever changed by the consumer.
+    private final PaddedCursor writeCursor = new PaddedCursor();
+    private final PaddedCursor readCursor = new PaddedCursor();
 
     // These are only used to permanently expand the buffer while we are not allowed to wrap.
     private volatile int maxBufferSize;
     private volatile int resizeBufferIncrement;
 
     private LinkedBlockingDeque<byte[]> overflowQueue = new LinkedBlockingDeque<>();
-    private AtomicInteger bytesOverflow = new AtomicInteger(0);
-    private AtomicInteger bytesLost = new AtomicInteger(0);
+    private AtomicLong bytesOverflow = new AtomicLong(0);
+    private AtomicLong bytesLost = new AtomicLong(0);
     private boolean overflowToQueue = false;
     private boolean overflow = false;
 
+    // When enabled, this is used instead of the overflow queue. It is created ahead of time by a
+    // background task, so the producer never waits on the disk to create it, and is handed to the
+    // producer the first time the buffer overflows. After that it is only accessed by the
+    // producer.
+    private volatile boolean useOverflowFile = overflowFileEnabled;
+    private volatile File overflowFileDir = new File(overflowFileDirectory);
+    private volatile long overflowFileBytes = overflowFileSize;
+    private OverflowFile overflowFile;
+    private boolean overflowFileFailed = false;
+    private final AtomicReference<OverflowFile> preparedOverflowFile = new AtomicReference<>();
+    private final AtomicBoolean preparingOverflowFile = new AtomicBoolean(false);
+    private volatile boolean overflowFileReleased = false;
+
     private volatile boolean noWrap = false;
     private volatile boolean closed = false;
 
-    // These are in the order they should always be used if more than one needs to be used.
+    // This is only set before anything is written and is only updated by the producer.
+    private TsPacketIndex packetIndex;
+
+    // When this is enabled, no monitors are used. Exactly one thread may write and exactly one
+    // thread may read and seek. The threads signal each other with park/unpark.
+    private final boolean spsc;
+    private volatile Thread readWaiter;
+    private final AtomicInteger readerWakeups = new AtomicInteger(0);
+    private volatile Thread writeWaiter;
+    // clear() sets clearing and then waits until neither side is in the middle of an operation.
+    // Each side sets its flag before checking clearing, so one of them always sees the other.
+    private volatile boolean clearing;
+    private volatile boolean producerActive;
+    private volatile boolean consumerActive;
+    private volatile Thread producerThread;
+
+    // Only used by peek(), which is only called by the reader. The duplicates are only replaced
+    // when the buffer is replaced.
+    private ByteBuffer peekSource;
+    private ByteBuffer peekFirst;
+    private ByteBuffer peekSecond;
+
+    // These are in the order they should always be used if more than one needs to be used. They
+    // are not used when the buffer is in single producer/single consumer mode.
     private final Object readMonitor = new Object();
     private final Object writeLock = new Object();
     protected final Object readLock = new Object();
-    protected final Object rwPassLock = new Object();
+
+    // Additional readers. The arrays are replaced, never modified, so the writer can use them
+    // without any locking.
+    private final Object readersLock = new Object();
+    private volatile CircularBufferReader readers[] = new CircularBufferReader[0];
+    private volatile CircularBufferReader blockingReaders[] = new CircularBufferReader[0];
+    private final Object readerMonitor = new Object();
+    private final AtomicInteger readersWaiting = new AtomicInteger(0);
+    // This changes every time the buffer is expanded.
+    private volatile int generation;
 
     /**
      * Create a new seekable circular buffer.
@@ -64,13 +140,31 @@ public class SeekableCircularBufferNIO {
      * @param bufferSize This is the static size of the buffer.
      */
     public SeekableCircularBufferNIO(int bufferSize) {
-        buffer = allocateDirect ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        this(bufferSize, singleProducerConsumer);
+    }
+
+    /**
+     * Create a new seekable circular buffer.
+     *
+     * @param bufferSize This is the static size of the buffer.
+     * @param singleProducerConsumer If <i>true</i>, the buffer will not use any locks and will
+     *                               assume that there is only ever one thread writing and one
+     *                               thread reading.
+     */
+    public SeekableCircularBufferNIO(int bufferSize, boolean singleProducerConsumer) {
+        pooled = allocateDirect;
+        buffer = pooled ? DirectBufferPool.acquire(bufferSize, "SeekableCircularBufferNIO") : ByteBuffer.allocate(bufferSize);
+        baseBuffer = buffer;
+        baseSize = bufferSize;
         readBuffer = buffer.duplicate();
         writeBuffer = buffer.duplicate();
         capacity = buffer.capacity();
         maxBufferSize = bufferSize * 2;
         resizeBufferIncrement = bufferSize;
-        maxOverflowBytes = bufferSize * 4;
+        maxOverflowBytes = bufferSize * 4L;
+        spsc = singleProducerConsumer;
+
+        prepareOverflowFile();
     }
 
     /**
@@ -79,53 +173,477 @@ public class SeekableCircularBufferNIO {
      * @param buffer This is an already allocated buffer.
      */
     public SeekableCircularBufferNIO(ByteBuffer buffer) {
+        this(buffer, singleProducerConsumer);
+    }
+
+    /**
+     * Create a new seekable circular buffer.
+     *
+     * @param buffer This is an already allocated buffer.
+     * @param singleProducerConsumer If <i>true</i>, the buffer will not use any locks and will
+     *                               assume that there is only ever one thread writing and one
+     *                               thread reading.
+     */
+    public SeekableCircularBufferNIO(ByteBuffer buffer, boolean singleProducerConsumer) {
         this.buffer = buffer;
+        baseBuffer = buffer;
+        baseSize = buffer.capacity();
+        pooled = false;
         readBuffer = buffer.duplicate();
         writeBuffer = buffer.duplicate();
         capacity = buffer.capacity();
         maxBufferSize = capacity * 2;
         resizeBufferIncrement = capacity;
-        maxOverflowBytes = capacity * 4;
+        maxOverflowBytes = capacity * 4L;
+        spsc = singleProducerConsumer;
+
+        prepareOverflowFile();
+    }
+
+    protected static long toCursor(int passes, int index) {
+        return ((long) passes << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    protected static int cursorIndex(long cursor) {
+        return (int) cursor;
+    }
+
+    protected static int cursorPasses(long cursor) {
+        return (int) (cursor >>> 32);
+    }
+
+    protected int getReadIndex() {
+        return cursorIndex(readCursor.get());
+    }
+
+    protected int getWriteIndex() {
+        return cursorIndex(writeCursor.get());
     }
 
     /**
      * Clears the all indexes and re-opens the buffer.
      * <p/>
-     * This should be used to reset the buffer without re-initializing a new buffer.
+     * This should be used to reset the buffer without re-initializing a new buffer. In single
+     * producer/single consumer mode, this can be called from any thread. Any read or write in
+     * progress is allowed to finish first and any that start while the buffer is being cleared
+     * wait until it is done.
      */
     public void clear() {
         //logger.entry();
-        synchronized (writeLock) {
-            synchronized (readLock) {
-                if (capacity != resizeBufferIncrement) {
-                    buffer = ByteBuffer.allocateDirect(resizeBufferIncrement);
-                    readBuffer = buffer.duplicate();
-                    writeBuffer = buffer.duplicate();
-                    capacity = buffer.capacity();
+        reset(false);
+        //logger.exit();
+    }
+
+    /**
+     * Close the buffer and return its memory to the pool.
+     * <p/>
+     * This should be called when whatever owns the buffer is done with it. The buffer and any
+     * added readers are empty and closed afterwards. If the buffer is used again, <b>clear()</b>
+     * acquires new memory from the pool.
+     */
+    public void release() {
+        reset(true);
+    }
+
+    /**
+     * @return <i>true</i> if the memory of this buffer has been returned to the pool.
+     */
+    public boolean isReleased() {
+        return released;
+    }
+
+    private void reset(boolean release) {
+        if (spsc) {
+            clearing = true;
+            try {
+                signalReader();
+                signalWriter();
+
+                // A write already in progress must finish before the memory can be returned to the
+                // pool. Any write that starts after this sees that the buffer is closed.
+                while (producerActive || consumerActive) {
+                    Thread.yield();
                 }
 
-                writeIndex = 0;
-                readIndex = 0;
-                writePasses = 0;
-                readPasses = 0;
-                bytesOverflow.set(0);
-                bytesLost.set(0);
-                overflowQueue.clear();
-                closed = false;
-                noWrap = false;
+                internalReset(release);
+            } finally {
+                clearing = false;
+            }
+        } else {
+            synchronized (writeLock) {
+                synchronized (readLock) {
+                    internalReset(release);
+                }
             }
         }
-        //logger.exit();
+    }
+
+    private void enterProducer() {
+        Thread currentThread = Thread.currentThread();
+
+        if (producerThread != currentThread) {
+            producerThread = currentThread;
+        }
+
+        while (true) {
+            producerActive = true;
+
+            if (!clearing) {
+                return;
+            }
+
+            producerActive = false;
+
+            while (clearing) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void enterConsumer() {
+        while (true) {
+            consumerActive = true;
+
+            if (!clearing) {
+                return;
+            }
+
+            consumerActive = false;
+
+            while (clearing) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void internalReset(boolean release) {
+        if (released && !release) {
+            baseBuffer = DirectBufferPool.acquire(baseSize, "SeekableCircularBufferNIO");
+            buffer = baseBuffer;
+            readBuffer = buffer.duplicate();
+            writeBuffer = buffer.duplicate();
+            capacity = buffer.capacity();
+            released = false;
+        }
+
+        if (buffer != baseBuffer) {
+            retiredBuffers.add(buffer);
+            buffer = baseBuffer;
+            readBuffer = buffer.duplicate();
+            writeBuffer = buffer.duplicate();
+            capacity = buffer.capacity();
+        }
+
+        for (ByteBuffer retiredBuffer : retiredBuffers) {
+            DirectBufferPool.release(retiredBuffer);
+        }
+        retiredBuffers.clear();
+
+        writeCursor.lazySet(0);
+        readCursor.lazySet(0);
+
+        for (CircularBufferReader reader : readers) {
+            reader.reset(0, generation);
+        }
+
+        if (packetIndex != null) {
+            packetIndex.clear();
+        }
+
+        // An empty file is kept so it doesn't need to be created again after every clear.
+        if (release || overflowFileFailed ||
+                (overflowFile != null && overflowFile.available() > 0)) {
+
+            closeOverflowFile();
+        }
+        overflowFileFailed = false;
+
+        overflowFileReleased = release;
+
+        if (release) {
+            closeOverflowFile(preparedOverflowFile.getAndSet(null));
+        } else if (overflowFile == null) {
+            prepareOverflowFile();
+        }
+
+        bytesOverflow.set(0);
+        bytesLost.set(0);
+        overflowQueue.clear();
+        noWrap = false;
+
+        if (release) {
+            closed = true;
+
+            if (pooled && !released) {
+                DirectBufferPool.release(baseBuffer);
+                released = true;
+            }
+
+            signalReader();
+            signalWriter();
+        } else {
+            closed = false;
+        }
     }
 
     public void close() {
         closed = true;
+
+        signalReader();
+        signalWriter();
+    }
+
+    /**
+     * Wake up the reader if it is currently blocked waiting for bytes.
+     * <p/>
+     * This does not change the state of the buffer. It is used when something other than the
+     * buffer is a reason for the reader to stop waiting.
+     */
+    public void wakeReader() {
+        readerWakeups.incrementAndGet();
+        signalReader();
     }
 
     public boolean isClosed() {
         return closed;
     }
 
+    /**
+     * Index the transport stream packets as they are written into this buffer.
+     * <p/>
+     * This must be called before anything is written into the buffer.
+     *
+     * @return The index for this buffer.
+     */
+    public TsPacketIndex enablePacketIndex() {
+        if (packetIndex == null) {
+            packetIndex = new TsPacketIndex();
+        }
+
+        return packetIndex;
+    }
+
+    /**
+     * Returns the packet index for this buffer or <i>null</i> if it is not enabled.
+     */
+    public TsPacketIndex getPacketIndex() {
+        return packetIndex;
+    }
+
+    /**
+     * Returns the offset of the next byte to be read in the same form used by the packet index.
+     * <p/>
+     * The offsets start over when the buffer is cleared or expanded.
+     */
+    public long getReadOffset() {
+        long read = readCursor.get();
+        return (long) cursorPasses(read) * capacity + cursorIndex(read);
+    }
+
+    /**
+     * Add a reader that will see every byte written into this buffer from now on.
+     * <p/>
+     * The primary reader is not affected. Each reader has its own position and lag, so one stream
+     * can be consumed by several things at their own pace.
+     *
+     * @param name A name for the reader used in logging.
+     * @param policy What to do when the reader falls behind the writer.
+     * @return The new reader.
+     */
+    public CircularBufferReader addReader(String name, CircularBufferReader.SlowReaderPolicy policy) {
+        synchronized (readersLock) {
+            CircularBufferReader reader =
+                    new CircularBufferReader(this, name, policy, writeCursor.get(), generation);
+
+            readers = addReader(readers, reader);
+
+            if (policy == CircularBufferReader.SlowReaderPolicy.BLOCK) {
+                blockingReaders = addReader(blockingReaders, reader);
+            }
+
+            logger.info("Added reader '{}' with the policy {}.", name, policy);
+            return reader;
+        }
+    }
+
+    void removeReader(CircularBufferReader reader) {
+        synchronized (readersLock) {
+            readers = removeReader(readers, reader);
+            blockingReaders = removeReader(blockingReaders, reader);
+        }
+
+        // Wake up the writer in case it was waiting on this reader and the reader in case it was
+        // waiting for bytes.
+        signalWriterFromReader();
+        signalReaders();
+    }
+
+    private static CircularBufferReader[] addReader(CircularBufferReader readers[], CircularBufferReader reader) {
+        CircularBufferReader newReaders[] = new CircularBufferReader[readers.length + 1];
+        System.arraycopy(readers, 0, newReaders, 0, readers.length);
+        newReaders[readers.length] = reader;
+
+        return newReaders;
+    }
+
+    private static CircularBufferReader[] removeReader(CircularBufferReader readers[], CircularBufferReader reader) {
+        List<CircularBufferReader> newReaders = new ArrayList<>(readers.length);
+
+        for (CircularBufferReader existingReader : readers) {
+            if (existingReader != reader) {
+                newReaders.add(existingReader);
+            }
+        }
+
+        return newReaders.toArray(new CircularBufferReader[newReaders.size()]);
+    }
+
+    /**
+     * Returns the readers that have been added to this buffer.
+     */
+    public CircularBufferReader[] getReaders() {
+        return readers.clone();
+    }
+
+    long getWriteCursor() {
+        return writeCursor.get();
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Block an additional reader until it has something to read.
+     */
+    void waitForReader(CircularBufferReader reader) throws InterruptedException {
+        // The writer only notifies when this is non-zero. It must be incremented before checking
+        // for bytes again or a write that happens in between could be missed.
+        readersWaiting.incrementAndGet();
+
+        try {
+            synchronized (readerMonitor) {
+                while (!reader.hasBytes()) {
+                    readerMonitor.wait(500);
+                }
+            }
+        } finally {
+            readersWaiting.decrementAndGet();
+        }
+    }
+
+    private void signalReaders() {
+        if (readersWaiting.get() > 0) {
+            synchronized (readerMonitor) {
+                readerMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wake up the writer after an additional reader that the writer waits on has read.
+     */
+    void signalWriterFromReader() {
+        if (spsc) {
+            signalWriter();
+        } else if (blockingReaders.length > 0) {
+            synchronized (readMonitor) {
+                readMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Hold data that doesn't fit in the buffer in a file instead of the overflow queue.
+     * <p/>
+     * The file is created in the background right away. Until it is ready, data that doesn't fit
+     * in the buffer goes to the overflow queue. This must be called before anything is written
+     * into the buffer.
+     *
+     * @param directory The directory to create the file in.
+     * @param size The maximum number of bytes the file can hold.
+     */
+    public void enableOverflowFile(File directory, long size) {
+        overflowFileDir = directory;
+        overflowFileBytes = size;
+        useOverflowFile = true;
+
+        prepareOverflowFile();
+    }
+
+    public boolean isOverflowFileEnabled() {
+        return useOverflowFile;
+    }
+
+    /**
+     * @return <i>true</i> if the overflow file has been created and can be used the next time the
+     *         buffer overflows.
+     */
+    public boolean isOverflowFileReady() {
+        return overflowFile != null || preparedOverflowFile.get() != null;
+    }
+
+    /**
+     * Create the overflow file on the background thread pool if it's enabled and there isn't one
+     * already.
+     */
+    private void prepareOverflowFile() {
+        if (!useOverflowFile || preparedOverflowFile.get() != null ||
+                !preparingOverflowFile.compareAndSet(false, true)) {
+
+            return;
+        }
+
+        final File directory = overflowFileDir;
+        final long size = overflowFileBytes;
+
+        try {
+            ThreadPool.submit(ThreadPool.Lane.BACKGROUND, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        OverflowFile newFile = new OverflowFile(directory, size);
+                        preparedOverflowFile.set(newFile);
+
+                        // The buffer was released while the file was being created.
+                        if (overflowFileReleased &&
+                                preparedOverflowFile.compareAndSet(newFile, null)) {
+
+                            closeOverflowFile(newFile);
+                        }
+                    } catch (Exception e) {
+                        logger.error("Unable to create an overflow file in '{}'. Using the queue" +
+                                " buffer => ", directory, e);
+                    } finally {
+                        preparingOverflowFile.set(false);
+                    }
+                }
+            }, Thread.NORM_PRIORITY, "OverflowFile", directory.getName());
+        } catch (RejectedExecutionException e) {
+            logger.error("Unable to create an overflow file. Using the queue buffer => ", e);
+            preparingOverflowFile.set(false);
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting to be moved from the overflow file or queue into the
+     * buffer.
+     */
+    public long getBytesOverflow() {
+        return bytesOverflow.get();
+    }
+
+    /**
+     * Returns the number of bytes that could not be queued since the overflow was last recovered.
+     */
+    public long getBytesLost() {
+        return bytesLost.get();
+    }
+
+    public boolean isSingleProducerConsumer() {
+        return spsc;
+    }
+
     public void setNoWrap(boolean noWrap) {
         this.noWrap = noWrap;
     }
@@ -147,8 +665,31 @@ public class SeekableCircularBufferNIO {
     }
 
     public void waitForBytes() throws InterruptedException {
+        if (spsc) {
+            if (getReadIndex() != getWriteIndex() || closed) {
+                return;
+            }
+
+            readWaiter = Thread.currentThread();
+            try {
+                // The waiter must be visible before checking the indexes again or a write that
+                // happens between the first check and parking could be missed.
+                while (getReadIndex() == getWriteIndex() && !closed) {
+                    LockSupport.parkNanos(this, READ_PARK_NANOS);
+
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                readWaiter = null;
+            }
+
+            return;
+        }
+
         synchronized (readMonitor) {
-            while (readIndex == writeIndex && !closed) {
+            while (getReadIndex() == getWriteIndex() && !closed) {
                 readMonitor.wait(500);
             }
 
@@ -156,24 +697,133 @@ public class SeekableCircularBufferNIO {
         }
     }
 
-    public void writeBlocked(ByteBuffer bytes) throws ArrayIndexOutOfBoundsException, InterruptedException {
-        int length = bytes.remaining();
+    /**
+     * Wait until at least <b>minBytes</b> are available to be read.
+     * <p/>
+     * This returns as soon as enough bytes have been written, the buffer is closed, the timeout is
+     * reached or <b>wakeReader()</b> is called.
+     *
+     * @param minBytes The number of bytes that need to be available to stop waiting.
+     * @param timeout The maximum amount of time in milliseconds to wait.
+     * @return The number of bytes available to be read. This can be less than <b>minBytes</b>.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public int waitForBytes(int minBytes, long timeout) throws InterruptedException {
+        int available = readAvailable();
+
+        if (available >= minBytes || closed || timeout <= 0) {
+            return available;
+        }
+
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        int wakeups = readerWakeups.get();
+
+        if (spsc) {
+            readWaiter = Thread.currentThread();
+            try {
+                long startTime = System.nanoTime();
+                long remaining = timeoutNanos;
+
+                while ((available = readAvailable()) < minBytes && !closed && remaining > 0 &&
+                        wakeups == readerWakeups.get()) {
+
+                    LockSupport.parkNanos(this, remaining);
+
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+
+                    remaining = timeoutNanos - (System.nanoTime() - startTime);
+                }
+            } finally {
+                readWaiter = null;
+            }
+
+            return available;
+        }
 
         synchronized (readMonitor) {
-            while (!closed && writeAvailable() - length <= 0) {
-                readMonitor.wait(100);
+            long startTime = System.nanoTime();
+            long remaining = timeoutNanos;
+
+            while ((available = readAvailable()) < minBytes && !closed && remaining > 0 &&
+                    wakeups == readerWakeups.get()) {
+
+                TimeUnit.NANOSECONDS.timedWait(readMonitor, remaining);
+
+                remaining = timeoutNanos - (System.nanoTime() - startTime);
             }
+
+            readMonitor.notifyAll();
         }
 
-        write(bytes);
+        return available;
     }
 
-    public void writeBlocked(byte bytes[], int offset, int length) throws ArrayIndexOutOfBoundsException, InterruptedException {
+    private void waitForSpace(int length) throws InterruptedException {
+        if (spsc) {
+            if (closed || writeAvailable() - length > 0) {
+                return;
+            }
+
+            writeWaiter = Thread.currentThread();
+            try {
+                while (!closed && writeAvailable() - length <= 0) {
+                    LockSupport.parkNanos(this, WRITE_PARK_NANOS);
+
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                writeWaiter = null;
+            }
+
+            return;
+        }
+
         synchronized (readMonitor) {
             while (!closed && writeAvailable() - length <= 0) {
                 readMonitor.wait(100);
             }
         }
+    }
+
+    private void signalReader() {
+        if (spsc) {
+            Thread waiter = readWaiter;
+
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        } else {
+            synchronized (readMonitor) {
+                readMonitor.notifyAll();
+            }
+        }
+
+        signalReaders();
+    }
+
+    private void signalWriter() {
+        // In locked mode, the writer is woken up by the reader in waitForBytes().
+        if (spsc) {
+            Thread waiter = writeWaiter;
+
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    public void writeBlocked(ByteBuffer bytes) throws ArrayIndexOutOfBoundsException, InterruptedException {
+        waitForSpace(bytes.remaining());
+
+        write(bytes);
+    }
+
+    public void writeBlocked(byte bytes[], int offset, int length) throws ArrayIndexOutOfBoundsException, InterruptedException {
+        waitForSpace(length);
 
         write(bytes, offset, length);
     }
@@ -195,227 +845,491 @@ public class SeekableCircularBufferNIO {
             throw logger.throwing(new ArrayIndexOutOfBoundsException("You cannot write more data than the buffer is able to allocate."));
         }
 
-        synchronized (writeLock) {
-            int writeAvailable = writeAvailable();
+        if (spsc) {
+            enterProducer();
+            try {
+                // The buffer could have been closed or released while waiting to enter.
+                if (closed) {
+                    return;
+                }
 
-            if (writeAvailable - length <= 0) {
-                if (noWrap && capacity < maxBufferSize) {
-                    synchronized (readLock) {
-                        ByteBuffer newBuffer = ByteBuffer.allocateDirect(capacity + resizeBufferIncrement);
+                queueOrWrite(bytes, length);
+            } finally {
+                producerActive = false;
+            }
+        } else {
+            synchronized (writeLock) {
+                // The buffer could have been closed or released while waiting for the lock.
+                if (closed) {
+                    return;
+                }
+
+                queueOrWrite(bytes, length);
+            }
+        }
+    }
 
-                        logger.warn("The buffer is being expanded from {} bytes to {} bytes.", capacity, newBuffer.capacity());
+    private void queueOrWrite(ByteBuffer bytes, int length) {
+        int writeAvailable = writeAvailable();
 
-                        buffer.limit(capacity).position(0);
-                        newBuffer.put(buffer);
-                        buffer = newBuffer;
-                        readBuffer = buffer.duplicate();
-                        writeBuffer = buffer.duplicate();
-                        capacity = buffer.capacity();
+        if (writeAvailable - length <= 0) {
+            if (noWrap && capacity < maxBufferSize) {
+                expandBuffer();
 
-                        logger.info("The buffer has been expanded.");
-                    }
+                internalWrite(bytes);
+                return;
+            }
+
+            if (!overflowToQueue) {
+                logger.warn("The buffer has {} bytes left to be read, has only {} bytes left for writing and {} bytes cannot be added. Deferring bytes to queue buffer.", readAvailable(), writeAvailable, length);
+                overflowToQueue = true;
+            }
+
+            if (!queueBytes(bytes, length, true)) {
+                if (!overflow) {
+                    logger.warn("The buffer has {} bytes left to be read, has only {} bytes left for writing and {} bytes cannot be added. The queue buffer is full at {} bytes.", readAvailable(), writeAvailable, length, bytesOverflow.get());
+                    overflow = true;
+                }
+
+                bytesLost.addAndGet(length);
+            }
+
+            signalReader();
+
+            return;
+        } else if (overflowToQueue) {
 
-                    internalWrite(bytes);
+            // Store recently added data after the data that is already queued.
+            if (!queueBytes(bytes, length, false)) {
+                bytesLost.addAndGet(length);
+            }
+
+            internalProcessQueue();
+
+            return;
+        }
+
+        internalWrite(bytes);
+    }
+
+    /**
+     * Writes data into the buffer.
+     * <p/>
+     * You cannot write more data into the buffer than the total size of the buffer.
+     *
+     * @param bytes The byte array containing data to be written into to the buffer.
+     * @param offset The offset within the array to start copying data.
+     * @param length The number of bytes to copy starting at the offset.
+     * @throws ArrayIndexOutOfBoundsException If you try to write more data than the total length of
+     *                                        the buffer.
+     */
+    public void write(byte bytes[], int offset, int length) throws ArrayIndexOutOfBoundsException {
+
+        // This technically shouldn't be happening.
+        if (length == 0) {
+            return;
+        }
+
+        // Once the buffer is closed, we turn off writing.
+        if (closed) {
+            return;
+        }
+
+        if (length > capacity) {
+            throw logger.throwing(new ArrayIndexOutOfBoundsException("You cannot write more data than the buffer is able to allocate."));
+        }
+
+        if (spsc) {
+            enterProducer();
+            try {
+                // The buffer could have been closed or released while waiting to enter.
+                if (closed) {
                     return;
                 }
 
-                if (!overflowToQueue) {
-                    logger.warn("The buffer has {} bytes left to be read, has only {} bytes left for writing and {} bytes cannot be added. Deferring bytes to queue buffer.", readAvailable(), writeAvailable, length);
-                    overflowToQueue = true;
+                queueOrWrite(bytes, offset, length);
+            } finally {
+                producerActive = false;
+            }
+        } else {
+            synchronized (writeLock) {
+                // The buffer could have been closed or released while waiting for the lock.
+                if (closed) {
+                    return;
                 }
 
-                // Enable the queue to back up to 4 times the buffer size. On a system with 20
-                // capture devices and a 7MB buffer, this potentially adds up to 560MB in RAM just
-                // for the buffer if things get really backed up. The JVM should be able to handle
-                // this kind of growth without crashing. Also this is not a typical situation.
-                if (bytesOverflow.get() < maxOverflowBytes && overflowQueue.size() < Integer.MAX_VALUE) {
-                    // Store overflowing bytes in double-ended queue.
-                    byte[] queueBytes = new byte[length];
-                    bytes.get(queueBytes, 0, length);
-                    overflowQueue.addLast(queueBytes);
-
-                    bytesOverflow.getAndAdd(length);
-                } else if (!overflow) {
+                queueOrWrite(bytes, offset, length);
+            }
+        }
+    }
+
+    private void queueOrWrite(byte bytes[], int offset, int length) {
+        int writeAvailable = writeAvailable();
+
+        if (writeAvailable - length <= 0) {
+            if (noWrap && capacity < maxBufferSize) {
+                expandBuffer();
+
+                internalWrite(bytes, offset, length);
+                return;
+            }
+
+            if (!overflowToQueue) {
+                logger.warn("The buffer has {} bytes left to be read, has only {} bytes left for writing and {} bytes cannot be added. Deferring bytes to queue buffer.", readAvailable(), writeAvailable, length);
+                overflowToQueue = true;
+            }
+
+            if (!queueBytes(bytes, offset, length, true)) {
+                if (!overflow) {
                     logger.warn("The buffer has {} bytes left to be read, has only {} bytes left for writing and {} bytes cannot be added. The queue buffer is full at {} bytes.", readAvailable(), writeAvailable, length, bytesOverflow.get());
                     overflow = true;
-                    bytesLost.addAndGet(length);
-                } else {
-                    bytesLost.addAndGet(length);
                 }
 
-                synchronized (readMonitor) {
-                    readMonitor.notifyAll();
+                bytesLost.addAndGet(length);
+            }
+
+            signalReader();
+
+            return;
+        } else if (overflowToQueue) {
+
+            // Store recently added data after the data that is already queued.
+            if (!queueBytes(bytes, offset, length, false)) {
+                bytesLost.addAndGet(length);
+            }
+
+            internalProcessQueue();
+
+            return;
+        }
+
+        internalWrite(bytes, offset, length);
+    }
+
+    /**
+     * Add bytes that don't fit in the buffer to the overflow file if it's enabled or the overflow
+     * queue.
+     *
+     * @param bytes The bytes to be queued.
+     * @param length The number of bytes remaining in <b>bytes</b>.
+     * @param limit If <i>true</i>, the overflow queue will not grow beyond its limit.
+     * @return <i>true</i> if the bytes were queued.
+     */
+    private boolean queueBytes(ByteBuffer bytes, int length, boolean limit) {
+        OverflowFile overflowFile = getOverflowFile();
+
+        if (overflowFile != null) {
+            int position = bytes.position();
+
+            try {
+                if (overflowFile.write(bytes)) {
+                    bytesOverflow.addAndGet(length);
+                    return true;
                 }
 
-                return;
-            } else if (overflowToQueue) {
+                return false;
+            } catch (IOException e) {
+                logger.error("Unable to write to the overflow file. Using the queue buffer => ", e);
+                failOverflowFile();
+                bytes.position(position);
+            }
+        }
 
-                if (overflowQueue.size() < Integer.MAX_VALUE) {
-                    // Store recently added data in double-ended queue.
-                    byte[] queueBytes = new byte[length];
-                    bytes.get(queueBytes, 0, length);
-                    overflowQueue.addLast(queueBytes);
+        // Enable the queue to back up to 4 times the buffer size. On a system with 20
+        // capture devices and a 7MB buffer, this potentially adds up to 560MB in RAM just
+        // for the buffer if things get really backed up. The JVM should be able to handle
+        // this kind of growth without crashing. Also this is not a typical situation.
+        if ((!limit || bytesOverflow.get() < maxOverflowBytes) && overflowQueue.size() < Integer.MAX_VALUE) {
+            // Store overflowing bytes in double-ended queue.
+            byte[] queueBytes = new byte[length];
+            bytes.get(queueBytes, 0, length);
+            overflowQueue.addLast(queueBytes);
+
+            bytesOverflow.getAndAdd(length);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean queueBytes(byte bytes[], int offset, int length, boolean limit) {
+        OverflowFile overflowFile = getOverflowFile();
+
+        if (overflowFile != null) {
+            try {
+                if (overflowFile.write(bytes, offset, length)) {
                     bytesOverflow.addAndGet(length);
+                    return true;
                 }
 
-                processQueue();
+                return false;
+            } catch (IOException e) {
+                logger.error("Unable to write to the overflow file. Using the queue buffer => ", e);
+                failOverflowFile();
+            }
+        }
+
+        if ((!limit || bytesOverflow.get() < maxOverflowBytes) && overflowQueue.size() < Integer.MAX_VALUE) {
+            // Store overflowing bytes in double-ended queue.
+            byte[] queueBytes = new byte[length];
+            System.arraycopy(bytes, offset, queueBytes, 0, length);
+            overflowQueue.addLast(queueBytes);
 
-                return;
+            bytesOverflow.getAndAdd(length);
+            return true;
+        }
+
+        return false;
+    }
+
+    private OverflowFile getOverflowFile() {
+        if (overflowFile != null) {
+            return overflowFile;
+        }
+
+        // The file can't be started while there's anything in the queue or the data would be
+        // out of order.
+        if (!useOverflowFile || overflowFileFailed || overflowQueue.size() > 0) {
+            return null;
+        }
+
+        // This is null if the file is still being created or couldn't be created.
+        overflowFile = preparedOverflowFile.getAndSet(null);
+
+        return overflowFile;
+    }
+
+    /**
+     * Stop using the overflow file until the buffer is cleared. Anything still in the file is
+     * lost.
+     */
+    private void failOverflowFile() {
+        if (overflowFile != null) {
+            long lostBytes = overflowFile.available();
+            bytesLost.addAndGet(lostBytes);
+            bytesOverflow.addAndGet(-lostBytes);
+        }
+
+        closeOverflowFile();
+        overflowFileFailed = true;
+    }
+
+    private void closeOverflowFile() {
+        closeOverflowFile(overflowFile);
+        overflowFile = null;
+    }
+
+    private void closeOverflowFile(OverflowFile file) {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.debug("Unable to close the overflow file => ", e);
+        }
+    }
+
+    private void expandBuffer() {
+        if (spsc) {
+            internalExpandBuffer();
+        } else {
+            synchronized (readLock) {
+                internalExpandBuffer();
             }
+        }
+    }
+
+    private void internalExpandBuffer() {
+        ByteBuffer newBuffer =
+                DirectBufferPool.acquire(capacity + resizeBufferIncrement, "SeekableCircularBufferNIO");
 
-            internalWrite(bytes);
+        logger.warn("The buffer is being expanded from {} bytes to {} bytes.", capacity, newBuffer.capacity());
+
+        // In single producer/single consumer mode the reader might still be using the old buffer.
+        // That is safe because nothing will be written into the old buffer after this copy and the
+        // reader always takes the capacity from the buffer it is actually reading.
+        ByteBuffer oldBuffer = buffer.duplicate();
+        oldBuffer.limit(capacity).position(0);
+        newBuffer.put(oldBuffer);
+        writeBuffer = newBuffer.duplicate();
+        readBuffer = newBuffer.duplicate();
+
+        if (buffer != baseBuffer) {
+            retiredBuffers.add(buffer);
+        }
+
+        buffer = newBuffer;
+        capacity = newBuffer.capacity();
+        generation += 1;
+
+        // The offsets are based on the capacity, so they no longer match anything in the index.
+        if (packetIndex != null) {
+            packetIndex.clear();
         }
+
+        logger.info("The buffer has been expanded.");
     }
 
     /**
-     * Writes data into the buffer.
+     * Move as much data as possible from the overflow queue into the buffer.
      * <p/>
-     * You cannot write more data into the buffer than the total size of the buffer.
+     * Writes already do this, so this only needs to be called when no more writes are expected.
+     * In single producer/single consumer mode, this can only be called by the thread writing.
      *
-     * @param bytes The byte array containing data to be written into to the buffer.
-     * @param offset The offset within the array to start copying data.
-     * @param length The number of bytes to copy starting at the offset.
-     * @throws ArrayIndexOutOfBoundsException If you try to write more data than the total length of
-     *                                        the buffer.
+     * @return <i>true</i> if any bytes were recovered from the queue.
+     * @throws IllegalStateException If the buffer is in single producer/single consumer mode and
+     *                               this isn't the thread writing.
      */
-    public void write(byte bytes[], int offset, int length) throws ArrayIndexOutOfBoundsException {
+    public boolean processQueue() throws IllegalStateException {
+        if (spsc) {
+            Thread writer = producerThread;
 
-        // This technically shouldn't be happening.
-        if (length == 0) {
-            return;
-        }
-
-        // Once the buffer is closed, we turn off writing.
-        if (closed) {
-            return;
-        }
+            if (writer != null && writer != Thread.currentThread()) {
+                throw new IllegalStateException("In single producer/single consumer mode, the" +
+                        " queue can only be processed by the thread writing.");
+            }
 
-        if (length > capacity) {
-            throw logger.throwing(new ArrayIndexOutOfBoundsException("You cannot write more data than the buffer is able to allocate."));
+            enterProducer();
+            try {
+                return !released && internalProcessQueue();
+            } finally {
+                producerActive = false;
+            }
         }
 
         synchronized (writeLock) {
-            int writeAvailable = writeAvailable();
-
-            if (writeAvailable - length <= 0) {
-                if (noWrap && capacity < maxBufferSize) {
-                    synchronized (readLock) {
-                        ByteBuffer newBuffer = ByteBuffer.allocateDirect(capacity + resizeBufferIncrement);
-
-                        logger.warn("The buffer is being expanded from {} bytes to {} bytes.", capacity, newBuffer.capacity());
+            return !released && internalProcessQueue();
+        }
+    }
 
-                        buffer.limit(capacity).position(0);
-                        newBuffer.put(buffer);
-                        buffer = newBuffer;
-                        readBuffer = buffer.duplicate();
-                        writeBuffer = buffer.duplicate();
-                        capacity = buffer.capacity();
+    private boolean internalProcessQueue() {
+        int recoveredBytes = 0;
+        boolean returnValue = false;
 
-                        logger.info("The buffer has been expanded.");
-                    }
+        if (overflowFile != null && overflowFile.available() > 0) {
+            recoveredBytes = internalProcessOverflowFile();
 
-                    internalWrite(bytes, offset, length);
-                    return;
-                }
+            if (overflowFile != null && overflowFile.available() > 0) {
+                bytesOverflow.addAndGet(-recoveredBytes);
+                return recoveredBytes > 0;
+            }
+        }
 
-                if (!overflowToQueue) {
-                    logger.warn("The buffer has {} bytes left to be read, has only {} bytes left for writing and {} bytes cannot be added. Deferring bytes to queue buffer.", readAvailable(), writeAvailable, length);
-                    overflowToQueue = true;
+        while (true) {
+            if (overflowQueue.size() == 0) {
+                if (recoveredBytes > 0) {
+                    logger.info("Recovered {} bytes from the queue buffer.", recoveredBytes);
+                    bytesOverflow.addAndGet(-recoveredBytes);
+                    returnValue = true;
                 }
 
-                // Enable the queue to back up to 4 times the buffer size. On a system with 20
-                // capture devices and a 7MB buffer, this potentially adds up to 560MB in RAM just
-                // for the buffer if things get really backed up. The JVM should be able to handle
-                // this kind of growth without crashing. Also this is not a typical situation.
-                if (bytesOverflow.get() < maxOverflowBytes && overflowQueue.size() < Integer.MAX_VALUE) {
-                    // Store overflowing bytes in double-ended queue.
-                    byte[] queueBytes = new byte[length];
-                    System.arraycopy(bytes, offset, queueBytes, 0, length);
-                    overflowQueue.addLast(queueBytes);
-
-                    bytesOverflow.getAndAdd(length);
-                } else if (!overflow) {
-                    logger.warn("The buffer has {} bytes left to be read, has only {} bytes left for writing and {} bytes cannot be added. The queue buffer is full at {} bytes.", readAvailable(), writeAvailable, length, bytesOverflow.get());
-                    overflow = true;
-                    bytesLost.addAndGet(length);
-                } else {
-                    bytesLost.addAndGet(length);
-                }
+                // Reset log warnings.
+                overflowToQueue = false;
+                overflow = false;
+                bytesOverflow.set(0);
 
-                synchronized (readMonitor) {
-                    readMonitor.notifyAll();
+                if (bytesLost.get() > 0) {
+                    logger.info("Lost {} bytes that could not be queued in the queue buffer.", bytesLost.get());
+                    bytesLost.set(0);
                 }
 
-                return;
-            } else if (overflowToQueue) {
-
-                if (overflowQueue.size() < Integer.MAX_VALUE) {
-                    // Store recently added data in double-ended queue.
-                    byte[] queueBytes = new byte[length];
-                    System.arraycopy(bytes, offset, queueBytes, 0, length);
-                    overflowQueue.addLast(queueBytes);
-                    bytesOverflow.addAndGet(length);
-                }
+                break;
+            }
 
-                processQueue();
+            byte[] overflowBytes = overflowQueue.removeFirst();
+            int writeAvailable = writeAvailable();
 
-                return;
+            if (overflowBytes.length > writeAvailable) {
+                // If the next array is larger than what will fit into the array, put it
+                // back in the front of the queue.
+                overflowQueue.addFirst(overflowBytes);
+                break;
             }
 
-            internalWrite(bytes, offset, length);
+            internalWrite(overflowBytes, 0, overflowBytes.length);
+
+            recoveredBytes += overflowBytes.length;
         }
+
+        return returnValue;
     }
 
-    public boolean processQueue() {
+    private int internalProcessOverflowFile() {
         int recoveredBytes = 0;
-        boolean returnValue = false;
 
-        synchronized (writeLock) {
-            while (true) {
-                if (overflowQueue.size() == 0) {
-                    if (recoveredBytes > 0) {
-                        logger.info("Recovered {} bytes from the queue buffer.", recoveredBytes);
-                        bytesOverflow.addAndGet(-recoveredBytes);
-                        returnValue = true;
-                    }
-
-                    // Reset log warnings.
-                    overflowToQueue = false;
-                    overflow = false;
-                    bytesOverflow.set(0);
-
-                    if (bytesLost.get() > 0) {
-                        logger.info("Lost {} bytes that could not be queued in the queue buffer.", bytesLost.get());
-                        bytesLost.set(0);
-                    }
+        try {
+            while (overflowFile.available() > 0) {
+                int length = (int) Math.min(overflowFile.available(), writeAvailable());
 
+                if (length <= 0) {
                     break;
                 }
 
-                byte[] overflowBytes = overflowQueue.removeFirst();
-                int writeAvailable = writeAvailable();
+                // This only returns what is already in memory, so it can be less than requested.
+                // Anything else will be recovered by a later write.
+                length = internalWrite(overflowFile, length);
 
-                if (overflowBytes.length > writeAvailable) {
-                    // If the next array is larger than what will fit into the array, put it
-                    // back in the front of the queue.
-                    overflowQueue.addFirst(overflowBytes);
+                if (length == 0) {
                     break;
                 }
 
-                internalWrite(overflowBytes, 0, overflowBytes.length);
+                recoveredBytes += length;
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read from the overflow file => ", e);
+            failOverflowFile();
+        }
+
+        return recoveredBytes;
+    }
+
+    private int internalWrite(OverflowFile overflowFile, int length) throws IOException {
+        long write = writeCursor.get();
+        int writeIndex = cursorIndex(write);
+        int writePasses = cursorPasses(write);
+
+        if (writeIndex + length > capacity) {
+            int end = capacity - writeIndex;
+            writeBuffer.limit(capacity).position(writeIndex);
+            int readBytes = overflowFile.read(writeBuffer);
 
-                recoveredBytes += overflowBytes.length;
+            if (readBytes < end) {
+                length = readBytes;
+            } else {
+                writeBuffer.limit(length - end).position(0);
+                length = end + overflowFile.read(writeBuffer);
             }
+        } else {
+            writeBuffer.limit(writeIndex + length).position(writeIndex);
+            length = overflowFile.read(writeBuffer);
         }
 
-        return returnValue;
+        if (length == 0) {
+            return 0;
+        }
+
+        indexWrite(writeIndex, length, writePasses);
+
+        if (writeIndex + length > capacity) {
+            writeCursor.set(toCursor(writePasses + 1, writeIndex + length - capacity));
+        } else {
+            writeCursor.set(toCursor(writePasses, writeIndex + length));
+        }
+
+        signalReader();
+        return length;
     }
 
     private void internalWrite(ByteBuffer bytes) {
-        // This is always called within a write lock, there is no need to have any synchronization
-        // within this method.
+        // This is always called within a write lock or by the only producer, there is no need to
+        // have any synchronization within this method.
 
         int length = bytes.remaining();
+        long write = writeCursor.get();
+        int writeIndex = cursorIndex(write);
+        int writePasses = cursorPasses(write);
 
         if (writeIndex + length > capacity) {
             int end = capacity - writeIndex;
@@ -433,26 +1347,23 @@ public class SeekableCircularBufferNIO {
                 writeBuffer.put(bytes);
             }
 
-            synchronized (rwPassLock) {
-                writeIndex = writeRemaining;
-                writePasses += 1;
-            }
+            indexWrite(writeIndex, length, writePasses);
+            writeCursor.set(toCursor(writePasses + 1, writeRemaining));
         } else {
             writeBuffer.limit(writeIndex + length).position(writeIndex);
             writeBuffer.put(bytes);
-            writeIndex += length;
 
+            indexWrite(writeIndex, length, writePasses);
+            writeCursor.set(toCursor(writePasses, writeIndex + length));
         }
 
-        synchronized (readMonitor) {
-            readMonitor.notifyAll();
-        }
+        signalReader();
     }
 
     private void internalWrite(byte bytes[], int offset, int length) {
-        if (writeInterBuffer.length < length) {
-            writeInterBuffer = new byte[length * 2];
-        }
+        long write = writeCursor.get();
+        int writeIndex = cursorIndex(write);
+        int writePasses = cursorPasses(write);
 
         if (writeIndex + length > capacity) {
             int end = capacity - writeIndex;
@@ -467,19 +1378,37 @@ public class SeekableCircularBufferNIO {
                 writeBuffer.put(bytes, offset + end, writeRemaining);
             }
 
-            synchronized (rwPassLock) {
-                writeIndex = writeRemaining;
-                writePasses += 1;
-            }
+            indexWrite(writeIndex, length, writePasses);
+            writeCursor.set(toCursor(writePasses + 1, writeRemaining));
         } else {
             writeBuffer.limit(writeIndex + length).position(writeIndex);
             writeBuffer.put(bytes, offset, length);
-            writeIndex += length;
 
+            indexWrite(writeIndex, length, writePasses);
+            writeCursor.set(toCursor(writePasses, writeIndex + length));
         }
 
-        synchronized (readMonitor) {
-            readMonitor.notifyAll();
+        signalReader();
+    }
+
+    private void indexWrite(int writeIndex, int length, int writePasses) {
+        // The index must be updated before the write cursor so anything the reader can see has
+        // already been indexed.
+        if (packetIndex == null) {
+            return;
+        }
+
+        long offset = (long) writePasses * capacity + writeIndex;
+
+        if (writeIndex + length > capacity) {
+            int end = capacity - writeIndex;
+            writeBuffer.limit(capacity).position(writeIndex);
+            packetIndex.add(writeBuffer, offset);
+            writeBuffer.limit(length - end).position(0);
+            packetIndex.add(writeBuffer, offset + end);
+        } else {
+            writeBuffer.limit(writeIndex + length).position(writeIndex);
+            packetIndex.add(writeBuffer, offset);
         }
     }
 
@@ -513,47 +1442,65 @@ public class SeekableCircularBufferNIO {
             throw new IndexOutOfBoundsException("You cannot read more data than the buffer is able to allocate.");
         }
 
-        int returnLength = 0;
+        int returnLength;
 
         waitForBytes();
 
-        synchronized (readLock) {
-            returnLength = Math.min(length, readAvailable());
-
-            /*if (logger.isTraceEnabled()) {
-                long readAvailable = readAvailable();
-                logger.trace("{} bytes are currently available with a length of {} bytes being requested.", readAvailable, length);
-            }*/
-            if (readIndex + returnLength > capacity) {
-                int end = capacity - readIndex;
-                //logger.trace("buffer.length = {}, readIndex = {}, bytes.length = {}, offset = {}, end = {}", buffer.length, readIndex, bytes.length, offset, end);
-                readBuffer.limit(readIndex + end).position(readIndex);
-                readBuffer.get(bytes, offset, end);
-
-                int readRemaining = returnLength - end;
-
-                if (readRemaining > 0) {
-                    //logger.trace("buffer.length = {}, bytes.length = {}, offset = {}, end = {}, readRemaining = {}", buffer.length, bytes.length, offset, end, readRemaining);
-                    readBuffer.limit(readRemaining).position(0);
-                    readBuffer.get(bytes, offset + end, readRemaining);
-                }
-
-                synchronized (rwPassLock) {
-                    readIndex = readRemaining;
-                    readPasses += 1;
-                }
-            } else {
-                readBuffer.limit(readIndex + returnLength).position(readIndex);
-                readBuffer.get(bytes, offset, returnLength);
-                readIndex += returnLength;
+        if (spsc) {
+            enterConsumer();
+            try {
+                returnLength = internalRead(bytes, offset, length);
+            } finally {
+                consumerActive = false;
+            }
+            signalWriter();
+        } else {
+            synchronized (readLock) {
+                returnLength = internalRead(bytes, offset, length);
             }
         }
 
+        //return logger.exit(returnLength);
+        return returnLength;
+    }
+
+    private int internalRead(byte bytes[], int offset, int length) {
+        // The write cursor must be read before the buffer. If the buffer was expanded after the
+        // cursor was read, the old buffer still contains everything up to that cursor.
+        long write = writeCursor.get();
+        ByteBuffer readBuffer = this.readBuffer;
+        int capacity = readBuffer.capacity();
+        long read = readCursor.get();
+        int readIndex = cursorIndex(read);
+        int readPasses = cursorPasses(read);
+
+        int returnLength = Math.min(length, readAvailable(readIndex, cursorIndex(write), capacity));
+
         /*if (logger.isTraceEnabled()) {
-            long readAvailable = readAvailable();
-            logger.trace("{} bytes remain available. Returning {} bytes.", readAvailable, returnLength);
+            logger.trace("{} bytes are currently available with a length of {} bytes being requested.", readAvailable(), length);
         }*/
-        //return logger.exit(returnLength);
+        if (readIndex + returnLength > capacity) {
+            int end = capacity - readIndex;
+            //logger.trace("buffer.length = {}, readIndex = {}, bytes.length = {}, offset = {}, end = {}", buffer.length, readIndex, bytes.length, offset, end);
+            readBuffer.limit(readIndex + end).position(readIndex);
+            readBuffer.get(bytes, offset, end);
+
+            int readRemaining = returnLength - end;
+
+            if (readRemaining > 0) {
+                //logger.trace("buffer.length = {}, bytes.length = {}, offset = {}, end = {}, readRemaining = {}", buffer.length, bytes.length, offset, end, readRemaining);
+                readBuffer.limit(readRemaining).position(0);
+                readBuffer.get(bytes, offset + end, readRemaining);
+            }
+
+            readCursor.set(toCursor(readPasses + 1, readRemaining));
+        } else {
+            readBuffer.limit(readIndex + returnLength).position(readIndex);
+            readBuffer.get(bytes, offset, returnLength);
+
+            readCursor.set(toCursor(readPasses, readIndex + returnLength));
+        }
+
         return returnLength;
     }
 
@@ -578,51 +1525,148 @@ public class SeekableCircularBufferNIO {
 
         int length = Math.min(capacity, outBuffer.remaining());
 
-        int returnLength = 0;
+        int returnLength;
 
         waitForBytes();
 
-        synchronized (readLock) {
-            returnLength = Math.min(length, readAvailable());
+        if (spsc) {
+            enterConsumer();
+            try {
+                returnLength = internalRead(outBuffer, length);
+            } finally {
+                consumerActive = false;
+            }
+            signalWriter();
+        } else {
+            synchronized (readLock) {
+                returnLength = internalRead(outBuffer, length);
+            }
+        }
+
+        //return logger.exit(returnLength);
+        return returnLength;
+    }
 
-            /*if (logger.isTraceEnabled()) {
-                long readAvailable = readAvailable();
-                logger.trace("{} bytes are currently available with a length of {} bytes being requested.", readAvailable, length);
-            }*/
+    private int internalRead(ByteBuffer outBuffer, int length) {
+        long write = writeCursor.get();
+        ByteBuffer readBuffer = this.readBuffer;
+        int capacity = readBuffer.capacity();
+        long read = readCursor.get();
+        int readIndex = cursorIndex(read);
+        int readPasses = cursorPasses(read);
 
-            if (readIndex + returnLength > capacity) {
-                int end = capacity - readIndex;
-                //logger.trace("buffer.length = {}, readIndex = {}, outBuffer.remaining = {}, end = {}", buffer.length, readIndex, outBuffer.remaining(), end);
-                readBuffer.limit(readIndex + end).position(readIndex);
-                outBuffer.put(readBuffer);
+        int returnLength = Math.min(length, readAvailable(readIndex, cursorIndex(write), capacity));
+
+        /*if (logger.isTraceEnabled()) {
+            logger.trace("{} bytes are currently available with a length of {} bytes being requested.", readAvailable(), length);
+        }*/
 
-                int readRemaining = returnLength - end;
+        if (readIndex + returnLength > capacity) {
+            int end = capacity - readIndex;
+            //logger.trace("buffer.length = {}, readIndex = {}, outBuffer.remaining = {}, end = {}", buffer.length, readIndex, outBuffer.remaining(), end);
+            readBuffer.limit(readIndex + end).position(readIndex);
+            outBuffer.put(readBuffer);
 
-                if (readIndex > 0) {
-                    //logger.trace("buffer.length = {}, outBuffer.remaining = {}, readRemaining = {}", buffer.length, outBuffer.remaining(), readRemaining);
-                    readBuffer.limit(readRemaining).position(0);
-                    outBuffer.put(readBuffer);
-                }
+            int readRemaining = returnLength - end;
 
-                synchronized (rwPassLock) {
-                    readIndex = readRemaining;
-                    readPasses += 1;
-                }
-            } else {
-                readBuffer.limit(readIndex + returnLength).position(readIndex);
+            if (readRemaining > 0) {
+                //logger.trace("buffer.length = {}, outBuffer.remaining = {}, readRemaining = {}", buffer.length, outBuffer.remaining(), readRemaining);
+                readBuffer.limit(readRemaining).position(0);
                 outBuffer.put(readBuffer);
-                readIndex += returnLength;
             }
+
+            readCursor.set(toCursor(readPasses + 1, readRemaining));
+        } else {
+            readBuffer.limit(readIndex + returnLength).position(readIndex);
+            outBuffer.put(readBuffer);
+
+            readCursor.set(toCursor(readPasses, readIndex + returnLength));
         }
 
-        /*if (logger.isTraceEnabled()) {
-            long readAvailable = readAvailable();
-            logger.trace("{} bytes remain available. Returning {} bytes.", readAvailable, returnLength);
-        }*/
-        //return logger.exit(returnLength);
         return returnLength;
     }
 
+    /**
+     * Get the bytes available to be read without copying them.
+     * <p/>
+     * The data is returned as views of the buffer. There are two views when the data wraps around
+     * the end of the buffer. The read index is not changed, so the views stay valid until
+     * <b>skip()</b> is used to move past them. Only the thread reading may use this method and
+     * the views are re-used by the next call.
+     *
+     * @param segments An array of at least 2 elements to receive the views.
+     * @param maxLength The most bytes to return.
+     * @return The number of views placed into <b>segments</b>.
+     */
+    public int peek(ByteBuffer segments[], int maxLength) {
+        long write = writeCursor.get();
+        ByteBuffer readBuffer = this.readBuffer;
+
+        if (peekSource != readBuffer) {
+            peekSource = readBuffer;
+            peekFirst = readBuffer.duplicate();
+            peekSecond = readBuffer.duplicate();
+        }
+
+        int capacity = readBuffer.capacity();
+        int readIndex = cursorIndex(readCursor.get());
+        int length = Math.min(maxLength, readAvailable(readIndex, cursorIndex(write), capacity));
+        int firstLength = Math.min(length, capacity - readIndex);
+        int count = 0;
+
+        if (firstLength > 0) {
+            peekFirst.clear();
+            peekFirst.position(readIndex);
+            peekFirst.limit(readIndex + firstLength);
+            segments[count++] = peekFirst;
+        }
+
+        if (length > firstLength) {
+            peekSecond.clear();
+            peekSecond.limit(length - firstLength);
+            segments[count++] = peekSecond;
+        }
+
+        return count;
+    }
+
+    /**
+     * Move the read index forward without copying anything.
+     * <p/>
+     * This is used after the data returned by <b>peek()</b> has been used.
+     *
+     * @param length The number of bytes to move forward. This must not be more than the number of
+     *               bytes available to be read.
+     */
+    public void skip(int length) {
+        if (spsc) {
+            enterConsumer();
+            try {
+                internalSkip(length);
+            } finally {
+                consumerActive = false;
+            }
+            signalWriter();
+        } else {
+            synchronized (readLock) {
+                internalSkip(length);
+            }
+        }
+    }
+
+    private void internalSkip(int length) {
+        long read = readCursor.get();
+        int readIndex = cursorIndex(read);
+        int readPasses = cursorPasses(read);
+        int capacity = readBuffer.capacity();
+
+        if (readIndex + length > capacity) {
+            readCursor.set(toCursor(readPasses + 1, readIndex + length - capacity));
+        } else {
+            readCursor.set(toCursor(readPasses, readIndex + length));
+        }
+    }
+
     /**
      * Returns an unsigned byte as an integer.
      * <p/>
@@ -640,20 +1684,38 @@ public class SeekableCircularBufferNIO {
 
         waitForBytes();
 
-        synchronized (readLock) {
+        if (spsc) {
+            enterConsumer();
+            try {
+                returnValue = internalRead();
+            } finally {
+                consumerActive = false;
+            }
+            signalWriter();
+        } else {
+            synchronized (readLock) {
+                returnValue = internalRead();
+            }
+        }
+
+        //return logger.exit(returnValue);
+        return returnValue;
+    }
 
-            returnValue = readBuffer.get(readIndex++) & 0xff;
+    private int internalRead() {
+        ByteBuffer readBuffer = this.readBuffer;
+        long read = readCursor.get();
+        int readIndex = cursorIndex(read);
+        int readPasses = cursorPasses(read);
 
-            if (readIndex >= capacity) {
-                synchronized (rwPassLock) {
-                    readIndex = 0;
-                    readPasses += 1;
-                }
-            }
+        int returnValue = readBuffer.get(readIndex++) & 0xff;
 
+        if (readIndex >= readBuffer.capacity()) {
+            readCursor.set(toCursor(readPasses + 1, 0));
+        } else {
+            readCursor.set(toCursor(readPasses, readIndex));
         }
 
-        //return logger.exit(returnValue);
         return returnValue;
     }
 
@@ -673,17 +1735,16 @@ public class SeekableCircularBufferNIO {
             return;
         }
 
-        synchronized (readLock) {
-            synchronized (rwPassLock) {
-                int newIndex = Math.abs((int)(index % capacity));
-                int newPasses = Math.abs((int)(index / capacity));
-
-                if (newPasses > writePasses || newPasses == writePasses && newIndex > writeIndex || newPasses < writePasses && newIndex < writeIndex) {
-                    throw logger.throwing(new ArrayIndexOutOfBoundsException("You cannot move the read index beyond the currently available data."));
-                }
-
-                readIndex = newIndex;
-                readPasses = newPasses;
+        if (spsc) {
+            enterConsumer();
+            try {
+                internalSetReadIndex(index);
+            } finally {
+                consumerActive = false;
+            }
+        } else {
+            synchronized (readLock) {
+                internalSetReadIndex(index);
             }
         }
 
@@ -691,6 +1752,15 @@ public class SeekableCircularBufferNIO {
         logger.exit();
     }
 
+    private void internalSetReadIndex(long index) {
+        int newIndex = Math.abs((int)(index % capacity));
+        int newPasses = Math.abs((int)(index / capacity));
+
+        checkReadCursor(newIndex, newPasses);
+
+        readCursor.set(toCursor(newPasses, newIndex));
+    }
+
     /**
      * Increments the current read index relative to the current read index and total bytes read
      * from the buffer.
@@ -702,28 +1772,19 @@ public class SeekableCircularBufferNIO {
     public long incrementReadIndexFromStart(long increment) throws IndexOutOfBoundsException {
         //logger.entry(increment);
 
-        long returnValue = -1;
-
-        synchronized (readLock) {
-            synchronized (rwPassLock) {
-                if (readIndex + increment > capacity) {
-                    throw new IndexOutOfBoundsException("You cannot increment the read index to a value greater than the buffer size.");
-                }
-
-                long index = ((long)readPasses * (long)capacity) + (long)readIndex + increment;
+        long returnValue;
 
-                int newIndex = Math.abs((int)(index % capacity));
-                int newPasses = Math.abs((int)(index / capacity));
-
-                if (newPasses > writePasses || newPasses == writePasses && newIndex > writeIndex || newPasses < writePasses && newIndex < writeIndex) {
-                    throw logger.throwing(new ArrayIndexOutOfBoundsException("You cannot move the read index beyond the currently available data."));
-                }
-
-                readIndex = newIndex;
-                readPasses = newPasses;
+        if (spsc) {
+            enterConsumer();
+            try {
+                returnValue = internalIncrementReadIndexFromStart(increment);
+            } finally {
+                consumerActive = false;
+            }
+        } else {
+            synchronized (readLock) {
+                returnValue = internalIncrementReadIndexFromStart(increment);
             }
-
-            returnValue = totalBytesReadIndex();
         }
 
         //logger.debug("Incremental index {} to bytes read index set read index to actual index {}, read passes {}.", increment, readIndex, readPasses);
@@ -731,6 +1792,27 @@ public class SeekableCircularBufferNIO {
         return returnValue;
     }
 
+    private long internalIncrementReadIndexFromStart(long increment) {
+        long read = readCursor.get();
+        int readIndex = cursorIndex(read);
+        int readPasses = cursorPasses(read);
+
+        if (readIndex + increment > capacity) {
+            throw new IndexOutOfBoundsException("You cannot increment the read index to a value greater than the buffer size.");
+        }
+
+        long index = ((long)readPasses * (long)capacity) + (long)readIndex + increment;
+
+        int newIndex = Math.abs((int)(index % capacity));
+        int newPasses = Math.abs((int)(index / capacity));
+
+        checkReadCursor(newIndex, newPasses);
+
+        readCursor.set(toCursor(newPasses, newIndex));
+
+        return totalBytesReadIndex();
+    }
+
     /**
      * Increments the current read index relative to the total bytes available to be read from the
      * buffer.
@@ -742,28 +1824,19 @@ public class SeekableCircularBufferNIO {
     public long incrementReadIndexFromEnd(long increment) throws IndexOutOfBoundsException {
         //logger.entry(increment);
 
-        long returnValue = -1;
-
-        synchronized (readLock) {
-            synchronized (rwPassLock) {
-                if (readIndex + increment > capacity) {
-                    throw new IndexOutOfBoundsException("You cannot increment the read index to a value greater than the buffer size.");
-                }
-
-                long index = totalBytesAvailable() + increment;
-
-                int newIndex = Math.abs((int)(index % capacity));
-                int newPasses = Math.abs((int)(index / capacity));
+        long returnValue;
 
-                if (newPasses > writePasses || newPasses == writePasses && newIndex > writeIndex || newPasses < writePasses && newIndex < writeIndex) {
-                    throw logger.throwing(new ArrayIndexOutOfBoundsException("You cannot move the read index beyond the currently available data."));
-                }
-
-                readIndex = newIndex;
-                readPasses = newPasses;
+        if (spsc) {
+            enterConsumer();
+            try {
+                returnValue = internalIncrementReadIndexFromEnd(increment);
+            } finally {
+                consumerActive = false;
+            }
+        } else {
+            synchronized (readLock) {
+                returnValue = internalIncrementReadIndexFromEnd(increment);
             }
-
-            returnValue = totalBytesReadIndex();
         }
 
         //logger.debug("Incremental index {} to bytes read index set read index to actual index {}, read passes {}.", increment, readIndex, readPasses);
@@ -771,6 +1844,33 @@ public class SeekableCircularBufferNIO {
         return returnValue;
     }
 
+    private long internalIncrementReadIndexFromEnd(long increment) {
+        if (getReadIndex() + increment > capacity) {
+            throw new IndexOutOfBoundsException("You cannot increment the read index to a value greater than the buffer size.");
+        }
+
+        long index = totalBytesAvailable() + increment;
+
+        int newIndex = Math.abs((int)(index % capacity));
+        int newPasses = Math.abs((int)(index / capacity));
+
+        checkReadCursor(newIndex, newPasses);
+
+        readCursor.set(toCursor(newPasses, newIndex));
+
+        return totalBytesReadIndex();
+    }
+
+    private void checkReadCursor(int newIndex, int newPasses) throws ArrayIndexOutOfBoundsException {
+        long write = writeCursor.get();
+        int writeIndex = cursorIndex(write);
+        int writePasses = cursorPasses(write);
+
+        if (newPasses > writePasses || newPasses == writePasses && newIndex > writeIndex || newPasses < writePasses && newIndex < writeIndex) {
+            throw logger.throwing(new ArrayIndexOutOfBoundsException("You cannot move the read index beyond the currently available data."));
+        }
+    }
+
     /**
      * Get how much free space there is available for writing. The writer always returns one byte
      * smaller than the total buffer size.
@@ -780,28 +1880,39 @@ public class SeekableCircularBufferNIO {
     public int writeAvailable() {
         //logger.entry();
         int available;
-        int limitIndex;
+        int writeIndex = getWriteIndex();
 
-        synchronized (rwPassLock) {
-            limitIndex = readIndex;
+        if (noWrap) {
+            available = (capacity - 1) - writeIndex;
+        } else {
+            available = writeAvailable(getReadIndex(), writeIndex);
 
-            if (noWrap) {
-                available = (capacity - 1) - writeIndex;
-            } else if (limitIndex > writeIndex) {
-                available = limitIndex - (writeIndex - 1);
-            } else {
-                available = (capacity - 1) - (writeIndex - limitIndex);
+            // Readers that don't skip data hold back the writer the same way the primary reader
+            // does.
+            for (CircularBufferReader reader : blockingReaders) {
+                available = Math.min(available,
+                        writeAvailable(cursorIndex(reader.getCursor()), writeIndex));
             }
-
-            /*if (logger.isDebugEnabled() && available <= 0) {
-                logger.debug("writeAvailable() = {}", available);
-            }*/
         }
 
+        /*if (logger.isDebugEnabled() && available <= 0) {
+            logger.debug("writeAvailable() = {}", available);
+        }*/
+
         //return logger.exit(available);
         return available;
     }
 
+    private int writeAvailable(int limitIndex, int writeIndex) {
+        if (limitIndex > writeIndex) {
+            // One byte is always left between the write index and the read index. If they are
+            // equal, the buffer is empty.
+            return limitIndex - writeIndex - 1;
+        } else {
+            return (capacity - 1) - (writeIndex - limitIndex);
+        }
+    }
+
     /**
      * Get how many bytes are available to be read from the current index.
      *
@@ -809,45 +1920,47 @@ public class SeekableCircularBufferNIO {
      */
     public int readAvailable() {
         //logger.entry();
-        int available;
-
-        synchronized (rwPassLock) {
-            if (readIndex <= writeIndex) {
-                available = writeIndex - readIndex;
-            } else {
-                available = capacity - (readIndex - writeIndex);
-            }
-        }
 
         //return logger.exit(available);
-        return available;
+        return readAvailable(getReadIndex(), getWriteIndex(), capacity);
+    }
+
+    private static int readAvailable(int readIndex, int writeIndex, int capacity) {
+        if (readIndex <= writeIndex) {
+            return writeIndex - readIndex;
+        } else {
+            return capacity - (readIndex - writeIndex);
+        }
     }
 
     public long totalBytesReadIndex() {
         //logger.entry();
-        long available;
-
-        synchronized (rwPassLock) {
-            available = totalBytesAvailable() - readAvailable();
-        }
+        long read = readCursor.get();
+        long write = writeCursor.get();
 
         //return logger.exit(available);
-        return available;
+        return totalBytesAvailable(read, write) -
+                readAvailable(cursorIndex(read), cursorIndex(write), capacity);
     }
 
     public long totalBytesAvailable() {
         //logger.entry();
+
+        //return logger.exit(available);
+        return totalBytesAvailable(readCursor.get(), writeCursor.get());
+    }
+
+    private long totalBytesAvailable(long read, long write) {
         int available;
+        int writeIndex = cursorIndex(write);
+        int writePasses = cursorPasses(write);
 
-        synchronized (rwPassLock) {
-            if (readIndex <= writeIndex) {
-                available = (writePasses * capacity) + writeIndex;
-            } else {
-                available = (writePasses * capacity) + (capacity - writeIndex);
-            }
+        if (cursorIndex(read) <= writeIndex) {
+            available = (writePasses * capacity) + writeIndex;
+        } else {
+            available = (writePasses * capacity) + (capacity - writeIndex);
         }
 
-        //return logger.exit(available);
         return available;
     }
 }
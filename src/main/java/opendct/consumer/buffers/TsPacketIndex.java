@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.buffers;
+
+import opendct.config.Config;
+import opendct.video.java.VideoUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An index of interesting transport stream packets that is built while data is written into a
+ * buffer.
+ * <p/>
+ * Every packet is looked at exactly once as it is written, so finding the next PAT or random
+ * access point only needs a search over a small array of offsets instead of re-scanning
+ * megabytes of buffered data each time.
+ * <p/>
+ * The offsets are whatever the writer says they are. <i>SeekableCircularBufferNIO</i> uses
+ * (passes * capacity) + index, which is the same number <i>getReadOffset()</i> returns.
+ * <p/>
+ * Only one thread may add data to the index. Any thread can look up offsets.
+ */
+public class TsPacketIndex {
+    private static final int DEFAULT_ENTRIES =
+            Math.max(Config.getInteger("buffers.nio.ts_index_entries", 4096), 16);
+
+    public enum Kind {
+        /**
+         * Packets on PID 0 with the payload unit start indicator.
+         */
+        PAT,
+
+        /**
+         * Packets on a PMT PID announced by the last PAT with the payload unit start indicator.
+         */
+        PMT,
+
+        /**
+         * All packets with the payload unit start indicator.
+         */
+        PUSI,
+
+        /**
+         * Packets with the payload unit start indicator that start a video PES packet.
+         */
+        VIDEO_PES,
+
+        /**
+         * Packets with the random access indicator set in the adaptation field.
+         */
+        RANDOM_ACCESS
+    }
+
+    private static final Kind KINDS[] = Kind.values();
+
+    private final int entries;
+    private final long offsets[][];
+    private final AtomicLongArray counts;
+
+    // These are only accessed by the writing thread.
+    private final byte packet[] = new byte[VideoUtil.MTS_PACKET_LEN];
+    private final long pmtPids[] = new long[8192 / 64];
+    private int packetBytes;
+    private long packetStart;
+    private long nextOffset = -1;
+    private boolean synced;
+    private boolean candidate;
+    private long syncLosses;
+
+    public TsPacketIndex() {
+        this(DEFAULT_ENTRIES);
+    }
+
+    /**
+     * Create a new packet index.
+     *
+     * @param entries The number of offsets to remember for each kind of packet.
+     */
+    public TsPacketIndex(int entries) {
+        this.entries = entries;
+        offsets = new long[KINDS.length][entries];
+        counts = new AtomicLongArray(KINDS.length);
+    }
+
+    /**
+     * Remove everything from the index.
+     * <p/>
+     * This must only be called by the writing thread or while nothing is being written.
+     */
+    public void clear() {
+        for (int i = 0; i < KINDS.length; i++) {
+            counts.set(i, 0);
+        }
+
+        Arrays.fill(pmtPids, 0);
+        packetBytes = 0;
+        nextOffset = -1;
+        synced = false;
+        candidate = false;
+    }
+
+    /**
+     * Index the remaining bytes in a buffer.
+     * <p/>
+     * The bytes are consumed. If the offset doesn't follow the last bytes indexed, the index will
+     * re-sync on the new data. A packet is only added to the index once all 188 bytes have been
+     * seen.
+     *
+     * @param bytes The data that was just written.
+     * @param offset The offset of the first byte.
+     */
+    public void add(ByteBuffer bytes, long offset) {
+        if (offset != nextOffset) {
+            if (synced) {
+                syncLosses++;
+            }
+
+            synced = false;
+            candidate = false;
+            packetBytes = 0;
+        }
+
+        nextOffset = offset + bytes.remaining();
+
+        while (bytes.hasRemaining()) {
+            if (packetBytes == 0) {
+                byte syncByte = bytes.get();
+
+                if (syncByte != VideoUtil.MTS_SYNC_BYTE) {
+                    if (synced) {
+                        syncLosses++;
+                    }
+
+                    synced = false;
+                    candidate = false;
+                    offset += 1;
+                    continue;
+                }
+
+                // A sync byte exactly one packet after a candidate packet confirms that we are
+                // looking at packet boundaries.
+                if (candidate) {
+                    candidate = false;
+                    synced = true;
+                    processPacket();
+                }
+
+                packet[0] = syncByte;
+                packetStart = offset;
+                packetBytes = 1;
+                offset += 1;
+            }
+
+            int length = Math.min(VideoUtil.MTS_PACKET_LEN - packetBytes, bytes.remaining());
+            bytes.get(packet, packetBytes, length);
+            packetBytes += length;
+            offset += length;
+
+            if (packetBytes == VideoUtil.MTS_PACKET_LEN) {
+                packetBytes = 0;
+
+                if (synced) {
+                    processPacket();
+                } else {
+                    candidate = true;
+                }
+            }
+        }
+    }
+
+    private void processPacket() {
+        // Transport error indicator.
+        if ((packet[1] & 0x80) != 0) {
+            return;
+        }
+
+        boolean payloadUnitStart = (packet[1] & 0x40) != 0;
+        int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+        int adaptationFieldControl = (packet[3] >> 4) & 0x03;
+        int payloadStart = 4;
+
+        if ((adaptationFieldControl & 0x02) != 0) {
+            int adaptationFieldLength = packet[4] & 0xff;
+
+            if (adaptationFieldLength > 0 && (packet[5] & 0x40) != 0) {
+                addOffset(Kind.RANDOM_ACCESS, packetStart);
+            }
+
+            payloadStart = 5 + adaptationFieldLength;
+        }
+
+        if (!payloadUnitStart ||
+                (adaptationFieldControl & 0x01) == 0 ||
+                payloadStart >= VideoUtil.MTS_PACKET_LEN) {
+
+            return;
+        }
+
+        addOffset(Kind.PUSI, packetStart);
+
+        if (pid == 0) {
+            addOffset(Kind.PAT, packetStart);
+            parsePat(payloadStart);
+        } else if ((pmtPids[pid >>> 6] & (1L << (pid & 63))) != 0) {
+            addOffset(Kind.PMT, packetStart);
+        } else if (payloadStart + 3 < VideoUtil.MTS_PACKET_LEN &&
+                packet[payloadStart] == 0x00 &&
+                packet[payloadStart + 1] == 0x00 &&
+                packet[payloadStart + 2] == 0x01 &&
+                (packet[payloadStart + 3] & 0xf0) == 0xe0) {
+
+            addOffset(Kind.VIDEO_PES, packetStart);
+        }
+    }
+
+    private void parsePat(int payloadStart) {
+        int sectionStart = payloadStart + 1 + (packet[payloadStart] & 0xff);
+
+        // The table ID must be 0 and the section header must fit in this packet.
+        if (sectionStart + 8 > VideoUtil.MTS_PACKET_LEN || packet[sectionStart] != 0x00) {
+            return;
+        }
+
+        int sectionLength = ((packet[sectionStart + 1] & 0x0f) << 8) | (packet[sectionStart + 2] & 0xff);
+        // The last 4 bytes of the section are the CRC.
+        int programsEnd = Math.min(sectionStart + 3 + sectionLength - 4, VideoUtil.MTS_PACKET_LEN);
+
+        Arrays.fill(pmtPids, 0);
+
+        for (int i = sectionStart + 8; i + 4 <= programsEnd; i += 4) {
+            int programNumber = ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff);
+            int pmtPid = ((packet[i + 2] & 0x1f) << 8) | (packet[i + 3] & 0xff);
+
+            // Program 0 is the network PID.
+            if (programNumber != 0) {
+                pmtPids[pmtPid >>> 6] |= 1L << (pmtPid & 63);
+            }
+        }
+    }
+
+    private void addOffset(Kind kind, long offset) {
+        int ordinal = kind.ordinal();
+        long count = counts.get(ordinal);
+
+        offsets[ordinal][(int) (count % entries)] = offset;
+        counts.lazySet(ordinal, count + 1);
+    }
+
+    /**
+     * Get the offset of the first packet of a kind at or after an offset.
+     *
+     * @param kind The kind of packet.
+     * @param offset The offset to start looking from.
+     * @return The offset of the packet or -1 if there isn't one in the index.
+     */
+    public long next(Kind kind, long offset) {
+        int ordinal = kind.ordinal();
+        long entry[] = offsets[ordinal];
+
+        // The writer might overwrite the entries we are searching. If the count moved far enough
+        // that the result could have been replaced, search again.
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long count = counts.get(ordinal);
+            long low = Math.max(0, count - entries);
+            long high = count;
+
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+
+                if (entry[(int) (mid % entries)] < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            if (low == count) {
+                return -1;
+            }
+
+            long returnValue = entry[(int) (low % entries)];
+            long newCount = counts.get(ordinal);
+
+            if (low >= newCount - entries && low < newCount) {
+                return returnValue;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the total number of packets of a kind that have been indexed.
+     */
+    public long getCount(Kind kind) {
+        return counts.get(kind.ordinal());
+    }
+
+    /**
+     * <i>true</i> if the index currently knows where the packet boundaries are.
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * The number of times the index lost track of the packet boundaries.
+     */
+    public long getSyncLosses() {
+        return syncLosses;
+    }
+}
@@ -46,6 +46,18 @@ public class NIOSageTVMediaServer {
 
     private ByteBuffer messageOutBuffer = ByteBuffer.allocateDirect(4096);
 
+    // WRITE is sent very often and SageTV does not reply to it, so the header is encoded directly
+    // into a re-used buffer and sent in the same gathering write as the data. This avoids creating
+    // a new String per transfer and a separate socket write just for the header. Up to two WRITE
+    // commands can be sent at the same time when the data wraps around the end of a buffered file.
+    private static final byte WRITE_PREFIX[] = "WRITE ".getBytes(Config.STD_BYTE);
+    private final byte headerDigits[] = new byte[20];
+    private final ByteBuffer writeHeaders[] = new ByteBuffer[] {
+            ByteBuffer.allocateDirect(64),
+            ByteBuffer.allocateDirect(64)
+    };
+    private final ByteBuffer writeVector[] = new ByteBuffer[4];
+
     /**
      * Performs all of the steps needed to start uploading to the SageTV server.
      *
@@ -296,6 +308,55 @@ public class NIOSageTVMediaServer {
         upload(autoOffset, byteBuffer);
     }
 
+    /**
+     * Uploads all of the contents of two buffers with one WRITE to an automatically incrementing
+     * offset.
+     * <p/>
+     * This is used to send data that wraps around the end of a ring buffer without copying it
+     * into one buffer first. The header and both buffers are sent in one gathering write.
+     *
+     * @param byteBuffer This is the first buffer that will be written in it's entirety.
+     * @param byteBuffer2 This is the buffer that will be written after the first buffer in it's
+     *                    entirety. If this is <i>null</i>, only the first buffer is uploaded.
+     * @throws IOException If there was a problem writing the bytes to the to the SageTV server
+     *                     socket.
+     */
+    public void uploadAutoIncrement(ByteBuffer byteBuffer, ByteBuffer byteBuffer2) throws IOException {
+        if (byteBuffer2 == null) {
+            upload(autoOffset, byteBuffer);
+            return;
+        }
+
+        synchronized (uploadLock) {
+            if (socketChannel == null || !socketChannel.isConnected()) {
+                logger.warn("Unable to send WRITE because the socket has not been initialized.");
+                throw new IOException("The socket is not available.");
+            }
+
+            int transferBytes = byteBuffer.remaining() + byteBuffer2.remaining();
+
+            writeVector[0] = encodeWriteHeader(writeHeaders[0], autoOffset, transferBytes);
+            writeVector[1] = byteBuffer;
+            writeVector[2] = byteBuffer2;
+
+            long remainingBytes = writeVector[0].remaining() + transferBytes;
+
+            try {
+                while (remainingBytes > 0 && !Thread.currentThread().isInterrupted()) {
+                    long sentBytes = socketChannel.write(writeVector, 0, 3);
+                    remainingBytes -= sentBytes;
+                    logger.trace("Transferred {} stream bytes to SageTV server. {} bytes remaining.", sentBytes, remainingBytes);
+                }
+            } finally {
+                // Don't hold onto the caller's buffers.
+                writeVector[1] = null;
+                writeVector[2] = null;
+            }
+
+            autoOffset += transferBytes - (byteBuffer.remaining() + byteBuffer2.remaining());
+        }
+    }
+
     /**
      * Uploads all of the contents of the provided buffers to an automatic wrap around limit.
      *
@@ -307,11 +368,9 @@ public class NIOSageTVMediaServer {
         if (byteBuffer.remaining() > limit - autoOffset) {
             ByteBuffer slice = byteBuffer.slice();
             slice.limit((int) (limit - autoOffset));
-            upload(autoOffset, slice);
 
             byteBuffer.position((int) (byteBuffer.position() + (limit - autoOffset)));
-            autoOffset = 0;
-            upload(autoOffset, byteBuffer);
+            upload(autoOffset, slice, 0, byteBuffer);
         } else {
             upload(autoOffset, byteBuffer);
         }
@@ -326,18 +385,101 @@ public class NIOSageTVMediaServer {
      *                     socket.
      */
     public void upload(long offset, ByteBuffer byteBuffer) throws IOException {
+        upload(offset, byteBuffer, 0, null);
+    }
+
+    /**
+     * Uploads all of the contents of the provided buffers to two different offsets using a single
+     * gathering write.
+     * <p/>
+     * SageTV does not reply to WRITE, so both commands and their data are sent back to back without
+     * waiting.
+     *
+     * @param offset     Specify the offset to upload the first buffer to the remote file.
+     * @param byteBuffer This is the first buffer that will be written in it's entirety.
+     * @param offset2    Specify the offset to upload the second buffer to the remote file.
+     * @param byteBuffer2 This is the second buffer that will be written in it's entirety. If this
+     *                    is <i>null</i>, only the first buffer is uploaded.
+     * @throws IOException If there was a problem writing the bytes to the to the SageTV server
+     *                     socket.
+     */
+    public void upload(long offset, ByteBuffer byteBuffer, long offset2, ByteBuffer byteBuffer2) throws IOException {
         synchronized (uploadLock) {
+            if (socketChannel == null || !socketChannel.isConnected()) {
+                logger.warn("Unable to send WRITE because the socket has not been initialized.");
+                throw new IOException("The socket is not available.");
+            }
 
             int transferBytes = byteBuffer.remaining();
+            int transferBytes2 = byteBuffer2 != null ? byteBuffer2.remaining() : 0;
+            int vectorLength = 2;
+
+            writeVector[0] = encodeWriteHeader(writeHeaders[0], offset, transferBytes);
+            writeVector[1] = byteBuffer;
 
-            sendMessage("WRITE " + offset + " " + transferBytes);
-            while (byteBuffer.hasRemaining() && !Thread.currentThread().isInterrupted()) {
-                int sentBytes = socketChannel.write(byteBuffer);
-                logger.trace("Transferred {} stream bytes to SageTV server. {} bytes remaining.", sentBytes, byteBuffer.remaining());
+            if (byteBuffer2 != null) {
+                writeVector[2] = encodeWriteHeader(writeHeaders[1], offset2, transferBytes2);
+                writeVector[3] = byteBuffer2;
+                vectorLength = 4;
+            }
+
+            long remainingBytes = 0;
+            for (int i = 0; i < vectorLength; i++) {
+                remainingBytes += writeVector[i].remaining();
+            }
+
+            try {
+                while (remainingBytes > 0 && !Thread.currentThread().isInterrupted()) {
+                    long sentBytes = socketChannel.write(writeVector, 0, vectorLength);
+                    remainingBytes -= sentBytes;
+                    logger.trace("Transferred {} stream bytes to SageTV server. {} bytes remaining.", sentBytes, remainingBytes);
+                }
+            } finally {
+                // Don't hold onto the caller's buffers.
+                writeVector[1] = null;
+                writeVector[3] = null;
             }
 
             // This way you can alternate between overloads if somehow that's useful.
-            autoOffset = offset + (transferBytes - byteBuffer.remaining());
+            if (byteBuffer2 != null) {
+                autoOffset = offset2 + (transferBytes2 - byteBuffer2.remaining());
+            } else {
+                autoOffset = offset + (transferBytes - byteBuffer.remaining());
+            }
+        }
+    }
+
+    private ByteBuffer encodeWriteHeader(ByteBuffer header, long offset, int length) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending 'WRITE {} {}' to SageTV server...", offset, length);
+        }
+
+        header.clear();
+        header.put(WRITE_PREFIX);
+        putDecimal(header, offset);
+        header.put((byte) ' ');
+        putDecimal(header, length);
+        header.put((byte) '\r');
+        header.put((byte) '\n');
+        header.flip();
+
+        return header;
+    }
+
+    private void putDecimal(ByteBuffer header, long value) {
+        if (value == 0) {
+            header.put((byte) '0');
+            return;
+        }
+
+        int digits = 0;
+        while (value > 0) {
+            headerDigits[digits++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+
+        while (digits > 0) {
+            header.put(headerDigits[--digits]);
         }
     }
 
@@ -398,7 +540,7 @@ public class NIOSageTVMediaServer {
         logger.entry(message);
 
         if (socketChannel != null && socketChannel.isConnected()) {
-            if (message.startsWith("WRITE ") || message.equals("SIZE")) {
+            if (message.equals("SIZE")) {
                 logger.trace("Sending '{}' to SageTV server...", message);
             } else {
                 logger.info("Sending '{}' to SageTV server...", message);
@@ -22,6 +22,7 @@ public class NanoServlet extends RouterNanoHTTPD {
 
     public NanoServlet(int port) {
         super(port);
+        setAsyncRunner(new ThreadPoolAsyncRunner());
         addMappings();
     }
 
@@ -73,5 +74,14 @@ public class NanoServlet extends RouterNanoHTTPD {
         // GET: Get the properties for a discoverer or multiple discoverers
         // POST: Set the properties for a discoverer or multiple discoverers
         addRoute("/discovery/:discoverer", DiscovererJsonServlet.GetPost.class);
+
+        // GET: Get direct buffer pool usage and buffers that have not been returned
+        addRoute("/buffers", BuffersJsonServlet.List.class);
+
+        // GET: Get thread pool lane usage and task latency
+        addRoute("/threads", ThreadsJsonServlet.List.class);
+
+        // GET: Get running transcodes and recent transcode admission decisions
+        addRoute("/transcodes", TranscodesJsonServlet.List.class);
     }
 }
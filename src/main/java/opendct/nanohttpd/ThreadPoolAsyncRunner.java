@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd;
+
+import fi.iki.elonen.NanoHTTPD;
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs web requests on the background thread pool lane instead of a new thread per connection.
+ */
+public class ThreadPoolAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private static final Logger logger = LogManager.getLogger(ThreadPoolAsyncRunner.class);
+
+    private final List<NanoHTTPD.ClientHandler> running = new ArrayList<>();
+
+    @Override
+    public void closeAll() {
+        List<NanoHTTPD.ClientHandler> closing;
+
+        synchronized (running) {
+            closing = new ArrayList<>(running);
+        }
+
+        for (NanoHTTPD.ClientHandler clientHandler : closing) {
+            clientHandler.close();
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler clientHandler) {
+        synchronized (running) {
+            running.remove(clientHandler);
+        }
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler clientHandler) {
+        synchronized (running) {
+            running.add(clientHandler);
+        }
+
+        try {
+            ThreadPool.submit(ThreadPool.Lane.WEB, clientHandler, Thread.NORM_PRIORITY, "NanoHttpd", "Request");
+        } catch (RejectedExecutionException e) {
+            logger.warn("Too many web requests are in progress. Closing connection.");
+            closed(clientHandler);
+            clientHandler.close();
+        }
+    }
+}
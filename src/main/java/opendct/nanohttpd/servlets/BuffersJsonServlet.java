@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import opendct.consumer.buffers.DirectBufferPool;
+
+import java.util.Map;
+
+public class BuffersJsonServlet {
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public static class List extends RouterNanoHTTPD.DefaultHandler {
+        @Override
+        public String getText() {
+            JsonObject newObject = new JsonObject();
+
+            newObject.addProperty("allocatedBytes", DirectBufferPool.getAllocatedBytes());
+            newObject.addProperty("retainedBytes", DirectBufferPool.getRetainedBytes());
+            newObject.addProperty("acquires", DirectBufferPool.getAcquires());
+            newObject.addProperty("releases", DirectBufferPool.getReleases());
+            newObject.addProperty("poolHits", DirectBufferPool.getPoolHits());
+            newObject.addProperty("unknownReleases", DirectBufferPool.getUnknownReleases());
+
+            JsonArray sizeClasses = new JsonArray();
+            for (long sizeClass[] : DirectBufferPool.getSizeClassStatistics()) {
+                JsonObject sizeObject = new JsonObject();
+                sizeObject.addProperty("size", sizeClass[0]);
+                sizeObject.addProperty("outstanding", sizeClass[1]);
+                sizeObject.addProperty("free", sizeClass[2]);
+                sizeClasses.add(sizeObject);
+            }
+            newObject.add("sizeClasses", sizeClasses);
+
+            JsonArray outstanding = new JsonArray();
+            for (Map.Entry<String, long[]> entry : DirectBufferPool.getOutstandingByOwner().entrySet()) {
+                JsonObject ownerObject = new JsonObject();
+                ownerObject.addProperty("owner", entry.getKey());
+                ownerObject.addProperty("buffers", entry.getValue()[0]);
+                ownerObject.addProperty("bytes", entry.getValue()[1]);
+                ownerObject.addProperty("oldestMs", entry.getValue()[2]);
+                outstanding.add(ownerObject);
+            }
+            newObject.add("outstanding", outstanding);
+
+            return gson.toJson(newObject);
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/json";
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import opendct.util.ThreadPool;
+
+public class ThreadsJsonServlet {
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public static class List extends RouterNanoHTTPD.DefaultHandler {
+        @Override
+        public String getText() {
+            JsonArray lanes = new JsonArray();
+
+            for (ThreadPool.Lane lane : ThreadPool.Lane.values()) {
+                ThreadPool.LaneStatistics statistics = ThreadPool.getStatistics(lane);
+
+                JsonObject laneObject = new JsonObject();
+                laneObject.addProperty("name", statistics.name);
+                laneObject.addProperty("maxThreads", statistics.maxThreads);
+                laneObject.addProperty("maxQueue", statistics.maxQueue);
+                laneObject.addProperty("threads", statistics.threads);
+                laneObject.addProperty("largestThreads", statistics.largestThreads);
+                laneObject.addProperty("active", statistics.active);
+                laneObject.addProperty("queued", statistics.queued);
+                laneObject.addProperty("submitted", statistics.submitted);
+                laneObject.addProperty("completed", statistics.completed);
+                laneObject.addProperty("rejected", statistics.rejected);
+                laneObject.addProperty("averageQueueMs", statistics.averageQueueMs);
+                laneObject.addProperty("maxQueueMs", statistics.maxQueueMs);
+                laneObject.addProperty("averageRunMs", statistics.averageRunMs);
+                lanes.add(laneObject);
+            }
+
+            return gson.toJson(lanes);
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/json";
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
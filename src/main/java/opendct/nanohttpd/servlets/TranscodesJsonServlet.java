@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import opendct.video.ffmpeg.FFmpegTranscodeAdmission;
+import opendct.video.ffmpeg.FFmpegTranscoder;
+
+public class TranscodesJsonServlet {
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public static class List extends RouterNanoHTTPD.DefaultHandler {
+        @Override
+        public String getText() {
+            FFmpegTranscodeAdmission admission = FFmpegTranscoder.getAdmission();
+            JsonObject newObject = new JsonObject();
+
+            newObject.addProperty("weightLimit", admission.getWeightLimit());
+            newObject.addProperty("weightUsed", admission.getWeightUsed());
+            newObject.addProperty("cpuLoad", admission.getCpuLoad());
+
+            JsonArray jobs = new JsonArray();
+            for (FFmpegTranscodeAdmission.JobStatistics job : admission.getJobs()) {
+                JsonObject jobObject = new JsonObject();
+                jobObject.addProperty("name", job.name);
+                jobObject.addProperty("weight", job.weight);
+                jobObject.addProperty("startTime", job.startTime);
+                jobObject.addProperty("lagMs", job.lagMs);
+                jobs.add(jobObject);
+            }
+            newObject.add("jobs", jobs);
+
+            JsonArray decisions = new JsonArray();
+            for (FFmpegTranscodeAdmission.DecisionRecord decision : admission.getDecisions()) {
+                JsonObject decisionObject = new JsonObject();
+                decisionObject.addProperty("time", decision.time);
+                decisionObject.addProperty("name", decision.name);
+                decisionObject.addProperty("decision", decision.decision.toString());
+                decisionObject.addProperty("weight", decision.weight);
+                decisionObject.addProperty("cpuLoad", decision.cpuLoad);
+                decisionObject.addProperty("reason", decision.reason);
+                decisions.add(decisionObject);
+            }
+            newObject.add("decisions", decisions);
+
+            return gson.toJson(newObject);
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/json";
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.producer;
+
+import opendct.consumer.SageTVConsumer;
+import opendct.consumer.buffers.DirectBufferPool;
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes datagrams from a shared selector thread to a consumer without ever blocking the selector.
+ * <p/>
+ * The selector thread copies datagrams into a fixed number of preallocated slots. Full slots are
+ * written to the consumer by a task on the streaming thread pool that only runs while there is
+ * something to write, so a consumer that is slow to accept data only holds up its own producer.
+ * If the consumer falls so far behind that every slot is waiting to be written, new datagrams are
+ * dropped and counted instead of waiting.
+ */
+public class DatagramHandoff implements Runnable {
+    private final Logger logger = LogManager.getLogger(DatagramHandoff.class);
+
+    private final String name;
+    private final SageTVConsumer consumer;
+    private final ArrayBlockingQueue<ByteBuffer> freeSlots;
+    private final ArrayBlockingQueue<ByteBuffer> readySlots;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // Only the selector thread uses these.
+    private ByteBuffer fillSlot;
+    private boolean dropping;
+
+    private volatile boolean closed;
+    private final AtomicLong datagramsDropped = new AtomicLong(0);
+    private final AtomicLong bytesDropped = new AtomicLong(0);
+
+    /**
+     * Create a new handoff.
+     *
+     * @param name The name of the producer used for logging and the thread name.
+     * @param consumer The consumer to write to.
+     * @param slotCount The number of slots. This cannot be less than 2.
+     * @param slotSize The size of each slot in bytes. This cannot be less than the largest
+     *                 possible datagram.
+     */
+    public DatagramHandoff(String name, SageTVConsumer consumer, int slotCount, int slotSize) {
+        this.name = name;
+        this.consumer = consumer;
+
+        slotCount = Math.max(2, slotCount);
+        slotSize = Math.max(65536, slotSize);
+
+        freeSlots = new ArrayBlockingQueue<>(slotCount);
+        readySlots = new ArrayBlockingQueue<>(slotCount);
+
+        for (int i = 0; i < slotCount; i++) {
+            freeSlots.add(DirectBufferPool.acquire(slotSize, "DatagramHandoff"));
+        }
+    }
+
+    /**
+     * Copy a datagram into the current slot.
+     * <p/>
+     * This must only be called by the selector thread.
+     *
+     * @param datagram The datagram to copy from position to limit.
+     * @return <i>false</i> if the datagram was dropped.
+     */
+    public boolean put(ByteBuffer datagram) {
+        if (closed) {
+            discard();
+            return false;
+        }
+
+        if (fillSlot != null && fillSlot.remaining() < datagram.remaining()) {
+            queueFillSlot();
+        }
+
+        if (fillSlot == null) {
+            fillSlot = freeSlots.poll();
+
+            if (fillSlot == null) {
+                datagramsDropped.incrementAndGet();
+                bytesDropped.addAndGet(datagram.remaining());
+
+                if (!dropping) {
+                    logger.warn("The consumer for {} is not keeping up. Dropping datagrams.", name);
+                    dropping = true;
+                }
+
+                return false;
+            }
+
+            if (dropping) {
+                logger.warn("The consumer for {} is keeping up again. {} datagrams have been" +
+                        " dropped.", name, datagramsDropped.get());
+                dropping = false;
+            }
+
+            fillSlot.clear();
+        }
+
+        fillSlot.put(datagram);
+        return true;
+    }
+
+    /**
+     * Queue the current slot to be written to the consumer.
+     * <p/>
+     * This must only be called by the selector thread.
+     */
+    public void flush() {
+        if (closed) {
+            discard();
+            return;
+        }
+
+        if (fillSlot != null && fillSlot.position() > 0) {
+            queueFillSlot();
+        }
+
+        schedule();
+    }
+
+    /**
+     * Discard anything that hasn't been queued yet.
+     * <p/>
+     * This must only be called by the selector thread.
+     */
+    public void discard() {
+        if (fillSlot != null) {
+            fillSlot.clear();
+            freeSlots.offer(fillSlot);
+            fillSlot = null;
+        }
+
+        if (closed) {
+            releaseSlots();
+        }
+    }
+
+    /**
+     * Stop writing to the consumer. Anything not already written is discarded and the slots are
+     * returned to the buffer pool.
+     */
+    public void close() {
+        closed = true;
+        releaseSlots();
+    }
+
+    // A slot is only released while it is in a queue. A slot being filled or written when the
+    // handoff is closed is released by the thread that puts it back.
+    private void releaseSlots() {
+        ByteBuffer slot;
+
+        while ((slot = readySlots.poll()) != null) {
+            DirectBufferPool.release(slot);
+        }
+
+        while ((slot = freeSlots.poll()) != null) {
+            DirectBufferPool.release(slot);
+        }
+    }
+
+    private void queueFillSlot() {
+        fillSlot.flip();
+        // This can't fail because there are never more slots than the queue can hold.
+        readySlots.offer(fillSlot);
+        fillSlot = null;
+    }
+
+    private void schedule() {
+        if (readySlots.isEmpty() || !scheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            ThreadPool.submit(ThreadPool.Lane.STREAMING, this, Thread.MAX_PRIORITY - 1,
+                    "DatagramHandoff", name);
+        } catch (RejectedExecutionException e) {
+            // The slots are still queued, so the next flush will try again.
+            scheduled.set(false);
+            logger.warn("Unable to start writing to the consumer for {} => ", name, e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            ByteBuffer slot;
+
+            while ((slot = readySlots.poll()) != null) {
+                try {
+                    if (!closed) {
+                        consumer.write(slot);
+                    }
+                } catch (Exception e) {
+                    logger.error("Unable to write to the consumer for {} => ", name, e);
+                } finally {
+                    slot.clear();
+                    freeSlots.offer(slot);
+
+                    if (closed) {
+                        releaseSlots();
+                    }
+                }
+            }
+
+            scheduled.set(false);
+
+            // A slot could have been queued after the last poll and before scheduled was cleared.
+            if (readySlots.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return The number of datagrams dropped because the consumer wasn't keeping up.
+     */
+    public long getDatagramsDropped() {
+        return datagramsDropped.get();
+    }
+
+    /**
+     * @return The number of bytes dropped because the consumer wasn't keeping up.
+     */
+    public long getBytesDropped() {
+        return bytesDropped.get();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.producer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface DatagramReceiver {
+
+    /**
+     * Process one received datagram.
+     * <p/>
+     * This is always called from a selector thread that is shared with other producers, so it must
+     * never block. The buffer is re-used as soon as this method returns.
+     *
+     * @param datagram The datagram ready to be read from position to limit.
+     * @throws IOException If the data could not be handed to the consumer.
+     */
+    public void receive(ByteBuffer datagram) throws IOException;
+
+    /**
+     * Called after the last datagram that was available for this receiver during the current
+     * selection has been passed to <b>receive()</b>.
+     *
+     * @throws IOException If the data could not be handed to the consumer.
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Called if the channel for this receiver could not be read or registered. The channel has
+     * already been removed from the selector when this is called.
+     *
+     * @param e The exception that removed the channel from the selector.
+     */
+    public void receiveFailed(Exception e);
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.producer;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receives datagrams for any number of producers on a small fixed number of threads.
+ * <p/>
+ * Each thread owns one selector. When a channel is ready, all of the datagrams currently queued on
+ * that channel are read (up to a limit so one busy stream can't starve the others) and handed to
+ * the receiver that registered the channel. Receivers must not block, so they copy the data into
+ * a {@link DatagramHandoff} instead of writing to the consumer directly.
+ */
+public class DatagramSelectorPool {
+    private static final Logger logger = LogManager.getLogger(DatagramSelectorPool.class);
+
+    // The largest possible UDP payload. Since this buffer is shared by every channel on the
+    // selector, there is no reason to grow it on demand like the per-producer buffers.
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    // The longest a selector thread waits before trying again after select() fails.
+    private static final long MAX_SELECT_BACKOFF_MS = 1000;
+
+    private static final int selectorThreads =
+            Math.max(1, Config.getInteger("producer.nio.selector.threads", 1));
+
+    private static final int maxDatagramsPerSelect =
+            Math.max(1, Config.getInteger("producer.nio.selector.max_datagrams_per_select", 64));
+
+    private static final int selectorThreadPriority =
+            Math.max(
+                    Math.min(
+                            Config.getInteger("producer.nio.selector.thread_priority", Thread.MAX_PRIORITY - 1),
+                            Thread.MAX_PRIORITY
+                    ),
+                    Thread.MIN_PRIORITY
+            );
+
+    private static final Object startLock = new Object();
+    private static SelectorThread threads[];
+
+    /**
+     * Add a channel to one of the shared selectors.
+     * <p/>
+     * The channel will be put into non-blocking mode. To remove the channel, close it. The
+     * selector with the fewest registered channels is always selected.
+     *
+     * @param channel The bound datagram channel to receive from.
+     * @param receiver The receiver for all datagrams arriving on this channel.
+     * @throws IOException If the channel could not be configured or a selector could not be opened.
+     */
+    public static void register(DatagramChannel channel, DatagramReceiver receiver) throws IOException {
+        channel.configureBlocking(false);
+
+        SelectorThread selectorThread = getLeastLoaded();
+        selectorThread.pending.add(new Registration(channel, receiver));
+        selectorThread.selector.wakeup();
+    }
+
+    /**
+     * Wake up every selector so closed channels are removed promptly.
+     */
+    public static void wakeup() {
+        synchronized (startLock) {
+            if (threads == null) {
+                return;
+            }
+
+            for (SelectorThread thread : threads) {
+                thread.selector.wakeup();
+            }
+        }
+    }
+
+    public static int getRegisteredCount() {
+        int returnValue = 0;
+
+        synchronized (startLock) {
+            if (threads == null) {
+                return 0;
+            }
+
+            for (SelectorThread thread : threads) {
+                returnValue += thread.registered.get();
+            }
+        }
+
+        return returnValue;
+    }
+
+    private static SelectorThread getLeastLoaded() throws IOException {
+        synchronized (startLock) {
+            if (threads == null) {
+                SelectorThread newThreads[] = new SelectorThread[selectorThreads];
+
+                for (int i = 0; i < newThreads.length; i++) {
+                    newThreads[i] = new SelectorThread(Selector.open());
+                    Thread thread = new Thread(newThreads[i]);
+                    thread.setName("DatagramSelector-" + thread.getId() + ":" + i);
+                    thread.setPriority(selectorThreadPriority);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+
+                threads = newThreads;
+                logger.info("Started {} datagram selector thread(s).", threads.length);
+            }
+
+            SelectorThread returnValue = threads[0];
+
+            for (int i = 1; i < threads.length; i++) {
+                if (threads[i].registered.get() < returnValue.registered.get()) {
+                    returnValue = threads[i];
+                }
+            }
+
+            return returnValue;
+        }
+    }
+
+    private static class Registration {
+        private final DatagramChannel channel;
+        private final DatagramReceiver receiver;
+
+        private Registration(DatagramChannel channel, DatagramReceiver receiver) {
+            this.channel = channel;
+            this.receiver = receiver;
+        }
+    }
+
+    private static class SelectorThread implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger registered = new AtomicInteger(0);
+
+        private SelectorThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer datagramBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+            int selectFailures = 0;
+
+            while (true) {
+                try {
+                    selector.select();
+                    selectFailures = 0;
+                } catch (IOException e) {
+                    // An error that doesn't go away would otherwise keep this thread spinning.
+                    long backoffMs = Math.min(MAX_SELECT_BACKOFF_MS, 10L << Math.min(selectFailures, 10));
+                    selectFailures += 1;
+
+                    logger.error("Selector created an unexpected exception. Trying again in {}ms => ",
+                            backoffMs, e);
+
+                    try {
+                        Thread.sleep(backoffMs);
+                    } catch (InterruptedException e0) {
+                        logger.debug("Selector thread was interrupted while waiting to try again.");
+                    }
+
+                    continue;
+                }
+
+                Registration registration;
+                while ((registration = pending.poll()) != null) {
+                    try {
+                        registration.channel.register(selector, SelectionKey.OP_READ, registration.receiver);
+                        registered.incrementAndGet();
+                    } catch (ClosedChannelException e) {
+                        // The producer was stopped before the channel could be registered.
+                        logger.debug("Channel was closed before it could be registered.");
+                    } catch (Exception e) {
+                        logger.error("Unable to register channel => ", e);
+                        registration.receiver.receiveFailed(e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    DatagramReceiver receiver = (DatagramReceiver) key.attachment();
+
+                    try {
+                        for (int i = 0; i < maxDatagramsPerSelect; i++) {
+                            datagramBuffer.clear();
+
+                            if (channel.receive(datagramBuffer) == null) {
+                                break;
+                            }
+
+                            datagramBuffer.flip();
+                            receiver.receive(datagramBuffer);
+                        }
+
+                        receiver.flush();
+                    } catch (ClosedChannelException e) {
+                        logger.debug("Channel was closed while receiving.");
+                        key.cancel();
+                    } catch (Exception e) {
+                        logger.error("Receiver created an unexpected exception => ", e);
+                        key.cancel();
+                        receiver.receiveFailed(e);
+                    }
+                }
+
+                // Closed channels cancel their own keys, so the count is corrected here instead of
+                // requiring producers to explicitly unregister.
+                registered.set(selector.keys().size());
+            }
+        }
+    }
+}
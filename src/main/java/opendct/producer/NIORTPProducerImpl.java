@@ -18,6 +18,7 @@ package opendct.producer;
 
 import opendct.config.Config;
 import opendct.consumer.SageTVConsumer;
+import opendct.consumer.buffers.DirectBufferPool;
 import opendct.video.rtsp.rtp.RTPPacketProcessor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -40,7 +41,7 @@ public class NIORTPProducerImpl implements RTPProducer {
     private static final int RECEIVE_BUFFER_LIMIT = 5242880;
 
     private AtomicBoolean running = new AtomicBoolean(false);
-    private RTPPacketProcessor packetProcessor = new RTPPacketProcessor();
+    private final RTPPacketProcessor packetProcessor = new RTPPacketProcessor();
 
     private AtomicInteger packetsBadReceived = new AtomicInteger(0);
     private AtomicLong packetsReceived = new AtomicLong(0);
@@ -127,6 +128,26 @@ public class NIORTPProducerImpl implements RTPProducer {
         return packetProcessor.getMissedRTPPackets() + packetsBadReceived.get();
     }
 
+    public long getPacketsDuplicated() {
+        return packetProcessor.getPacketsDuplicated();
+    }
+
+    public long getPacketsReordered() {
+        return packetProcessor.getPacketsReordered();
+    }
+
+    public long getPacketsLate() {
+        return packetProcessor.getPacketsLate();
+    }
+
+    public long getSSRCChanges() {
+        return packetProcessor.getSSRCChanges();
+    }
+
+    public double getJitterMillis() {
+        return packetProcessor.getJitterMillis();
+    }
+
     public void stopProducing() {
         if (stop.getAndSet(true)) {
             return;
@@ -158,7 +179,7 @@ public class NIORTPProducerImpl implements RTPProducer {
         long timer = 0;
         int datagramSize;
 
-        ByteBuffer datagramBuffer = allocateDirect ? ByteBuffer.allocateDirect(receiveBufferSize) : ByteBuffer.allocate(receiveBufferSize);
+        ByteBuffer datagramBuffer = allocateDirect ? DirectBufferPool.acquire(receiveBufferSize, "NIORTPProducerImpl") : ByteBuffer.allocate(receiveBufferSize);
         ByteBuffer doubleBuffer = null;
 
         while (!stop.get()) {
@@ -207,7 +228,7 @@ public class NIORTPProducerImpl implements RTPProducer {
                             timer = System.currentTimeMillis() - timer;
                             if (timer > 5 && doubleBuffer == null) {
                                 logger.info("High transfer latency detected. Double buffer enabled. {}ms",  timer);
-                                doubleBuffer = ByteBuffer.allocateDirect(Math.max((receiveBufferSize * 2) + 1, 32768));
+                                doubleBuffer = DirectBufferPool.acquire(Math.max((receiveBufferSize * 2) + 1, 32768), "NIORTPProducerImpl");
                                 doubleBuffer.clear();
                                 logTiming = false;
                             }
@@ -225,16 +246,20 @@ public class NIORTPProducerImpl implements RTPProducer {
                                 if (doubleBuffer != null) {
                                     doubleBuffer.flip();
                                     sageTVConsumer.write(doubleBuffer);
-                                    doubleBuffer = ByteBuffer.allocateDirect(doubleBuffer.capacity() * 2);
+                                    int newCapacity = doubleBuffer.capacity() * 2;
+                                    DirectBufferPool.release(doubleBuffer);
+                                    doubleBuffer = DirectBufferPool.acquire(newCapacity, "NIORTPProducerImpl");
                                     doubleBuffer.clear();
                                 }
 
-                                datagramBuffer = allocateDirect ? ByteBuffer.allocateDirect(receiveBufferSize) : ByteBuffer.allocate(receiveBufferSize);
+                                DirectBufferPool.release(datagramBuffer);
+                                datagramBuffer = allocateDirect ? DirectBufferPool.acquire(receiveBufferSize, "NIORTPProducerImpl") : ByteBuffer.allocate(receiveBufferSize);
                                 Config.setInteger("producer.rtp.nio.internal_udp_receive_buffer", receiveBufferSize);
                                 logger.warn("The datagram buffer is at its limit. Data may have been lost. Increased buffer capacity to {} bytes.", datagramBuffer.limit());
                             } else {
                                 if (!(receiveBufferSize == RECEIVE_BUFFER_LIMIT)) {
-                                    datagramBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_LIMIT);
+                                    DirectBufferPool.release(datagramBuffer);
+                                    datagramBuffer = DirectBufferPool.acquire(RECEIVE_BUFFER_LIMIT, "NIORTPProducerImpl");
                                     Config.setInteger("producer.rtp.nio.internal_udp_receive_buffer", receiveBufferSize);
                                 }
                                 logger.warn("The datagram buffer is at its limit. Data may have been lost. Buffer increase capacity limit reached at {} bytes.", datagramBuffer.limit());
@@ -269,6 +294,9 @@ public class NIORTPProducerImpl implements RTPProducer {
             }
         }
 
+        DirectBufferPool.release(datagramBuffer);
+        DirectBufferPool.release(doubleBuffer);
+
         logger.info("Producer thread has stopped.");
 
         running.set(false);
@@ -18,6 +18,7 @@ package opendct.producer;
 
 import opendct.config.Config;
 import opendct.consumer.SageTVConsumer;
+import opendct.consumer.buffers.DirectBufferPool;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -157,7 +158,7 @@ public class NIOUDPProducerImpl implements UDPProducer {
         long timer = 0;
         int datagramSize;
 
-        ByteBuffer datagramBuffer = allocateDirect ? ByteBuffer.allocateDirect(receiveBufferSize) : ByteBuffer.allocate(receiveBufferSize);
+        ByteBuffer datagramBuffer = allocateDirect ? DirectBufferPool.acquire(receiveBufferSize, "NIOUDPProducerImpl") : ByteBuffer.allocate(receiveBufferSize);
         ByteBuffer doubleBuffer = null;
 
         while (!stop.get()) {
@@ -202,7 +203,7 @@ public class NIOUDPProducerImpl implements UDPProducer {
                             timer = System.currentTimeMillis() - timer;
                             if (timer > 5 && doubleBuffer == null) {
                                 logger.info("High transfer latency detected. Double buffer enabled. {}ms",  timer);
-                                doubleBuffer = ByteBuffer.allocateDirect(Math.max((receiveBufferSize * 2) + 1, 32768));
+                                doubleBuffer = DirectBufferPool.acquire(Math.max((receiveBufferSize * 2) + 1, 32768), "NIOUDPProducerImpl");
                                 doubleBuffer.clear();
                                 logTiming = false;
                             }
@@ -220,16 +221,20 @@ public class NIOUDPProducerImpl implements UDPProducer {
                                 if (doubleBuffer != null) {
                                     doubleBuffer.flip();
                                     sageTVConsumer.write(doubleBuffer);
-                                    doubleBuffer = ByteBuffer.allocateDirect(doubleBuffer.capacity() * 2);
+                                    int newCapacity = doubleBuffer.capacity() * 2;
+                                    DirectBufferPool.release(doubleBuffer);
+                                    doubleBuffer = DirectBufferPool.acquire(newCapacity, "NIOUDPProducerImpl");
                                     doubleBuffer.clear();
                                 }
 
-                                datagramBuffer = allocateDirect ? ByteBuffer.allocateDirect(receiveBufferSize) : ByteBuffer.allocate(receiveBufferSize);
+                                DirectBufferPool.release(datagramBuffer);
+                                datagramBuffer = allocateDirect ? DirectBufferPool.acquire(receiveBufferSize, "NIOUDPProducerImpl") : ByteBuffer.allocate(receiveBufferSize);
                                 Config.setInteger("producer.udp.nio.internal_udp_receive_buffer", receiveBufferSize);
                                 logger.warn("The datagram buffer is at its limit. Data may have been lost. Increased buffer capacity to {} bytes.", datagramBuffer.limit());
                             } else {
                                 if (!(receiveBufferSize == RECEIVE_BUFFER_LIMIT)) {
-                                    datagramBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_LIMIT);
+                                    DirectBufferPool.release(datagramBuffer);
+                                    datagramBuffer = DirectBufferPool.acquire(RECEIVE_BUFFER_LIMIT, "NIOUDPProducerImpl");
                                     Config.setInteger("producer.udp.nio.internal_udp_receive_buffer", receiveBufferSize);
                                 }
                                 logger.warn("The datagram buffer is at its limit. Data may have been lost. Buffer increase capacity limit reached at {} bytes.", datagramBuffer.limit());
@@ -265,6 +270,9 @@ public class NIOUDPProducerImpl implements UDPProducer {
             }
         }
 
+        DirectBufferPool.release(datagramBuffer);
+        DirectBufferPool.release(doubleBuffer);
+
         logger.info("Producer thread has stopped.");
 
         running.set(false);
@@ -41,4 +41,29 @@ public interface RTPProducer extends SageTVProducer {
      * Returns the IP address this producer is listening to.
      */
     public InetAddress getRemoteIPAddress();
+
+    /**
+     * Returns the number of RTP packets that were received more than once.
+     */
+    public long getPacketsDuplicated();
+
+    /**
+     * Returns the number of RTP packets that arrived out of order, but in time to fill their gap.
+     */
+    public long getPacketsReordered();
+
+    /**
+     * Returns the number of RTP packets that arrived too far out of order to be used.
+     */
+    public long getPacketsLate();
+
+    /**
+     * Returns the number of times the RTP source (SSRC) has changed.
+     */
+    public long getSSRCChanges();
+
+    /**
+     * Returns the current RTP interarrival jitter in milliseconds.
+     */
+    public double getJitterMillis();
 }
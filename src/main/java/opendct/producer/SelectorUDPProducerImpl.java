@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.producer;
+
+import opendct.config.Config;
+import opendct.consumer.SageTVConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP producer that does not have a thread of its own.
+ * <p/>
+ * <b>run()</b> registers the datagram channel with the shared {@link DatagramSelectorPool} and
+ * returns immediately. The producer is considered running until <b>stopProducing()</b> is called.
+ * All of the payloads received during one selection are collected and handed to a
+ * {@link DatagramHandoff} so a slow consumer never holds up the selector.
+ * <p/>
+ * This producer is not used unless it is selected with the producer property of a capture device.
+ */
+public class SelectorUDPProducerImpl implements UDPProducer, DatagramReceiver {
+    private final Logger logger = LogManager.getLogger(SelectorUDPProducerImpl.class);
+
+    private AtomicBoolean running = new AtomicBoolean(false);
+
+    private AtomicInteger packetsLost = new AtomicInteger(0);
+    private AtomicLong packetsReceived = new AtomicLong(0);
+    private int localPort = 0;
+
+    private final int nativeReceiveBufferSize =
+            Config.getInteger("producer.udp.selector.native_udp_receive_buffer", 5312000);
+    private final int handoffSlotSize =
+            Config.getInteger("producer.udp.selector.batch_buffer", 131072);
+    private final int handoffSlots =
+            Config.getInteger("producer.udp.selector.handoff_slots", 4);
+    private volatile DatagramHandoff handoff = null;
+
+    private InetAddress remoteIPAddress = null;
+    private volatile DatagramChannel datagramChannel = null;
+    private AtomicBoolean stop = new AtomicBoolean(false);
+
+    private SageTVConsumer sageTVConsumer = null;
+
+    public synchronized void setStreamingSocket(InetAddress streamRemoteIP, int streamLocalPort) throws IOException {
+        logger.entry(streamRemoteIP, streamLocalPort);
+        if (running.getAndSet(true)) {
+            throw new IOException("The IP address and port for UDP producer cannot be changed while the thread is running.");
+        }
+
+        this.localPort = streamLocalPort;
+        this.remoteIPAddress = streamRemoteIP;
+
+        openStreamingSocket();
+
+        logger.exit();
+    }
+
+    public synchronized void openStreamingSocket() throws IOException {
+        try {
+            datagramChannel = DatagramChannel.open();
+            datagramChannel.socket().bind(new InetSocketAddress(this.localPort));
+            datagramChannel.socket().setBroadcast(false);
+            datagramChannel.socket().setReceiveBufferSize(nativeReceiveBufferSize);
+
+            // In case 0 was used and a port was automatically chosen.
+            this.localPort = datagramChannel.socket().getLocalPort();
+        } catch (IOException e) {
+            if (datagramChannel != null) {
+                try {
+                    datagramChannel.close();
+                    datagramChannel.socket().close();
+                } catch (IOException e0) {
+                    logger.debug("Producer created an exception while closing the datagram channel => ", e0);
+                }
+            }
+
+            throw e;
+        }
+    }
+
+    public boolean getIsRunning() {
+        return running.get();
+    }
+
+    public synchronized void setConsumer(SageTVConsumer sageTVConsumer) throws IOException {
+        if (running.get()) {
+            throw new IOException("The consumer cannot be changed while the thread is running.");
+        }
+
+        this.sageTVConsumer = sageTVConsumer;
+    }
+
+    @Override
+    public int getPacketsLost() {
+        DatagramHandoff currentHandoff = handoff;
+
+        return packetsLost.intValue() +
+                (currentHandoff != null ? (int) currentHandoff.getDatagramsDropped() : 0);
+    }
+
+    public void stopProducing() {
+        if (stop.getAndSet(true)) {
+            return;
+        }
+
+        closeChannel();
+        DatagramSelectorPool.wakeup();
+
+        DatagramHandoff currentHandoff = handoff;
+        if (currentHandoff != null) {
+            currentHandoff.close();
+        }
+
+        logger.info("Producer has stopped.");
+
+        running.set(false);
+        stop.set(false);
+    }
+
+    private void closeChannel() {
+        DatagramChannel channel = datagramChannel;
+
+        if (channel != null) {
+            try {
+                channel.close();
+                // The datagram channel doesn't seem to close the socket every time.
+                channel.socket().close();
+            } catch (Exception e) {
+                logger.debug("Producer created an exception while closing the datagram channel => {}", e.getMessage());
+            }
+        }
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public InetAddress getRemoteIPAddress() {
+        return remoteIPAddress;
+    }
+
+    public void run() {
+        handoff = new DatagramHandoff(SelectorUDPProducerImpl.class.getSimpleName() + "-" + localPort,
+                sageTVConsumer, handoffSlots, handoffSlotSize);
+
+        try {
+            DatagramSelectorPool.register(datagramChannel, this);
+            logger.info("Producer is registered with the datagram selector.");
+        } catch (IOException e) {
+            logger.error("Unable to register the producer with the datagram selector => ", e);
+            closeChannel();
+            running.set(false);
+        }
+    }
+
+    @Override
+    public void receive(ByteBuffer datagram) throws IOException {
+        int datagramSize = datagram.remaining();
+
+        packetsReceived.addAndGet(1);
+
+        //Copying and queuing bad packets wastes resources.
+        if (datagramSize < 188) {
+            packetsLost.addAndGet(1);
+            logger.warn("Bad UDP packet size: {}", datagramSize);
+            return;
+        }
+
+        handoff.put(datagram);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        handoff.flush();
+    }
+
+    @Override
+    public void receiveFailed(Exception e) {
+        handoff.discard();
+
+        if (stop.get() || !running.get()) {
+            return;
+        }
+
+        logger.warn("Producer was removed from the datagram selector. Re-opening socket.");
+
+        closeChannel();
+
+        try {
+            openStreamingSocket();
+            DatagramSelectorPool.register(datagramChannel, this);
+        } catch (IOException e0) {
+            logger.error("Unable to re-open the socket => ", e0);
+            running.set(false);
+        }
+    }
+
+    public long getPackets() {
+        return packetsReceived.get();
+    }
+}
@@ -16,13 +16,22 @@
 
 package opendct.sagetv;
 
+import opendct.capture.BasicCaptureDevice;
 import opendct.capture.CaptureDevice;
+import opendct.capture.HDHRNativeCaptureDevice;
+import opendct.channel.ChannelManager;
+import opendct.channel.TVChannel;
 import opendct.config.Config;
+import opendct.consumer.DynamicConsumerImpl;
+import opendct.consumer.RawSageTVConsumerImpl;
+import opendct.consumer.SageTVConsumer;
+import opendct.util.ThreadPool;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class SageTVPoolManager  {
@@ -47,7 +56,30 @@ public class SageTVPoolManager  {
     private static final Map<String, ArrayList<String>> poolNameToPoolCaptureDevices = new HashMap<>();
     private static final Map<String, String> vCaptureDeviceToPoolName = new HashMap<>();
 
+    // Recordings that are using the stream of a pool capture device already tuned to the same
+    // channel instead of a pool capture device of their own. Pool capture devices that SageTV
+    // has stopped, but are still providing a stream to one of these recordings are kept in
+    // releasedPoolCaptureDevices until the last recording stops. Pool capture devices that are
+    // being stopped outside of the lock are kept in stoppingPoolCaptureDevices so they can't be
+    // shared again. These are only accessed while synchronized on this class.
+    private static final Map<String, SageTVSharedRecording> vCaptureDeviceToSharedRecording = new HashMap<>();
+    private static final Set<String> releasedPoolCaptureDevices = new HashSet<>();
+    private static final Set<String> stoppingPoolCaptureDevices = new HashSet<>();
+
+    // Pool capture devices tuned to the channel a virtual capture device watching live TV is
+    // expected to change to next and the last two channels each virtual capture device watched.
+    // These are only accessed within synchronized methods.
+    private static final Map<String, SageTVPreTune> vCaptureDeviceToPreTune = new HashMap<>();
+    private static final Map<String, String> vCaptureDeviceToLiveChannel = new HashMap<>();
+    private static final Map<String, String> vCaptureDeviceToPreviousLiveChannel = new HashMap<>();
+
     private static boolean usePools = Config.getBoolean("pool.enabled", false);
+    // Only pool capture devices whose consumer for the channel is the raw consumer, either directly
+    // or selected by the dynamic consumer, can be shared. With the default dynamic consumer mapping
+    // every channel to the FFmpeg consumer, nothing is ever shared.
+    private static boolean shareChannels = Config.getBoolean("pool.share_channel", true);
+    private static boolean preTuneChannels = Config.getBoolean("pool.pretune", false);
+    private static long preTuneTimeout = Config.getInteger("pool.pretune_timeout_s", 300) * 1000L;
 
     /**
      * Finds the best available capture device in the pool, locks it and puts it on the map, then
@@ -60,7 +92,33 @@ public class SageTVPoolManager  {
      * @param vCaptureDevice The name of the virtual capture device.
      * @return The name of the pool capture device or <i>null</i> if no device is available.
      */
-    public static synchronized String getAndLockBestCaptureDevice(String vCaptureDevice) {
+    public static String getAndLockBestCaptureDevice(String vCaptureDevice) {
+        SageTVPreTune stopPreTune[] = new SageTVPreTune[1];
+
+        while (true) {
+            stopPreTune[0] = null;
+            String poolCaptureDevice = lockBestCaptureDevice(vCaptureDevice, stopPreTune);
+
+            if (stopPreTune[0] == null) {
+                return poolCaptureDevice;
+            }
+
+            // An idle pre-tune was given up so its capture device can be used. It's stopped
+            // without holding the lock so other requests don't wait on the capture device.
+            stopPreTuneCaptureDevice(stopPreTune[0]);
+        }
+    }
+
+    /**
+     * Finds the best available capture device in the pool and locks it.
+     *
+     * @param vCaptureDevice The name of the virtual capture device.
+     * @param stopPreTune Set to a pre-tune that was cancelled so its capture device can be used.
+     *                    The capture device must be stopped after the lock is released and then
+     *                    this method needs to be called again.
+     * @return The name of the pool capture device or <i>null</i> if no device is available.
+     */
+    private static synchronized String lockBestCaptureDevice(String vCaptureDevice, SageTVPreTune stopPreTune[]) {
 
         long startTime = System.currentTimeMillis();
 
@@ -171,6 +229,14 @@ public class SageTVPoolManager  {
                 return null;
             }
 
+            // A capture device that is only tuned in case a channel is changed is given up before
+            // taking a capture device that might be in use by something else.
+            stopPreTune[0] = cancelIdlePreTune(poolCaptureDevices);
+
+            if (stopPreTune[0] != null) {
+                return null;
+            }
+
             // If we can't find a device that's not locked, then we need to use one that is.
             for (CaptureDevice captureDevice : externalLocked) {
                 if (captureDevice.isInternalLocked()) {
@@ -237,6 +303,550 @@ public class SageTVPoolManager  {
 
     }
 
+    /**
+     * Finds a pool capture device that is already recording a channel and creates a recording
+     * that uses its stream instead of locking another pool capture device.
+     * <p/>
+     * Only capture devices in the same pool as the virtual capture device using the raw consumer
+     * can be shared. This includes the raw consumer when it is selected by the dynamic consumer,
+     * but not the FFmpeg consumer the dynamic consumer selects by default. A capture device streaming every program on a frequency can also be shared
+     * by any other channel on that frequency. The returned recording has not been started yet.
+     *
+     * @param vCaptureDevice The name of the virtual capture device.
+     * @param channel The channel to be recorded.
+     * @return A new shared recording or <i>null</i> if nothing is recording the channel.
+     */
+    public static SageTVSharedRecording getAndShareCaptureDevice(String vCaptureDevice, String channel) {
+        if (!usePools || !shareChannels || Util.isNullOrEmpty(channel)) {
+            return null;
+        }
+
+        // SageTV didn't send STOP for the last recording.
+        stopSharedRecording(vCaptureDevice);
+
+        return shareCaptureDevice(vCaptureDevice, channel);
+    }
+
+    private static synchronized SageTVSharedRecording shareCaptureDevice(String vCaptureDevice, String channel) {
+        // This virtual capture device already has a pool capture device of its own.
+        if (getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice) != null) {
+            return null;
+        }
+
+        final String poolName = getVCaptureDeviceToPoolName(vCaptureDevice);
+
+        if (poolName == null) {
+            return null;
+        }
+
+        final ArrayList<String> poolCaptureDevices = getPoolNameToPoolCaptureDevices(poolName);
+
+        if (poolCaptureDevices == null) {
+            return null;
+        }
+
+        for (String poolCaptureDevice : poolCaptureDevices) {
+            CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(poolCaptureDevice, false);
+
+            if (captureDevice == null || !captureDevice.isInternalLocked() ||
+                    stoppingPoolCaptureDevices.contains(poolCaptureDevice)) {
+
+                continue;
+            }
+
+            RawSageTVConsumerImpl consumer = getRawConsumer(captureDevice);
+
+            if (consumer == null || !consumer.getIsRunning()) {
+                continue;
+            }
+
+            SageTVPreTune preTune = getPreTune(captureDevice);
+
+            if (preTune != null && preTune.getState() != SageTVPreTune.State.READY) {
+                continue;
+            }
+
+            // The consumer of a capture device streaming a full frequency removes the other
+            // programs, but the shared stream still has all of them.
+            int program = consumer.getProgramFilter();
+
+            if (!channel.equals(captureDevice.getLastChannel())) {
+                program = getMuxProgram(captureDevice, channel);
+
+                if (program <= 0) {
+                    continue;
+                }
+            }
+
+            SageTVSharedRecording sharedRecording = new SageTVSharedRecording(
+                    vCaptureDevice, captureDevice, consumer, channel, program);
+
+            vCaptureDeviceToSharedRecording.put(vCaptureDevice, sharedRecording);
+
+            if (preTune != null) {
+                // Nothing else owns the capture device, so it is stopped when the last shared
+                // recording stops.
+                vCaptureDeviceToPreTune.remove(preTune.getVCaptureDevice());
+                preTune.setState(SageTVPreTune.State.CLAIMED);
+                preTune.interrupt();
+                releasedPoolCaptureDevices.add(captureDevice.getEncoderName());
+
+                logger.info("'{}' pool capture device was pre-tuned to channel {} for virtual capture device '{}'.",
+                        poolCaptureDevice, preTune.getChannel(), vCaptureDevice);
+            }
+
+            logger.info("'{}' pool capture device is already on channel {} and will be shared with virtual capture device '{}' for channel {}.",
+                    poolCaptureDevice, captureDevice.getLastChannel(), vCaptureDevice, channel);
+
+            return sharedRecording;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the program of a channel if a capture device is streaming the frequency of the channel.
+     *
+     * @param captureDevice The capture device to check.
+     * @param channel The channel to be recorded.
+     * @return The program number or 0 if the channel is not on the frequency being streamed.
+     */
+    private static int getMuxProgram(CaptureDevice captureDevice, String channel) {
+        if (!(captureDevice instanceof HDHRNativeCaptureDevice) ||
+                !((HDHRNativeCaptureDevice) captureDevice).isStreamingFullMux()) {
+
+            return 0;
+        }
+
+        TVChannel tvChannel = ChannelManager.getChannel(captureDevice.getChannelLineup(), channel);
+
+        if (tvChannel == null || tvChannel.getProgram() <= 0 ||
+                tvChannel.getFrequency() != ((HDHRNativeCaptureDevice) captureDevice).getMuxFrequency()) {
+
+            return 0;
+        }
+
+        return tvChannel.getProgram();
+    }
+
+    /**
+     * Returns the shared recording for a virtual capture device.
+     *
+     * @param vCaptureDevice The name of the virtual capture device.
+     * @return The shared recording or <i>null</i> if the virtual capture device is not sharing a
+     *         pool capture device.
+     */
+    public static synchronized SageTVSharedRecording getSharedRecording(String vCaptureDevice) {
+        return vCaptureDeviceToSharedRecording.get(vCaptureDevice);
+    }
+
+    /**
+     * Stops the shared recording for a virtual capture device.
+     * <p/>
+     * If the pool capture device providing the stream was already stopped by SageTV and no other
+     * recordings are using it, it is stopped and unlocked.
+     * <p/>
+     * The recording and capture device are only removed from the pool while it's locked. They are
+     * stopped after the lock is released so other requests don't wait on the capture device.
+     *
+     * @param vCaptureDevice The name of the virtual capture device.
+     * @return <i>true</i> if the virtual capture device had a shared recording.
+     */
+    public static boolean stopSharedRecording(String vCaptureDevice) {
+        SageTVSharedRecording sharedRecording;
+        CaptureDevice stopCaptureDevice = null;
+
+        synchronized (SageTVPoolManager.class) {
+            sharedRecording = vCaptureDeviceToSharedRecording.remove(vCaptureDevice);
+
+            if (sharedRecording == null) {
+                return false;
+            }
+
+            CaptureDevice captureDevice = sharedRecording.getCaptureDevice();
+
+            if (releasedPoolCaptureDevices.contains(captureDevice.getEncoderName()) &&
+                    !isShared(captureDevice)) {
+
+                releasedPoolCaptureDevices.remove(captureDevice.getEncoderName());
+
+                // The capture device stays locked until it's stopped. This keeps new recordings
+                // from sharing it in the meantime.
+                stoppingPoolCaptureDevices.add(captureDevice.getEncoderName());
+                stopCaptureDevice = captureDevice;
+            }
+        }
+
+        sharedRecording.stopEncoding();
+
+        if (stopCaptureDevice != null) {
+            try {
+                stopCaptureDevice.stopEncoding();
+                stopCaptureDevice.setLocked(false);
+            } finally {
+                synchronized (SageTVPoolManager.class) {
+                    stoppingPoolCaptureDevices.remove(stopCaptureDevice.getEncoderName());
+                }
+            }
+
+            logger.info("'{}' pool capture device is no longer shared and has been stopped.",
+                    stopCaptureDevice.getEncoderName());
+        }
+
+        return true;
+    }
+
+    /**
+     * Keeps a pool capture device streaming after SageTV stops it if other recordings are still
+     * using its stream.
+     * <p/>
+     * The output of the consumer is closed and the capture device stays locked until the last
+     * shared recording is stopped.
+     *
+     * @param captureDevice The pool capture device SageTV is stopping.
+     * @return <i>true</i> if the capture device is still in use and must not be stopped.
+     */
+    public static synchronized boolean releaseSharedCaptureDevice(CaptureDevice captureDevice) {
+        if (!isShared(captureDevice)) {
+            return false;
+        }
+
+        RawSageTVConsumerImpl consumer = getRawConsumer(captureDevice);
+
+        if (consumer == null) {
+            return false;
+        }
+
+        consumer.detachOutput();
+        releasedPoolCaptureDevices.add(captureDevice.getEncoderName());
+
+        logger.info("'{}' pool capture device was stopped, but is still being shared.",
+                captureDevice.getEncoderName());
+
+        return true;
+    }
+
+    /**
+     * Tunes an idle pool capture device to the channel a virtual capture device watching live TV
+     * is expected to change to next.
+     * <p/>
+     * This should be called after a live TV recording has started. If the next request for the
+     * virtual capture device is for the predicted channel, the recording will share the stream
+     * that's already tuned. Capture devices are only used if they are not doing anything else and
+     * they are given up as soon as a capture device is needed for anything else. Only a raw
+     * consumer can be shared, so capture devices that would use any other consumer for the channel
+     * are never pre-tuned.
+     *
+     * @param vCaptureDevice The name of the virtual capture device.
+     * @param channel The channel that was just started.
+     */
+    public static void preTuneNextChannel(String vCaptureDevice, String channel) {
+        if (!usePools || !shareChannels || !preTuneChannels || Util.isNullOrEmpty(channel)) {
+            return;
+        }
+
+        SageTVPreTune stopPreTune[] = new SageTVPreTune[1];
+
+        preTuneNextChannel(vCaptureDevice, channel, stopPreTune);
+
+        // The last pre-tune is stopped without holding the lock.
+        if (stopPreTune[0] != null) {
+            stopPreTuneCaptureDevice(stopPreTune[0]);
+        }
+    }
+
+    private static synchronized void preTuneNextChannel(String vCaptureDevice, String channel, SageTVPreTune stopPreTune[]) {
+
+        if (!channel.equals(vCaptureDeviceToLiveChannel.get(vCaptureDevice))) {
+            String previousChannel = vCaptureDeviceToLiveChannel.put(vCaptureDevice, channel);
+            vCaptureDeviceToPreviousLiveChannel.put(vCaptureDevice, previousChannel);
+        }
+
+        final String poolName = getVCaptureDeviceToPoolName(vCaptureDevice);
+        final ArrayList<String> poolCaptureDevices = poolName == null ?
+                null : getPoolNameToPoolCaptureDevices(poolName);
+
+        CaptureDevice recordingDevice = getLiveCaptureDevice(vCaptureDevice);
+
+        if (poolCaptureDevices == null || recordingDevice == null) {
+            return;
+        }
+
+        TVChannel tvChannels[] = ChannelManager.getChannelList(
+                recordingDevice.getChannelLineup(), false, false);
+        String channels[] = new String[tvChannels.length];
+
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = tvChannels[i].getChannel();
+        }
+
+        String nextChannel = SageTVPreTune.predictNextChannel(
+                channels, vCaptureDeviceToPreviousLiveChannel.get(vCaptureDevice), channel);
+
+        SageTVPreTune lastPreTune = vCaptureDeviceToPreTune.get(vCaptureDevice);
+
+        if (lastPreTune != null) {
+            if (lastPreTune.getChannel().equals(nextChannel)) {
+                return;
+            }
+
+            if (cancelPreTune(lastPreTune)) {
+                stopPreTune[0] = lastPreTune;
+            }
+        }
+
+        if (nextChannel == null) {
+            return;
+        }
+
+        BasicCaptureDevice idleDevice = null;
+
+        for (String poolCaptureDevice : poolCaptureDevices) {
+            CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(poolCaptureDevice, false);
+
+            if (captureDevice == null) {
+                continue;
+            }
+
+            if (captureDevice.isInternalLocked()) {
+                // The channel can already be shared with something that's recording it.
+                if (nextChannel.equals(captureDevice.getLastChannel()) &&
+                        getRawConsumer(captureDevice) != null) {
+
+                    return;
+                }
+
+                continue;
+            }
+
+            // Only a raw consumer can be shared, so any other consumer would tie up the capture
+            // device until the pre-tune times out.
+            if (idleDevice == null && captureDevice instanceof BasicCaptureDevice &&
+                    !captureDevice.isExternalLocked() &&
+                    usesRawConsumer((BasicCaptureDevice) captureDevice, nextChannel)) {
+
+                idleDevice = (BasicCaptureDevice) captureDevice;
+            }
+        }
+
+        if (idleDevice == null || !idleDevice.setLocked(true)) {
+            logger.debug("There are no idle pool capture devices using the raw consumer to pre-tune channel {} for virtual capture device '{}'.",
+                    nextChannel, vCaptureDevice);
+
+            return;
+        }
+
+        SageTVPreTune preTune = new SageTVPreTune(vCaptureDevice, idleDevice, nextChannel, preTuneTimeout);
+
+        try {
+            preTune.setFuture(ThreadPool.submit(ThreadPool.Lane.STREAMING, preTune,
+                    Thread.NORM_PRIORITY, "SageTVPreTune", idleDevice.getEncoderName()));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Unable to pre-tune channel {} => ", nextChannel, e);
+            idleDevice.setLocked(false);
+            return;
+        }
+
+        vCaptureDeviceToPreTune.put(vCaptureDevice, preTune);
+
+        logger.info("'{}' pool capture device is pre-tuning channel {} for virtual capture device '{}'.",
+                idleDevice.getEncoderName(), nextChannel, vCaptureDevice);
+    }
+
+    /**
+     * Called by a pre-tune when the capture device has finished tuning.
+     *
+     * @param preTune The pre-tune.
+     * @param success <i>true</i> if the channel was tuned.
+     * @return <i>true</i> if the pre-tune should wait to be used.
+     */
+    static boolean preTuneReady(SageTVPreTune preTune, boolean success) {
+        // If the pre-tune was cancelled while it was tuning, the capture device still needs to be
+        // stopped.
+        synchronized (SageTVPoolManager.class) {
+            if (preTune.getState() == SageTVPreTune.State.TUNING) {
+                if (success) {
+                    preTune.setState(SageTVPreTune.State.READY);
+                    return true;
+                }
+
+                logger.warn("'{}' pool capture device was unable to pre-tune channel {}.",
+                        preTune.getCaptureDevice().getEncoderName(), preTune.getChannel());
+
+                cancelPreTune(preTune);
+            }
+        }
+
+        stopPreTuneCaptureDevice(preTune);
+        return false;
+    }
+
+    /**
+     * Called by a pre-tune when nothing used the channel before the timeout.
+     *
+     * @param preTune The pre-tune.
+     */
+    static void preTuneExpired(SageTVPreTune preTune) {
+        synchronized (SageTVPoolManager.class) {
+            if (preTune.getState() != SageTVPreTune.State.READY) {
+                return;
+            }
+
+            logger.info("'{}' pool capture device was not used on the pre-tuned channel {}.",
+                    preTune.getCaptureDevice().getEncoderName(), preTune.getChannel());
+
+            cancelPreTune(preTune);
+        }
+
+        stopPreTuneCaptureDevice(preTune);
+    }
+
+    /**
+     * Cancels a pre-tune that has not been used.
+     * <p/>
+     * This must be called while holding the lock. The capture device is not stopped here because
+     * stopping it talks to the capture device and every other request would wait on it. If the
+     * capture device is still tuning, the pre-tune stops the capture device when it's done.
+     *
+     * @return <i>true</i> if the capture device has finished tuning and must be stopped with
+     *         <b>stopPreTuneCaptureDevice()</b> after the lock is released.
+     */
+    private static boolean cancelPreTune(SageTVPreTune preTune) {
+        if (vCaptureDeviceToPreTune.get(preTune.getVCaptureDevice()) == preTune) {
+            vCaptureDeviceToPreTune.remove(preTune.getVCaptureDevice());
+        }
+
+        SageTVPreTune.State lastState = preTune.getState();
+
+        if (lastState == SageTVPreTune.State.CLAIMED || lastState == SageTVPreTune.State.CANCELLED) {
+            return false;
+        }
+
+        preTune.setState(SageTVPreTune.State.CANCELLED);
+
+        if (lastState == SageTVPreTune.State.READY) {
+            preTune.interrupt();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Stops and unlocks the capture device of a cancelled pre-tune.
+     * <p/>
+     * This must not be called while holding the lock. The capture device stays locked until it is
+     * stopped, so nothing else can use it in the meantime.
+     */
+    private static void stopPreTuneCaptureDevice(SageTVPreTune preTune) {
+        CaptureDevice captureDevice = preTune.getCaptureDevice();
+
+        captureDevice.stopEncoding();
+        captureDevice.setLocked(false);
+    }
+
+    /**
+     * Cancels one pre-tune that has finished tuning and has not been used in a pool.
+     * <p/>
+     * This must be called while holding the lock.
+     *
+     * @param poolCaptureDevices The pool capture devices in the pool.
+     * @return The cancelled pre-tune that must be stopped with <b>stopPreTuneCaptureDevice()</b>
+     *         after the lock is released or <i>null</i> if there aren't any idle pre-tunes.
+     */
+    private static SageTVPreTune cancelIdlePreTune(ArrayList<String> poolCaptureDevices) {
+        for (SageTVPreTune preTune : vCaptureDeviceToPreTune.values()) {
+            if (preTune.getState() == SageTVPreTune.State.READY &&
+                    poolCaptureDevices.contains(preTune.getCaptureDevice().getEncoderName())) {
+
+                logger.info("'{}' pool capture device was pre-tuned to channel {}, but it is needed for something else.",
+                        preTune.getCaptureDevice().getEncoderName(), preTune.getChannel());
+
+                if (cancelPreTune(preTune)) {
+                    return preTune;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static SageTVPreTune getPreTune(CaptureDevice captureDevice) {
+        for (SageTVPreTune preTune : vCaptureDeviceToPreTune.values()) {
+            if (preTune.getCaptureDevice() == captureDevice) {
+                return preTune;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the capture device providing the stream for a virtual capture device.
+     */
+    private static CaptureDevice getLiveCaptureDevice(String vCaptureDevice) {
+        SageTVSharedRecording sharedRecording = vCaptureDeviceToSharedRecording.get(vCaptureDevice);
+
+        if (sharedRecording != null) {
+            return sharedRecording.getCaptureDevice();
+        }
+
+        String pCaptureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice);
+
+        return pCaptureDevice == null ? null : SageTVManager.getSageTVCaptureDevice(pCaptureDevice, false);
+    }
+
+    /**
+     * Get the raw consumer of a capture device.
+     * <p/>
+     * Only the raw consumer can share its stream, because it is the only consumer with a buffer
+     * that other readers can be added to. If the capture device is using the dynamic consumer, the
+     * consumer it selected for the current channel is used. Capture devices using the FFmpeg
+     * consumer or any other consumer are never shared.
+     *
+     * @return The raw consumer or <i>null</i> if the capture device is using any other consumer.
+     */
+    private static RawSageTVConsumerImpl getRawConsumer(CaptureDevice captureDevice) {
+        if (!(captureDevice instanceof BasicCaptureDevice)) {
+            return null;
+        }
+
+        SageTVConsumer consumer = ((BasicCaptureDevice) captureDevice).getConsumer();
+
+        if (consumer instanceof DynamicConsumerImpl) {
+            consumer = ((DynamicConsumerImpl) consumer).getSelectedConsumer();
+        }
+
+        return consumer instanceof RawSageTVConsumerImpl ? (RawSageTVConsumerImpl) consumer : null;
+    }
+
+    /**
+     * Check if a capture device would use the raw consumer for a channel.
+     *
+     * @param captureDevice The capture device.
+     * @param channel The channel that would be tuned.
+     * @return <i>true</i> if the consumer for the channel would be the raw consumer.
+     */
+    private static boolean usesRawConsumer(BasicCaptureDevice captureDevice, String channel) {
+        String consumerName = captureDevice.getConsumerName();
+
+        if (consumerName.endsWith(DynamicConsumerImpl.class.getSimpleName())) {
+            consumerName = DynamicConsumerImpl.getConsumerName(channel);
+        }
+
+        return consumerName.endsWith(RawSageTVConsumerImpl.class.getSimpleName());
+    }
+
+    private static boolean isShared(CaptureDevice captureDevice) {
+        for (SageTVSharedRecording sharedRecording : vCaptureDeviceToSharedRecording.values()) {
+            if (sharedRecording.getCaptureDevice() == captureDevice) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Sets the virtual capture device to pool capture device mapping and the reverse.
      *
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.BasicCaptureDevice;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Future;
+
+/**
+ * A pool capture device tuned to the channel a virtual capture device watching live TV is
+ * expected to change to next.
+ * <p/>
+ * When the channel is requested, the stream is shared with the recording the same way as a
+ * channel that is already being recorded, so the recording doesn't need to wait for a tuner.
+ * If nothing uses the channel before the timeout, the capture device is stopped.
+ */
+public class SageTVPreTune implements Runnable {
+    private static final Logger logger = LogManager.getLogger(SageTVPreTune.class);
+
+    public enum State {
+        TUNING,
+        READY,
+        CLAIMED,
+        CANCELLED
+    }
+
+    private final String vCaptureDevice;
+    private final BasicCaptureDevice captureDevice;
+    private final String channel;
+    private final long timeout;
+
+    // This is only changed within synchronized methods of SageTVPoolManager.
+    private volatile State state = State.TUNING;
+    private Future future;
+
+    /**
+     * Create a new pre-tune.
+     *
+     * @param vCaptureDevice The name of the virtual capture device this channel is predicted for.
+     * @param captureDevice The locked pool capture device to tune.
+     * @param channel The channel to tune.
+     * @param timeout The time in milliseconds to keep the channel tuned if nothing uses it.
+     */
+    public SageTVPreTune(String vCaptureDevice, BasicCaptureDevice captureDevice, String channel,
+                         long timeout) {
+
+        this.vCaptureDevice = vCaptureDevice;
+        this.captureDevice = captureDevice;
+        this.channel = channel;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.currentTimeMillis();
+        boolean success = false;
+
+        try {
+            success = captureDevice.preTune(channel);
+        } catch (Exception e) {
+            logger.error("Unable to pre-tune the channel {} => ", channel, e);
+        }
+
+        if (!SageTVPoolManager.preTuneReady(this, success)) {
+            return;
+        }
+
+        logger.info("'{}' pool capture device is ready on channel {} for virtual capture device" +
+                " '{}' in {}ms.", captureDevice.getEncoderName(), channel, vCaptureDevice,
+                System.currentTimeMillis() - startTime);
+
+        try {
+            Thread.sleep(timeout);
+        } catch (InterruptedException e) {
+            // The channel was used or the capture device was needed for something else.
+            return;
+        }
+
+        SageTVPoolManager.preTuneExpired(this);
+    }
+
+    /**
+     * Predict the channel a live TV viewer will change to next.
+     * <p/>
+     * If the last change was to the next channel up or down the lineup, the viewer is probably
+     * surfing in that direction. If the viewer jumped to a channel, they will probably jump back
+     * to the channel they were watching before.
+     *
+     * @param channels All of the channels in the lineup in order.
+     * @param previousChannel The channel that was being watched before the current channel or
+     *                        <i>null</i> if this is the first channel.
+     * @param channel The channel being watched.
+     * @return The predicted channel or <i>null</i> if there isn't anything to predict.
+     */
+    public static String predictNextChannel(String channels[], String previousChannel, String channel) {
+        int index = indexOf(channels, channel);
+
+        if (index == -1) {
+            return previousChannel != null && !previousChannel.equals(channel) ?
+                    previousChannel : null;
+        }
+
+        if (channels.length < 2) {
+            return null;
+        }
+
+        int up = (index + 1) % channels.length;
+        int down = (index - 1 + channels.length) % channels.length;
+        int previousIndex = indexOf(channels, previousChannel);
+
+        if (previousIndex == down) {
+            return channels[up];
+        } else if (previousIndex == up) {
+            return channels[down];
+        } else if (previousIndex != -1 && previousIndex != index) {
+            return channels[previousIndex];
+        }
+
+        return channels[up];
+    }
+
+    private static int indexOf(String channels[], String channel) {
+        if (channel == null) {
+            return -1;
+        }
+
+        for (int i = 0; i < channels.length; i++) {
+            if (channel.equals(channels[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public String getVCaptureDevice() {
+        return vCaptureDevice;
+    }
+
+    public BasicCaptureDevice getCaptureDevice() {
+        return captureDevice;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    void setFuture(Future future) {
+        this.future = future;
+    }
+
+    /**
+     * Stop waiting for the timeout.
+     */
+    void interrupt() {
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+}
@@ -152,17 +152,23 @@ public class SageTVRequestHandler implements Runnable {
                             SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(deviceName, crossbarIndex);
                             deviceName = SageTVDeviceCrossbar.trimToName(deviceName, deviceType, crossbarIndex[0]);
 
+                            boolean shared = SageTVPoolManager.stopSharedRecording(deviceName);
+
                             //This is not a mistake.
-                            CaptureDevice captureDevice = getVCaptureDeviceToPoolCaptureDevice(deviceName, true);
+                            CaptureDevice captureDevice = shared ? null : getVCaptureDeviceToPoolCaptureDevice(deviceName, true);
 
                             if (captureDevice != null) {
                                 setThreadName(deviceName, captureDevice.getEncoderName());
 
                                 SageTVTuningMonitor.stopMonitorRecording(captureDevice);
 
-                                captureDevice.stopEncoding();
-                                unlockEncoder(captureDevice);
-                            } else {
+                                // Other virtual capture devices might still be recording from this
+                                // capture device.
+                                if (!SageTVPoolManager.releaseSharedCaptureDevice(captureDevice)) {
+                                    captureDevice.stopEncoding();
+                                    unlockEncoder(captureDevice);
+                                }
+                            } else if (!shared) {
                                 logger.error("SageTV requested the tuner '{}' and it does not exist at this time.", deviceName);
                             }
 
@@ -201,7 +207,6 @@ public class SageTVRequestHandler implements Runnable {
 
                         SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
                         vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                        captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
 
                         String channel = tokens.nextToken();
                         // I guess this is to synchronize time with the server.
@@ -209,7 +214,12 @@ public class SageTVRequestHandler implements Runnable {
                         String filename = tokens.nextToken();
                         String encoding = tokens.nextToken();
 
-                        if (captureDevice != null) {
+                        SageTVSharedRecording sharedRecording = SageTVPoolManager.getAndShareCaptureDevice(vCaptureDevice, channel);
+                        captureDevice = sharedRecording == null ? getAndLockCaptureDevice(vCaptureDevice, true) : null;
+
+                        if (sharedRecording != null) {
+                            startSharedRecording(sharedRecording, filename, encoding, 0, uploadID);
+                        } else if (captureDevice != null) {
                             boolean success;
 
                             try {
@@ -277,14 +287,20 @@ public class SageTVRequestHandler implements Runnable {
 
                         SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
                         vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                        captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
 
                         String channel = tokens.nextToken();
                         long bufferSize = Long.parseLong(tokens.nextToken());
                         String filename = tokens.nextToken();
                         String encoding = tokens.nextToken();
 
-                        if (captureDevice != null) {
+                        SageTVSharedRecording sharedRecording = SageTVPoolManager.getAndShareCaptureDevice(vCaptureDevice, channel);
+                        captureDevice = sharedRecording == null ? getAndLockCaptureDevice(vCaptureDevice, true) : null;
+
+                        if (sharedRecording != null) {
+                            if (startSharedRecording(sharedRecording, filename, encoding, bufferSize, uploadID)) {
+                                SageTVPoolManager.preTuneNextChannel(vCaptureDevice, channel);
+                            }
+                        } else if (captureDevice != null) {
                             boolean success;
 
                             try {
@@ -317,6 +333,10 @@ public class SageTVRequestHandler implements Runnable {
                                                 captureDevice, channel, encoding, bufferSize,
                                                 deviceType, crossbarIndex[0],
                                                 uploadID, socket.getInetAddress());
+
+                                        // Live TV is the only time channels are changed
+                                        // interactively.
+                                        SageTVPoolManager.preTuneNextChannel(vCaptureDevice, channel);
                                     } else {
                                         sendResponse("ERROR Device Start Failed");
                                         logger.error("Encoder device is unable to start.");
@@ -352,12 +372,15 @@ public class SageTVRequestHandler implements Runnable {
                         SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
                         vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
                         captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                        SageTVSharedRecording sharedRecording = SageTVPoolManager.getSharedRecording(vCaptureDevice);
 
                         String channel = tokens.nextToken();
                         long bufferSize = Long.parseLong(tokens.nextToken());
                         String filename = tokens.nextToken();
 
-                        if (captureDevice != null) {
+                        if (sharedRecording != null) {
+                            switchSharedRecording(sharedRecording, channel, filename, bufferSize, uploadID);
+                        } else if (captureDevice != null) {
                             boolean success;
 
                             try {
@@ -418,11 +441,14 @@ public class SageTVRequestHandler implements Runnable {
                         SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
                         vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
                         captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                        SageTVSharedRecording sharedRecording = SageTVPoolManager.getSharedRecording(vCaptureDevice);
 
                         String channel = tokens.nextToken();
                         String filename = tokens.nextToken();
 
-                        if (captureDevice != null) {
+                        if (sharedRecording != null) {
+                            switchSharedRecording(sharedRecording, channel, filename, 0, uploadID);
+                        } else if (captureDevice != null) {
                             boolean success;
 
                             try {
@@ -489,6 +515,7 @@ public class SageTVRequestHandler implements Runnable {
                     } else if (lastRequest.startsWith("GET_SIZE")) {
 
                         String vCaptureDevice = null;
+                        SageTVSharedRecording sharedRecording = null;
                         if (lastRequest.indexOf(' ') != -1) {
                             // V3 encoder
                             vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
@@ -496,9 +523,12 @@ public class SageTVRequestHandler implements Runnable {
                             SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
                             vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
                             captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                            sharedRecording = SageTVPoolManager.getSharedRecording(vCaptureDevice);
                         }
 
-                        if (captureDevice != null) {
+                        if (sharedRecording != null) {
+                            sendResponse(String.valueOf(sharedRecording.getRecordedBytes()));
+                        } else if (captureDevice != null) {
                             setThreadName(vCaptureDevice, captureDevice.getEncoderName());
                             sendResponse(String.valueOf(captureDevice.getRecordedBytes()));
                         }
@@ -809,6 +839,57 @@ public class SageTVRequestHandler implements Runnable {
         }
     }
 
+    /**
+     * Starts a recording that uses the stream of a capture device already tuned to the same
+     * channel and sends the response to SageTV.
+     *
+     * @return <i>true</i> if the recording was started.
+     */
+    private boolean startSharedRecording(SageTVSharedRecording sharedRecording, String filename,
+                                      String encoding, long bufferSize, int uploadID)
+            throws IOException {
+
+        setThreadName(sharedRecording.getVCaptureDevice(),
+                sharedRecording.getCaptureDevice().getEncoderName());
+
+        boolean success = sharedRecording.startEncoding(
+                filename, encoding, bufferSize, uploadID, socket.getInetAddress());
+
+        if (success) {
+            currentRecordFile = filename;
+
+            sendResponse("OK");
+        } else {
+            SageTVPoolManager.stopSharedRecording(sharedRecording.getVCaptureDevice());
+
+            sendResponse("ERROR Device Start Failed");
+            logger.error("Shared recording is unable to start.");
+        }
+
+        return success;
+    }
+
+    /**
+     * Switches a recording that uses the stream of another capture device to a new file and sends
+     * the response to SageTV.
+     */
+    private void switchSharedRecording(SageTVSharedRecording sharedRecording, String channel,
+                                       String filename, long bufferSize, int uploadID)
+            throws IOException {
+
+        setThreadName(sharedRecording.getVCaptureDevice(),
+                sharedRecording.getCaptureDevice().getEncoderName());
+
+        if (sharedRecording.switchEncoding(channel, filename, bufferSize, uploadID)) {
+            currentRecordFile = filename;
+
+            sendResponse("OK");
+        } else {
+            sendResponse("ERROR Device Switch Failed");
+            logger.error("Shared recording is unable to switch.");
+        }
+    }
+
     private CaptureDevice getAndLockCaptureDevice(String vCaptureDevice, boolean wait) {
 
         if (!SageTVPoolManager.isUsePools()) {
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.CaptureDevice;
+import opendct.consumer.RawSageTVConsumerImpl;
+import opendct.consumer.buffers.CircularBufferReader;
+import opendct.consumer.buffers.DirectBufferPool;
+import opendct.util.ThreadPool;
+import opendct.video.java.TsProgramFilter;
+import opendct.video.java.VideoUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A recording that uses the stream of a capture device that is already recording the same
+ * channel for a different virtual capture device.
+ * <p/>
+ * The stream is read from the buffer of the consumer that is already running, so the recording
+ * does not need a capture device of its own. It has its own consumer that writes to its own file
+ * or upload ID.
+ * <p/>
+ * If the capture device is streaming every program on a frequency, only the requested program is
+ * passed on to the consumer, so any program on that frequency can be recorded.
+ */
+public class SageTVSharedRecording implements Runnable {
+    private static final Logger logger = LogManager.getLogger(SageTVSharedRecording.class);
+
+    private static final int TRANSFER_SIZE = 65536;
+
+    private final String vCaptureDevice;
+    private final CaptureDevice captureDevice;
+    private final RawSageTVConsumerImpl sourceConsumer;
+    private final String channel;
+    private final int program;
+    private final RawSageTVConsumerImpl consumer = new RawSageTVConsumerImpl();
+
+    private CircularBufferReader reader;
+    private Future consumerFuture;
+    private Future readerFuture;
+    private String filename;
+    private volatile boolean stopped;
+
+    /**
+     * Create a new shared recording.
+     *
+     * @param vCaptureDevice The name of the virtual capture device this recording is for.
+     * @param captureDevice The pool capture device providing the stream.
+     * @param sourceConsumer The consumer of the pool capture device.
+     * @param channel The channel being recorded.
+     * @param program The program to keep if the stream contains every program on a frequency or
+     *                0 to keep the entire stream.
+     */
+    public SageTVSharedRecording(String vCaptureDevice, CaptureDevice captureDevice,
+                                 RawSageTVConsumerImpl sourceConsumer, String channel,
+                                 int program) {
+
+        this.vCaptureDevice = vCaptureDevice;
+        this.captureDevice = captureDevice;
+        this.sourceConsumer = sourceConsumer;
+        this.channel = channel;
+        this.program = program;
+    }
+
+    /**
+     * Start recording.
+     *
+     * @param filename The name of the file to record.
+     * @param encodingQuality The quality requested by SageTV.
+     * @param bufferSize The size of the file if this is a buffer or 0.
+     * @param uploadID The upload ID to use or 0 to write the file directly.
+     * @param remoteAddress The address of the SageTV server.
+     * @return <i>true</i> if the recording was started.
+     */
+    public synchronized boolean startEncoding(String filename, String encodingQuality,
+                                              long bufferSize, int uploadID,
+                                              InetAddress remoteAddress) {
+
+        consumer.setChannel(channel);
+        consumer.setProgram(program > 0 ? program : sourceConsumer.getProgram());
+        consumer.setRecordBufferSize(bufferSize);
+        consumer.setEncodingQuality(encodingQuality);
+
+        boolean success;
+
+        if (uploadID > 0) {
+            success = consumer.consumeToUploadID(filename, uploadID, remoteAddress);
+        } else {
+            success = consumer.consumeToFilename(filename);
+        }
+
+        if (!success) {
+            return false;
+        }
+
+        this.filename = filename;
+
+        // The writer waits for this reader instead of skipping data. The consumer it feeds is a
+        // raw consumer, and writes into its buffer queue or drop bytes when the buffer is full
+        // instead of waiting. This reader can only fall behind for as long as this thread isn't
+        // scheduled.
+        reader = sourceConsumer.addStreamReader(vCaptureDevice,
+                CircularBufferReader.SlowReaderPolicy.BLOCK);
+
+        try {
+            consumerFuture = ThreadPool.submit(ThreadPool.Lane.STREAMING, consumer,
+                    Thread.NORM_PRIORITY, consumer.getClass().getSimpleName(), vCaptureDevice);
+
+            readerFuture = ThreadPool.submit(ThreadPool.Lane.STREAMING, this,
+                    Thread.NORM_PRIORITY, "SageTVSharedRecording", vCaptureDevice);
+        } catch (RejectedExecutionException e) {
+            logger.error("'{}' was unable to start recording '{}' from the capture device '{}' => ",
+                    vCaptureDevice, filename, captureDevice.getEncoderName(), e);
+
+            // Nothing will ever read from the blocking reader, so it must be removed right away
+            // or it will hold up the recording it's reading from.
+            stopped = true;
+            reader.close();
+
+            if (consumerFuture != null) {
+                consumerFuture.cancel(true);
+                consumerFuture = null;
+            }
+
+            consumer.stopConsumer();
+            return false;
+        }
+
+        logger.info("'{}' is recording '{}' from the capture device '{}' on channel {}.",
+                vCaptureDevice, filename, captureDevice.getEncoderName(), channel);
+
+        return true;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer transferBuffer = DirectBufferPool.acquire(TRANSFER_SIZE, "SageTVSharedRecording");
+        ByteBuffer filterBuffer = null;
+        TsProgramFilter programFilter = null;
+
+        if (program > 0) {
+            // The filter can hold back one partial packet from the last transfer.
+            filterBuffer = DirectBufferPool.acquire(
+                    TRANSFER_SIZE + VideoUtil.MTS_PACKET_LEN, "SageTVSharedRecording");
+            programFilter = new TsProgramFilter(program);
+        }
+
+        try {
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
+                transferBuffer.clear();
+
+                if (reader.read(transferBuffer) == -1) {
+                    if (reader.isClosed()) {
+                        break;
+                    }
+
+                    // The buffer is closed while the capture device re-tunes and is opened again
+                    // when the stream returns.
+                    Thread.sleep(100);
+                    continue;
+                }
+
+                transferBuffer.flip();
+
+                if (programFilter != null) {
+                    filterBuffer.clear();
+                    programFilter.filter(transferBuffer, filterBuffer);
+                    filterBuffer.flip();
+
+                    if (filterBuffer.hasRemaining()) {
+                        consumer.write(filterBuffer);
+                    }
+                } else {
+                    consumer.write(transferBuffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Shared recording was interrupted => ", e);
+        } catch (IOException e) {
+            logger.error("Shared recording created an unexpected IO exception => ", e);
+        } finally {
+            DirectBufferPool.release(transferBuffer);
+
+            if (filterBuffer != null) {
+                DirectBufferPool.release(filterBuffer);
+            }
+
+            logger.info("Shared recording for '{}' has stopped.", vCaptureDevice);
+        }
+    }
+
+    /**
+     * Switch the recording to a new file.
+     *
+     * @param channel The channel SageTV expects to be recording. The switch fails if this is not
+     *                the channel being shared.
+     * @param filename The name of the new file.
+     * @param bufferSize The size of the file if this is a buffer or 0.
+     * @param uploadID The upload ID to use or 0 to write the file directly.
+     * @return <i>true</i> if the switch was successful.
+     */
+    public synchronized boolean switchEncoding(String channel, String filename, long bufferSize,
+                                               int uploadID) {
+
+        if (!this.channel.equals(channel)) {
+            logger.warn("'{}' cannot switch from the shared channel {} to {}.",
+                    vCaptureDevice, this.channel, channel);
+
+            return false;
+        }
+
+        consumer.setRecordBufferSize(bufferSize);
+
+        boolean success;
+
+        if (uploadID > 0) {
+            // This waits until the switch happens or the consumer stops.
+            consumer.switchStreamToUploadID(filename, bufferSize, uploadID);
+            success = consumer.getEncoderUploadID() == uploadID;
+        } else {
+            success = consumer.switchStreamToFilename(filename, bufferSize);
+        }
+
+        if (success) {
+            this.filename = filename;
+        }
+
+        return success;
+    }
+
+    /**
+     * Stop recording and stop reading from the shared stream.
+     */
+    public synchronized void stopEncoding() {
+        stopped = true;
+
+        if (reader != null) {
+            reader.close();
+        }
+
+        consumer.stopConsumer();
+
+        if (readerFuture != null) {
+            readerFuture.cancel(true);
+        }
+
+        if (consumerFuture != null) {
+            consumerFuture.cancel(true);
+        }
+
+        logger.info("'{}' stopped recording '{}' from the capture device '{}'.",
+                vCaptureDevice, filename, captureDevice.getEncoderName());
+    }
+
+    public long getRecordedBytes() {
+        return consumer.getBytesStreamed();
+    }
+
+    public String getRecordFilename() {
+        return filename;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * The program being kept from the stream or 0 if the entire stream is recorded.
+     */
+    public int getProgram() {
+        return program;
+    }
+
+    /**
+     * The pool capture device providing the stream.
+     */
+    public CaptureDevice getCaptureDevice() {
+        return captureDevice;
+    }
+
+    public String getVCaptureDevice() {
+        return vCaptureDevice;
+    }
+}
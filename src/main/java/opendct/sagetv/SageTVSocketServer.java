@@ -26,6 +26,7 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.net.*;
 import java.util.HashSet;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SageTVSocketServer implements Runnable {
     private final Logger logger = LogManager.getLogger(SageTVSocketServer.class);
@@ -178,7 +179,14 @@ public class SageTVSocketServer implements Runnable {
 
                 Socket socket = serverSocket.accept();
 
-                ThreadPool.submit(new SageTVRequestHandler(socket, captureDevice),  Thread.NORM_PRIORITY, "SageTVRequestHandler", "Unknown-" + listenPort);
+                try {
+                    ThreadPool.submit(ThreadPool.Lane.CONTROL, new SageTVRequestHandler(socket, captureDevice),  Thread.NORM_PRIORITY, "SageTVRequestHandler", "Unknown-" + listenPort);
+                } catch (RejectedExecutionException e) {
+                    // SageTV will try again when it doesn't get a response.
+                    logger.warn("Too many SageTV requests are in progress. Closing connection on port {}.", listenPort);
+                    socket.close();
+                    continue;
+                }
 
                 InetAddress remoteAddress = socket.getInetAddress();
 
@@ -66,6 +66,7 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
     private static BooleanDeviceOption qamHttpTuningHack;
     private static BooleanDeviceOption qamRemap;
     private static BooleanDeviceOption qamAlwaysRemapLookup;
+    private static BooleanDeviceOption qamFullMux;
     private static IntegerDeviceOption offlineDetectionSeconds;
     private static IntegerDeviceOption offlineDetectionMinBytes;
 
@@ -262,6 +263,18 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
                                 " previous mapping will be used."
                 );
 
+                qamFullMux = new BooleanDeviceOption(
+                        Config.getBoolean("hdhr.qam_full_mux", false),
+                        false,
+                        "Stream Full QAM Frequency",
+                        "hdhr.qam_full_mux",
+                        "This will stream every program on the tuned frequency when tuning" +
+                                " ClearQAM channels by frequency and program and remove the" +
+                                " programs that were not requested in the consumer. Other recordings on" +
+                                " the same frequency will be able to share the tuner instead of" +
+                                " using another tuner. This only works with the raw consumer."
+                );
+
                 offlineDetectionSeconds = new IntegerDeviceOption(
                         Config.getInteger("hdhr.wait_for_offline_detection_s", 8),
                         false,
@@ -298,6 +311,7 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
                         qamRemap,
                         qamHttpTuningHack,
                         qamAlwaysRemapLookup,
+                        qamFullMux,
                         offlineDetectionSeconds,
                         offlineDetectionMinBytes
                 );
@@ -320,6 +334,7 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
                 Config.setBoolean("hdhr.allow_qam_http_tuning", false);
                 Config.setBoolean("hdhr.allow_qam_remapping", true);
                 Config.setBoolean("hdhr.always_remap_lookup", false);
+                Config.setBoolean("hdhr.qam_full_mux", false);
                 Config.setInteger("hdhr.wait_for_offline_detection_s", 8);
                 Config.setInteger("hdhr.offline_detection_min_bytes", 10528);
 
@@ -687,6 +702,7 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
                 qamHttpTuningHack,
                 qamRemap,
                 qamAlwaysRemapLookup,
+                qamFullMux,
                 offlineDetectionSeconds,
                 offlineDetectionMinBytes
         };
@@ -773,6 +789,10 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
         return qamHttpTuningHack.getBoolean();
     }
 
+    public static boolean getQamFullMux() {
+        return qamFullMux.getBoolean();
+    }
+
     public static int getOfflineDetectionSeconds() {
         return offlineDetectionSeconds.getInteger();
     }
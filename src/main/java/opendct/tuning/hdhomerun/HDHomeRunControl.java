@@ -16,6 +16,7 @@
 
 package opendct.tuning.hdhomerun;
 
+import opendct.config.Config;
 import opendct.tuning.discovery.discoverers.HDHomeRunDiscoverer;
 import opendct.tuning.hdhomerun.types.HDHomeRunPacketTag;
 import opendct.tuning.hdhomerun.types.HDHomeRunPacketType;
@@ -28,6 +29,10 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class HDHomeRunControl {
     private static final Logger logger = LogManager.getLogger(HDHomeRunControl.class);
@@ -37,20 +42,25 @@ public class HDHomeRunControl {
     public final static int HDHOMERUN_CONTROL_RECV_TIMEOUT = 5000;
     public final static int HDHOMERUN_CONTROL_UPGRADE_TIMEOUT = 30000;
 
-    private HDHomeRunPacket txPacket;
-    private HDHomeRunPacket rxPacket;
-    private SocketChannel socket;
-    private volatile int totalBytes = 0;
+    // The device replies to requests in the order they were received, so replies are matched to
+    // requests in the order they were sent. This is the number of requests that can be sent before
+    // the first reply is received.
+    private final static int maxInFlight =
+            Math.max(1, Config.getInteger("hdhr.control_max_in_flight", 4));
+
+    private final Object connectLock = new Object();
+    private final Semaphore inFlight = new Semaphore(maxInFlight, true);
+    private volatile Connection connection;
 
     /**
      * Create a new HDHomeRun controller.
      * <p/>
      * Controllers are thread-safe and can be shared. It is recommended to only share between tuners
-     * on the same device so we don't need to keep changing IP addresses.
+     * on the same device so we don't need to keep changing IP addresses. The TCP connection and the
+     * thread receiving replies stay open until the address changes, there is an error or
+     * <b>closeSocket()</b> is called.
      */
     public HDHomeRunControl() {
-        txPacket = new HDHomeRunPacket();
-        rxPacket = new HDHomeRunPacket();
     }
 
     /**
@@ -124,9 +134,13 @@ public class HDHomeRunControl {
      *                         at this time.
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
-    public synchronized String setVariable(InetAddress address, String key, String value, int lockkey, int receiveTimeout) throws GetSetException, IOException {
+    public String setVariable(InetAddress address, String key, String value, int lockkey, int receiveTimeout) throws GetSetException, IOException {
         logger.entry(address, key, value, lockkey);
 
+        // Each request has its own packet so requests from different tuners don't need to wait
+        // for each other to be encoded.
+        HDHomeRunPacket txPacket = new HDHomeRunPacket(ByteBuffer.allocate(3074));
+
         txPacket.startPacket(HDHomeRunPacketType.HDHOMERUN_TYPE_GETSET_REQ);
         txPacket.putTagLengthValue(HDHomeRunPacketTag.HDHOMERUN_TAG_GETSET_NAME, key);
 
@@ -140,8 +154,8 @@ public class HDHomeRunControl {
 
         txPacket.endPacket();
 
-        connectSocket(new InetSocketAddress(address,
-                HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT));
+        SocketAddress socketAddress = new InetSocketAddress(address,
+                HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT);
 
         if (logger.isDebugEnabled()) {
             logger.debug("key: '{}' value: '{}' lockKey: '{}' sendLength: {} address: {}",
@@ -152,18 +166,16 @@ public class HDHomeRunControl {
         IOException errorMessage = null;
         int retryCount = 0;
         int retryLimit = HDHomeRunDiscoverer.getControlRetryCount();
-        boolean success = false;
+        HDHomeRunPacket rxPacket = null;
 
-        while (!success && retryCount++ <= retryLimit && !Thread.currentThread().isInterrupted()) {
+        while (rxPacket == null && retryCount++ <= retryLimit && !Thread.currentThread().isInterrupted()) {
             try {
-                packetSendReceive(txPacket.BUFFER.slice(), receiveTimeout);
-                success = true;
+                rxPacket = packetSendReceive(socketAddress, txPacket.BUFFER.slice(), receiveTimeout);
             } catch (IOException e) {
                 // Signal to the discoverer that we might need a new IP address.
                 HDHomeRunDiscoverer.needBroadcast();
 
                 errorMessage = e;
-                closeSocket();
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e0) {
@@ -171,12 +183,10 @@ public class HDHomeRunControl {
                     // exception since it is itself an exception.
                     throw e;
                 }
-                connectSocket(new InetSocketAddress(address,
-                        HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT));
             }
         }
 
-        if (!success) {
+        if (rxPacket == null) {
             // Signal to the discoverer that we might need a new IP address.
             HDHomeRunDiscoverer.needBroadcast();
 
@@ -225,9 +235,12 @@ public class HDHomeRunControl {
 
                     switch (tag) {
                         case HDHOMERUN_TAG_GETSET_NAME:
-                            // The device may return the key name.
-                            rxPacket.BUFFER.position(rxPacket.BUFFER.position() + length);
-                            logger.trace("HDHomeRun device returned the key name. Skipped {} bytes.", length);
+                            // The device may return the key name. Replies are matched to requests
+                            // by order, so this should always be the same key.
+                            String returnKey = rxPacket.getTLVString(length);
+                            if (returnKey != null && !returnKey.equals(key)) {
+                                logger.warn("HDHomeRun device returned the key '{}' for the request '{}'.", returnKey, key);
+                            }
                             break;
 
                         case HDHOMERUN_TAG_GETSET_VALUE:
@@ -264,138 +277,223 @@ public class HDHomeRunControl {
         return logger.exit(null);
     }
 
-    private void connectSocket(SocketAddress address) throws IOException {
-        logger.entry(address);
+    private Connection getConnection(SocketAddress address) throws IOException {
+        synchronized (connectLock) {
+            Connection currentConnection = connection;
 
-        try {
-            if (socket != null && socket.isConnected() && socket.getRemoteAddress().equals(address)) {
-                return;
-            }
+            if (currentConnection != null && !currentConnection.closed &&
+                    currentConnection.address.equals(address)) {
 
-            closeSocket();
-        } catch (Exception e) {
-            logger.debug("connectSocket created an unexpected exception => ", e);
-            closeSocket();
-        }
+                return currentConnection;
+            }
 
-        socket = SocketChannel.open(address);
+            if (currentConnection != null) {
+                currentConnection.close(new IOException("The HDHomeRun address has changed."));
+            }
 
-        logger.exit();
+            connection = new Connection(address);
+            return connection;
+        }
     }
 
-    public synchronized void closeSocket() {
+    public void closeSocket() {
         logger.entry();
 
-        if (socket != null) {
-            try {
-                // Allow the socket to be re-opened immediately.
-                socket.socket().setReuseAddress(true);
-                socket.close();
-                socket.socket().close();
-                socket = null;
-            } catch (Exception e) {
-                logger.debug("closeSocket created an unexpected exception => ", e);
+        synchronized (connectLock) {
+            if (connection != null) {
+                connection.close(new IOException("The HDHomeRun control socket was closed."));
+                connection = null;
             }
         }
 
         logger.exit();
     }
 
-    private void packetSendReceive(ByteBuffer packetSend, long timeout) throws IOException {
+    private HDHomeRunPacket packetSendReceive(SocketAddress address, ByteBuffer packetSend, long timeout) throws IOException {
         logger.entry(packetSend, timeout);
 
-        rxPacket.BUFFER.clear();
-        totalBytes = 0;
-        Thread receiveThread = new Thread(new ReceiveThread());
-        receiveThread.setName("HDHomeRunControlReceive-" + receiveThread.getId());
+        Request request = new Request(packetSend);
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e.getMessage());
+        }
 
         try {
-            while (packetSend.hasRemaining()) {
-                socket.write(packetSend);
+            Connection currentConnection = getConnection(address);
+            currentConnection.send(request);
+
+            try {
+                if (!request.done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    // Signal to the discoverer that we might need a new IP address.
+                    HDHomeRunDiscoverer.needBroadcast();
+
+                    // Any reply that arrives after this would be matched to the wrong request.
+                    currentConnection.close(new IOException("A previous request timed out."));
+                    throw new IOException("HDHomeRun did not reply with a message. Closing socket...");
+                }
+            } catch (InterruptedException e) {
+                // The reply will still be received and discarded, so the connection stays usable.
+                Thread.currentThread().interrupt();
+                throw new IOException(e.getMessage());
             }
-        } catch (IOException e) {
-            // Signal to the discoverer that we might need a new IP address.
-            HDHomeRunDiscoverer.needBroadcast();
+        } finally {
+            inFlight.release();
+        }
 
-            closeSocket();
-            throw e;
+        if (request.error != null) {
+            throw request.error;
         }
 
-        receiveThread.start();
+        return logger.exit(new HDHomeRunPacket(request.reply));
+    }
 
-        try {
-            receiveThread.join(timeout);
+    private static class Request {
+        private final ByteBuffer packet;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile ByteBuffer reply;
+        private volatile IOException error;
 
-            //Stop receiving.
-            receiveThread.interrupt();
+        private Request(ByteBuffer packet) {
+            this.packet = packet;
+        }
 
-            // Wait for the thread to actually stop.
-            receiveThread.join();
-        } catch (InterruptedException e) {
-            receiveThread.interrupt();
-            closeSocket();
-            throw new IOException(e.getMessage());
+        private void complete(ByteBuffer reply) {
+            this.reply = reply;
+            done.countDown();
         }
 
-        rxPacket.BUFFER.flip();
+        private void fail(IOException error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
 
-        if (rxPacket.BUFFER.remaining() == 0) {
-            // Signal to the discoverer that we might need a new IP address.
-            HDHomeRunDiscoverer.needBroadcast();
+    /**
+     * A TCP connection to one device with one thread receiving all of the replies.
+     */
+    private static class Connection implements Runnable {
+        private final SocketAddress address;
+        private final SocketChannel socket;
+        private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<>();
+        private final Object writeLock = new Object();
+        private volatile boolean closed = false;
+
+        private Connection(SocketAddress address) throws IOException {
+            this.address = address;
+
+            socket = SocketChannel.open(address);
+
+            Thread receiveThread = new Thread(this);
+            receiveThread.setName("HDHomeRunControlReceive-" + receiveThread.getId());
+            receiveThread.setDaemon(true);
+            receiveThread.start();
+        }
 
-            closeSocket();
-            throw new IOException("HDHomeRun did not reply with a message. Closing socket...");
+        private void send(Request request) throws IOException {
+            synchronized (writeLock) {
+                if (closed) {
+                    throw new IOException("The HDHomeRun control socket is closed.");
+                }
+
+                // The request must be queued in the same order it is written.
+                pending.add(request);
+
+                try {
+                    while (request.packet.hasRemaining()) {
+                        socket.write(request.packet);
+                    }
+                } catch (IOException e) {
+                    // Signal to the discoverer that we might need a new IP address.
+                    HDHomeRunDiscoverer.needBroadcast();
+
+                    close(e);
+                    throw e;
+                }
+            }
         }
 
-        logger.exit();
-    }
+        private void close(IOException reason) {
+            closed = true;
+
+            try {
+                // Allow the socket to be re-opened immediately.
+                socket.socket().setReuseAddress(true);
+                socket.close();
+                socket.socket().close();
+            } catch (Exception e) {
+                logger.debug("closeSocket created an unexpected exception => ", e);
+            }
 
-    private class ReceiveThread implements Runnable {
+            Request request;
+            while ((request = pending.poll()) != null) {
+                request.fail(reason);
+            }
+        }
 
+        @Override
         public void run() {
             logger.entry();
 
-            if (socket != null) {
-                try {
-                    boolean firstBytes = true;
+            ByteBuffer readBuffer = ByteBuffer.allocate(3074 * 2);
+            IOException reason = new IOException("HDHomeRun closed the control socket.");
 
-                    int bytesNeeded = rxPacket.BUFFER.limit();
-                    int readBytes = 0;
+            try {
+                while (!closed) {
+                    int readBytes = socket.read(readBuffer);
 
-                    while (!Thread.currentThread().isInterrupted()) {
-                        readBytes = socket.read(rxPacket.BUFFER);
+                    if (readBytes == -1) {
+                        logger.debug("socket returned -1");
+                        break;
+                    }
 
-                        if (readBytes == -1) {
-                            logger.debug("socket returned -1");
-                            break;
-                        }
+                    readBuffer.flip();
 
-                        totalBytes += readBytes;
+                    while (readBuffer.remaining() > 4) {
+                        // +8 to include header and CRC
+                        int bytesNeeded = (readBuffer.getShort(readBuffer.position() + 2) & 0xffff) + 8;
 
-                        if (firstBytes && totalBytes > 4) {
-                            firstBytes = false;
-                            ByteBuffer slice = rxPacket.BUFFER.duplicate();
-                            slice.flip();
+                        if (bytesNeeded > readBuffer.capacity()) {
+                            throw new IOException("HDHomeRun replied with a packet that is too large.");
+                        }
 
-                            // This makes sure we get everything in case the message gets broken up.
-                            slice.getShort();
-                            bytesNeeded = (slice.getShort() & 0xffff) + 8; // +8 to include header and CRC
+                        if (bytesNeeded > readBuffer.remaining()) {
+                            logger.debug("bytesNeeded: {} > returnBytes: {}", bytesNeeded, readBuffer.remaining());
+                            break;
                         }
 
-                        if (bytesNeeded > totalBytes) {
-                            logger.debug("bytesNeeded: {} > returnBytes: {}", bytesNeeded, totalBytes);
+                        ByteBuffer reply = ByteBuffer.allocate(bytesNeeded);
+                        ByteBuffer slice = readBuffer.slice();
+                        slice.limit(bytesNeeded);
+                        reply.put(slice);
+                        reply.flip();
+                        readBuffer.position(readBuffer.position() + bytesNeeded);
+
+                        Request request = pending.poll();
+
+                        if (request != null) {
+                            request.complete(reply);
                         } else {
-                            break;
+                            logger.warn("HDHomeRun sent a reply without a request.");
                         }
                     }
-                } catch (IOException e) {
+
+                    readBuffer.compact();
+                }
+            } catch (IOException e) {
+                if (!closed) {
                     // Signal to the discoverer that we might need a new IP address.
                     HDHomeRunDiscoverer.needBroadcast();
 
                     logger.debug("ReceiveThread was unable to receive => ", e);
-                } catch (Exception e) {
-                    logger.warn("ReceiveThread experienced an unexpected exception => ", e);
+                    reason = e;
                 }
+            } catch (Exception e) {
+                logger.warn("ReceiveThread experienced an unexpected exception => ", e);
+            } finally {
+                close(reason);
             }
 
             logger.exit();
@@ -134,7 +134,7 @@ public class HDHomeRunDevice {
         tuners = new HDHomeRunTuner[tunerCount];
 
         for (int i = 0; i < tunerCount; i++) {
-            tuners[i] = new HDHomeRunTuner(this, i);
+            tuners[i] = new HDHomeRunTuner(this, i, CONTROL);
         }
     }
 
@@ -165,7 +165,8 @@ public class HDHomeRunDevice {
     /**
      * Get a tuner by number for HDHomeRun device control.
      * <p/>
-     * This always creates a new tuner instance, but retains the same socket for communication.
+     * This always creates a new tuner instance, but retains the same socket for communication. All
+     * tuners on this device share one control connection.
      *
      * @param tuner The tuner number.
      * @return A tuner device or <i>null</i> if the tuner number is greater than the number of
@@ -53,7 +53,7 @@ public class HDHomeRunTuner {
     private int currentLockkey;
 
     public HDHomeRunTuner(HDHomeRunDevice device, int tuner) {
-        this(device, tuner, new HDHomeRunControl());
+        this(device, tuner, device.CONTROL);
     }
 
     public HDHomeRunTuner(HDHomeRunDevice device, int tuner, HDHomeRunControl control) {
@@ -18,7 +18,6 @@ package opendct.tuning.http;
 
 import opendct.channel.BroadcastStandard;
 import opendct.channel.CopyProtection;
-import opendct.util.ThreadPool;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -27,12 +26,12 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.concurrent.Future;
 
 public class InfiniTVStatus {
     private static final Logger logger = LogManager.getLogger(InfiniTVStatus.class);
     private static final String DATA_START = "<body class=\"get\">";
     private static final String DATA_END = "</body></html>";
+    private static final int HTTP_TIMEOUT = 10000;
 
     /**
      * Get a parsed variable from an InfiniTV capture device with retry attempts.
@@ -81,26 +80,24 @@ public class InfiniTVStatus {
         URL url = new URL("http://" + deviceAddress + "/get_var?i=" + tunerIndex + "&s=" + service + "&v=" + value);
         logger.debug("Connecting to InfiniTV tuner using the URL '{}'", url);
 
-        final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+        HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+        httpURLConnection.setConnectTimeout(HTTP_TIMEOUT);
+        httpURLConnection.setReadTimeout(HTTP_TIMEOUT);
 
-        Future httpTimeout = ThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException e) {
-                    return;
-                }
+        String line;
 
-                httpURLConnection.disconnect();
-            }
-        }, Thread.MIN_PRIORITY, "HttpTimeout", deviceAddress);
+        // Closing the reader after the response is read allows the connection to be kept alive
+        // and used for the next request to the same device.
+        try (BufferedReader bufferedReader = new BufferedReader(
+                new InputStreamReader(httpURLConnection.getInputStream()))) {
+
+            line = bufferedReader.readLine();
+        }
 
-        InputStreamReader inputStreamReader = new InputStreamReader(httpURLConnection.getInputStream());
-        BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-        httpTimeout.cancel(true);
+        if (line == null) {
+            throw new IOException("InfiniTV DCT returned an empty response.");
+        }
 
-        String line = bufferedReader.readLine();
         logger.debug("InfiniTV DCT returned the value '{}'", line);
 
         int start = line.indexOf(DATA_START);
@@ -126,15 +123,7 @@ public class InfiniTVStatus {
     public static int getProgram(String deviceAddress, int tunerNumber, int retry) throws IOException, InterruptedException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String value = getVar(deviceAddress, tunerNumber, "mux", "ProgramNumber", retry);
-
-        try {
-            return Integer.valueOf(value.trim());
-        } catch (NumberFormatException e) {
-            logger.error("Unable to convert program string '{}' to number => ", value, e);
-        }
-
-        return -1;
+        return parseProgram(getVar(deviceAddress, tunerNumber, "mux", "ProgramNumber", retry));
     }
 
     /**
@@ -149,8 +138,10 @@ public class InfiniTVStatus {
     public static int getProgram(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String value = getVar(deviceAddress, tunerNumber, "mux", "ProgramNumber");
+        return parseProgram(getVar(deviceAddress, tunerNumber, "mux", "ProgramNumber"));
+    }
 
+    public static int parseProgram(String value) {
         try {
             return Integer.valueOf(value.trim());
         } catch (NumberFormatException e) {
@@ -173,8 +164,10 @@ public class InfiniTVStatus {
     public static int[] getPids(String deviceAddress, int tunerNumber, int retry) throws IOException, InterruptedException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String value = getVar(deviceAddress, tunerNumber, "mux", "PIDList", retry);
+        return parsePids(getVar(deviceAddress, tunerNumber, "mux", "PIDList", retry));
+    }
 
+    public static int[] parsePids(String value) {
         String split[] = value.split(",");
         int pids[] = new int[split.length];
 
@@ -201,19 +194,22 @@ public class InfiniTVStatus {
     public static CopyProtection getCCIStatus(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String value = getVar(deviceAddress, tunerNumber, "diag", "CopyProtectionStatus");
+        return logger.exit(parseCCIStatus(
+                getVar(deviceAddress, tunerNumber, "diag", "CopyProtectionStatus")));
+    }
 
+    public static CopyProtection parseCCIStatus(String value) {
         if (value.contains("None")) {
-            return logger.exit(CopyProtection.NONE);
+            return CopyProtection.NONE;
         } else if (value.contains("(00)") || value.contains("(0x00)")) {
-            return logger.exit(CopyProtection.COPY_FREELY);
+            return CopyProtection.COPY_FREELY;
         } else if (value.contains("(0x02)")) {
-            return logger.exit(CopyProtection.COPY_ONCE);
+            return CopyProtection.COPY_ONCE;
         } else if (value.contains("(0x03)")) {
-            return logger.exit(CopyProtection.COPY_NEVER);
+            return CopyProtection.COPY_NEVER;
         }
 
-        return logger.exit(CopyProtection.UNKNOWN);
+        return CopyProtection.UNKNOWN;
     }
 
     /**
@@ -222,8 +218,11 @@ public class InfiniTVStatus {
     public static int getSignalStrength(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String value = getVar(deviceAddress, tunerNumber, "diag", "Signal_Level");
+        return logger.exit(parseSignalStrength(
+                getVar(deviceAddress, tunerNumber, "diag", "Signal_Level")));
+    }
 
+    public static int parseSignalStrength(String value) {
         if (value.contains(" dBmV")) {
             String parseValue = value.substring(0, value.indexOf(" dBmV"));
             float signalStrength = -1;
@@ -233,10 +232,10 @@ public class InfiniTVStatus {
             } catch (NumberFormatException e) {
                 logger.error("Unable to parse the value '{}' into a float.", parseValue);
             }
-            return logger.exit((int) signalStrength);
+            return (int) signalStrength;
         }
 
-        return logger.exit(-1);
+        return -1;
     }
 
     /**
@@ -252,8 +251,11 @@ public class InfiniTVStatus {
     public static float getSignalLevel(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String value = getVar(deviceAddress, tunerNumber, "diag", "Signal_Level");
+        return logger.exit(parseSignalLevel(
+                getVar(deviceAddress, tunerNumber, "diag", "Signal_Level")));
+    }
 
+    public static float parseSignalLevel(String value) {
         if (value.contains(" dBmV")) {
             String parseValue = value.substring(0, value.indexOf(" dBmV"));
             float signalStrength = -1;
@@ -263,10 +265,10 @@ public class InfiniTVStatus {
             } catch (NumberFormatException e) {
                 logger.error("Unable to parse the value '{}' into a float.", parseValue);
             }
-            return logger.exit((int) signalStrength);
+            return (int) signalStrength;
         }
 
-        return logger.exit(-1);
+        return -1;
     }
 
     /**
@@ -280,8 +282,11 @@ public class InfiniTVStatus {
     public static float getSignalNoiseRatio(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String value = getVar(deviceAddress, tunerNumber, "diag", "Signal_SNR");
+        return logger.exit(parseSignalNoiseRatio(
+                getVar(deviceAddress, tunerNumber, "diag", "Signal_SNR")));
+    }
 
+    public static float parseSignalNoiseRatio(String value) {
         if (value.contains(" dB")) {
             String parseValue = value.substring(0, value.indexOf(" dB"));
             float signalStrength = -1;
@@ -291,10 +296,10 @@ public class InfiniTVStatus {
             } catch (NumberFormatException e) {
                 logger.error("Unable to parse the value '{}' into a float.", parseValue);
             }
-            return logger.exit((int) signalStrength);
+            return (int) signalStrength;
         }
 
-        return logger.exit(-1);
+        return -1;
     }
 
     /**
@@ -324,7 +329,11 @@ public class InfiniTVStatus {
     public static int getStreamingPort(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String currentPort = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "diag", "Streaming_Port");
+        return logger.exit(parseStreamingPort(
+                InfiniTVStatus.getVar(deviceAddress, tunerNumber, "diag", "Streaming_Port")));
+    }
+
+    public static int parseStreamingPort(String currentPort) {
         int returnValue = -1;
 
         try {
@@ -333,7 +342,7 @@ public class InfiniTVStatus {
             logger.error("Unable to parse the value '{}' into an integer.", currentPort);
         }
 
-        return logger.exit(returnValue);
+        return returnValue;
     }
 
     /**
@@ -364,8 +373,11 @@ public class InfiniTVStatus {
     public static float getTemperature(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String value = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "diag", "Temperature");
+        return logger.exit(parseTemperature(
+                InfiniTVStatus.getVar(deviceAddress, tunerNumber, "diag", "Temperature")));
+    }
 
+    public static float parseTemperature(String value) {
         if (value.contains(" C")) {
             String parseValue = value.substring(0, value.indexOf(" C"));
             float temperature = -1;
@@ -374,10 +386,10 @@ public class InfiniTVStatus {
             } catch (NumberFormatException e) {
                 logger.error("Unable to parse the value '{}' into a float.", parseValue);
             }
-            return logger.exit(temperature);
+            return temperature;
         }
 
-        return logger.exit(-1);
+        return -1;
     }
 
     /**
@@ -425,7 +437,12 @@ public class InfiniTVStatus {
     public static BroadcastStandard getModulation(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String modulation = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "tuner", "Modulation").toUpperCase();
+        return logger.exit(parseModulation(
+                InfiniTVStatus.getVar(deviceAddress, tunerNumber, "tuner", "Modulation")));
+    }
+
+    public static BroadcastStandard parseModulation(String value) {
+        String modulation = value.toUpperCase();
         BroadcastStandard returnValue = BroadcastStandard.QAM256;
 
         if (modulation.contains("QAM256")) {
@@ -434,7 +451,7 @@ public class InfiniTVStatus {
             returnValue = BroadcastStandard.QAM64;
         }
 
-        return logger.exit(returnValue);
+        return returnValue;
     }
 
     /**
@@ -465,8 +482,12 @@ public class InfiniTVStatus {
     public static int getFrequency(String deviceAddress, int tunerNumber) throws IOException {
         logger.entry(deviceAddress, tunerNumber);
 
-        String parseValue = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "tuner", "Frequency").trim();
+        return logger.exit(parseFrequency(
+                InfiniTVStatus.getVar(deviceAddress, tunerNumber, "tuner", "Frequency")));
+    }
 
+    public static int parseFrequency(String value) {
+        String parseValue = value.trim();
         int returnValue = -1;
 
         try {
@@ -480,6 +501,6 @@ public class InfiniTVStatus {
             logger.error("Unable to parse the value '{}' into an int.", parseValue);
         }
 
-        return logger.exit(returnValue);
+        return returnValue;
     }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.http;
+
+import opendct.channel.BroadcastStandard;
+import opendct.channel.CopyProtection;
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A short lived cache of the status variables for one InfiniTV tuner.
+ * <p/>
+ * The InfiniTV web server is very slow and every status variable is a separate request. Anything
+ * that only needs to report the status of a tuner (signal strength, copy protection, status
+ * strings, web requests) should use <b>get()</b> instead of the individual methods in
+ * {@link InfiniTVStatus} so that each variable is requested at most once per
+ * <i>infinitv.status.cache_ttl_ms</i> no matter how often the status is polled. Variables are
+ * only requested when they are read, so polling the signal strength doesn't also request the
+ * temperature. If more than one thread wants the same variable while it's being requested, only
+ * one thread talks to the device and the others wait for its result. A variable that can't be
+ * requested doesn't affect any of the other variables.
+ * <p/>
+ * Tuning must still use {@link InfiniTVStatus} directly since the values change as a result of
+ * tuning.
+ */
+public class InfiniTVStatusSnapshot {
+    private static final Logger logger = LogManager.getLogger(InfiniTVStatusSnapshot.class);
+
+    private static final long cacheTTL =
+            Math.max(0, Config.getInteger("infinitv.status.cache_ttl_ms", 2000));
+
+    private static final ConcurrentHashMap<String, InfiniTVStatusSnapshot> snapshots =
+            new ConcurrentHashMap<>();
+
+    public enum Variable {
+        COPY_PROTECTION_STATUS("diag", "CopyProtectionStatus"),
+        SIGNAL_LEVEL("diag", "Signal_Level"),
+        SIGNAL_NOISE_RATIO("diag", "Signal_SNR"),
+        STREAMING_IP("diag", "Streaming_IP"),
+        STREAMING_PORT("diag", "Streaming_Port"),
+        TEMPERATURE("diag", "Temperature"),
+        TRANSPORT_STATE("av", "TransportState"),
+        CARRIER_LOCK("tuner", "CarrierLock"),
+        PCR_LOCK("tuner", "PCRLock"),
+        MODULATION("tuner", "Modulation"),
+        FREQUENCY("tuner", "Frequency"),
+        PROGRAM_NUMBER("mux", "ProgramNumber"),
+        PID_LIST("mux", "PIDList");
+
+        public final String service;
+        public final String value;
+
+        Variable(String service, String value) {
+            this.service = service;
+            this.value = value;
+        }
+    }
+
+    private final String deviceAddress;
+    private final int tunerNumber;
+    private final String key;
+    private final CachedVar vars[];
+
+    // Incremented every time the status is invalidated. A value requested before an increment is
+    // never cached after it since it could be from before the change that caused the increment.
+    private final AtomicLong generation = new AtomicLong(0);
+
+    private InfiniTVStatusSnapshot(String deviceAddress, int tunerNumber, String key) {
+        this.deviceAddress = deviceAddress;
+        this.tunerNumber = tunerNumber;
+        this.key = key;
+
+        vars = new CachedVar[Variable.values().length];
+
+        for (int i = 0; i < vars.length; i++) {
+            vars[i] = new CachedVar();
+        }
+    }
+
+    /**
+     * Get the status cache for a tuner.
+     * <p/>
+     * This does not talk to the device. Variables are requested when they are read.
+     *
+     * @param deviceAddress The IP/hostname of the capture device.
+     * @param tunerNumber The tuner number to query.
+     * @return The status cache for the tuner.
+     */
+    public static InfiniTVStatusSnapshot get(String deviceAddress, int tunerNumber) {
+        String key = deviceAddress + ":" + tunerNumber;
+
+        InfiniTVStatusSnapshot snapshot = snapshots.get(key);
+
+        if (snapshot == null) {
+            snapshot = new InfiniTVStatusSnapshot(deviceAddress, tunerNumber, key);
+            InfiniTVStatusSnapshot existing = snapshots.putIfAbsent(key, snapshot);
+
+            if (existing != null) {
+                snapshot = existing;
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Discard the cached status of a tuner.
+     * <p/>
+     * This should be called after anything is done that changes the status of the tuner so the
+     * next request returns current values. Requests that are already in progress will return
+     * their values to the threads waiting for them, but the values will not be cached.
+     *
+     * @param deviceAddress The IP/hostname of the capture device.
+     * @param tunerNumber The tuner number.
+     */
+    public static void invalidate(String deviceAddress, int tunerNumber) {
+        InfiniTVStatusSnapshot snapshot = snapshots.get(deviceAddress + ":" + tunerNumber);
+
+        if (snapshot != null) {
+            snapshot.generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get a status variable.
+     * <p/>
+     * A cached value is returned if it is not older than the configured TTL and the status has
+     * not been invalidated since it was requested. Failed requests are not cached.
+     *
+     * @param variable The variable to get.
+     * @return The current value of the variable.
+     * @throws IOException Thrown if the capture device was unreachable.
+     */
+    public String getVar(Variable variable) throws IOException {
+        CachedVar cachedVar = vars[variable.ordinal()];
+
+        CachedValue cachedValue = cachedVar.cachedValue;
+
+        if (cachedValue != null && cachedValue.isCurrent(generation.get())) {
+            return cachedValue.value;
+        }
+
+        synchronized (cachedVar) {
+            // Another thread may have updated the value while this thread was waiting.
+            long requestGeneration = generation.get();
+            cachedValue = cachedVar.cachedValue;
+
+            if (cachedValue != null && cachedValue.isCurrent(requestGeneration)) {
+                return cachedValue.value;
+            }
+
+            logger.debug("Requesting {}/{} for {}.", variable.service, variable.value, key);
+            String value = InfiniTVStatus.getVar(
+                    deviceAddress, tunerNumber, variable.service, variable.value);
+
+            cachedVar.cachedValue = new CachedValue(value, requestGeneration);
+            return value;
+        }
+    }
+
+    /**
+     * Get a status variable or a default value if the variable can't be requested.
+     *
+     * @param variable The variable to get.
+     * @param defaultValue The value to return if the capture device was unreachable.
+     * @return The current value of the variable or <b>defaultValue</b>.
+     */
+    public String getVar(Variable variable, String defaultValue) {
+        try {
+            return getVar(variable);
+        } catch (IOException e) {
+            logger.debug("Unable to get {}/{} for {}.", variable.service, variable.value, key);
+        }
+
+        return defaultValue;
+    }
+
+    public CopyProtection getCCIStatus() throws IOException {
+        return InfiniTVStatus.parseCCIStatus(getVar(Variable.COPY_PROTECTION_STATUS));
+    }
+
+    public int getSignalStrength() throws IOException {
+        return InfiniTVStatus.parseSignalStrength(getVar(Variable.SIGNAL_LEVEL));
+    }
+
+    public float getSignalLevel() throws IOException {
+        return InfiniTVStatus.parseSignalLevel(getVar(Variable.SIGNAL_LEVEL));
+    }
+
+    public float getSignalNoiseRatio() throws IOException {
+        return InfiniTVStatus.parseSignalNoiseRatio(getVar(Variable.SIGNAL_NOISE_RATIO));
+    }
+
+    public int getStreamingPort() throws IOException {
+        return InfiniTVStatus.parseStreamingPort(getVar(Variable.STREAMING_PORT));
+    }
+
+    public float getTemperature() throws IOException {
+        return InfiniTVStatus.parseTemperature(getVar(Variable.TEMPERATURE));
+    }
+
+    public BroadcastStandard getModulation() throws IOException {
+        return InfiniTVStatus.parseModulation(getVar(Variable.MODULATION));
+    }
+
+    public int getFrequency() throws IOException {
+        return InfiniTVStatus.parseFrequency(getVar(Variable.FREQUENCY));
+    }
+
+    public int getProgram() throws IOException {
+        return InfiniTVStatus.parseProgram(getVar(Variable.PROGRAM_NUMBER));
+    }
+
+    public int[] getPids() throws IOException {
+        return InfiniTVStatus.parsePids(getVar(Variable.PID_LIST));
+    }
+
+    private static class CachedValue {
+        private final String value;
+        private final long generation;
+        private final long created;
+
+        private CachedValue(String value, long generation) {
+            this.value = value;
+            this.generation = generation;
+            created = System.currentTimeMillis();
+        }
+
+        private boolean isCurrent(long currentGeneration) {
+            return generation == currentGeneration &&
+                    System.currentTimeMillis() - created <= cacheTTL;
+        }
+    }
+
+    private static class CachedVar {
+        private volatile CachedValue cachedValue;
+    }
+}
@@ -32,6 +32,7 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class InfiniTVTuning {
     private static final Logger logger = LogManager.getLogger(InfiniTVTuning.class);
@@ -381,22 +382,21 @@ public class InfiniTVTuning {
 
             final HttpURLConnection finalHttpURLConnection = httpURLConnection;
 
-            Future httpTimeout = ThreadPool.submit(new Runnable() {
+            // This runs on the timer so it can't be held up by the requests it's protecting.
+            Future httpTimeout = ThreadPool.schedule(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        Thread.sleep(10000);
-                    } catch (InterruptedException e) {
-                        return;
-                    }
-
                     UpnpDiscoverer.requestBroadcast();
                     finalHttpURLConnection.disconnect();
                 }
-            }, Thread.MIN_PRIORITY, "HttpTimeout", deviceAddress);
+            }, 10000, TimeUnit.MILLISECONDS, "HttpTimeout", deviceAddress);
 
-            InputStream inputStream = httpURLConnection.getInputStream();
-            httpTimeout.cancel(true);
+            InputStream inputStream;
+            try {
+                inputStream = httpURLConnection.getInputStream();
+            } finally {
+                httpTimeout.cancel(false);
+            }
 
             // The InfiniTV requires that at least one byte of data is read or the POST will fail.
             if (inputStream.available() > 0) {
@@ -15,36 +15,322 @@
 
 package opendct.util;
 
+import opendct.config.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ThreadPool extends ThreadPoolExecutor {
-    private final static Logger logger = LogManager.getLogger(ThreadPoolExecutor.class);
-    private final static ExecutorService executorService;
+/**
+ * Shared threads for all work that doesn't need a dedicated thread.
+ * <p/>
+ * Work is divided into lanes so a burst of one kind of work can't take threads away from another.
+ * Every lane except streaming has a maximum number of threads and a maximum number of tasks that
+ * can wait for a thread. When both are used up, <b>submit()</b> throws
+ * {@link RejectedExecutionException} instead of creating more threads.
+ * <p/>
+ * Short tasks that need to run after a delay or periodically, like timeouts, use
+ * <b>schedule()</b> and <b>scheduleAtFixedRate()</b> which run on one timer thread that is
+ * separate from all of the lanes.
+ */
+public class ThreadPool {
+    private final static Logger logger = LogManager.getLogger(ThreadPool.class);
+
+    private final static ScheduledThreadPoolExecutor timer;
 
     static {
-        executorService = new ThreadPool();
+        timer = new ScheduledThreadPoolExecutor(1, new LaneThreadFactory("timer", true));
+        // Most timeouts are cancelled long before they run, so don't keep them around until then.
+        timer.setRemoveOnCancelPolicy(true);
     }
 
-    public static Future submit(final Runnable runnable, final int priority, final String name, final String postPend) {
-        return executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Thread thread = Thread.currentThread();
-                    thread.setName(name + "-" + thread.getId() + ":" + postPend);
-                    thread.setPriority(priority);
-                    runnable.run();
-                } catch (Throwable e) {
-                    logger.error("Thread threw unhandled exception => ", e);
+    public enum Lane {
+        /**
+         * Consumers, producers and asynchronous writers. These tasks run for as long as a capture
+         * device is streaming and are never queued since a late start means lost data.
+         * <p/>
+         * The number of threads needed depends on how many capture devices are recording and
+         * what each recording is doing (transcoding, uploading, sharing), so by default this lane
+         * is not limited. Running out of threads in the middle of a recording would be much worse
+         * than having too many. A maximum can still be configured.
+         */
+        STREAMING("streaming", 0, 0),
+
+        /**
+         * SageTV requests and tuning related work.
+         */
+        CONTROL("control", 32, 64),
+
+        /**
+         * Channel scans and lineup updates.
+         */
+        BACKGROUND("background", 8, 256),
+
+        /**
+         * Web requests. These are kept separate from background work so a lineup update can't
+         * make the web interface unresponsive and a busy web interface can't delay a lineup
+         * update.
+         */
+        WEB("web", 16, 64);
+
+        private final LaneExecutor executor;
+
+        /**
+         * @param name The name used for the thread names and configuration.
+         * @param defaultThreads The default maximum number of threads. 0 is not limited.
+         * @param defaultQueue The default maximum number of queued tasks.
+         */
+        Lane(String name, int defaultThreads, int defaultQueue) {
+            int maxThreads = Math.max(0, Config.getInteger("thread_pool." + name + ".max_threads", defaultThreads));
+            int maxQueue = Math.max(0, Config.getInteger("thread_pool." + name + ".max_queue", defaultQueue));
+
+            executor = new LaneExecutor(name, maxThreads, maxQueue);
+        }
+    }
+
+    /**
+     * Run a task on a lane.
+     * <p/>
+     * The thread is renamed to <i>name-threadId:postPend</i> and set to the requested priority
+     * while the task is running and restored when it returns.
+     *
+     * @param lane The lane to run the task on.
+     * @param runnable The task.
+     * @param priority The thread priority to use while running the task.
+     * @param name The name of the task.
+     * @param postPend Usually the name of the capture device or file the task belongs to.
+     * @return A future that can be used to interrupt the task.
+     * @throws RejectedExecutionException Thrown if the lane has no threads or queue space left.
+     */
+    public static Future submit(Lane lane, final Runnable runnable, final int priority, final String name, final String postPend) {
+        return lane.executor.submit(new LaneTask(lane.executor, runnable, priority, name, postPend));
+    }
+
+    /**
+     * Run a short task once after a delay.
+     * <p/>
+     * The task runs on the timer thread, so it must not block. Anything that could take more
+     * than a moment should be submitted to a lane by the task instead.
+     *
+     * @param runnable The task.
+     * @param delay The time to wait before running the task.
+     * @param unit The unit of <b>delay</b>.
+     * @param name The name of the task.
+     * @param postPend Usually the name of the capture device or file the task belongs to.
+     * @return A future that can be used to cancel the task.
+     */
+    public static ScheduledFuture schedule(Runnable runnable, long delay, TimeUnit unit, String name, String postPend) {
+        return timer.schedule(new TimerTask(runnable, name, postPend), delay, unit);
+    }
+
+    /**
+     * Run a short task periodically until it is cancelled.
+     * <p/>
+     * The task runs on the timer thread, so it must not block. An exception thrown by the task is
+     * logged and does not stop it from running again.
+     *
+     * @param runnable The task.
+     * @param initialDelay The time to wait before running the task the first time.
+     * @param period The time between the start of each run.
+     * @param unit The unit of <b>initialDelay</b> and <b>period</b>.
+     * @param name The name of the task.
+     * @param postPend Usually the name of the capture device or file the task belongs to.
+     * @return A future that can be used to cancel the task.
+     */
+    public static ScheduledFuture scheduleAtFixedRate(Runnable runnable, long initialDelay, long period, TimeUnit unit, String name, String postPend) {
+        return timer.scheduleAtFixedRate(new TimerTask(runnable, name, postPend), initialDelay, period, unit);
+    }
+
+    public static LaneStatistics getStatistics(Lane lane) {
+        return new LaneStatistics(lane.executor);
+    }
+
+    /**
+     * A point in time copy of the counters for a lane.
+     */
+    public static class LaneStatistics {
+        public final String name;
+        public final int maxThreads;
+        public final int maxQueue;
+        public final int threads;
+        public final int largestThreads;
+        public final int active;
+        public final int queued;
+        public final long submitted;
+        public final long completed;
+        public final long rejected;
+        public final long averageQueueMs;
+        public final long maxQueueMs;
+        public final long averageRunMs;
+
+        private LaneStatistics(LaneExecutor executor) {
+            name = executor.name;
+            maxThreads = executor.maxThreads;
+            maxQueue = executor.maxQueue;
+            threads = executor.getPoolSize();
+            largestThreads = executor.getLargestPoolSize();
+            active = executor.getActiveCount();
+            queued = executor.getQueue().size();
+            submitted = executor.submitted.get();
+            rejected = executor.rejected.get();
+
+            long started = executor.started.get();
+            long finished = executor.finished.get();
+            completed = finished;
+            averageQueueMs = started == 0 ? 0 : executor.queueNanos.get() / started / 1000000;
+            maxQueueMs = executor.maxQueueNanos.get() / 1000000;
+            averageRunMs = finished == 0 ? 0 : executor.runNanos.get() / finished / 1000000;
+        }
+    }
+
+    private static class LaneExecutor extends ThreadPoolExecutor {
+        private final String name;
+        private final int maxThreads;
+        private final int maxQueue;
+
+        private final AtomicLong submitted = new AtomicLong(0);
+        private final AtomicLong rejected = new AtomicLong(0);
+        private final AtomicLong started = new AtomicLong(0);
+        private final AtomicLong finished = new AtomicLong(0);
+        private final AtomicLong queueNanos = new AtomicLong(0);
+        private final AtomicLong maxQueueNanos = new AtomicLong(0);
+        private final AtomicLong runNanos = new AtomicLong(0);
+
+        private LaneExecutor(final String name, int maxThreads, int maxQueue) {
+            // The core size is the maximum size so new threads are created before anything is
+            // queued. Idle threads still exit after a minute.
+            super(maxThreads == 0 ? Integer.MAX_VALUE : maxThreads,
+                    maxThreads == 0 ? Integer.MAX_VALUE : maxThreads,
+                    60L, TimeUnit.SECONDS,
+                    maxQueue == 0 ?
+                            new SynchronousQueue<Runnable>() :
+                            new LinkedBlockingQueue<Runnable>(maxQueue),
+                    new LaneThreadFactory(name));
+
+            this.name = name;
+            this.maxThreads = maxThreads;
+            this.maxQueue = maxQueue;
+
+            allowCoreThreadTimeOut(true);
+            setRejectedExecutionHandler(new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    rejected.incrementAndGet();
+                    logger.warn("The {} thread pool is full. {} threads are active and {} tasks are queued.",
+                            LaneExecutor.this.name, executor.getActiveCount(), executor.getQueue().size());
+
+                    throw new RejectedExecutionException("The " + LaneExecutor.this.name + " thread pool is full.");
                 }
+            });
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final String name;
+        private final boolean daemon;
+        private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+        private LaneThreadFactory(String name) {
+            this(name, false);
+        }
+
+        private LaneThreadFactory(String name, boolean daemon) {
+            this.name = name;
+            this.daemon = daemon;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r);
+            thread.setName("ThreadPool-" + name + "-" + threadNumber.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY);
+            thread.setDaemon(daemon);
+            return thread;
+        }
+    }
+
+    private static class TimerTask implements Runnable {
+        private final Runnable runnable;
+        private final String name;
+        private final String postPend;
+
+        private TimerTask(Runnable runnable, String name, String postPend) {
+            this.runnable = runnable;
+            this.name = name;
+            this.postPend = postPend;
+        }
+
+        @Override
+        public void run() {
+            try {
+                runnable.run();
+            } catch (Throwable e) {
+                logger.error("Timer task {}:{} threw unhandled exception => ", name, postPend, e);
             }
-        });
+        }
     }
 
-    public ThreadPool() {
-        super(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    private static class LaneTask implements Runnable {
+        private final LaneExecutor executor;
+        private final Runnable runnable;
+        private final int priority;
+        private final String name;
+        private final String postPend;
+        private final long queuedTime;
+
+        private LaneTask(LaneExecutor executor, Runnable runnable, int priority, String name, String postPend) {
+            this.executor = executor;
+            this.runnable = runnable;
+            this.priority = priority;
+            this.name = name;
+            this.postPend = postPend;
+
+            queuedTime = System.nanoTime();
+            executor.submitted.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            long queued = startTime - queuedTime;
+
+            executor.started.incrementAndGet();
+            executor.queueNanos.addAndGet(queued);
+
+            long maxQueued = executor.maxQueueNanos.get();
+            while (queued > maxQueued && !executor.maxQueueNanos.compareAndSet(maxQueued, queued)) {
+                maxQueued = executor.maxQueueNanos.get();
+            }
+
+            Thread thread = Thread.currentThread();
+            String poolName = thread.getName();
+            int poolPriority = thread.getPriority();
+
+            try {
+                thread.setName(name + "-" + thread.getId() + ":" + postPend);
+
+                if (priority != poolPriority) {
+                    thread.setPriority(priority);
+                }
+
+                runnable.run();
+            } catch (Throwable e) {
+                logger.error("Thread threw unhandled exception => ", e);
+            } finally {
+                thread.setName(poolName);
+
+                if (priority != poolPriority) {
+                    thread.setPriority(poolPriority);
+                }
+
+                // Don't let an interrupt meant for this task carry over to the next one.
+                Thread.interrupted();
+
+                executor.runNanos.addAndGet(System.nanoTime() - startTime);
+                executor.finished.incrementAndGet();
+            }
+        }
     }
 }
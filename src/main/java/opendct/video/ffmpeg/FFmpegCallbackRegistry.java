@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps the opaque value passed to FFmpeg callbacks to the Java object the callback is for.
+ * <p/>
+ * FFmpeg calls back for every read and write, so lookups don't lock or allocate. The table is
+ * only replaced when it needs to grow and the replacement is published through a volatile field,
+ * so a lookup always sees a complete table. Index 0 is never used because FFmpeg treats a
+ * <i>null</i> opaque value as not set.
+ *
+ * @param <T> The type of object being looked up.
+ */
+public class FFmpegCallbackRegistry<T> {
+    private static final Logger logger = LogManager.getLogger(FFmpegCallbackRegistry.class);
+
+    private final String name;
+    private volatile AtomicReferenceArray<T> table;
+    private int nextIndex = 1;
+    private int registered;
+
+    /**
+     * Create a new registry.
+     *
+     * @param name The name of the registry used for logging.
+     * @param initialSize The number of objects that can be registered before the table grows.
+     */
+    public FFmpegCallbackRegistry(String name, int initialSize) {
+        this.name = name;
+        table = new AtomicReferenceArray<>(Math.max(2, initialSize + 1));
+    }
+
+    /**
+     * Register an object.
+     *
+     * @param value The object to register.
+     * @return The index to be used as the opaque value. This is always greater than 0.
+     */
+    public synchronized int register(T value) {
+        if (value == null) {
+            throw new IllegalArgumentException("A null value can't be registered.");
+        }
+
+        AtomicReferenceArray<T> currentTable = table;
+
+        if (registered + 1 >= currentTable.length()) {
+            AtomicReferenceArray<T> newTable = new AtomicReferenceArray<>(currentTable.length() * 2);
+
+            for (int i = 0; i < currentTable.length(); i++) {
+                newTable.lazySet(i, currentTable.get(i));
+            }
+
+            // The volatile write publishes everything copied into the new table.
+            table = newTable;
+            nextIndex = currentTable.length();
+            currentTable = newTable;
+
+            if (newTable.length() > 4096) {
+                logger.warn("The FFmpeg {} map is now {}.", name, newTable.length());
+            }
+        }
+
+        while (currentTable.get(nextIndex) != null) {
+            nextIndex += 1;
+
+            if (nextIndex >= currentTable.length()) {
+                nextIndex = 1;
+            }
+        }
+
+        int index = nextIndex;
+        currentTable.set(index, value);
+        registered += 1;
+
+        nextIndex += 1;
+        if (nextIndex >= currentTable.length()) {
+            nextIndex = 1;
+        }
+
+        return index;
+    }
+
+    /**
+     * Look up a registered object.
+     *
+     * @param index The index returned when the object was registered.
+     * @return The object or <i>null</i> if nothing is registered at the index.
+     */
+    public T get(long index) {
+        AtomicReferenceArray<T> currentTable = table;
+
+        if (index <= 0 || index >= currentTable.length()) {
+            return null;
+        }
+
+        return currentTable.get((int) index);
+    }
+
+    /**
+     * Remove a registered object.
+     *
+     * @param index The index returned when the object was registered.
+     */
+    public synchronized void unregister(long index) {
+        AtomicReferenceArray<T> currentTable = table;
+
+        if (index <= 0 || index >= currentTable.length()) {
+            return;
+        }
+
+        if (currentTable.getAndSet((int) index, null) != null) {
+            registered -= 1;
+        }
+    }
+
+    /**
+     * @return The number of objects currently registered.
+     */
+    public synchronized int getRegistered() {
+        return registered;
+    }
+}
@@ -42,6 +42,13 @@ public class FFmpegConfig {
     private static BooleanDeviceOption fixStream;
     private static BooleanDeviceOption useCompatibilityTimebase;
     private static IntegerDeviceOption noProgramTimeout;
+    private static BooleanDeviceOption detectionCache;
+    private static BooleanDeviceOption javaDetection;
+    private static BooleanDeviceOption stagedTranscode;
+    private static IntegerDeviceOption stagedQueueSize;
+    private static IntegerDeviceOption outputSlots;
+    private static IntegerDeviceOption outputFlushMs;
+    private static BooleanDeviceOption renditionCleanup;
     private static BooleanDeviceOption ccExtractor;
     private static BooleanDeviceOption ccExtractorAllStreams;
     private static StringDeviceOption ccExtractorCustomOptions;
@@ -65,6 +72,13 @@ public class FFmpegConfig {
                 fixStream,
                 useCompatibilityTimebase,
                 noProgramTimeout,
+                detectionCache,
+                javaDetection,
+                stagedTranscode,
+                stagedQueueSize,
+                outputSlots,
+                outputFlushMs,
+                renditionCleanup,
                 ccExtractor,
                 ccExtractorAllStreams,
                 ccExtractorCustomOptions
@@ -219,6 +233,89 @@ public class FFmpegConfig {
                         5000,
                         60000);
 
+                detectionCache = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.ffmpeg.detection_cache", true),
+                        false,
+                        "Cache Stream Detection",
+                        "consumer.ffmpeg.detection_cache",
+                        "This enables remembering the detected program and streams for each" +
+                                " channel. When a channel is tuned again, a small probe is used to" +
+                                " confirm the streams have not changed instead of a full stream" +
+                                " detection. If the streams have changed, a full stream detection" +
+                                " is performed and the new results are remembered."
+                );
+
+                javaDetection = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.ffmpeg.java_detection", true),
+                        false,
+                        "Fast Stream Detection",
+                        "consumer.ffmpeg.java_detection",
+                        "This enables reading the PAT, PMT and the first video and audio" +
+                                " headers before FFmpeg probes the stream. This finds the program," +
+                                " how much data FFmpeg needs to probe and the stream details" +
+                                " without probing repeatedly. If the streams can't be detected" +
+                                " this way, FFmpeg probing is used on its own."
+                );
+
+                stagedTranscode = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.ffmpeg.staged_transcode", false),
+                        false,
+                        "Staged Transcoding",
+                        "consumer.ffmpeg.staged_transcode",
+                        "This enables decoding, filtering and encoding each transcoded stream on" +
+                                " separate threads. This can help a single high resolution" +
+                                " transcode keep up on a system with many cores, but uses more" +
+                                " memory for the frames waiting between each thread. Remuxed" +
+                                " streams are not affected."
+                );
+
+                stagedQueueSize = new IntegerDeviceOption(
+                        Config.getInteger("consumer.ffmpeg.staged_queue_size", 8),
+                        false,
+                        "Staged Transcoding Queue Size",
+                        "consumer.ffmpeg.staged_queue_size",
+                        "This is the most frames that can wait between each staged transcoding" +
+                                " thread. When a queue is full, the thread before it waits. This" +
+                                " value cannot be less than 1 and cannot be greater than 64.",
+                        1,
+                        64);
+
+                outputSlots = new IntegerDeviceOption(
+                        Config.getInteger("consumer.ffmpeg.output_slots", 4),
+                        false,
+                        "Output Slots",
+                        "consumer.ffmpeg.output_slots",
+                        "This is the number of buffers that can be waiting to be written to a" +
+                                " file or uploaded to SageTV. More buffers allow longer write" +
+                                " delays before the transcoder must wait, but use more memory." +
+                                " This value cannot be less than 2 and cannot be greater than 32.",
+                        2,
+                        32);
+
+                outputFlushMs = new IntegerDeviceOption(
+                        Config.getInteger("consumer.ffmpeg.output_flush_ms", 250),
+                        false,
+                        "Output Flush Time",
+                        "consumer.ffmpeg.output_flush_ms",
+                        "This is the longest time in milliseconds data can wait to be written" +
+                                " when there isn't enough data to fill a buffer. Set this to 0" +
+                                " to only write full buffers. This value cannot be greater than" +
+                                " 5000.",
+                        0,
+                        5000);
+
+                renditionCleanup = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.ffmpeg.rendition_cleanup", false),
+                        false,
+                        "Delete Orphaned Renditions",
+                        "consumer.ffmpeg.rendition_cleanup",
+                        "SageTV does not delete renditions with the recording they were created" +
+                                " from. When this is disabled, renditions created by OpenDCT" +
+                                " that no longer have a recording are only logged. When this is" +
+                                " enabled, they are deleted. Only enable this if recordings are" +
+                                " never moved or archived outside of the recording directory."
+                );
+
                 ccExtractor = new BooleanDeviceOption(
                         Config.getBoolean("consumer.ffmpeg.ccextractor_enabled", false),
                         false,
@@ -265,6 +362,13 @@ public class FFmpegConfig {
                 Config.setBoolean("consumer.ffmpeg.fix_stream", true);
                 Config.setBoolean("consumer.ffmpeg.use_codec_timebase", false);
                 Config.setInteger("consumer.ffmpeg.no_program_timeout_ms", 10000);
+                Config.setBoolean("consumer.ffmpeg.detection_cache", true);
+                Config.setBoolean("consumer.ffmpeg.java_detection", true);
+                Config.setBoolean("consumer.ffmpeg.staged_transcode", false);
+                Config.setInteger("consumer.ffmpeg.staged_queue_size", 8);
+                Config.setInteger("consumer.ffmpeg.output_slots", 4);
+                Config.setInteger("consumer.ffmpeg.output_flush_ms", 250);
+                Config.setBoolean("consumer.ffmpeg.rendition_cleanup", false);
                 Config.setBoolean("consumer.ffmpeg.ccextractor_enabled", false);
                 Config.setBoolean("consumer.ffmpeg.ccextractor_all_streams", true);
                 Config.setString("consumer.ffmpeg.ccextractor_custom_options", "");
@@ -290,6 +394,13 @@ public class FFmpegConfig {
                 fixStream,
                 useCompatibilityTimebase,
                 noProgramTimeout,
+                detectionCache,
+                javaDetection,
+                stagedTranscode,
+                stagedQueueSize,
+                outputSlots,
+                outputFlushMs,
+                renditionCleanup,
                 ccExtractor,
                 ccExtractorAllStreams,
                 ccExtractorCustomOptions
@@ -389,4 +500,32 @@ public class FFmpegConfig {
     public static int getNoProgramTimeout() {
         return noProgramTimeout.getInteger();
     }
+
+    public static boolean getDetectionCache() {
+        return detectionCache.getBoolean();
+    }
+
+    public static boolean getJavaDetection() {
+        return javaDetection.getBoolean();
+    }
+
+    public static boolean getStagedTranscode() {
+        return stagedTranscode.getBoolean();
+    }
+
+    public static int getStagedQueueSize() {
+        return stagedQueueSize.getInteger();
+    }
+
+    public static int getOutputSlots() {
+        return outputSlots.getInteger();
+    }
+
+    public static int getOutputFlushMs() {
+        return outputFlushMs.getInteger();
+    }
+
+    public static boolean getRenditionCleanup() {
+        return renditionCleanup.getBoolean();
+    }
 }
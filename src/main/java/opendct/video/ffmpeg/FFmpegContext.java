@@ -26,9 +26,10 @@ import org.bytedeco.javacpp.avformat;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avformat.*;
@@ -37,14 +38,10 @@ import static org.bytedeco.javacpp.avutil.*;
 public class FFmpegContext {
     private final static Logger logger = LogManager.getLogger(FFmpegContext.class);
 
-    private final static ReentrantReadWriteLock contextLock = new ReentrantReadWriteLock();
-    private final static ReentrantReadWriteLock writeLock = new ReentrantReadWriteLock();
-
-    private static FFmpegContext contextMap[] = new FFmpegContext[1025];
-    private static int nextReadCallbackAddress = 1;
-
-    private static FFmpegWriter writerMap[] = new FFmpegWriter[2049];
-    private static int nextWriteCallbackAddress = 1;
+    private final static FFmpegCallbackRegistry<FFmpegContext> contextMap =
+            new FFmpegCallbackRegistry<>("context", 1024);
+    private final static FFmpegCallbackRegistry<FFmpegWriter> writerMap =
+            new FFmpegCallbackRegistry<>("writer", 2048);
 
     public final Pointer OPAQUE;
     protected Pointer writerOpaque;
@@ -97,9 +94,18 @@ public class FFmpegContext {
     protected String outputFilename2;
     protected int desiredProgram;
 
+    // The key used to find this channel in the detection cache and the cached results if the
+    // streams were confirmed to be the same as the last time the channel was detected.
+    protected String detectionKey;
+    protected FFmpegDetectionCache.Entry detectionEntry;
+
     OutputStreamMap streamMap[];
     OutputStreamMap streamMap2[];
 
+    // Additional outputs sharing the same demuxing and decoding as the primary output.
+    protected final List<FFmpegRendition> renditions = new ArrayList<>();
+    private List<FFmpegRendition> switchRenditions = null;
+
     static {
         FFmpegUtil.initAll();
     }
@@ -175,134 +181,77 @@ public class FFmpegContext {
     }
 
     public static FFmpegContext getContext(Pointer opaque) {
-        FFmpegContext returnValue;
-
-        contextLock.readLock().lock();
-
-        try {
-            returnValue = contextMap[(int)opaque.address()];
-        } finally {
-            contextLock.readLock().unlock();
-        }
-
-        return returnValue;
+        return contextMap.get(opaque.address());
     }
 
     private Pointer setContext() {
-        Pointer opaque;
-
-        contextLock.writeLock().lock();
-
-        try {
-            opaque = new Pointer(new FFmpegContextPointer(this));
-        } finally {
-            contextLock.writeLock().unlock();
-        }
-
-        return opaque;
+        return new Pointer(new FFmpegContextPointer(this));
     }
 
     public static FFmpegWriter getWriterContext(Pointer opaque) {
-        FFmpegWriter returnValue;
-
-        writeLock.readLock().lock();
-
-        try {
-            returnValue = writerMap[(int)opaque.address()];
-        } finally {
-            writeLock.readLock().unlock();
-        }
-
-        return returnValue;
+        return writerMap.get(opaque.address());
     }
 
     public void setEncodeProfile(FFmpegProfile profile) {
         encodeProfile = profile;
     }
 
-    private Pointer setWriterContext(FFmpegWriter writer) {
-        Pointer opaque;
-
-        writeLock.writeLock().lock();
-
-        try {
-            opaque = new Pointer(new FFmpegWriterPointer(writer));
-        } finally {
-            writeLock.writeLock().unlock();
-        }
-
-        return opaque;
+    /**
+     * Add an output that will be encoded from the same decoded video as the primary output.
+     * <p/>
+     * Renditions must be added before the stream output is initialized.
+     *
+     * @param rendition The rendition to add.
+     */
+    public void addRendition(FFmpegRendition rendition) {
+        renditions.add(rendition);
     }
 
-    public void removeWriterContext(Pointer opaque) {
-        writeLock.writeLock().lock();
-
-        try {
-            writerMap[(int)opaque.address()] = null;
-        } finally {
-            writeLock.writeLock().unlock();
-        }
+    public List<FFmpegRendition> getRenditions() {
+        return renditions;
     }
 
-    private static long getFFmpegCallbackAddress(FFmpegContext context) {
-
-        int startingIndex = nextReadCallbackAddress;
-
-        while (contextMap[nextReadCallbackAddress] != null) {
-            nextReadCallbackAddress++;
-
-            if (nextReadCallbackAddress >= contextMap.length) {
-                nextReadCallbackAddress = 1;
-            }
+    /**
+     * Set the renditions that replace the current renditions on the next SWITCH.
+     * <p/>
+     * This must be set before the SWITCH is requested. If the SWITCH doesn't use them, the caller
+     * is responsible for closing anything {@link #takeSwitchRenditions()} still returns.
+     *
+     * @param renditions The new renditions. This can be empty to end the current renditions.
+     */
+    public synchronized void setSwitchRenditions(List<FFmpegRendition> renditions) {
+        switchRenditions = renditions;
+    }
 
-            if (nextReadCallbackAddress == startingIndex) {
-                FFmpegContext newContextMap[] = new FFmpegContext[contextMap.length * 2];
-                System.arraycopy(contextMap, 0, newContextMap, 0, contextMap.length);
-                contextMap = newContextMap;
+    /**
+     * Take the renditions set for the next SWITCH.
+     *
+     * @return The renditions or an empty list if there aren't any or they were already taken.
+     */
+    public synchronized List<FFmpegRendition> takeSwitchRenditions() {
+        List<FFmpegRendition> returnValue = switchRenditions;
+        switchRenditions = null;
 
-                if (newContextMap.length > 4096) {
-                    logger.warn("The FFmpeg context map is now {}.", newContextMap.length);
-                }
-            }
-        }
+        return returnValue != null ? returnValue : new ArrayList<FFmpegRendition>();
+    }
 
-        contextMap[nextReadCallbackAddress] = context;
+    private Pointer setWriterContext(FFmpegWriter writer) {
+        return new Pointer(new FFmpegWriterPointer(writer));
+    }
 
-        return nextReadCallbackAddress;
+    public void removeWriterContext(Pointer opaque) {
+        writerMap.unregister(opaque.address());
     }
 
     private class FFmpegContextPointer extends Pointer {
         public FFmpegContextPointer(FFmpegContext context) {
-            address = getFFmpegCallbackAddress(context);
-        }
-    }
-
-    private static long getFFmpegWriterCallbackAddress(FFmpegWriter context) {
-
-        int startingIndex = nextWriteCallbackAddress;
-
-        while (writerMap[nextWriteCallbackAddress] != null) {
-            nextWriteCallbackAddress++;
-
-            if (nextWriteCallbackAddress >= writerMap.length) {
-                nextWriteCallbackAddress = 1;
-            }
-
-            if (nextWriteCallbackAddress == startingIndex) {
-                FFmpegWriter newWriterMap[] = new FFmpegWriter[writerMap.length * 2];
-                System.arraycopy(writerMap, 0, newWriterMap, 0, writerMap.length);
-                writerMap = newWriterMap;
-            }
+            address = contextMap.register(context);
         }
-
-        writerMap[nextWriteCallbackAddress] = context;
-
-        return nextWriteCallbackAddress;
     }
 
     private class FFmpegWriterPointer extends Pointer {
         public FFmpegWriterPointer(FFmpegWriter context) {
-            address = getFFmpegWriterCallbackAddress(context);
+            address = writerMap.register(context);
         }
     }
 
@@ -324,6 +273,11 @@ public class FFmpegContext {
      */
     public void interrupt() {
         interrupted = true;
+
+        // Don't make FFmpeg wait for a read timeout before it sees the interrupt.
+        if (SEEK_BUFFER != null) {
+            SEEK_BUFFER.wakeReader();
+        }
     }
 
     protected static final avformat.AVIOInterruptCB.Callback_Pointer interruptCallback = new InterruptCallable();
@@ -372,8 +326,6 @@ public class FFmpegContext {
     protected static class ReadCallback extends Read_packet_Pointer_BytePointer_int {
         @Override
         public int call(Pointer opaque, BytePointer buf, int bufSize) {
-
-            opaque.address();
             FFmpegContext context = getContext(opaque);
 
             int nBytes = -1;
@@ -391,12 +343,12 @@ public class FFmpegContext {
                     }
 
                     if (!context.SEEK_BUFFER.isNoWrap()) {
-                        context.SEEK_BUFFER.waitForBytes();
-
-                        while (context.SEEK_BUFFER.readAvailable() < context.minRead  &&
-                                !context.isInterrupted()) {
+                        // This returns as soon as enough data is available, the buffer is closed
+                        // or this context is interrupted.
+                        int available = context.SEEK_BUFFER.waitForBytes(context.minRead, 500);
 
-                            Thread.sleep(25);
+                        while (available < context.minRead && !context.isInterrupted()) {
+                            available = context.SEEK_BUFFER.waitForBytes(context.minRead, 500);
                         }
 
                         nBytes = context.SEEK_BUFFER.read(context.readBuffer);
@@ -404,13 +356,14 @@ public class FFmpegContext {
                         // Smaller chunks of data are ok for initialization.
 
                         // Limit the time spent here to 2000ms at most.
-                        int passes = 80;
+                        long timeout = System.currentTimeMillis() + 2000;
+                        long remaining = 2000;
 
-                        while (passes-- > 0 &&
-                                context.SEEK_BUFFER.readAvailable() < context.minRead &&
+                        while (remaining > 0 &&
+                                context.SEEK_BUFFER.waitForBytes(context.minRead, remaining) < context.minRead &&
                                 !context.isInterrupted()) {
 
-                            Thread.sleep(25);
+                            remaining = timeout - System.currentTimeMillis();
                         }
 
                         // When the buffer is frozen, new data will never be added to the
@@ -811,6 +764,41 @@ public class FFmpegContext {
         }
     }
 
+    /**
+     * Create a new output AVFormatContext for a rendition and assign it the rendition's writer.
+     * This method only allows for MPEG-TS (default) and MPEG-PS (*.mpg) if the codec ID is
+     * compatible.
+     *
+     * @param rendition The rendition to allocate the output context for.
+     * @param codecId The codec ID to be used to determine if an MPEG-PS container can be used.
+     * @throws FFmpegException Thrown if any of the contexts cannot be allocated. The rendition
+     *                         output context is de-allocated on exception.
+     */
+    public void allocRenditionOutputContext(FFmpegRendition rendition, int codecId) throws FFmpegException {
+        rendition.avfCtxOutput = new AVFormatContext(null);
+
+        boolean isMpeg = codecId == AV_CODEC_ID_MPEG1VIDEO || codecId == AV_CODEC_ID_MPEG2VIDEO;
+
+        int ret;
+        if (rendition.FILENAME.endsWith(".mpg") && isMpeg) {
+            ret = avformat_alloc_output_context2(rendition.avfCtxOutput, null, "vob", null);
+        } else {
+            ret = avformat_alloc_output_context2(rendition.avfCtxOutput, null, null, "output.ts");
+        }
+
+        if (ret < 0) {
+            rendition.avfCtxOutput = null;
+            throw new FFmpegException("avformat_alloc_output_context2 returned error code ", ret);
+        }
+
+        try {
+            rendition.writerOpaque = allocCustomIoOutputContext(rendition.WRITER, rendition.avfCtxOutput);
+        } catch (FFmpegException e) {
+            deallocRenditionOutputContext(rendition);
+            throw e;
+        }
+    }
+
     /**
      * Allocates output AVIOContext and assigns it a write callback.
      * <p/>
@@ -1043,6 +1031,41 @@ public class FFmpegContext {
         }
     }
 
+    public void deallocRenditionOutputContext(FFmpegRendition rendition) {
+        if (rendition.writerOpaque != null) {
+            removeWriterContext(rendition.writerOpaque);
+            rendition.writerOpaque = null;
+        }
+
+        if (rendition.avfCtxOutput != null && !rendition.avfCtxOutput.isNull()) {
+
+            logger.debug("avcodec_close");
+            int numStreams = rendition.avfCtxOutput.nb_streams();
+            for (int idx = 0; idx < numStreams; ++idx) {
+                if (rendition.avfCtxOutput.streams(idx) != null &&
+                        rendition.avfCtxOutput.streams(idx).codec() != null) {
+
+                    avcodec_close(rendition.avfCtxOutput.streams(idx).codec());
+                }
+            }
+
+            for (OutputStreamMap aStreamMap : rendition.streamMap) {
+                aStreamMap.iCodec = null;
+
+                if (aStreamMap.iDict != null && !aStreamMap.iDict.isNull()) {
+                    logger.debug("Calling av_dict_free");
+                    av_dict_free(aStreamMap.iDict);
+                }
+                aStreamMap.iDict = null;
+            }
+
+            logger.debug("avformat_free_context");
+            avformat_free_context(rendition.avfCtxOutput);
+        }
+
+        rendition.avfCtxOutput = null;
+    }
+
     /**
      * De-allocates any objects that may be allocated.
      */
@@ -1050,6 +1073,10 @@ public class FFmpegContext {
         deallocInputContext();
         deallocOutputContext();
         deallocOutputContext2();
+
+        for (FFmpegRendition rendition : renditions) {
+            deallocRenditionOutputContext(rendition);
+        }
     }
 
     public int getProgram() {
@@ -1060,6 +1087,22 @@ public class FFmpegContext {
         this.desiredProgram = desiredProgram;
     }
 
+    public String getDetectionKey() {
+        return detectionKey;
+    }
+
+    /**
+     * Set the key used to cache the stream detection results.
+     * <p/>
+     * This must be set before stream detection to be used.
+     *
+     * @param detectionKey The key from {@link FFmpegDetectionCache#getKey(String, String)} or
+     *                     <i>null</i> to always perform a full stream detection.
+     */
+    public void setDetectionKey(String detectionKey) {
+        this.detectionKey = detectionKey;
+    }
+
     /**
      * This releases anything that could lead to a memory leak from this context.
      * <p/>
@@ -1068,13 +1111,7 @@ public class FFmpegContext {
      */
     public synchronized void dispose() {
         if (!disposed) {
-            contextLock.writeLock().lock();
-
-            try {
-                contextMap[(int)OPAQUE.address()] = null;
-            } finally {
-                contextLock.writeLock().unlock();
-            }
+            contextMap.unregister(OPAQUE.address());
 
             if (writerOpaque != null) {
                 removeWriterContext(writerOpaque);
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import opendct.config.ConfigBag;
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers the results of stream detection for each channel.
+ * <p/>
+ * Most channels never change their program or codecs, so when a channel is tuned again, stream
+ * detection only needs a probe large enough to confirm the streams are the same as last time.
+ * The results are saved in <i>ffmpeg_detection.properties</i> so they are still available after
+ * a restart.
+ */
+public class FFmpegDetectionCache {
+    private static final Logger logger = LogManager.getLogger(FFmpegDetectionCache.class);
+
+    public static final int INTERLACED_UNKNOWN = -1;
+    public static final int INTERLACED_NO = 0;
+    public static final int INTERLACED_YES = 1;
+
+    private static final ConfigBag cache = new ConfigBag("ffmpeg_detection", false);
+    private static final AtomicBoolean savePending = new AtomicBoolean(false);
+    private static volatile boolean loaded;
+
+    /**
+     * Create the key used to look up a channel.
+     *
+     * @param lineup The name of the lineup the channel belongs to or <i>null</i> if it is not
+     *               known.
+     * @param channel The channel.
+     * @return The key or <i>null</i> if the channel is not known.
+     */
+    public static String getKey(String lineup, String channel) {
+        if (channel == null || channel.length() == 0) {
+            return null;
+        }
+
+        if (lineup == null || lineup.length() == 0) {
+            return channel;
+        }
+
+        return lineup + "/" + channel;
+    }
+
+    /**
+     * Get the cached detection results for a channel.
+     *
+     * @param key The key from {@link #getKey(String, String)}.
+     * @return The cached results or <i>null</i> if caching is disabled or the channel has not been
+     *         detected before.
+     */
+    public static Entry get(String key) {
+        if (key == null || !FFmpegConfig.getDetectionCache()) {
+            return null;
+        }
+
+        loadCache();
+
+        String signature = cache.getString(key + ".signature", null);
+
+        if (signature == null) {
+            return null;
+        }
+
+        Entry entry = new Entry(
+                cache.getInteger(key + ".program", 0),
+                signature,
+                cache.getLong(key + ".probe_size", 0),
+                cache.getLong(key + ".analyze_duration", 0));
+
+        entry.interlaced = cache.getInteger(key + ".interlaced", INTERLACED_UNKNOWN);
+
+        return entry;
+    }
+
+    /**
+     * Replace the cached detection results for a channel.
+     *
+     * @param key The key from {@link #getKey(String, String)}.
+     * @param entry The new detection results.
+     */
+    public static void put(String key, Entry entry) {
+        if (key == null || !FFmpegConfig.getDetectionCache()) {
+            return;
+        }
+
+        loadCache();
+
+        cache.setInteger(key + ".program", entry.program);
+        cache.setString(key + ".signature", entry.signature);
+        cache.setLong(key + ".probe_size", entry.probeSize);
+        cache.setLong(key + ".analyze_duration", entry.analyzeDuration);
+        cache.setInteger(key + ".interlaced", entry.interlaced);
+
+        saveCache();
+    }
+
+    /**
+     * Remember if the video on a channel is interlaced.
+     * <p/>
+     * This does nothing if the channel is not in the cache.
+     *
+     * @param key The key from {@link #getKey(String, String)}.
+     * @param interlaced <i>true</i> if the video is interlaced.
+     */
+    public static void setInterlaced(String key, boolean interlaced) {
+        if (key == null || !FFmpegConfig.getDetectionCache()) {
+            return;
+        }
+
+        loadCache();
+
+        if (cache.getString(key + ".signature", null) == null) {
+            return;
+        }
+
+        cache.setInteger(key + ".interlaced", interlaced ? INTERLACED_YES : INTERLACED_NO);
+
+        saveCache();
+    }
+
+    private static void loadCache() {
+        if (loaded) {
+            return;
+        }
+
+        synchronized (cache) {
+            if (!loaded) {
+                cache.loadConfig();
+                loaded = true;
+            }
+        }
+    }
+
+    private static void saveCache() {
+        // Several channels can be detected at the same time and none of them should need to wait
+        // for the file to be written.
+        if (!savePending.compareAndSet(false, true)) {
+            return;
+        }
+
+        Runnable saveTask = new Runnable() {
+            @Override
+            public void run() {
+                savePending.set(false);
+                cache.saveConfig();
+            }
+        };
+
+        try {
+            ThreadPool.submit(ThreadPool.Lane.BACKGROUND, saveTask, Thread.MIN_PRIORITY,
+                    "FFmpegDetectionCache", "Save");
+        } catch (RejectedExecutionException e) {
+            logger.debug("Unable to save the stream detection cache in the background => ", e);
+            saveTask.run();
+        }
+    }
+
+    /**
+     * The detection results for one channel.
+     */
+    public static class Entry {
+        /**
+         * The program number that was selected.
+         */
+        public final int program;
+
+        /**
+         * A description of the streams in the program. If this is different, the channel has
+         * changed.
+         */
+        public final String signature;
+
+        /**
+         * The probe size that detected all of the streams.
+         */
+        public final long probeSize;
+
+        /**
+         * The analyze duration that detected all of the streams.
+         */
+        public final long analyzeDuration;
+
+        /**
+         * If the video is interlaced. This is only known after the channel has been transcoded.
+         */
+        public int interlaced = INTERLACED_UNKNOWN;
+
+        public Entry(int program, String signature, long probeSize, long analyzeDuration) {
+            this.program = program;
+            this.signature = signature;
+            this.probeSize = probeSize;
+            this.analyzeDuration = analyzeDuration;
+        }
+    }
+}
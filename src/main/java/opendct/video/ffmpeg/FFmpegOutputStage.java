@@ -0,0 +1,442 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import opendct.consumer.buffers.DirectBufferPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Moves the output of a writer onto an I/O thread.
+ * <p/>
+ * Data is copied into a ring of direct buffers called slots. When a slot has at least the flush
+ * size in it, the slot is queued for the I/O thread and the next free slot is filled. The thread
+ * writing only waits when every slot is queued, so a short stall on a disk or a network
+ * connection doesn't stop the transcoder. A slot that isn't full enough is still queued after the
+ * flush time so data keeps moving when the stream is slow.
+ * <p/>
+ * The I/O thread is an {@link FFmpegOutputThread} that can be shared by several stages belonging to
+ * the same consumer. A stage that must never hold up the thread writing to it, such as closed
+ * captions or a rendition, can drop data instead of waiting when every slot is queued. If the I/O
+ * thread can't be started, the data is written on the calling thread instead. If the sink fails to write, the stage fails and everything written after that
+ * is rejected so the writer can report the failure.
+ */
+public class FFmpegOutputStage {
+    private static final Logger logger = LogManager.getLogger(FFmpegOutputStage.class);
+
+    public interface Sink {
+        /**
+         * Write the data on the I/O thread.
+         *
+         * @param buffer The data to write. All of the remaining bytes must be written or the
+         *               remaining bytes will be discarded.
+         * @throws IOException Thrown if the data could not be written. The data is discarded and
+         *                     the stage fails.
+         */
+        void write(ByteBuffer buffer) throws IOException;
+    }
+
+    private final String name;
+    private final Sink sink;
+    private final FFmpegOutputThread thread;
+    private final int flushBytes;
+    private final long flushNanos;
+    private final ByteBuffer slots[];
+    private final ArrayDeque<ByteBuffer> freeSlots;
+    private final ArrayDeque<ByteBuffer> queuedSlots;
+    private final Object lock;
+
+    private ByteBuffer fillSlot;
+    private long fillStartTime;
+    private boolean writing;
+    private boolean closed;
+    private boolean dropWhenFull;
+    private boolean dropping;
+
+    // These are only written by the thread writing to the sink.
+    private volatile long bytesWritten;
+    private volatile long writeErrors;
+    private volatile IOException failure;
+
+    // These are only written while holding the lock.
+    private volatile long blockedNanos;
+    private volatile long bytesDropped;
+    private volatile int highWater;
+
+    /**
+     * Create a new output stage with its own I/O thread.
+     *
+     * @param name The name of the stage used for logging and the thread name.
+     * @param sink The sink that writes the data.
+     * @param slotCount The number of slots in the ring. This cannot be less than 2.
+     * @param slotSize The size of each slot in bytes.
+     * @param flushBytes The number of bytes in a slot before it is queued to be written. A value
+     *                   of 1 queues every write.
+     * @param flushMs The longest time in milliseconds data can wait in a slot that isn't full
+     *                enough to be queued. A value of 0 waits until the slot is full enough.
+     */
+    public FFmpegOutputStage(String name, Sink sink, int slotCount, int slotSize, int flushBytes,
+                             long flushMs) {
+
+        this(new FFmpegOutputThread(name), name, sink, slotCount, slotSize, flushBytes, flushMs);
+    }
+
+    /**
+     * Create a new output stage.
+     *
+     * @param thread The I/O thread shared with the other stages of the same consumer.
+     * @param name The name of the stage used for logging.
+     * @param sink The sink that writes the data.
+     * @param slotCount The number of slots in the ring. This cannot be less than 2.
+     * @param slotSize The size of each slot in bytes.
+     * @param flushBytes The number of bytes in a slot before it is queued to be written. A value
+     *                   of 1 queues every write.
+     * @param flushMs The longest time in milliseconds data can wait in a slot that isn't full
+     *                enough to be queued. A value of 0 waits until the slot is full enough.
+     */
+    public FFmpegOutputStage(FFmpegOutputThread thread, String name, Sink sink, int slotCount,
+                             int slotSize, int flushBytes, long flushMs) {
+
+        this.thread = thread;
+        this.name = name;
+        this.sink = sink;
+        this.flushBytes = Math.max(1, Math.min(flushBytes, slotSize));
+        this.flushNanos = Math.max(0, flushMs) * 1000000;
+
+        lock = thread.lock;
+        slots = new ByteBuffer[Math.max(2, slotCount)];
+        freeSlots = new ArrayDeque<>(slots.length);
+        queuedSlots = new ArrayDeque<>(slots.length);
+
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = DirectBufferPool.acquire(slotSize, "FFmpegOutputStage");
+            freeSlots.add(slots[i]);
+        }
+    }
+
+    /**
+     * Start writing on the I/O thread.
+     * <p/>
+     * The thread is only started if it isn't already running for another stage.
+     *
+     * @param postPend Usually the name of the file being written.
+     * @return <i>true</i> if the thread is running. Otherwise data is written on the calling
+     *         thread.
+     */
+    public boolean start(String postPend) {
+        return thread.add(this, postPend);
+    }
+
+    /**
+     * Drop data instead of waiting when every slot is waiting to be written.
+     * <p/>
+     * This is for outputs that share the thread writing to them with more important outputs. The
+     * dropped data is counted and writes still report that every byte was accepted.
+     *
+     * @param dropWhenFull <i>true</i> to drop data instead of waiting.
+     */
+    public void setDropWhenFull(boolean dropWhenFull) {
+        synchronized (lock) {
+            this.dropWhenFull = dropWhenFull;
+        }
+    }
+
+    /**
+     * Copy data into the stage.
+     * <p/>
+     * This only waits if every slot is waiting to be written.
+     *
+     * @param data The data to write. The position is moved to the limit.
+     * @return The number of bytes accepted or -1 if the stage is closed or has failed.
+     */
+    public int write(ByteBuffer data) {
+        int length = data.remaining();
+
+        synchronized (lock) {
+            if (closed || failure != null) {
+                return -1;
+            }
+
+            while (data.hasRemaining() && thread.isRunning()) {
+                if (fillSlot == null) {
+                    if (freeSlots.isEmpty() && dropWhenFull) {
+                        if (!dropping) {
+                            logger.warn("The {} output is not keeping up. Dropping data.", name);
+                            dropping = true;
+                        }
+
+                        bytesDropped += data.remaining();
+                        data.position(data.limit());
+                        break;
+                    }
+
+                    if (freeSlots.isEmpty()) {
+                        long startTime = System.nanoTime();
+
+                        try {
+                            while (freeSlots.isEmpty() && !closed && failure == null &&
+                                    thread.isRunning()) {
+
+                                lock.wait(500);
+                            }
+                        } catch (InterruptedException e) {
+                            logger.debug("Interrupted while waiting for a free {} slot.", name);
+                            Thread.currentThread().interrupt();
+                            return -1;
+                        } finally {
+                            blockedNanos += System.nanoTime() - startTime;
+                        }
+
+                        if (closed || failure != null) {
+                            return -1;
+                        }
+
+                        if (freeSlots.isEmpty()) {
+                            break;
+                        }
+                    }
+
+                    if (dropping) {
+                        logger.warn("The {} output is keeping up again. {} bytes have been" +
+                                " dropped.", name, bytesDropped);
+                        dropping = false;
+                    }
+
+                    fillSlot = freeSlots.poll();
+                    fillSlot.clear();
+                    fillStartTime = System.nanoTime();
+                }
+
+                // Moving the limit instead of slicing keeps this from allocating on every write.
+                int limit = data.limit();
+                data.limit(data.position() + Math.min(data.remaining(), fillSlot.remaining()));
+                fillSlot.put(data);
+                data.limit(limit);
+
+                if (fillSlot.position() >= flushBytes || !fillSlot.hasRemaining()) {
+                    queueFillSlot();
+                }
+            }
+
+            if (!data.hasRemaining()) {
+                return length;
+            }
+        }
+
+        // The I/O thread isn't running.
+        writeSink(data);
+
+        return failure == null ? length : -1;
+    }
+
+    /**
+     * Queue any data that hasn't been queued yet and wait for everything to be written.
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (fillSlot != null && fillSlot.position() > 0) {
+                queueFillSlot();
+            }
+
+            try {
+                while (thread.isRunning() && (writing || !queuedSlots.isEmpty())) {
+                    lock.wait(500);
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted while flushing the {} output.", name);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Write everything left in the stage, remove it from the I/O thread and return the slots to
+     * the pool.
+     * <p/>
+     * Anything written after this returns is discarded.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+
+            if (fillSlot != null && fillSlot.position() > 0) {
+                queueFillSlot();
+            }
+
+            closed = true;
+            lock.notifyAll();
+
+            while (thread.isRunning() && (writing || !queuedSlots.isEmpty())) {
+                try {
+                    lock.wait(500);
+                } catch (InterruptedException e) {
+                    logger.debug("Interrupted while waiting for the {} output to close.", name);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            thread.remove(this);
+
+            // If the sink is still writing, the slots can't safely be returned to the pool.
+            if (!writing) {
+                for (ByteBuffer slot : slots) {
+                    DirectBufferPool.release(slot);
+                }
+            }
+
+            freeSlots.clear();
+            queuedSlots.clear();
+            fillSlot = null;
+        }
+    }
+
+    /**
+     * Check if this stage has a slot to be written. This must be called by the I/O thread while
+     * holding the lock.
+     *
+     * @param now The current time from {@link System#nanoTime()}.
+     * @return <i>true</i> if there is a slot ready to be written.
+     */
+    protected boolean isReady(long now) {
+        if (writing) {
+            return false;
+        }
+
+        if (queuedSlots.isEmpty() && fillSlot != null && fillSlot.position() > 0 &&
+                (closed || (flushNanos > 0 && now - fillStartTime >= flushNanos))) {
+
+            queueFillSlot();
+        }
+
+        return !queuedSlots.isEmpty();
+    }
+
+    // These are only called by the I/O thread while holding the lock.
+    protected ByteBuffer takeSlot() {
+        writing = true;
+        return queuedSlots.poll();
+    }
+
+    protected void returnSlot(ByteBuffer slot) {
+        writing = false;
+        freeSlots.add(slot);
+    }
+
+    protected void threadStopped() {
+        if (failure == null) {
+            failure = new IOException("The " + name + " output thread stopped.");
+        }
+
+        freeSlots.addAll(queuedSlots);
+        queuedSlots.clear();
+    }
+
+    protected long getFlushWaitMs() {
+        return flushNanos > 0 ? Math.max(1, flushNanos / 2000000) : 500;
+    }
+
+    // This must be called while holding the lock.
+    private void queueFillSlot() {
+        fillSlot.flip();
+        queuedSlots.add(fillSlot);
+        fillSlot = null;
+
+        if (queuedSlots.size() > highWater) {
+            highWater = queuedSlots.size();
+        }
+
+        lock.notifyAll();
+    }
+
+    protected void writeSink(ByteBuffer buffer) {
+        int length = buffer.remaining();
+
+        // Anything after a failed write is discarded since the output is already incomplete.
+        if (failure != null) {
+            return;
+        }
+
+        try {
+            sink.write(buffer);
+            bytesWritten += length;
+        } catch (Exception e) {
+            writeErrors += 1;
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            logger.error("Unable to write {} bytes to the {} output => ", length, name, e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of bytes written by the sink.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return The total time in nanoseconds spent waiting for a free slot.
+     */
+    public long getBlockedNanos() {
+        return blockedNanos;
+    }
+
+    /**
+     * @return The number of bytes dropped because every slot was waiting to be written.
+     */
+    public long getBytesDropped() {
+        return bytesDropped;
+    }
+
+    /**
+     * @return The most slots that have been waiting to be written at the same time.
+     */
+    public int getHighWater() {
+        return highWater;
+    }
+
+    /**
+     * @return The number of writes that failed.
+     */
+    public long getWriteErrors() {
+        return writeErrors;
+    }
+
+    /**
+     * @return The exception that made the stage fail or <i>null</i> if it hasn't failed.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + bytesWritten + " bytes, " + blockedNanos / 1000000 + "ms blocked, " +
+                highWater + "/" + slots.length + " slots used, " + bytesDropped + " bytes dropped, " +
+                writeErrors + " errors";
+    }
+}
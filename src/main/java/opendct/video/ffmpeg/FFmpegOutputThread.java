@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One I/O thread shared by output stages.
+ * <p/>
+ * A consumer gives one of these to the stages for its recording, including the next output after
+ * a SWITCH, and another to the stages for closed captions and renditions, so a slow secondary
+ * output never holds up the recording. The stages on a thread take turns writing one slot at a
+ * time. The thread is started when the
+ * first stage is added and stops on its own when the last stage is closed.
+ */
+public class FFmpegOutputThread implements Runnable {
+    private static final Logger logger = LogManager.getLogger(FFmpegOutputThread.class);
+
+    private final String name;
+    private final List<FFmpegOutputStage> stages = new ArrayList<>();
+
+    // Every stage using this thread shares this lock.
+    protected final Object lock = new Object();
+
+    private int nextStage;
+    private boolean running;
+
+    /**
+     * Create a new output thread.
+     *
+     * @param name The name used for logging and the thread name.
+     */
+    public FFmpegOutputThread(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Add a stage and start the thread if it isn't already running.
+     *
+     * @param stage The stage to add.
+     * @param postPend Usually the name of the file being written.
+     * @return <i>true</i> if the thread is running.
+     */
+    protected boolean add(FFmpegOutputStage stage, String postPend) {
+        synchronized (lock) {
+            if (!stages.contains(stage)) {
+                stages.add(stage);
+            }
+
+            if (running) {
+                return true;
+            }
+
+            running = true;
+        }
+
+        try {
+            ThreadPool.submit(ThreadPool.Lane.STREAMING, this, Thread.NORM_PRIORITY,
+                    "FFmpegOutputThread-" + name, postPend);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Unable to start the {} output thread. Writing directly => ", name, e);
+
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove a stage. This must be called while holding the lock.
+     *
+     * @param stage The stage to remove.
+     */
+    protected void remove(FFmpegOutputStage stage) {
+        stages.remove(stage);
+        lock.notifyAll();
+    }
+
+    /**
+     * This must be called while holding the lock.
+     *
+     * @return <i>true</i> if the thread is running.
+     */
+    protected boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        FFmpegOutputStage stage;
+        ByteBuffer slot;
+
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while ((stage = nextReadyStage()) == null) {
+                        if (stages.isEmpty()) {
+                            running = false;
+                            lock.notifyAll();
+                            return;
+                        }
+
+                        lock.wait(getWaitMs());
+                    }
+
+                    slot = stage.takeSlot();
+                }
+
+                stage.writeSink(slot);
+
+                synchronized (lock) {
+                    stage.returnSlot(slot);
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("The {} output thread was interrupted.", name);
+        } finally {
+            synchronized (lock) {
+                // Nothing queued will ever be written, so every stage needs to fail.
+                if (running) {
+                    running = false;
+
+                    for (FFmpegOutputStage remainingStage : stages) {
+                        remainingStage.threadStopped();
+                    }
+                }
+
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // This must be called while holding the lock.
+    private FFmpegOutputStage nextReadyStage() {
+        long now = System.nanoTime();
+        int size = stages.size();
+
+        for (int i = 0; i < size; i++) {
+            FFmpegOutputStage stage = stages.get((nextStage + i) % size);
+
+            if (stage.isReady(now)) {
+                // The next search starts after this stage so every stage gets a turn.
+                nextStage = (nextStage + i + 1) % size;
+                return stage;
+            }
+        }
+
+        return null;
+    }
+
+    // This must be called while holding the lock.
+    private long getWaitMs() {
+        long waitMs = 500;
+
+        for (FFmpegOutputStage stage : stages) {
+            waitMs = Math.min(waitMs, stage.getFlushWaitMs());
+        }
+
+        return waitMs;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -45,6 +45,8 @@ public class FFmpegProfile extends ConfigBag {
     private String friendlyName;
     private String description;
     private boolean profileDisabled;
+    private String downgradeProfile;
+    private String renditions[];
 
     private boolean interlacedOnly;
     private boolean progressiveOnly;
@@ -92,6 +94,8 @@ public class FFmpegProfile extends ConfigBag {
         friendlyName = getString(generalConf + "friendly_name", friendlyName);
         profileDisabled = getBoolean(generalConf + "disable", true);
         description = getString(generalConf + "description", friendlyName);
+        downgradeProfile = getString(generalConf + "downgrade_profile", "");
+        renditions = getStringArray(generalConf + "renditions", "");
 
         gtHeight = getInteger(videoConf + "t.allow_gt_h", 0);
         gtWidth = getInteger(videoConf + "t.allow_gt_w", 0);
@@ -147,6 +151,24 @@ public class FFmpegProfile extends ConfigBag {
                 (eqHeight == 0 || eqHeight == height) && (eqWidth == 0 || eqWidth == width);
     }
 
+    /**
+     * Get the lighter profile to use when there isn't enough CPU available for this profile.
+     *
+     * @return The name of the profile or <i>null</i> if there isn't a lighter profile.
+     */
+    public String getDowngradeProfile() {
+        return downgradeProfile.length() > 0 ? downgradeProfile : null;
+    }
+
+    /**
+     * Get the profiles used to create additional recordings from the same decoded video.
+     *
+     * @return The names of the profiles. This will be empty if there are no renditions.
+     */
+    public String[] getRenditions() {
+        return renditions;
+    }
+
     public boolean canTranscodeVideo(boolean interlaced, String decoderCodec, int height, int width) {
         if (profileDisabled) {
             logger.debug("canTranscodeVideo: Profile disabled." +
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.avformat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An additional output created from the same demuxed and decoded stream as the primary output.
+ * <p/>
+ * The video is encoded using the rendition's own profile and every other stream in the primary
+ * output is copied. A rendition belongs to one primary recording. When the primary output is
+ * switched to a new file, the rendition is ended and a new one is started that is named after the
+ * new file.
+ * <p/>
+ * SageTV doesn't know about renditions, so they are not deleted with the recording they were
+ * created from. Every rendition created is recorded in a manifest and
+ * {@link #cleanupManifest(boolean)} finds the ones left behind.
+ */
+public class FFmpegRendition {
+    private static final Logger logger = LogManager.getLogger(FFmpegRendition.class);
+
+    private static final String MANIFEST_FILENAME =
+            Config.CONFIG_DIR + Config.DIR_SEPARATOR + "renditions.manifest";
+    private static final Object manifestLock = new Object();
+
+    public final FFmpegProfile PROFILE;
+    public final String FILENAME;
+    public final FFmpegWriter WRITER;
+
+    // These are left protected because a getter and setter will just add latency.
+    protected avformat.AVFormatContext avfCtxOutput;
+    protected Pointer writerOpaque;
+    protected OutputStreamMap streamMap[];
+    protected Map<String, String> videoEncodeSettings;
+    protected FFmpegTranscoder.FilteringContext videoFilter;
+    protected boolean interlaced;
+
+    /**
+     * Create a new rendition.
+     *
+     * @param profile The profile used to encode the video.
+     * @param filename The name of the file being written. This is only a hint to the muxer about
+     *                 what file format is desired.
+     * @param writer The writer used for output. This writer is closed when the rendition ends.
+     */
+    public FFmpegRendition(FFmpegProfile profile, String filename, FFmpegWriter writer) {
+        PROFILE = profile;
+        FILENAME = filename;
+        WRITER = writer;
+
+        streamMap = new OutputStreamMap[0];
+        videoEncodeSettings = new HashMap<>();
+    }
+
+    /**
+     * Create the filename for a rendition based on the filename of the primary output.
+     * <p/>
+     * The name of the profile is added before the extension, so <i>Show-1234-0.ts</i> with the
+     * profile <i>mobile</i> becomes <i>Show-1234-0-mobile.ts</i>.
+     *
+     * @param filename The filename of the primary output.
+     * @param profileName The name of the profile used by the rendition.
+     * @return The filename for the rendition.
+     */
+    public static String getFilename(String filename, String profileName) {
+        int extIndex = filename.lastIndexOf('.');
+        int separatorIndex = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\'));
+
+        if (extIndex <= separatorIndex + 1) {
+            return filename + "-" + profileName;
+        }
+
+        return filename.substring(0, extIndex) + "-" + profileName + filename.substring(extIndex);
+    }
+
+    /**
+     * Record that a rendition was created.
+     * <p/>
+     * Only renditions in this manifest are ever considered by {@link #cleanupManifest(boolean)},
+     * so files that OpenDCT didn't create are never touched.
+     *
+     * @param renditionFilename The filename of the rendition.
+     * @param primaryFilename The filename of the primary output the rendition was created from.
+     */
+    public static void addToManifest(String renditionFilename, String primaryFilename) {
+        String line = new File(renditionFilename).getAbsolutePath() + "\t" +
+                new File(primaryFilename).getAbsolutePath();
+
+        synchronized (manifestLock) {
+            try {
+                Files.write(Paths.get(MANIFEST_FILENAME), Collections.singletonList(line),
+                        StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                logger.warn("Unable to add the rendition '{}' to '{}' => ",
+                        renditionFilename, MANIFEST_FILENAME, e);
+            }
+        }
+    }
+
+    /**
+     * Look for renditions in the manifest that no longer have a primary recording.
+     * <p/>
+     * A rendition whose primary recording doesn't exist could have been left behind when SageTV
+     * deleted the recording, but it could also belong to a recording that was moved or archived.
+     * Unless deleting is enabled, these renditions are only logged. Renditions that no longer exist
+     * are removed from the manifest.
+     *
+     * @param delete <i>true</i> to delete the renditions without a primary recording.
+     * @return The number of renditions without a primary recording that are still on disk.
+     */
+    public static int cleanupManifest(boolean delete) {
+        synchronized (manifestLock) {
+            Path manifest = Paths.get(MANIFEST_FILENAME);
+
+            if (!Files.exists(manifest)) {
+                return 0;
+            }
+
+            List<String> lines;
+
+            try {
+                lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                logger.warn("Unable to read '{}' => ", MANIFEST_FILENAME, e);
+                return 0;
+            }
+
+            List<String> keepLines = new ArrayList<>(lines.size());
+            int orphans = 0;
+
+            for (String line : lines) {
+                int tabIndex = line.indexOf('\t');
+
+                if (tabIndex < 0) {
+                    continue;
+                }
+
+                File rendition = new File(line.substring(0, tabIndex));
+                File primary = new File(line.substring(tabIndex + 1));
+
+                if (!rendition.exists()) {
+                    continue;
+                }
+
+                if (!primary.exists()) {
+                    if (delete) {
+                        if (rendition.delete()) {
+                            logger.info("Deleted the rendition '{}' because '{}' no longer exists.",
+                                    rendition, primary);
+                            continue;
+                        }
+
+                        logger.warn("Unable to delete the rendition '{}'.", rendition);
+                    } else {
+                        logger.info("The rendition '{}' can be deleted because '{}' no longer" +
+                                " exists.", rendition, primary);
+                    }
+
+                    orphans += 1;
+                }
+
+                keepLines.add(line);
+            }
+
+            if (keepLines.size() != lines.size()) {
+                try {
+                    Files.write(manifest, keepLines, StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    logger.warn("Unable to update '{}' => ", MANIFEST_FILENAME, e);
+                }
+            }
+
+            return orphans;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return PROFILE.CONFIG_NAME + " " + FILENAME;
+    }
+}
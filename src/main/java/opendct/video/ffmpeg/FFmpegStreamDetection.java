@@ -16,6 +16,8 @@
 
 package opendct.video.ffmpeg;
 
+import opendct.consumer.buffers.FFmpegCircularBufferNIO;
+import opendct.video.java.TsStreamDetector;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bytedeco.javacpp.IntPointer;
@@ -23,6 +25,10 @@ import org.bytedeco.javacpp.PointerPointer;
 import org.bytedeco.javacpp.avcodec;
 import org.bytedeco.javacpp.avutil;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import static opendct.video.ffmpeg.FFmpegUtil.*;
 import static org.bytedeco.javacpp.avformat.*;
 import static org.bytedeco.javacpp.avutil.*;
@@ -30,12 +36,24 @@ import static org.bytedeco.javacpp.avutil.*;
 public class FFmpegStreamDetection {
     private static final Logger logger = LogManager.getLogger(FFmpegStreamDetection.class);
 
+    // How long Java stream detection waits for the PMT of the program after data starts arriving.
+    private static final long JAVA_PROGRAM_TIMEOUT_MS = 2000;
+
     /**
      * Detect at least one video and all audio streams for a program.
      * <p/>
      * If the FFmpeg context provided has a desired program in it, this detection method will focus
      * on getting at least one video and all audio streams in that program. Otherwise it will return
      * a best effort after exhausting the maximum probe size.
+     * <p/>
+     * If the context has a detection key and the channel is in the detection cache, the first
+     * probe uses the probe size that was needed the last time and only confirms that the streams
+     * have not changed. If they have changed, a full detection is performed.
+     * <p/>
+     * Otherwise the PAT, PMT and stream headers are read in Java first, so the program is known
+     * and the first probe is large enough to contain a video and an audio stream. Details FFmpeg
+     * didn't find for those streams are filled in from the headers found in Java. If Java
+     * detection doesn't finish, FFmpeg probing is used on its own.
      *
      * @param ctx The FFmpeg context to be used for the stream detection.
      * @param nativeFilename The filename to be read if native mode is enabled. Otherwise this can
@@ -76,13 +94,67 @@ public class FFmpegStreamDetection {
         long dynamicAnalyzeDuration = 2000000; // 2 Seconds
         final long probeSizeLimit = Math.max(ctx.getProbeMaxSize() - 1123474, 1123474);
 
+        // The cache is only used for live streams since files are not tied to a channel.
+        final int originalProgram = ctx.desiredProgram;
+        FFmpegDetectionCache.Entry cachedEntry = null;
+        boolean confirming = false;
+        ctx.detectionEntry = null;
+
+        if (ctx.inputFileMode == FFmpegContext.FILE_MODE_MPEGTS) {
+            cachedEntry = FFmpegDetectionCache.get(ctx.detectionKey);
+
+            if (cachedEntry != null && cachedEntry.program > 0 &&
+                    (originalProgram <= 0 || originalProgram == cachedEntry.program)) {
+
+                logger.info("Confirming the cached streams for {} using program {}.",
+                        ctx.detectionKey, cachedEntry.program);
+
+                confirming = true;
+                ctx.desiredProgram = cachedEntry.program;
+                // 188 is added to the probe size before it is used.
+                dynamicProbeSize = Math.max(minProbeSize, cachedEntry.probeSize - 188);
+
+                if (cachedEntry.analyzeDuration > 0) {
+                    dynamicAnalyzeDuration = cachedEntry.analyzeDuration;
+                }
+            } else {
+                cachedEntry = null;
+            }
+        }
+
         ctx.SEEK_BUFFER.setNoWrap(true);
 
+        TsStreamDetector javaStreams = null;
+
+        if (cachedEntry == null && ctx.inputFileMode == FFmpegContext.FILE_MODE_MPEGTS &&
+                FFmpegConfig.getJavaDetection()) {
+
+            TsStreamDetector detector = detectJavaStreams(ctx, probeSizeLimit);
+
+            if (detector == null || ctx.isInterrupted()) {
+                error[0] = FFMPEG_INIT_INTERRUPTED;
+                return false;
+            }
+
+            if (detector.isComplete()) {
+                if (ctx.desiredProgram <= 0) {
+                    ctx.desiredProgram = detector.getProgram();
+                }
+
+                javaStreams = detector;
+
+                // 188 is added to the probe size before it is used.
+                dynamicProbeSize = Math.max(minProbeSize, detector.getBytesNeeded() - 188);
+            }
+        }
+
         long startNanoTime = System.nanoTime();
+        long probeAnalyzeDuration;
 
         while (true) {
 
             int ret;
+            probeAnalyzeDuration = dynamicAnalyzeDuration;
 
             //
             // A new input AVFormatContext must be created for each avformat_find_stream_info probe or the JVM will crash.
@@ -160,6 +232,29 @@ public class FFmpegStreamDetection {
 
             logger.info("current container duration = {} seconds", duration / 1000000.0);
 
+            if (confirming) {
+                confirming = false;
+
+                String signature = ret < 0 ? null :
+                        getStreamSignature(ctx.avfCtxInput, ctx.desiredProgram);
+
+                if (signature == null || !signature.equals(cachedEntry.signature)) {
+                    logger.info("The streams for {} do not match the cached streams." +
+                            " Performing a full stream detection.", ctx.detectionKey);
+
+                    cachedEntry = null;
+                    ctx.desiredProgram = originalProgram;
+                    dynamicProbeSize = minProbeSize;
+                    dynamicAnalyzeDuration = 2000000;
+                    startNanoTime = System.nanoTime();
+
+                    ctx.deallocInputContext();
+                    continue;
+                }
+
+                logger.info("The streams for {} match the cached streams.", ctx.detectionKey);
+            }
+
             if (ret < 0) {
                 error[0] = "avformat_find_stream_info() failed with error code " + -ret + ".";
                 if (dynamicProbeSize == probeSizeLimit) {
@@ -171,6 +266,10 @@ public class FFmpegStreamDetection {
                 continue;
             }
 
+            if (javaStreams != null) {
+                applyJavaStreams(ctx.avfCtxInput, javaStreams);
+            }
+
             if (ctx.isInterrupted()) {
                 error[0] = FFMPEG_INIT_INTERRUPTED;
                 return false;
@@ -305,9 +404,227 @@ public class FFmpegStreamDetection {
 
         ctx.SEEK_BUFFER.setNoWrap(false);
 
+        if (cachedEntry != null) {
+            ctx.detectionEntry = cachedEntry;
+        } else if (ctx.inputFileMode == FFmpegContext.FILE_MODE_MPEGTS && ctx.desiredProgram > 0) {
+            String signature = getStreamSignature(ctx.avfCtxInput, ctx.desiredProgram);
+
+            if (signature != null) {
+                FFmpegDetectionCache.put(ctx.detectionKey, new FFmpegDetectionCache.Entry(
+                        ctx.desiredProgram, signature, dynamicProbeSize, probeAnalyzeDuration));
+            }
+        }
+
         long endTime = System.currentTimeMillis();
         logger.debug("FFmpeg stream detection done in {}ms,", endTime - startTime);
 
         return true;
     }
+
+    /**
+     * Describe the streams in a program so they can be compared with the cached streams.
+     * <p/>
+     * The description contains the PID, type and codec of each stream along with the video
+     * dimensions or audio channels and sample rate.
+     *
+     * @param ic The input context after stream detection.
+     * @param desiredProgram The program to describe.
+     * @return The description or <i>null</i> if the program was not found or is missing details
+     *         for any of its streams.
+     */
+    private static String getStreamSignature(AVFormatContext ic, int desiredProgram) {
+        if (!FFmpegUtil.findAllStreamsForDesiredProgram(ic, desiredProgram)) {
+            return null;
+        }
+
+        int numPrograms = ic.nb_programs();
+
+        for (int programIndex = 0; programIndex < numPrograms; programIndex++) {
+            AVProgram program = ic.programs(programIndex);
+
+            if (program == null || program.isNull() || program.id() != desiredProgram) {
+                continue;
+            }
+
+            IntPointer streamIndexes = program.stream_index();
+            int numStreamIndexes = program.nb_stream_indexes();
+            List<String> streams = new ArrayList<>(numStreamIndexes);
+
+            for (int i = 0; i < numStreamIndexes; i++) {
+                AVStream st = ic.streams(streamIndexes.get(i));
+                avcodec.AVCodecContext avctx = st.codec();
+
+                StringBuilder stream = new StringBuilder();
+                stream.append(st.id()).append(':')
+                        .append(avctx.codec_type()).append(':')
+                        .append(avctx.codec_id());
+
+                if (avctx.codec_type() == AVMEDIA_TYPE_VIDEO) {
+                    stream.append(':').append(avctx.width()).append('x').append(avctx.height());
+                } else if (avctx.codec_type() == AVMEDIA_TYPE_AUDIO) {
+                    stream.append(':').append(avctx.channels())
+                            .append('@').append(avctx.sample_rate());
+                }
+
+                streams.add(stream.toString());
+            }
+
+            Collections.sort(streams);
+
+            StringBuilder signature = new StringBuilder();
+
+            for (String stream : streams) {
+                if (signature.length() > 0) {
+                    signature.append(',');
+                }
+
+                signature.append(stream);
+            }
+
+            return signature.toString();
+        }
+
+        return null;
+    }
+
+    /**
+     * Fill in the stream details FFmpeg didn't find with the details from the stream headers found
+     * by the Java stream detection.
+     * <p/>
+     * FFmpeg often needs more data than the Java stream detection to find the same details, so
+     * this keeps FFmpeg from probing again only to find details that are already known.
+     *
+     * @param ic The input context after <b>avformat_find_stream_info()</b>.
+     * @param detector The completed Java stream detection.
+     */
+    private static void applyJavaStreams(AVFormatContext ic, TsStreamDetector detector) {
+        int numStreams = ic.nb_streams();
+
+        for (int i = 0; i < numStreams; i++) {
+            AVStream st = ic.streams(i);
+
+            if (st == null || st.isNull()) {
+                continue;
+            }
+
+            avcodec.AVCodecContext avctx = st.codec();
+
+            if (avctx == null || avctx.isNull()) {
+                continue;
+            }
+
+            for (TsStreamDetector.Stream stream : detector.getStreams()) {
+                if (stream.getPid() != st.id() || !stream.isHeaderFound()) {
+                    continue;
+                }
+
+                if (avctx.codec_type() == AVMEDIA_TYPE_VIDEO && stream.isVideo()) {
+                    if ((avctx.width() == 0 || avctx.height() == 0) && stream.getWidth() > 0) {
+                        logger.debug("Using {}x{} from the Java stream detection for PID {}.",
+                                stream.getWidth(), stream.getHeight(), stream.getPid());
+
+                        avctx.width(stream.getWidth());
+                        avctx.height(stream.getHeight());
+                    }
+
+                    if ((st.avg_frame_rate().num() == 0 || st.avg_frame_rate().den() == 0) &&
+                            stream.getFrameRate() > 0) {
+
+                        st.avg_frame_rate(av_d2q(stream.getFrameRate(), 100000));
+                    }
+                } else if (avctx.codec_type() == AVMEDIA_TYPE_AUDIO && stream.isAudio()) {
+                    if ((avctx.channels() == 0 || avctx.sample_rate() == 0) &&
+                            stream.getChannels() > 0 && stream.getSampleRate() > 0) {
+
+                        logger.debug("Using {} channels at {}Hz from the Java stream detection" +
+                                " for PID {}.", stream.getChannels(), stream.getSampleRate(),
+                                stream.getPid());
+
+                        avctx.channels(stream.getChannels());
+                        avctx.sample_rate(stream.getSampleRate());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the program and the headers of its streams in Java.
+     * <p/>
+     * The data is read from the start of the buffer and the read index is returned to where it
+     * was, so FFmpeg will probe the same data.
+     *
+     * @param ctx The FFmpeg context to be used for the stream detection.
+     * @param limit The maximum number of bytes to read.
+     * @return The detector or <i>null</i> if detection was interrupted.
+     */
+    private static TsStreamDetector detectJavaStreams(FFmpegContext ctx, long limit) {
+        long startTime = System.currentTimeMillis();
+        long timeout = FFmpegConfig.getNoProgramTimeout();
+        // The PAT and PMT repeat many times a second, so if they haven't been found shortly after
+        // the stream started, waiting longer is unlikely to help and FFmpeg should take over.
+        long programTimeout = -1;
+
+        FFmpegCircularBufferNIO buffer = ctx.SEEK_BUFFER;
+        TsStreamDetector detector = new TsStreamDetector(ctx.desiredProgram);
+        byte data[] = new byte[65536];
+        long startIndex = buffer.totalBytesReadIndex();
+
+        try {
+            while (!detector.isComplete() && !ctx.isInterrupted() &&
+                    detector.getBytesProcessed() < limit) {
+
+                long now = System.currentTimeMillis();
+                long remaining = timeout - (now - startTime);
+
+                if (detector.isProgramMissing()) {
+                    break;
+                }
+
+                if (!detector.isProgramFound() && programTimeout != -1) {
+                    remaining = Math.min(remaining, programTimeout - now);
+                }
+
+                if (remaining <= 0) {
+                    break;
+                }
+
+                if (buffer.waitForBytes(1, remaining) == 0) {
+                    if (buffer.isClosed()) {
+                        break;
+                    }
+
+                    continue;
+                }
+
+                int length = (int) Math.min(data.length, limit - detector.getBytesProcessed());
+                int read = buffer.read(data, 0, length);
+                detector.process(data, 0, read);
+
+                if (programTimeout == -1 && read > 0) {
+                    programTimeout = System.currentTimeMillis() + JAVA_PROGRAM_TIMEOUT_MS;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Java stream detection was interrupted => ", e);
+            return null;
+        } finally {
+            buffer.setReadIndex(startIndex);
+        }
+
+        if (detector.isComplete()) {
+            logger.info("Java stream detection found program {} in {}ms using {} bytes: {}",
+                    detector.getProgram(), System.currentTimeMillis() - startTime,
+                    detector.getBytesNeeded(), detector.getStreams());
+        } else if (!detector.isProgramFound()) {
+            logger.info("Java stream detection did not find the program in {}ms using {} bytes." +
+                    " Using FFmpeg probing only.", System.currentTimeMillis() - startTime,
+                    detector.getBytesProcessed());
+        } else {
+            logger.info("Java stream detection did not find a video and an audio stream in {} bytes." +
+                    " Using FFmpeg probing only.", detector.getBytesProcessed());
+        }
+
+        return detector;
+    }
 }
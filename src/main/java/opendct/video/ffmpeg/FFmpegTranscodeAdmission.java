@@ -0,0 +1,386 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides if a new transcode can start based on how well the running transcodes are doing.
+ * <p/>
+ * Every running transcode reports how much video it has encoded. Since the source is live, a
+ * transcode that is keeping up never gets further behind real time than it was at its best. The
+ * lag is how much further behind it is now. Timestamps arriving in bursts only make the lag jitter
+ * a little, but a transcode that can't keep up has a lag that keeps growing. When the lag of any
+ * transcode is over the limit, new transcodes are only remuxed. When the CPU is busy or the total
+ * weight of the running transcodes is over the limit, new transcodes use a lighter profile if one
+ * is available. When the CPU is mostly idle, the weight limit is allowed to be exceeded.
+ * <p/>
+ * The CPU load is sampled every second and smoothed, so a decision always reflects the last few
+ * seconds no matter how long it has been since the previous decision.
+ */
+public class FFmpegTranscodeAdmission {
+    private static final Logger logger = LogManager.getLogger(FFmpegTranscodeAdmission.class);
+
+    // Timestamps that move further than this in either direction from one frame to the next are a
+    // discontinuity and not progress.
+    private static final long DISCONTINUITY_MS = 10000;
+    private static final int MAX_DECISIONS = 50;
+
+    private static final long CPU_SAMPLE_MS = 1000;
+    // The weight of each new sample. This smooths out single busy samples over about 3 seconds.
+    private static final double CPU_SMOOTHING = 0.3;
+
+    private static final Object cpuSamplerLock = new Object();
+    private static boolean cpuSamplerStarted;
+    private static volatile double smoothedCpuLoad = -1;
+
+    public enum Decision {
+        /**
+         * Transcode with the requested profile.
+         */
+        ADMIT,
+
+        /**
+         * Transcode with the lighter profile.
+         */
+        DOWNGRADE,
+
+        /**
+         * Do not transcode.
+         */
+        REMUX
+    }
+
+    private final int weightLimit;
+    private final long maxLagMs;
+    private final double maxCpuLoad;
+    private final double overcommitCpuLoad;
+
+    // Progress updates look up jobs without taking the monitor.
+    private final Map<Object, Job> jobs = new ConcurrentHashMap<>();
+    private final ArrayDeque<DecisionRecord> decisions = new ArrayDeque<>();
+    private int weightUsed;
+
+    /**
+     * Create a new admission controller.
+     *
+     * @param weightLimit The total weight of transcodes allowed to run at the same time.
+     * @param maxLagMs The most a transcode can fall behind real time in milliseconds before it is
+     *                 considered to be falling behind.
+     * @param maxCpuLoad The system CPU load from 0 to 1 above which new transcodes are downgraded.
+     * @param overcommitCpuLoad The system CPU load from 0 to 1 below which new transcodes are
+     *                          allowed to exceed the weight limit.
+     */
+    public FFmpegTranscodeAdmission(int weightLimit, long maxLagMs, double maxCpuLoad,
+                                    double overcommitCpuLoad) {
+
+        this.weightLimit = weightLimit;
+        this.maxLagMs = maxLagMs;
+        this.maxCpuLoad = maxCpuLoad;
+        this.overcommitCpuLoad = overcommitCpuLoad;
+
+        startCpuSampler();
+    }
+
+    /**
+     * Request permission to start a transcode.
+     * <p/>
+     * If the key already has permission, the old permission is returned first.
+     *
+     * @param key A unique object for the transcode.
+     * @param name A name for the transcode used in logging and statistics.
+     * @param weight The weight of the requested profile.
+     * @param downgradeWeight The weight of the lighter profile or 0 if there isn't one.
+     * @return The decision.
+     */
+    public synchronized Decision requestTranscode(Object key, String name, int weight, int downgradeWeight) {
+        releaseTranscode(key);
+
+        double cpuLoad = getCpuLoad();
+        Job slowJob = null;
+
+        for (Job job : jobs.values()) {
+            if (job.lagMs.get() > maxLagMs) {
+                slowJob = job;
+                break;
+            }
+        }
+
+        boolean cpuKnown = cpuLoad >= 0;
+        boolean cpuBusy = cpuKnown && cpuLoad > maxCpuLoad;
+        boolean cpuIdle = cpuKnown && cpuLoad < overcommitCpuLoad;
+        boolean canDowngrade = downgradeWeight > 0 &&
+                (weightUsed + downgradeWeight <= weightLimit || cpuIdle);
+
+        Decision decision;
+        String reason;
+
+        if (slowJob != null) {
+            decision = Decision.REMUX;
+            reason = String.format("'%s' is %.1f seconds behind real time", slowJob.name,
+                    slowJob.lagMs.get() / 1000.0);
+        } else if (cpuBusy) {
+            decision = canDowngrade ? Decision.DOWNGRADE : Decision.REMUX;
+            reason = String.format("CPU load is %.0f%%", cpuLoad * 100);
+        } else if (weightUsed + weight > weightLimit) {
+            if (cpuIdle) {
+                decision = Decision.ADMIT;
+                reason = String.format("over the weight limit, but CPU load is only %.0f%%",
+                        cpuLoad * 100);
+            } else {
+                decision = canDowngrade ? Decision.DOWNGRADE : Decision.REMUX;
+                reason = "the weight limit " + weightLimit + " has been reached";
+            }
+        } else {
+            decision = Decision.ADMIT;
+            reason = "within the weight limit " + weightLimit;
+        }
+
+        int admittedWeight = decision == Decision.ADMIT ? weight :
+                decision == Decision.DOWNGRADE ? downgradeWeight : 0;
+
+        if (admittedWeight > 0) {
+            jobs.put(key, new Job(name, admittedWeight, getTime()));
+            weightUsed += admittedWeight;
+        }
+
+        DecisionRecord record = new DecisionRecord(getTime(), name, decision, weight, cpuLoad, reason);
+
+        if (decisions.size() == MAX_DECISIONS) {
+            decisions.removeFirst();
+        }
+
+        decisions.addLast(record);
+
+        logger.info("Transcode admission for '{}' with weight {}: {} because {}.",
+                name, weight, decision, reason);
+
+        return decision;
+    }
+
+    /**
+     * Return permission for a transcode that has stopped.
+     *
+     * @param key The object used to request permission.
+     */
+    public synchronized void releaseTranscode(Object key) {
+        Job job = jobs.remove(key);
+
+        if (job != null) {
+            weightUsed -= job.weight;
+        }
+    }
+
+    /**
+     * Report how far a transcode has encoded.
+     * <p/>
+     * This is called for every encoded video frame, so it doesn't take the monitor. Only one
+     * thread reports progress for each transcode.
+     *
+     * @param key The object used to request permission.
+     * @param mediaSeconds The timestamp of the last encoded frame in seconds.
+     */
+    public void updateProgress(Object key, double mediaSeconds) {
+        Job job = jobs.get(key);
+
+        if (job == null) {
+            return;
+        }
+
+        long media = (long) (mediaSeconds * 1000);
+        long lastMedia = job.lastMediaMs.getAndSet(media);
+        // How far the media is behind the wall clock. This gets smaller while the transcode is
+        // catching up and bigger while it is falling behind.
+        long offset = getTime() - media;
+        long bestOffset = job.bestOffsetMs.get();
+
+        // Measuring starts again on the first frame and when the timestamps jump.
+        if (bestOffset == Long.MIN_VALUE || offset < bestOffset ||
+                media > lastMedia + DISCONTINUITY_MS ||
+                media < lastMedia - DISCONTINUITY_MS) {
+
+            job.bestOffsetMs.set(offset);
+            job.lagMs.set(0);
+        } else {
+            job.lagMs.set(offset - bestOffset);
+        }
+    }
+
+    /**
+     * Get the system CPU load smoothed over the last few seconds.
+     *
+     * @return The load from 0 to 1 or a negative number if it is not available.
+     */
+    public double getCpuLoad() {
+        double load = smoothedCpuLoad;
+
+        // The sampler hasn't run yet.
+        if (load < 0) {
+            load = sampleCpuLoad();
+        }
+
+        return load;
+    }
+
+    private static void startCpuSampler() {
+        synchronized (cpuSamplerLock) {
+            if (cpuSamplerStarted) {
+                return;
+            }
+
+            cpuSamplerStarted = true;
+        }
+
+        ThreadPool.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                double sample = sampleCpuLoad();
+
+                if (sample < 0) {
+                    return;
+                }
+
+                double load = smoothedCpuLoad;
+
+                smoothedCpuLoad = load < 0 ? sample :
+                        load + (sample - load) * CPU_SMOOTHING;
+            }
+        }, 0, CPU_SAMPLE_MS, TimeUnit.MILLISECONDS, "CpuLoadSampler", "Transcode");
+    }
+
+    /**
+     * Get the system CPU load since the last sample.
+     *
+     * @return The load from 0 to 1 or a negative number if it is not available.
+     */
+    private static double sampleCpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+
+            if (load >= 0) {
+                return load;
+            }
+        }
+
+        // The load average is not available on Windows.
+        double loadAverage = os.getSystemLoadAverage();
+
+        if (loadAverage < 0) {
+            return -1;
+        }
+
+        return Math.min(1, loadAverage / os.getAvailableProcessors());
+    }
+
+    protected long getTime() {
+        return System.currentTimeMillis();
+    }
+
+    public int getWeightLimit() {
+        return weightLimit;
+    }
+
+    public synchronized int getWeightUsed() {
+        return weightUsed;
+    }
+
+    /**
+     * Get a snapshot of the running transcodes.
+     */
+    public synchronized List<JobStatistics> getJobs() {
+        List<JobStatistics> returnValue = new ArrayList<>(jobs.size());
+
+        for (Job job : jobs.values()) {
+            returnValue.add(new JobStatistics(job.name, job.weight, job.startTime, job.lagMs.get()));
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Get the most recent decisions with the oldest first.
+     */
+    public synchronized List<DecisionRecord> getDecisions() {
+        return new ArrayList<>(decisions);
+    }
+
+    private static class Job {
+        private final String name;
+        private final int weight;
+        private final long startTime;
+
+        // The smallest offset of the media behind the wall clock since measuring started.
+        private final AtomicLong bestOffsetMs = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicLong lastMediaMs = new AtomicLong(0);
+        private final AtomicLong lagMs = new AtomicLong(0);
+
+        private Job(String name, int weight, long startTime) {
+            this.name = name;
+            this.weight = weight;
+            this.startTime = startTime;
+        }
+    }
+
+    public static class JobStatistics {
+        public final String name;
+        public final int weight;
+        public final long startTime;
+        // How much further behind real time the transcode is than it was at its best.
+        public final long lagMs;
+
+        private JobStatistics(String name, int weight, long startTime, long lagMs) {
+            this.name = name;
+            this.weight = weight;
+            this.startTime = startTime;
+            this.lagMs = lagMs;
+        }
+    }
+
+    public static class DecisionRecord {
+        public final long time;
+        public final String name;
+        public final Decision decision;
+        public final int weight;
+        public final double cpuLoad;
+        public final String reason;
+
+        private DecisionRecord(long time, String name, Decision decision, int weight,
+                               double cpuLoad, String reason) {
+
+            this.time = time;
+            this.name = name;
+            this.decision = decision;
+            this.weight = weight;
+            this.cpuLoad = cpuLoad;
+            this.reason = reason;
+        }
+    }
+}
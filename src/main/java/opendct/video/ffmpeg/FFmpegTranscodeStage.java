@@ -0,0 +1,377 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One step of a staged transcode running on its own thread.
+ * <p/>
+ * Work is handed to the stage through a bounded queue. When the queue is full, the thread adding
+ * work waits, so a slow stage slows down the stages before it instead of using more memory. The
+ * time spent processing and the time spent waiting on a full queue are counted so the slowest
+ * stage can be found.
+ * <p/>
+ * The queue is a ring of slots allocated when the stage is created, so adding work doesn't
+ * allocate anything.
+ *
+ * @param <T> The type of work processed by this stage.
+ */
+public class FFmpegTranscodeStage<T> implements Runnable {
+    private static final Logger logger = LogManager.getLogger(FFmpegTranscodeStage.class);
+
+    public interface Handler<T> {
+        /**
+         * Process one item of work on the stage thread.
+         *
+         * @param item The item to process. The handler is responsible for releasing it.
+         * @param streamIndex The input stream index the item belongs to.
+         * @throws InterruptedException Thrown if the stage is being stopped.
+         */
+        void process(T item, int streamIndex) throws InterruptedException;
+
+        /**
+         * Release an item that will never be processed.
+         *
+         * @param item The item to release.
+         */
+        void discard(T item);
+    }
+
+    private final String name;
+    private final Handler<T> handler;
+    private final Object pendingLock = new Object();
+
+    private final Object queueLock = new Object();
+    private final Object queueItems[];
+    private final int queueStreams[];
+    private int queueHead;
+    private int queueCount;
+
+    private int pending;
+    private boolean running;
+    private boolean threadActive;
+    private boolean threadStarted;
+    private Future future;
+
+    // These are only written by the stage thread.
+    private volatile long processed;
+    private volatile long busyNanos;
+    // This is only written by the thread adding work.
+    private volatile long blockedNanos;
+
+    /**
+     * Create a new stage.
+     *
+     * @param name The name of the stage used for logging and the thread name.
+     * @param handler The handler that processes each item.
+     * @param queueSize The most items that can wait to be processed.
+     */
+    public FFmpegTranscodeStage(String name, Handler<T> handler, int queueSize) {
+        this.name = name;
+        this.handler = handler;
+        queueItems = new Object[Math.max(1, queueSize)];
+        queueStreams = new int[queueItems.length];
+    }
+
+    /**
+     * Start the stage thread.
+     *
+     * @param postPend Usually the name of the file or capture device being transcoded.
+     * @return <i>true</i> if the thread was started.
+     */
+    public boolean start(String postPend) {
+        synchronized (pendingLock) {
+            running = true;
+            threadActive = true;
+        }
+
+        try {
+            future = ThreadPool.submit(ThreadPool.Lane.STREAMING, this,
+                    Thread.currentThread().getPriority(), "FFmpegTranscodeStage-" + name, postPend);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Unable to start the {} stage => ", name, e);
+
+            synchronized (pendingLock) {
+                running = false;
+                threadActive = false;
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Add work to the stage.
+     * <p/>
+     * This waits if the queue is full. If the stage is not running, the item is discarded.
+     *
+     * @param item The item to process.
+     * @param streamIndex The input stream index the item belongs to.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting.
+     */
+    public void put(T item, int streamIndex) throws InterruptedException {
+        synchronized (pendingLock) {
+            if (!running) {
+                handler.discard(item);
+                return;
+            }
+
+            pending += 1;
+        }
+
+        if (!offer(item, streamIndex)) {
+            long startTime = System.nanoTime();
+
+            try {
+                putWait(item, streamIndex);
+            } catch (InterruptedException e) {
+                itemDone();
+                handler.discard(item);
+                throw e;
+            } finally {
+                blockedNanos += System.nanoTime() - startTime;
+            }
+
+            // The stage might have stopped while this thread was waiting.
+            if (!isRunning()) {
+                discardQueue();
+            }
+        }
+    }
+
+    /**
+     * Wait until all of the work added to the stage has been processed.
+     *
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting.
+     */
+    public void drain() throws InterruptedException {
+        synchronized (pendingLock) {
+            while (pending > 0 && running) {
+                pendingLock.wait(100);
+            }
+        }
+    }
+
+    /**
+     * Stop the stage thread and discard anything that hasn't been processed.
+     * <p/>
+     * This waits for the item currently being processed to finish, so anything the handler uses
+     * can be safely released after this returns.
+     */
+    public void stop() {
+        synchronized (pendingLock) {
+            running = false;
+            pendingLock.notifyAll();
+        }
+
+        if (future != null) {
+            future.cancel(true);
+        }
+
+        discardQueue();
+
+        synchronized (pendingLock) {
+            // If the task was cancelled before it started, it will never run.
+            while (threadActive && (threadStarted || future == null || !future.isDone())) {
+                try {
+                    pendingLock.wait(100);
+                } catch (InterruptedException e) {
+                    logger.debug("Interrupted while waiting for the {} stage to stop.", name);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (pendingLock) {
+            threadStarted = true;
+        }
+
+        int streamIndex[] = new int[1];
+
+        try {
+            while (true) {
+                T item = take(streamIndex);
+
+                // The stage is being stopped.
+                synchronized (pendingLock) {
+                    if (!running) {
+                        handler.discard(item);
+                        itemDone();
+                        break;
+                    }
+                }
+
+                long startTime = System.nanoTime();
+
+                try {
+                    handler.process(item, streamIndex[0]);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error("Unexpected exception in the {} stage => ", name, e);
+                } finally {
+                    busyNanos += System.nanoTime() - startTime;
+                    processed += 1;
+                    itemDone();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("The {} stage was interrupted.", name);
+        } finally {
+            discardQueue();
+
+            synchronized (pendingLock) {
+                running = false;
+                threadActive = false;
+                pendingLock.notifyAll();
+            }
+        }
+    }
+
+    private void itemDone() {
+        synchronized (pendingLock) {
+            pending -= 1;
+
+            if (pending == 0) {
+                pendingLock.notifyAll();
+            }
+        }
+    }
+
+    private void discardQueue() {
+        T item;
+
+        while ((item = poll(null)) != null) {
+            handler.discard(item);
+            itemDone();
+        }
+    }
+
+    private boolean offer(T item, int streamIndex) {
+        synchronized (queueLock) {
+            if (queueCount == queueItems.length) {
+                return false;
+            }
+
+            int tail = (queueHead + queueCount) % queueItems.length;
+            queueItems[tail] = item;
+            queueStreams[tail] = streamIndex;
+            queueCount += 1;
+            queueLock.notifyAll();
+
+            return true;
+        }
+    }
+
+    private void putWait(T item, int streamIndex) throws InterruptedException {
+        synchronized (queueLock) {
+            while (!offer(item, streamIndex)) {
+                queueLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest item from the queue.
+     *
+     * @param streamIndex If this is not <i>null</i>, the stream index of the item is put into the
+     *                    first element.
+     * @return The item or <i>null</i> if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    private T poll(int streamIndex[]) {
+        synchronized (queueLock) {
+            if (queueCount == 0) {
+                return null;
+            }
+
+            T item = (T) queueItems[queueHead];
+            queueItems[queueHead] = null;
+
+            if (streamIndex != null) {
+                streamIndex[0] = queueStreams[queueHead];
+            }
+
+            queueHead = (queueHead + 1) % queueItems.length;
+            queueCount -= 1;
+            queueLock.notifyAll();
+
+            return item;
+        }
+    }
+
+    private T take(int streamIndex[]) throws InterruptedException {
+        synchronized (queueLock) {
+            T item;
+
+            while ((item = poll(streamIndex)) == null) {
+                queueLock.wait();
+            }
+
+            return item;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isRunning() {
+        synchronized (pendingLock) {
+            return running;
+        }
+    }
+
+    /**
+     * @return The number of items that have been processed.
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * @return The total time in nanoseconds spent processing items.
+     */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * @return The total time in nanoseconds spent waiting to add work because the queue was full.
+     */
+    public long getBlockedNanos() {
+        return blockedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + processed + " items, " + busyNanos / 1000000 + "ms busy, " +
+                blockedNanos / 1000000 + "ms blocked";
+    }
+}
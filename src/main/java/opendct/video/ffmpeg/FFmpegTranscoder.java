@@ -46,8 +46,9 @@ import org.apache.logging.log4j.Logger;
 import org.bytedeco.javacpp.*;
 
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static opendct.video.ffmpeg.FFmpegUtil.*;
@@ -74,11 +75,14 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
     private String newFilename = null;
     private final Object switchLock = new Object();
 
-    private static Map<Pointer, Integer> permissionMap = new HashMap<>();
-    private static int permissionWeight = 0;
     private static int transcodeLimit =
             Config.getInteger("consumer.ffmpeg.transcode_limit",
                     (Runtime.getRuntime().availableProcessors() - 1) * 2);
+    private static final FFmpegTranscodeAdmission admission = new FFmpegTranscodeAdmission(
+            transcodeLimit,
+            Config.getLong("consumer.ffmpeg.admission.max_lag_ms", 5000),
+            Config.getDouble("consumer.ffmpeg.admission.max_cpu_load", 0.85),
+            Config.getDouble("consumer.ffmpeg.admission.overcommit_cpu_load", 0.5));
 
     private static final float dts_delta_threshold = 10;
     private long firstDtsByStreamIndex[] = new long[0];
@@ -91,9 +95,36 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
     private FFmpegContext ctx = null;
     private boolean interlaced = false;
+    // This is kept so renditions started on SWITCH use the same detection.
+    private boolean sourceInterlaced = false;
     private FilteringContext filter_ctx[] = new FilteringContext[0];
 
-    private class FilteringContext {
+    // These are only used when staged transcoding is enabled. Decoding stays on the thread
+    // running streamOutput(), filtering and encoding each get their own thread and everything
+    // written to the primary output goes through the encoding stage.
+    private FFmpegTranscodeStage<AVFrame> filterStage = null;
+    private FFmpegTranscodeStage<Pointer> encodeStage = null;
+    private long decodeNanos = 0;
+    private long decodedFrames = 0;
+
+    // The frames and packets handed between the stages are allocated when the stages start. Each
+    // pool holds enough for a full queue, the item being processed and the item being prepared,
+    // so it is only empty if something isn't returned.
+    private ArrayBlockingQueue<AVFrame> decodedFramePool = null;
+    private ArrayBlockingQueue<AVFrame> filteredFramePool = null;
+    private ArrayBlockingQueue<AVPacket> remuxPacketPool = null;
+
+    // These are reused for every frame instead of allocating new JavaCPP objects. Encoding can be
+    // on a different thread from filtering and decoding, so each thread has its own.
+    private AVPacket encodePacket = null;
+    private AVFrame filterFrame = null;
+    private final int filterGotFrame[] = new int[] { 0 };
+    private AVPacket renditionPacket = null;
+    private AVFrame renditionFilterFrame = null;
+    private AVFrame renditionDecodeFrame = null;
+    private final int renditionGotFrame[] = new int[] { 0 };
+
+    static class FilteringContext {
         private AVFilterContext buffersink_ctx;
         private AVFilterContext buffersrc_ctx;
         private AVFilterGraph filter_graph;
@@ -106,41 +137,43 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
      * @param weight The assigned weight to the transcoding job.
      * @return <i>true</i> if the transcoding is allowed to proceed.
      */
-    public static synchronized boolean getTranscodePermission(Pointer opaque, int weight) {
+    public static boolean getTranscodePermission(Pointer opaque, int weight) {
+        return opaque != null && admission.requestTranscode(opaque, String.valueOf(opaque), weight, 0) ==
+                FFmpegTranscodeAdmission.Decision.ADMIT;
+    }
+
+    public static void returnTranscodePermission(Pointer opaque) {
         if (opaque == null) {
-            return false;
+            return;
         }
 
-        Integer checkWeight = permissionMap.get(opaque);
-
-        // The capture device is asking for permission, but the transcode limit has been reached.
-        // The stream can only be remuxed now.
-        if (checkWeight == null && permissionWeight + weight > transcodeLimit) {
-            return false;
-        } else if (checkWeight != null) {
-            returnTranscodePermission(opaque);
-
-            if (permissionWeight + weight > transcodeLimit) {
-                return false;
-            }
-        }
+        admission.releaseTranscode(opaque);
+    }
 
-        permissionWeight += weight;
-        permissionMap.put(opaque, weight);
-        return true;
+    /**
+     * The admission controller deciding which streams can be transcoded.
+     */
+    public static FFmpegTranscodeAdmission getAdmission() {
+        return admission;
     }
 
-    public static synchronized void returnTranscodePermission(Pointer opaque) {
-        if (opaque == null) {
-            return;
-        }
+    private static int getEncodeWeight(Map<String, String> videoEncodeSettings) {
+        String weightStr = videoEncodeSettings.get("encode_weight");
 
-        Integer weight = permissionMap.get(opaque);
+        int weight = 2;
 
-        if (weight != null) {
-            permissionWeight -= weight;
-            permissionMap.remove(opaque);
+        if (weightStr != null) {
+            try {
+                weight = Integer.parseInt(weightStr);
+            } catch (NumberFormatException e) {
+                logger.error("Unable to parse '{}' into an integer, using the default {}.",
+                        weightStr, weight);
+            }
+        } else {
+            logger.warn("encode_weight is not set. Using default {}.", weight);
         }
+
+        return weight;
     }
 
     @Override
@@ -294,25 +327,62 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                         ctx.encodeProfile.getVideoEncoderCodec(
                                 videoCodec));
 
-                // Remove the encoder profile if we cannot get permission to transcode. This will
-                // prevent any possible future attempts.
-                String weightStr = ctx.videoEncodeSettings.get("encode_weight");
+                int weight = getEncodeWeight(ctx.videoEncodeSettings);
+
+                FFmpegProfile downgradeProfile = null;
+                Map<String, String> downgradeSettings = null;
+                int downgradeWeight = 0;
 
-                int weight = 2;
+                if (ctx.encodeProfile.getDowngradeProfile() != null) {
+                    downgradeProfile = FFmpegProfileManager.getEncoderProfile(
+                            ctx.encodeProfile.getDowngradeProfile());
 
-                if (weightStr != null) {
-                    try {
-                        weight = Integer.parseInt(weightStr);
-                    } catch (NumberFormatException e) {
-                        logger.error("Unable to parse '{}' into an integer, using the default {}.",
-                                weightStr, weight);
+                    AVCodec downgradeCodec = null;
+
+                    if (downgradeProfile != null && downgradeProfile != ctx.encodeProfile) {
+                        downgradeCodec = downgradeProfile.getVideoEncoderCodec(videoCodec);
+                    }
+
+                    // The interlacing isn't known yet, so the lighter profile only needs to be
+                    // able to transcode this video one way or the other. Without a usable lighter
+                    // profile, the admission controller will remux instead of downgrading.
+                    String decoderName = avcodec_get_name(ctx.videoInCodecCtx.codec_id()).getString();
+
+                    if (downgradeCodec != null &&
+                            (downgradeProfile.canTranscodeVideo(false, decoderName, videoHeight, videoWidth) ||
+                            downgradeProfile.canTranscodeVideo(true, decoderName, videoHeight, videoWidth))) {
+
+                        downgradeSettings = downgradeProfile.getVideoEncoderMap(
+                                videoWidth,
+                                videoHeight,
+                                downgradeCodec);
+
+                        downgradeWeight = getEncodeWeight(downgradeSettings);
+                    } else {
+                        logger.warn("The downgrade profile '{}' does not exist or cannot" +
+                                        " transcode this video.",
+                                ctx.encodeProfile.getDowngradeProfile());
                     }
-                } else {
-                    logger.warn("encode_weight is not set. Using default {}.", weight);
                 }
 
-                if (!getTranscodePermission(ctx.OPAQUE, weight)) {
-                    ctx.encodeProfile = null;
+                // Remove the encoder profile if we cannot get permission to transcode. This will
+                // prevent any possible future attempts.
+                switch (admission.requestTranscode(ctx.OPAQUE,
+                        ctx.encodeProfile.CONFIG_NAME + " " + ctx.outputFilename,
+                        weight, downgradeWeight)) {
+
+                    case ADMIT:
+                        break;
+                    case DOWNGRADE:
+                        logger.info("Using the lighter profile '{}' instead of '{}'.",
+                                downgradeProfile.CONFIG_NAME, ctx.encodeProfile.CONFIG_NAME);
+
+                        ctx.encodeProfile = downgradeProfile;
+                        ctx.videoEncodeSettings = downgradeSettings;
+                        break;
+                    default:
+                        ctx.encodeProfile = null;
+                        break;
                 }
             } else {
                 if (ctx.encodeProfile != null) {
@@ -323,9 +393,35 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                 }
             }
 
-            interlaced = ctx.encodeProfile != null &&
-                    ctx.encodeProfile.canInterlaceDetect(videoHeight, videoWidth) &&
-                    fastDeinterlaceDetection();
+            boolean primaryDetect = ctx.encodeProfile != null &&
+                    ctx.encodeProfile.canInterlaceDetect(videoHeight, videoWidth);
+            boolean renditionDetect = false;
+
+            for (FFmpegRendition rendition : ctx.renditions) {
+                if (rendition.PROFILE.canInterlaceDetect(videoHeight, videoWidth)) {
+                    renditionDetect = true;
+                    break;
+                }
+            }
+
+            sourceInterlaced = false;
+
+            if (primaryDetect || renditionDetect) {
+
+                if (ctx.detectionEntry != null &&
+                        ctx.detectionEntry.interlaced != FFmpegDetectionCache.INTERLACED_UNKNOWN) {
+
+                    // The streams are the same as the last time this channel was detected, so the
+                    // video will be interlaced the same way.
+                    sourceInterlaced = ctx.detectionEntry.interlaced == FFmpegDetectionCache.INTERLACED_YES;
+                    logger.info("Using cached interlace detection: {}.", sourceInterlaced);
+                } else {
+                    sourceInterlaced = fastDeinterlaceDetection();
+                    FFmpegDetectionCache.setInterlaced(ctx.detectionKey, sourceInterlaced);
+                }
+            }
+
+            interlaced = primaryDetect && sourceInterlaced;
         }
 
         if (ctx.isInterrupted()) {
@@ -473,10 +569,191 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
             throw new FFmpegException("Error while writing header to file '" + outputFilename + "'", ret);
         }
 
+        // The renditions from the last output were ended by the SWITCH. Their replacements are
+        // named after the new output.
+        if (!firstRun) {
+            ctx.renditions.addAll(ctx.takeSwitchRenditions());
+        }
+
+        initRenditions(videoWidth, videoHeight);
+
         logger.info("Initialized FFmpeg transcoder stream output.");
         firstRun = false;
     }
 
+    private void initRenditions(int videoWidth, int videoHeight) {
+        if (ctx.renditions.size() == 0) {
+            return;
+        }
+
+        if (ctx.videoInCodecCtx == null || ctx.preferredVideo <= NO_STREAM_IDX) {
+            logger.warn("There isn't any video to create renditions from.");
+            endRenditions(false);
+            return;
+        }
+
+        AVCodec videoCodec = avcodec_find_decoder(ctx.videoInCodecCtx.codec_id());
+        Iterator<FFmpegRendition> iterator = ctx.renditions.iterator();
+
+        while (iterator.hasNext()) {
+            FFmpegRendition rendition = iterator.next();
+            rendition.interlaced = sourceInterlaced &&
+                    rendition.PROFILE.canInterlaceDetect(videoHeight, videoWidth);
+
+            try {
+                initRendition(rendition, videoCodec, videoWidth, videoHeight);
+            } catch (FFmpegException e) {
+                logger.error("Unable to start the rendition '{}' => ", rendition, e);
+                endRendition(rendition, false);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void initRendition(FFmpegRendition rendition, AVCodec videoCodec,
+                               int videoWidth, int videoHeight) throws FFmpegException {
+
+        int ret;
+        FFmpegProfile profile = rendition.PROFILE;
+
+        rendition.videoEncodeSettings = profile.getVideoEncoderMap(
+                videoWidth,
+                videoHeight,
+                profile.getVideoEncoderCodec(videoCodec));
+
+        // A rendition is never downgraded since the primary output is already being remuxed or
+        // transcoded with the requested profile.
+        if (admission.requestTranscode(rendition, rendition.toString(),
+                getEncodeWeight(rendition.videoEncodeSettings), 0) !=
+                FFmpegTranscodeAdmission.Decision.ADMIT) {
+
+            throw new FFmpegException("Permission to transcode was not granted.", -1);
+        }
+
+        // This does nothing if the primary output already opened the decoder.
+        ret = avcodec_open2(ctx.videoInCodecCtx, videoCodec, (PointerPointer<AVDictionary>) null);
+
+        if (ret < 0) {
+            throw new FFmpegException("Failed to open decoder for stream #" + ctx.preferredVideo, ret);
+        }
+
+        ctx.allocRenditionOutputContext(rendition, ctx.videoInCodecCtx.codec_id());
+
+        int numInputStreams = ctx.avfCtxInput.nb_streams();
+        rendition.streamMap = new OutputStreamMap[numInputStreams];
+
+        for (int i = 0; i < rendition.streamMap.length; i++) {
+            rendition.streamMap[i] = new OutputStreamMap();
+            rendition.streamMap[i].iStream = ctx.avfCtxInput.streams(i);
+            rendition.streamMap[i].iCodecContext = rendition.streamMap[i].iStream.codec();
+            rendition.streamMap[i].iCodecType = rendition.streamMap[i].iCodecContext.codec_type();
+            rendition.streamMap[i].iCodecRational = rendition.streamMap[i].iCodecContext.time_base();
+            rendition.streamMap[i].iStreamRational = rendition.streamMap[i].iStream.time_base();
+        }
+
+        OutputStreamMap videoMap = rendition.streamMap[ctx.preferredVideo];
+        AVStream videoStream = addTranscodeVideoStreamToContext(rendition.avfCtxOutput,
+                ctx.avfCtxInput.streams(ctx.preferredVideo), videoMap, profile,
+                rendition.videoEncodeSettings);
+
+        if (videoStream == null) {
+            throw new FFmpegException("Unable to set up transcoding for the rendition.", -1);
+        }
+
+        videoMap.outStreamIndex = videoStream.id();
+        videoMap.oCodecRational = videoStream.codec().time_base();
+        videoMap.oStreamRational = videoStream.time_base();
+        videoMap.oCodecContext = videoStream.codec();
+        videoMap.oStream = videoStream;
+        videoMap.transcode = true;
+
+        // Everything else the primary output has is copied.
+        for (int i = 0; i < numInputStreams; i++) {
+            if (i == ctx.preferredVideo || ctx.streamMap[i].outStreamIndex == NO_STREAM_IDX) {
+                continue;
+            }
+
+            AVStream avsOutput = addCopyStreamToContext(rendition.avfCtxOutput, ctx.avfCtxInput.streams(i));
+
+            if (avsOutput != null) {
+                rendition.streamMap[i].outStreamIndex = avsOutput.id();
+                rendition.streamMap[i].oCodecRational = avsOutput.codec().time_base();
+                rendition.streamMap[i].oStreamRational = avsOutput.time_base();
+                rendition.streamMap[i].oCodecContext = avsOutput.codec();
+                rendition.streamMap[i].oStream = avsOutput;
+            }
+        }
+
+        rendition.videoFilter = new FilteringContext();
+
+        ret = initFilter(rendition.videoFilter, ctx.videoInCodecCtx, videoStream.codec(), videoStream,
+                getVideoFilterSpec(rendition.videoEncodeSettings, ctx.preferredVideo,
+                        rendition.interlaced),
+                videoMap.iCodec, videoMap.iDict);
+
+        if (ret != 0) {
+            throw new FFmpegException("initFilter: Unable to allocate the rendition filter.", ret);
+        }
+
+        StringBuilder dump = new StringBuilder(2000);
+        FFmpegUtil.dumpFormat(dump, rendition.avfCtxOutput, 0, rendition.FILENAME, true, ctx.desiredProgram);
+        logger.info("Rendition: {}", dump.toString());
+
+        AVDictionary renditionMuxerDict = new AVDictionary(null);
+
+        av_dict_set_int(renditionMuxerDict, "pat_period", 1, 0);
+        av_dict_set_int(renditionMuxerDict, "sdt_period", 10, 0);
+
+        ret = avformat_write_header(rendition.avfCtxOutput, renditionMuxerDict);
+        av_dict_free(renditionMuxerDict);
+
+        if (ret < 0) {
+            throw new FFmpegException("Error while writing header to rendition file '" + rendition.FILENAME + "'", ret);
+        }
+    }
+
+    /**
+     * Stop all of the renditions.
+     *
+     * @param flush If <i>true</i>, the filters and encoders are flushed and the trailer is written.
+     */
+    private void endRenditions(boolean flush) {
+        for (FFmpegRendition rendition : ctx.renditions) {
+            endRendition(rendition, flush);
+        }
+
+        ctx.renditions.clear();
+    }
+
+    private void endRendition(FFmpegRendition rendition, boolean flush) {
+        if (flush && rendition.avfCtxOutput != null && rendition.videoFilter != null &&
+                rendition.videoFilter.filter_graph != null) {
+
+            int ret = filterEncodeWriteRenditionFrame(rendition, null);
+
+            if (ret < 0) {
+                logger.error("Flushing rendition filter failed: {}", ret);
+            }
+
+            ret = flushRenditionEncoder(rendition);
+
+            if (ret < 0) {
+                logger.error("Flushing rendition encoder failed: {}", ret);
+            }
+
+            av_write_trailer(rendition.avfCtxOutput);
+        }
+
+        if (rendition.videoFilter != null && rendition.videoFilter.filter_graph != null) {
+            avfilter_graph_free(rendition.videoFilter.filter_graph);
+            rendition.videoFilter.filter_graph = null;
+        }
+
+        ctx.deallocRenditionOutputContext(rendition);
+        admission.releaseTranscode(rendition);
+        rendition.WRITER.closeFile();
+    }
+
     private void deallocFilterGraphs() {
         if (filter_ctx == null) {
             return;
@@ -710,6 +987,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
         try {
             startTime = System.currentTimeMillis();
+            startStages();
 
             while (true) {
                 ret = av_read_frame(ctx.avfCtxInput, packet);
@@ -779,6 +1057,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
                         synchronized (switchLock) {
                             try {
+                                drainStages();
                                 switchStreamOutput();
 
                                 errorCounter = 0;
@@ -1004,16 +1283,30 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     }
                 }
 
+                if (ctx.renditions.size() > 0) {
+                    if (inputStreamIndex != ctx.preferredVideo) {
+                        writeRenditionPackets(packet, copyPacket, inputStreamIndex);
+                    } else if (filter_ctx[inputStreamIndex].filter_graph == null) {
+                        // The primary output is only remuxing the video, so it needs to be decoded
+                        // just for the renditions.
+                        decodeRenditionVideo(packet, copyPacket, got_frame);
+                    }
+                }
+
                 //logger.trace("Demuxer gave frame of streamIndex {}", inputStreamIndex);
 
                 if (filter_ctx[inputStreamIndex].filter_graph != null) {
 
                     //logger.trace("Going to re-encode & filter the frame");
 
-                    frame = av_frame_alloc();
+                    // The frame is only replaced after it's given to the filtering stage.
                     if (frame == null) {
-                        throw new FFmpegException("av_frame_alloc: Unable to allocate frame.",
-                                ENOMEM);
+                        frame = decodedFramePool != null ?
+                                takeFrame(decodedFramePool) : av_frame_alloc();
+                        if (frame == null) {
+                            throw new FFmpegException("av_frame_alloc: Unable to allocate frame.",
+                                    ENOMEM);
+                        }
                     }
 
                     //logPacket(ctx.avfCtxInput, packet, "trans-dec-in");
@@ -1024,6 +1317,8 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
                     //logPacket(ctx.avfCtxInput, packet, "trans-dec-out");
 
+                    long decodeStart = System.nanoTime();
+
                     if (codecType == AVMEDIA_TYPE_VIDEO) {
                         ret = avcodec_decode_video2(
                                 ctx.streamMap[inputStreamIndex].iCodecContext, frame,
@@ -1034,8 +1329,10 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                                 got_frame, packet);
                     }
 
+                    decodeNanos += System.nanoTime() - decodeStart;
+
                     if (ret < 0) {
-                        av_frame_free(frame);
+                        av_frame_unref(frame);
                         av_packet_unref(packet);
                         logger.error("Decoding failed");
                         continue;
@@ -1043,15 +1340,37 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
                     if (got_frame[0] != 0) {
                         frame.pts(av_frame_get_best_effort_timestamp(frame));
-                        ret = filterEncodeWriteFrame(frame, inputStreamIndex);
-                        av_frame_free(frame);
+                        decodedFrames += 1;
+
+                        // The renditions need to get the frame before the primary filter takes
+                        // the frame's references.
+                        if (inputStreamIndex == ctx.preferredVideo && ctx.renditions.size() > 0) {
+                            writeRenditionFrames(frame);
+                        }
+                    }
+
+                    if (got_frame[0] != 0 && filterStage != null) {
+                        // The filtering stage now owns the frame.
+                        AVFrame decodedFrame = frame;
+                        frame = null;
+
+                        try {
+                            filterStage.put(decodedFrame, inputStreamIndex);
+                        } catch (InterruptedException e) {
+                            logger.debug("Staged transcoding was interrupted.");
+                            av_packet_unref(packet);
+                            break;
+                        }
+                    } else if (got_frame[0] != 0) {
+                        ret = filterEncodeWriteFrame(frame, inputStreamIndex, false);
+                        av_frame_unref(frame);
 
                         if (ret < 0) {
                             logger.error("Error from filterEncodeWriteFrame: {}", ret);
                             //throw new FFmpegException("Error from filterEncodeWriteFrame.", ret);
                         }
                     } else {
-                        av_frame_free(frame);
+                        av_frame_unref(frame);
                     }
                 } else {
                     //logPacket(ctx.avfCtxInput, packet, "copy-in");
@@ -1067,16 +1386,39 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
                     packet.stream_index(ctx.streamMap[inputStreamIndex].outStreamIndex);
 
-                    ret = av_interleaved_write_frame(ctx.avfCtxOutput, packet);
+                    if (encodeStage != null) {
+                        // The muxer can only be used by one thread, so remuxed packets need to be
+                        // written by the encoding stage too.
+                        AVPacket queuedPacket = takePacket(remuxPacketPool);
+                        av_copy_packet(queuedPacket, packet);
+                        av_packet_copy_props(queuedPacket, packet);
+
+                        try {
+                            encodeStage.put(queuedPacket, inputStreamIndex);
+                        } catch (InterruptedException e) {
+                            logger.debug("Staged transcoding was interrupted.");
+                            av_packet_unref(packet);
+                            break;
+                        }
+                    } else {
+                        ret = av_interleaved_write_frame(ctx.avfCtxOutput, packet);
 
-                    if (ret < 0) {
-                        logger.error("Error from av_interleaved_write_frame: {}", ret);
+                        if (ret < 0) {
+                            logger.error("Error from av_interleaved_write_frame: {}", ret);
+                        }
                     }
                 }
 
                 av_packet_unref(packet);
             }
 
+            // The stages are idle after this, so flushing can be done on this thread.
+            try {
+                drainStages();
+            } catch (InterruptedException e) {
+                logger.debug("Staged transcoding was interrupted while draining.");
+            }
+
             int numInputStreams = ctx.avfCtxInput.nb_streams();
 
             // flush filters and encoders
@@ -1087,7 +1429,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     if (filter_ctx[i].filter_graph == null)
                         continue;
 
-                    ret = filterEncodeWriteFrame(null, i);
+                    ret = filterEncodeWriteFrame(null, i, false);
 
                     if (ret < 0) {
                         logger.error("Flushing filter failed: {}", ret);
@@ -1102,8 +1444,12 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
             }
 
             ret = av_write_trailer(ctx.avfCtxOutput);
+
+            endRenditions(true);
         } finally {
+            stopStages();
             returnTranscodePermission(ctx.OPAQUE);
+            endRenditions(false);
 
             // Cleanup.
             endStreamOutput(packet, frame);
@@ -1111,6 +1457,216 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         }
     }
 
+    private void startStages() {
+        if (!FFmpegConfig.getStagedTranscode()) {
+            return;
+        }
+
+        boolean transcoding = false;
+
+        for (FilteringContext fctx : filter_ctx) {
+            if (fctx != null && fctx.filter_graph != null) {
+                transcoding = true;
+                break;
+            }
+        }
+
+        if (!transcoding) {
+            return;
+        }
+
+        int queueSize = FFmpegConfig.getStagedQueueSize();
+        String postPend = String.valueOf(ctx.OPAQUE);
+
+        decodedFramePool = allocFramePool(queueSize + 2);
+        filteredFramePool = allocFramePool(queueSize + 2);
+        remuxPacketPool = new ArrayBlockingQueue<>(queueSize + 2);
+
+        for (int i = 0; i < queueSize + 2; i++) {
+            remuxPacketPool.offer(new AVPacket());
+        }
+
+        encodeStage = new FFmpegTranscodeStage<>("Encode", new EncodeHandler(), queueSize);
+
+        if (!encodeStage.start(postPend)) {
+            encodeStage = null;
+            freeStagePools();
+            return;
+        }
+
+        filterStage = new FFmpegTranscodeStage<>("Filter", new FilterHandler(), queueSize);
+
+        if (!filterStage.start(postPend)) {
+            filterStage = null;
+            encodeStage.stop();
+            encodeStage = null;
+            freeStagePools();
+            return;
+        }
+
+        logger.info("Staged transcoding started with a queue size of {}.", queueSize);
+    }
+
+    private void drainStages() throws InterruptedException {
+        // The filtering stage adds to the encoding stage, so it needs to be empty first.
+        if (filterStage != null) {
+            filterStage.drain();
+        }
+
+        if (encodeStage != null) {
+            encodeStage.drain();
+        }
+    }
+
+    private void stopStages() {
+        if (encodeStage == null) {
+            return;
+        }
+
+        // If the filtering stage is waiting on the encoding stage, stopping it first ensures it
+        // can't add anything after the encoding stage is stopped.
+        if (filterStage != null) {
+            filterStage.stop();
+        }
+
+        encodeStage.stop();
+
+        logger.info("Staged transcoding timing: Decode {} frames, {}ms busy; {}; {}",
+                decodedFrames, decodeNanos / 1000000, filterStage, encodeStage);
+
+        filterStage = null;
+        encodeStage = null;
+
+        // Everything the stages were holding has been returned by now.
+        freeStagePools();
+    }
+
+    private static ArrayBlockingQueue<AVFrame> allocFramePool(int size) {
+        ArrayBlockingQueue<AVFrame> pool = new ArrayBlockingQueue<>(size);
+
+        for (int i = 0; i < size; i++) {
+            AVFrame frame = av_frame_alloc();
+
+            if (frame == null) {
+                break;
+            }
+
+            pool.offer(frame);
+        }
+
+        return pool;
+    }
+
+    private void freeStagePools() {
+        AVFrame frame;
+        AVPacket packet;
+
+        if (decodedFramePool != null) {
+            while ((frame = decodedFramePool.poll()) != null) {
+                av_frame_free(frame);
+            }
+
+            decodedFramePool = null;
+        }
+
+        if (filteredFramePool != null) {
+            while ((frame = filteredFramePool.poll()) != null) {
+                av_frame_free(frame);
+            }
+
+            filteredFramePool = null;
+        }
+
+        if (remuxPacketPool != null) {
+            while ((packet = remuxPacketPool.poll()) != null) {
+                packet.deallocate();
+            }
+
+            remuxPacketPool = null;
+        }
+    }
+
+    private static AVFrame takeFrame(ArrayBlockingQueue<AVFrame> pool) {
+        AVFrame frame = pool.poll();
+
+        // The pool is sized so this doesn't happen, but a new frame is better than stopping.
+        return frame != null ? frame : av_frame_alloc();
+    }
+
+    private static void releaseFrame(ArrayBlockingQueue<AVFrame> pool, AVFrame frame) {
+        av_frame_unref(frame);
+
+        if (pool == null || !pool.offer(frame)) {
+            av_frame_free(frame);
+        }
+    }
+
+    private static AVPacket takePacket(ArrayBlockingQueue<AVPacket> pool) {
+        AVPacket packet = pool.poll();
+
+        return packet != null ? packet : new AVPacket();
+    }
+
+    private static void releasePacket(ArrayBlockingQueue<AVPacket> pool, AVPacket packet) {
+        av_packet_unref(packet);
+
+        if (pool == null || !pool.offer(packet)) {
+            packet.deallocate();
+        }
+    }
+
+    private class FilterHandler implements FFmpegTranscodeStage.Handler<AVFrame> {
+        @Override
+        public void process(AVFrame frame, int streamIndex) {
+            int ret = filterEncodeWriteFrame(frame, streamIndex, true);
+            releaseFrame(decodedFramePool, frame);
+
+            if (ret < 0) {
+                logger.error("Error from filterEncodeWriteFrame: {}", ret);
+            }
+        }
+
+        @Override
+        public void discard(AVFrame frame) {
+            releaseFrame(decodedFramePool, frame);
+        }
+    }
+
+    private class EncodeHandler implements FFmpegTranscodeStage.Handler<Pointer> {
+        private final int got_frame[] = new int[] { 0 };
+
+        @Override
+        public void process(Pointer item, int streamIndex) {
+            int ret;
+
+            if (item instanceof AVFrame) {
+                ret = encodeWriteFrame((AVFrame) item, streamIndex, got_frame);
+                releaseFrame(filteredFramePool, (AVFrame) item);
+
+                if (ret < 0) {
+                    logger.error("Error from encodeWriteFrame: {}", ret);
+                }
+            } else {
+                AVPacket packet = (AVPacket) item;
+                ret = av_interleaved_write_frame(ctx.avfCtxOutput, packet);
+                releasePacket(remuxPacketPool, packet);
+
+                if (ret < 0) {
+                    logger.error("Error from av_interleaved_write_frame: {}", ret);
+                }
+            }
+        }
+
+        @Override
+        public void discard(Pointer item) {
+            if (item instanceof AVFrame) {
+                releaseFrame(filteredFramePool, (AVFrame) item);
+            } else {
+                releasePacket(remuxPacketPool, (AVPacket) item);
+            }
+        }
+    }
+
     private void switchStreamOutput() throws FFmpegException, InterruptedException {
         int ret;
         int numInputStreams = ctx.avfCtxInput.nb_streams();
@@ -1123,7 +1679,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                 if (filter_ctx[i].filter_graph == null)
                     continue;
 
-                ret = filterEncodeWriteFrame(null, i);
+                ret = filterEncodeWriteFrame(null, i, false);
 
                 if (ret < 0) {
                     logger.error("Flushing filter failed: {}", ret);
@@ -1147,6 +1703,9 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
             ctx.deallocOutputContext2();
         }
 
+        // Each rendition file belongs to one recording, so they end with the primary output.
+        endRenditions(true);
+
         if (ctx.isInterrupted()) {
             return;
         }
@@ -1158,6 +1717,25 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         av_packet_unref(packet);
         av_frame_free(frame);
 
+        av_frame_free(filterFrame);
+        filterFrame = null;
+        av_frame_free(renditionFilterFrame);
+        renditionFilterFrame = null;
+        av_frame_free(renditionDecodeFrame);
+        renditionDecodeFrame = null;
+
+        if (encodePacket != null) {
+            av_packet_unref(encodePacket);
+            encodePacket.deallocate();
+            encodePacket = null;
+        }
+
+        if (renditionPacket != null) {
+            av_packet_unref(renditionPacket);
+            renditionPacket.deallocate();
+            renditionPacket = null;
+        }
+
         deallocFilterGraphs();
     }
 
@@ -1387,6 +1965,43 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         return ret;
     }
 
+    /**
+     * Get the video filter to use from the encoder settings of a profile.
+     *
+     * @param videoEncodeSettings The video encoder settings.
+     * @param stream_index The input video stream index.
+     * @param interlaced <i>true</i> if the video needs to be deinterlaced.
+     * @return The filter specification.
+     */
+    private String getVideoFilterSpec(Map<String, String> videoEncodeSettings, int stream_index,
+                                      boolean interlaced) {
+        String filter_spec;
+
+        if (interlaced) {
+            filter_spec = videoEncodeSettings.get("deinterlace_filter");
+        } else {
+            filter_spec = videoEncodeSettings.get("progressive_filter");
+        }
+
+        if (filter_spec == null) {
+            filter_spec = "fps=fps=opendct_fps:round=near";
+            logger.warn("No filter was specified. Using 'fps=fps=opendct_fps:round=near'." +
+                    " To avoid this message, set 'deinterlace_filter' and" +
+                    " 'progressive_filter' to 'null' or 'fps=fps=opendct_fps:round=near'" +
+                    " in the profile.");
+        } else if (filter_spec.contains("opendct_")) {
+            AVRational fullRate = ctx.avfCtxInput.streams(stream_index).codec().framerate();
+            AVRational halfRate = av_mul_q(fullRate, av_make_q(1, 2));
+            AVRational doubleRate = av_mul_q(fullRate, av_make_q(2, 1));
+
+            filter_spec = filter_spec.replace("opendct_hfps", halfRate.num() + "/" + halfRate.den());
+            filter_spec = filter_spec.replace("opendct_fps", fullRate.num() + "/" + fullRate.den());
+            filter_spec = filter_spec.replace("opendct_dfps", doubleRate.num() + "/" + doubleRate.den());
+        }
+
+        return filter_spec;
+    }
+
     private int initFilters() throws FFmpegException {
         String filter_spec;
 
@@ -1415,30 +2030,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
             filter_ctx[i].filter_graph = new AVFilterGraph();
 
             if (codecType == AVMEDIA_TYPE_VIDEO) {
-                if (interlaced) {
-                    filter_spec = ctx.videoEncodeSettings.get("deinterlace_filter");
-                } else {
-                    filter_spec = ctx.videoEncodeSettings.get("progressive_filter");
-                }
-
-                if (filter_spec == null) {
-                    filter_spec = "fps=fps=opendct_fps:round=near";
-                    logger.warn("No filter was specified. Using 'fps=fps=opendct_fps:round=near'." +
-                            " To avoid this message, set 'deinterlace_filter' and" +
-                            " 'progressive_filter' to 'null' or 'fps=fps=opendct_fps:round=near'" +
-                            " in the profile.");
-                } else {
-
-                    if (filter_spec.contains("opendct_")) {
-                        AVRational fullRate = ctx.avfCtxInput.streams(i).codec().framerate();
-                        AVRational halfRate = av_mul_q(fullRate, av_make_q(1, 2));
-                        AVRational doubleRate = av_mul_q(fullRate, av_make_q(2, 1));
-
-                        filter_spec = filter_spec.replace("opendct_hfps", halfRate.num() + "/" + halfRate.den());
-                        filter_spec = filter_spec.replace("opendct_fps", fullRate.num() + "/" + fullRate.den());
-                        filter_spec = filter_spec.replace("opendct_dfps", doubleRate.num() + "/" + doubleRate.den());
-                    }
-                }
+                filter_spec = getVideoFilterSpec(ctx.videoEncodeSettings, i, interlaced);
             } else {
                 filter_spec = "anull"; /* passthrough (dummy) filter for audio */
             }
@@ -1456,9 +2048,194 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         return 0;
     }
 
+    private void decodeRenditionVideo(AVPacket packet, AVPacket copyPacket, int got_frame[]) throws FFmpegException {
+        int ret;
+
+        av_copy_packet(copyPacket, packet);
+        av_packet_copy_props(copyPacket, packet);
+
+        av_packet_rescale_ts(copyPacket,
+                ctx.streamMap[ctx.preferredVideo].iStreamRational,
+                ctx.streamMap[ctx.preferredVideo].iCodecRational);
+
+        if (renditionDecodeFrame == null) {
+            renditionDecodeFrame = av_frame_alloc();
+
+            if (renditionDecodeFrame == null) {
+                av_packet_unref(copyPacket);
+                throw new FFmpegException("av_frame_alloc: Unable to allocate frame.", ENOMEM);
+            }
+        }
+
+        AVFrame frame = renditionDecodeFrame;
+
+        long decodeStart = System.nanoTime();
+        ret = avcodec_decode_video2(ctx.videoInCodecCtx, frame, got_frame, copyPacket);
+        decodeNanos += System.nanoTime() - decodeStart;
+
+        av_packet_unref(copyPacket);
+
+        if (ret < 0) {
+            logger.error("Decoding for renditions failed");
+        } else if (got_frame[0] != 0) {
+            frame.pts(av_frame_get_best_effort_timestamp(frame));
+            decodedFrames += 1;
+            writeRenditionFrames(frame);
+        }
+
+        av_frame_unref(frame);
+    }
+
+    private void writeRenditionPackets(AVPacket packet, AVPacket copyPacket, int inputStreamIndex) {
+        int ret;
+
+        for (FFmpegRendition rendition : ctx.renditions) {
+            OutputStreamMap map = rendition.streamMap[inputStreamIndex];
+
+            if (map.outStreamIndex == NO_STREAM_IDX) {
+                continue;
+            }
+
+            av_copy_packet(copyPacket, packet);
+            av_packet_copy_props(copyPacket, packet);
+
+            av_packet_rescale_ts(copyPacket, map.iStreamRational, map.oStreamRational);
+
+            copyPacket.pos(-1);
+            copyPacket.stream_index(map.outStreamIndex);
+
+            ret = av_interleaved_write_frame(rendition.avfCtxOutput, copyPacket);
+
+            if (ret < 0) {
+                logger.error("Error from av_interleaved_write_frame for rendition '{}': {}",
+                        rendition, ret);
+            }
+        }
+    }
+
+    private void writeRenditionFrames(AVFrame frame) {
+        for (FFmpegRendition rendition : ctx.renditions) {
+            int ret = filterEncodeWriteRenditionFrame(rendition, frame);
+
+            if (ret < 0) {
+                logger.error("Error from filterEncodeWriteRenditionFrame for rendition '{}': {}",
+                        rendition, ret);
+            }
+        }
+    }
+
+    private int filterEncodeWriteRenditionFrame(FFmpegRendition rendition, AVFrame frame) {
+        int ret;
+
+        // The frame is still needed by the primary output and any other renditions.
+        ret = av_buffersrc_add_frame_flags(rendition.videoFilter.buffersrc_ctx,
+                frame, AV_BUFFERSRC_FLAG_KEEP_REF);
+
+        if (ret < 0) {
+            logger.error("Error while feeding the rendition filtergraph");
+            return ret;
+        }
+
+        if (renditionFilterFrame == null) {
+            renditionFilterFrame = av_frame_alloc();
+
+            if (renditionFilterFrame == null) {
+                return ENOMEM;
+            }
+        }
+
+        AVFrame filt_frame = renditionFilterFrame;
+
+        while (true) {
+            ret = av_buffersink_get_frame(rendition.videoFilter.buffersink_ctx, filt_frame);
+
+            if (ret < 0) {
+                if (ret == AVERROR_EOF || ret == EAGAIN) {
+                    ret = 0;
+                }
+
+                break;
+            }
+
+            filt_frame.pict_type(AV_PICTURE_TYPE_NONE);
+            ret = encodeWriteRenditionFrame(rendition, filt_frame, renditionGotFrame);
+
+            if (ret < 0) {
+                break;
+            }
+        }
+
+        return ret;
+    }
+
+    private int encodeWriteRenditionFrame(FFmpegRendition rendition, AVFrame filt_frame, int got_frame[]) {
+        int ret;
+        OutputStreamMap map = rendition.streamMap[ctx.preferredVideo];
+
+        if (renditionPacket == null) {
+            renditionPacket = new AVPacket();
+        }
+
+        AVPacket enc_pkt = renditionPacket;
+
+        enc_pkt.data(null);
+        enc_pkt.size(0);
+        av_init_packet(enc_pkt);
+
+        ret = avcodec_encode_video2(map.oCodecContext, enc_pkt, filt_frame, got_frame);
+
+        if (filt_frame != null) {
+            av_frame_unref(filt_frame);
+        }
+
+        if (ret < 0) {
+            return ret;
+        }
+
+        if (got_frame[0] == 0) {
+            return 0;
+        }
+
+        enc_pkt.stream_index(map.outStreamIndex);
+        av_packet_rescale_ts(enc_pkt, map.oCodecRational, map.oStreamRational);
+
+        return av_interleaved_write_frame(rendition.avfCtxOutput, enc_pkt);
+    }
+
+    private int flushRenditionEncoder(FFmpegRendition rendition) {
+        int ret;
+        int got_frame[] = renditionGotFrame;
+        OutputStreamMap map = rendition.streamMap[ctx.preferredVideo];
+
+        if ((map.oCodecContext.codec().capabilities() & AV_CODEC_CAP_DELAY) == 0) {
+            return 0;
+        }
+
+        while (true) {
+            ret = encodeWriteRenditionFrame(rendition, null, got_frame);
+
+            if (ret < 0) {
+                break;
+            }
+
+            if (got_frame[0] == 0) {
+                return 0;
+            }
+        }
+
+        return ret;
+    }
+
     private int encodeWriteFrame(AVFrame filt_frame, int stream_index, int got_frame[]) {
         int ret = 0;
-        avcodec.AVPacket enc_pkt = new avcodec.AVPacket();
+
+        // This is only used by one thread at a time. When staged, all encoding is on the encoding
+        // stage until the stages are drained.
+        if (encodePacket == null) {
+            encodePacket = new AVPacket();
+        }
+
+        AVPacket enc_pkt = encodePacket;
 
         if (got_frame == null || got_frame.length == 0) {
             logger.warn("got_frame will not be able to be used ByRef.");
@@ -1479,7 +2256,10 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     filt_frame, got_frame);
         }
 
-        av_frame_free(filt_frame);
+        // The caller still owns the frame, so it's only cleared for reuse.
+        if (filt_frame != null) {
+            av_frame_unref(filt_frame);
+        }
 
         if (ret < 0) {
             return ret;
@@ -1502,6 +2282,14 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         //logger.trace("Muxing frame");
 
         // mux encoded frame
+        // The admission controller uses this to tell if the transcode is keeping up.
+        if (ctx.streamMap[stream_index].iCodecType == AVMEDIA_TYPE_VIDEO &&
+                enc_pkt.pts() != AV_NOPTS_VALUE) {
+
+            admission.updateProgress(ctx.OPAQUE,
+                    enc_pkt.pts() * av_q2d(ctx.streamMap[stream_index].oStreamRational));
+        }
+
         ret = av_interleaved_write_frame(ctx.avfCtxOutput, enc_pkt);
 
         if (encodedFrames[stream_index].addAndGet(1) == 1000) {
@@ -1515,10 +2303,18 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         return ret;
     }
 
-    private int filterEncodeWriteFrame(AVFrame frame, int stream_index) {
+    /**
+     * Push a decoded frame into the filter graph and encode the filtered frames.
+     *
+     * @param frame The decoded frame or <i>null</i> to flush the filter graph.
+     * @param stream_index The input stream index.
+     * @param staged If <i>true</i> the filtered frames are added to the encoding stage instead of
+     *               being encoded on this thread.
+     * @return 0 or a negative error code.
+     */
+    private int filterEncodeWriteFrame(AVFrame frame, int stream_index, boolean staged) {
         int ret;
         AVFrame filt_frame;
-        int got_frame[] = new int[] { 0 };
 
         //logger.trace("Pushing decoded frame to filters");
         // push the decoded frame into the filtergraph
@@ -1531,7 +2327,16 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
         // pull filtered frames from the filtergraph
         while (true) {
-            filt_frame = av_frame_alloc();
+            // Staged frames belong to the encoding stage, so each one needs its own frame.
+            if (staged) {
+                filt_frame = takeFrame(filteredFramePool);
+            } else {
+                if (filterFrame == null) {
+                    filterFrame = av_frame_alloc();
+                }
+
+                filt_frame = filterFrame;
+            }
 
             if (filt_frame == null) {
                 ret = ENOMEM;
@@ -1551,12 +2356,28 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     ret = 0;
                 }
 
-                av_frame_free(filt_frame);
+                if (staged) {
+                    releaseFrame(filteredFramePool, filt_frame);
+                }
                 break;
             }
 
             filt_frame.pict_type(AV_PICTURE_TYPE_NONE);
-            ret = encodeWriteFrame(filt_frame, stream_index, got_frame);
+
+            if (staged) {
+                try {
+                    encodeStage.put(filt_frame, stream_index);
+                } catch (InterruptedException e) {
+                    // The stage is being stopped. The frame was released by the stage.
+                    Thread.currentThread().interrupt();
+                    ret = 0;
+                    break;
+                }
+
+                continue;
+            }
+
+            ret = encodeWriteFrame(filt_frame, stream_index, filterGotFrame);
 
             if (ret < 0) {
                 break;
@@ -24,6 +24,7 @@ import org.bytedeco.javacpp.avformat.*;
 import org.bytedeco.javacpp.avutil.*;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avfilter.avfilter_register_all;
@@ -305,15 +306,33 @@ public class FFmpegUtil {
      * @return The new AVStream if successful.
      */
     public static AVStream addTranscodeVideoStreamToContext(FFmpegContext ctx, int stream_id, FFmpegProfile profile) {
-        AVStream out_stream = avformat_new_stream(ctx.avfCtxOutput, null);
+        return addTranscodeVideoStreamToContext(ctx.avfCtxOutput, ctx.avfCtxInput.streams(stream_id),
+                ctx.streamMap[stream_id], profile, ctx.videoEncodeSettings);
+    }
+
+    /**
+     * Adds a stream with transcoding for a video or audio stream to any output context.
+     *
+     * @param outputContext This is the output context to add the stream to.
+     * @param in_stream This is the input stream to be transcoded.
+     * @param streamMap This is updated with the encoder and its options.
+     * @param profile This is a properties file containing the desired settings.
+     * @param videoEncodeSettings These are the video encoder settings selected from the profile.
+     * @return The new AVStream if successful.
+     */
+    public static AVStream addTranscodeVideoStreamToContext(AVFormatContext outputContext,
+                                                            AVStream in_stream,
+                                                            OutputStreamMap streamMap,
+                                                            FFmpegProfile profile,
+                                                            Map<String, String> videoEncodeSettings) {
+
+        AVStream out_stream = avformat_new_stream(outputContext, null);
 
         if (out_stream == null) {
             logger.error("Could not allocate output stream");
             return null;
         }
 
-        AVStream in_stream = ctx.avfCtxInput.streams(stream_id);
-
         AVCodecContext dec_ctx = in_stream.codec();
         AVCodecContext enc_ctx = out_stream.codec();
 
@@ -326,10 +345,10 @@ public class FFmpegUtil {
         }
 
         AVCodec encoder;
-        AVDictionary dict = ctx.streamMap[stream_id].iDict = new AVDictionary(null);
+        AVDictionary dict = streamMap.iDict = new AVDictionary(null);
 
         if (decoderCodecType == AVMEDIA_TYPE_VIDEO) {
-            encoder = ctx.streamMap[stream_id].iCodec = profile.getVideoEncoderCodec(dec_ctx.codec());
+            encoder = streamMap.iCodec = profile.getVideoEncoderCodec(dec_ctx.codec());
 
             if (encoder == null) {
                 logger.fatal("Necessary video encoder not found");
@@ -365,9 +384,9 @@ public class FFmpegUtil {
             int h = dec_ctx.height();
 
             ctx.videoEncodeSettings = profile.getVideoEncoderMap(w, h, encoder);*/
-            FFmpegProfileManager.confVideoEncoder(ctx.videoEncodeSettings, enc_ctx, dict);
+            FFmpegProfileManager.confVideoEncoder(videoEncodeSettings, enc_ctx, dict);
         } else {
-            encoder = ctx.streamMap[stream_id].iCodec = avcodec_find_encoder(dec_ctx.codec_id());
+            encoder = streamMap.iCodec = avcodec_find_encoder(dec_ctx.codec_id());
 
             if (encoder == null) {
                 logger.fatal("Necessary audio encoder not found");
@@ -401,11 +420,11 @@ public class FFmpegUtil {
             return null;
         }*/
 
-        if ((ctx.avfCtxOutput.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
+        if ((outputContext.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
             enc_ctx.flags(enc_ctx.flags() | CODEC_FLAG_GLOBAL_HEADER);
         }
 
-        out_stream.id(ctx.avfCtxOutput.nb_streams() - 1);
+        out_stream.id(outputContext.nb_streams() - 1);
 
         return out_stream;
     }
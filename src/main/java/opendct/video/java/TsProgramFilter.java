@@ -0,0 +1,527 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.java;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Removes everything from a transport stream that doesn't belong to one program.
+ * <p/>
+ * This is used to record one program from a stream containing an entire QAM frequency. The PAT
+ * is replaced with a PAT that only contains the requested program. Sections on the PMT PID that
+ * belong to other programs are removed and the continuity counter of the PMT PID is renumbered to
+ * match. Every PID the PMT references is passed through unchanged, so continuity counters and
+ * PCRs are kept intact. Everything else, including null packets, is dropped.
+ * <p/>
+ * Data can be provided in any size. Packets split between calls are put back together. This class
+ * is not thread-safe.
+ */
+public class TsProgramFilter {
+    private static final Logger logger = LogManager.getLogger(TsProgramFilter.class);
+
+    /**
+     * Keep the first program listed in the PAT.
+     */
+    public static final int FIRST_PROGRAM = -1;
+
+    private static final int MAX_SECTION_LENGTH = 1024;
+    private static final int CRC_TABLE[] = new int[256];
+
+    static {
+        for (int i = 0; i < CRC_TABLE.length; i++) {
+            int crc = i << 24;
+
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final int requestedProgram;
+    private int program;
+    private boolean missingLogged;
+
+    private final byte packet[] = new byte[VideoUtil.MTS_PACKET_LEN];
+    private int packetBytes;
+
+    private final byte patPacket[] = new byte[VideoUtil.MTS_PACKET_LEN];
+    private boolean patReady;
+    private int patContinuity;
+
+    private int pmtPid = -1;
+    private int pmtContinuity;
+    private boolean pmtKeep;
+    private final long pids[] = new long[8192 / 64];
+    private final byte pmtSection[] = new byte[MAX_SECTION_LENGTH + 3];
+    private int pmtSectionBytes;
+    private int pmtSectionLength = -1;
+
+    private long packetsIn;
+    private long packetsOut;
+
+    /**
+     * Create a new program filter.
+     *
+     * @param program The program number to keep or <i>FIRST_PROGRAM</i> to keep the first program
+     *                in the PAT.
+     */
+    public TsProgramFilter(int program) {
+        if (program <= 0 && program != FIRST_PROGRAM) {
+            throw new IllegalArgumentException("The program must be greater than 0.");
+        }
+
+        this.requestedProgram = program;
+        this.program = program == FIRST_PROGRAM ? 0 : program;
+    }
+
+    /**
+     * The program number being kept.
+     *
+     * @return The program number or 0 if the first program is being kept and the PAT hasn't been
+     *         found yet.
+     */
+    public int getProgram() {
+        return program;
+    }
+
+    /**
+     * Filter the remaining bytes in a buffer.
+     * <p/>
+     * All of the remaining bytes in <b>in</b> are consumed. Only complete packets are written to
+     * <b>out</b>, so <b>out</b> must have room for at least the number of bytes remaining in
+     * <b>in</b> plus one packet.
+     *
+     * @param in The unfiltered stream.
+     * @param out The buffer to receive the filtered stream.
+     */
+    public void filter(ByteBuffer in, ByteBuffer out) {
+        while (in.hasRemaining()) {
+            if (packetBytes == 0) {
+                byte syncByte = in.get();
+
+                // Drop bytes until we find something that looks like the start of a packet.
+                if (syncByte != VideoUtil.MTS_SYNC_BYTE) {
+                    continue;
+                }
+
+                packet[0] = syncByte;
+                packetBytes = 1;
+            }
+
+            int length = Math.min(VideoUtil.MTS_PACKET_LEN - packetBytes, in.remaining());
+            in.get(packet, packetBytes, length);
+            packetBytes += length;
+
+            if (packetBytes == VideoUtil.MTS_PACKET_LEN) {
+                packetBytes = 0;
+                processPacket(out);
+            }
+        }
+    }
+
+    private void processPacket(ByteBuffer out) {
+        packetsIn += 1;
+
+        // Transport error indicator.
+        if ((packet[1] & 0x80) != 0) {
+            return;
+        }
+
+        int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+
+        if (pid == 0) {
+            if (parsePat() && patReady) {
+                patPacket[3] = (byte) (0x10 | patContinuity);
+                patContinuity = (patContinuity + 1) & 0x0f;
+                out.put(patPacket);
+                packetsOut += 1;
+            }
+        } else if (pid == pmtPid) {
+            if (keepPmtPacket()) {
+                parsePmt();
+                packet[3] = (byte) ((packet[3] & 0xf0) | pmtContinuity);
+                pmtContinuity = (pmtContinuity + 1) & 0x0f;
+                out.put(packet);
+                packetsOut += 1;
+            }
+        } else if ((pids[pid >>> 6] & (1L << (pid & 63))) != 0) {
+            out.put(packet);
+            packetsOut += 1;
+        }
+    }
+
+    private int payloadStart() {
+        int adaptationFieldControl = (packet[3] >> 4) & 0x03;
+
+        if ((adaptationFieldControl & 0x01) == 0) {
+            return -1;
+        }
+
+        int payloadStart = 4;
+
+        if ((adaptationFieldControl & 0x02) != 0) {
+            payloadStart += 1 + (packet[4] & 0xff);
+        }
+
+        return payloadStart < VideoUtil.MTS_PACKET_LEN ? payloadStart : -1;
+    }
+
+    /**
+     * Find the PMT PID of the program and create the replacement PAT.
+     *
+     * @return <i>false</i> if this packet does not start a PAT.
+     */
+    private boolean parsePat() {
+        int payloadStart = payloadStart();
+
+        // A PAT for one QAM frequency always fits in one packet.
+        if ((packet[1] & 0x40) == 0 || payloadStart < 0) {
+            return false;
+        }
+
+        int sectionStart = payloadStart + 1 + (packet[payloadStart] & 0xff);
+
+        if (sectionStart + 8 > VideoUtil.MTS_PACKET_LEN || packet[sectionStart] != 0x00) {
+            return false;
+        }
+
+        int sectionLength = ((packet[sectionStart + 1] & 0x0f) << 8) | (packet[sectionStart + 2] & 0xff);
+        // The last 4 bytes of the section are the CRC.
+        int programsEnd = Math.min(sectionStart + 3 + sectionLength - 4, VideoUtil.MTS_PACKET_LEN);
+        int newPmtPid = -1;
+        int newProgram = program;
+
+        for (int i = sectionStart + 8; i + 4 <= programsEnd; i += 4) {
+            int programNumber = ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff);
+
+            if (programNumber == program && program != 0) {
+                newPmtPid = ((packet[i + 2] & 0x1f) << 8) | (packet[i + 3] & 0xff);
+                break;
+            }
+        }
+
+        // Program 0 is the network PID, not a program.
+        if (newPmtPid == -1 && requestedProgram == FIRST_PROGRAM) {
+            for (int i = sectionStart + 8; i + 4 <= programsEnd; i += 4) {
+                int programNumber = ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff);
+
+                if (programNumber != 0) {
+                    newProgram = programNumber;
+                    newPmtPid = ((packet[i + 2] & 0x1f) << 8) | (packet[i + 3] & 0xff);
+                    break;
+                }
+            }
+        }
+
+        if (newPmtPid == -1) {
+            if (pmtPid != -1) {
+                logger.warn("Program {} is no longer in the PAT.", program);
+            } else if (!missingLogged) {
+                logger.warn("Program {} is not in the PAT.", program);
+            }
+
+            missingLogged = true;
+            pmtPid = -1;
+            patReady = false;
+            Arrays.fill(pids, 0);
+            return false;
+        }
+
+        if (newProgram != program) {
+            logger.info("Selected the first program {} in the PAT.", newProgram);
+
+            program = newProgram;
+            pmtPid = -1;
+        }
+
+        if (newPmtPid != pmtPid) {
+            logger.info("Program {} is using the PMT PID {}.", program, newPmtPid);
+
+            pmtPid = newPmtPid;
+            pmtSectionLength = -1;
+            pmtKeep = false;
+            Arrays.fill(pids, 0);
+        }
+
+        // Header with the payload unit start indicator on PID 0.
+        Arrays.fill(patPacket, (byte) 0xff);
+        patPacket[0] = VideoUtil.MTS_SYNC_BYTE;
+        patPacket[1] = 0x40;
+        patPacket[2] = 0x00;
+
+        // Pointer field, table ID and a section length for exactly one program.
+        patPacket[4] = 0x00;
+        patPacket[5] = 0x00;
+        patPacket[6] = (byte) 0xb0;
+        patPacket[7] = 13;
+
+        // Transport stream ID and version are kept from the original PAT.
+        patPacket[8] = packet[sectionStart + 3];
+        patPacket[9] = packet[sectionStart + 4];
+        patPacket[10] = packet[sectionStart + 5];
+        patPacket[11] = 0x00;
+        patPacket[12] = 0x00;
+
+        patPacket[13] = (byte) (program >> 8);
+        patPacket[14] = (byte) program;
+        patPacket[15] = (byte) (0xe0 | (pmtPid >> 8));
+        patPacket[16] = (byte) pmtPid;
+
+        int crc = crc32(patPacket, 5, 12);
+        patPacket[17] = (byte) (crc >> 24);
+        patPacket[18] = (byte) (crc >> 16);
+        patPacket[19] = (byte) (crc >> 8);
+        patPacket[20] = (byte) crc;
+
+        patReady = true;
+        return true;
+    }
+
+    /**
+     * Decide if a packet on the PMT PID belongs to the PMT of the program.
+     * <p/>
+     * Several programs are allowed to send their PMT on the same PID, so the sections of the
+     * other programs are dropped. When a kept packet also has sections of other programs in it,
+     * those sections are replaced with stuffing bytes and the pointer field is moved to the
+     * section of the program.
+     *
+     * @return <i>true</i> if the packet should be kept.
+     */
+    private boolean keepPmtPacket() {
+        int payloadStart = payloadStart();
+
+        if (payloadStart < 0) {
+            return false;
+        }
+
+        if ((packet[1] & 0x40) == 0) {
+            return pmtKeep;
+        }
+
+        int pointerField = packet[payloadStart] & 0xff;
+        int sectionStart = payloadStart + 1 + pointerField;
+
+        // The end of the previous section is still needed if it was kept.
+        boolean keepPrevious = pointerField > 0 && pmtKeep;
+
+        int ourStart = -1;
+        int ourEnd = -1;
+
+        // A section that ends in this packet can be followed by another section.
+        for (int i = sectionStart; i + 5 <= VideoUtil.MTS_PACKET_LEN && packet[i] != (byte) 0xff; ) {
+            int sectionLength = ((packet[i + 1] & 0x0f) << 8) | (packet[i + 2] & 0xff);
+            int programNumber = ((packet[i + 3] & 0xff) << 8) | (packet[i + 4] & 0xff);
+
+            if (packet[i] == 0x02 && programNumber == program) {
+                ourStart = i;
+                ourEnd = i + 3 + sectionLength;
+                break;
+            }
+
+            i += 3 + sectionLength;
+        }
+
+        if (ourStart == -1) {
+            pmtKeep = false;
+
+            if (keepPrevious && sectionStart < VideoUtil.MTS_PACKET_LEN) {
+                Arrays.fill(packet, sectionStart, VideoUtil.MTS_PACKET_LEN, (byte) 0xff);
+            }
+
+            return keepPrevious;
+        }
+
+        // The section continues in the next packet.
+        pmtKeep = ourEnd > VideoUtil.MTS_PACKET_LEN;
+
+        // Anything between the pointer field and the new start is skipped by a decoder.
+        if (ourStart > sectionStart) {
+            Arrays.fill(packet, sectionStart, ourStart, (byte) 0xff);
+            packet[payloadStart] = (byte) (ourStart - payloadStart - 1);
+        }
+
+        if (ourEnd < VideoUtil.MTS_PACKET_LEN) {
+            Arrays.fill(packet, ourEnd, VideoUtil.MTS_PACKET_LEN, (byte) 0xff);
+        }
+
+        return true;
+    }
+
+    /**
+     * Collect the PMT section for the program and update the PIDs to keep when it is complete.
+     */
+    private void parsePmt() {
+        int payloadStart = payloadStart();
+
+        if (payloadStart < 0) {
+            return;
+        }
+
+        if ((packet[1] & 0x40) == 0) {
+            // Nothing is collected until the start of a section has been seen.
+            if (pmtSectionLength != -1) {
+                appendPmt(payloadStart, VideoUtil.MTS_PACKET_LEN);
+            }
+
+            return;
+        }
+
+        int offset = payloadStart + 1;
+        int sectionStart = Math.min(offset + (packet[payloadStart] & 0xff), VideoUtil.MTS_PACKET_LEN);
+
+        // The bytes before the pointer are the end of the section started in an earlier packet.
+        if (pmtSectionLength != -1) {
+            appendPmt(offset, sectionStart);
+            pmtSectionLength = -1;
+        }
+
+        offset = sectionStart;
+
+        // More than one section can start in this packet. The rest of the packet is stuffed with
+        // 0xFF after the last one.
+        while (offset < VideoUtil.MTS_PACKET_LEN && packet[offset] != (byte) 0xff) {
+            pmtSectionBytes = 0;
+            pmtSectionLength = 0;
+            offset = appendPmt(offset, VideoUtil.MTS_PACKET_LEN);
+        }
+    }
+
+    /**
+     * Add bytes from the current packet to the PMT section in progress and process the section if
+     * it is complete.
+     *
+     * @param offset The first byte in the packet to add.
+     * @param end The end of the bytes that can be added.
+     * @return The offset after the last byte used.
+     */
+    private int appendPmt(int offset, int end) {
+        while (true) {
+            // The length of the section isn't known until the first 3 bytes are here.
+            int needed = pmtSectionLength > 0 ? pmtSectionLength : 3;
+            int length = Math.min(end - offset, needed - pmtSectionBytes);
+
+            System.arraycopy(packet, offset, pmtSection, pmtSectionBytes, length);
+            pmtSectionBytes += length;
+            offset += length;
+
+            if (pmtSectionBytes < needed) {
+                return offset;
+            }
+
+            if (pmtSectionLength > 0) {
+                break;
+            }
+
+            pmtSectionLength = 3 + (((pmtSection[1] & 0x0f) << 8) | (pmtSection[2] & 0xff));
+
+            if (pmtSectionLength > pmtSection.length) {
+                pmtSectionLength = -1;
+                return end;
+            }
+        }
+
+        int sectionLength = pmtSectionLength;
+        pmtSectionLength = -1;
+
+        processPmt(sectionLength);
+
+        return offset;
+    }
+
+    /**
+     * Update the PIDs to keep from a complete PMT section.
+     *
+     * @param sectionLength The length of the section including the header and CRC.
+     */
+    private void processPmt(int sectionLength) {
+        // The table ID must be 2 and the program number must match. Several programs are allowed
+        // to send their PMT on the same PID.
+        int programNumber = ((pmtSection[3] & 0xff) << 8) | (pmtSection[4] & 0xff);
+
+        if (pmtSection[0] != 0x02 || programNumber != program || sectionLength < 16 ||
+                crc32(pmtSection, 0, sectionLength) != 0) {
+
+            return;
+        }
+
+        Arrays.fill(pids, 0);
+
+        int pcrPid = ((pmtSection[8] & 0x1f) << 8) | (pmtSection[9] & 0xff);
+        addPid(pcrPid);
+
+        int programInfoLength = ((pmtSection[10] & 0x0f) << 8) | (pmtSection[11] & 0xff);
+        int streamsEnd = sectionLength - 4;
+
+        for (int i = 12 + programInfoLength; i + 5 <= streamsEnd; ) {
+            int elementaryPid = ((pmtSection[i + 1] & 0x1f) << 8) | (pmtSection[i + 2] & 0xff);
+            int esInfoLength = ((pmtSection[i + 3] & 0x0f) << 8) | (pmtSection[i + 4] & 0xff);
+
+            addPid(elementaryPid);
+            i += 5 + esInfoLength;
+        }
+    }
+
+    private void addPid(int pid) {
+        // The null packet PID is used when there isn't a PCR PID.
+        if (pid != 0x1fff) {
+            pids[pid >>> 6] |= 1L << (pid & 63);
+        }
+    }
+
+    /**
+     * Calculate the MPEG-2 CRC32 used by PSI sections.
+     * <p/>
+     * If the range includes the CRC at the end of a section, the result is 0 when the section is
+     * valid.
+     */
+    public static int crc32(byte data[], int offset, int length) {
+        int crc = 0xffffffff;
+
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+
+        return crc;
+    }
+
+    /**
+     * The number of complete packets provided.
+     */
+    public long getPacketsIn() {
+        return packetsIn;
+    }
+
+    /**
+     * The number of packets that were kept.
+     */
+    public long getPacketsOut() {
+        return packetsOut;
+    }
+
+    /**
+     * <i>true</i> if the PMT of the program has been found.
+     */
+    public boolean isProgramFound() {
+        return pmtPid != -1;
+    }
+}
@@ -0,0 +1,1010 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.java;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects the streams in a transport stream program without FFmpeg.
+ * <p/>
+ * The PAT and PMT are used to find the program and the PIDs and types of its streams. The first
+ * sequence header of each video stream and the first frame header of each audio stream are
+ * decoded to get the basic codec parameters. Detection is complete as soon as one video stream
+ * and one audio stream in the program have a header. Other streams listed in the PMT, like a
+ * second audio program, can be idle for a long time and are not waited for. If the program has no
+ * video or no audio streams, only the other kind is needed.
+ * <p/>
+ * Only the common broadcast codecs are understood. Streams this class doesn't understand are
+ * ignored. This class is not thread-safe.
+ */
+public class TsStreamDetector {
+    private static final Logger logger = LogManager.getLogger(TsStreamDetector.class);
+
+    private static final int MAX_SECTION_LENGTH = 1024;
+    private static final int ES_BUFFER_SIZE = 8192;
+    // Enough to hold any header split between PES packets.
+    private static final int ES_BUFFER_KEEP = 512;
+
+    private static final double MPEG2_FRAME_RATES[] = new double[] {
+            0, 24000.0 / 1001, 24, 25, 30000.0 / 1001, 30, 50, 60000.0 / 1001, 60
+    };
+    private static final int MPEG_AUDIO_SAMPLE_RATES[] = new int[] { 44100, 48000, 32000 };
+    private static final int AC3_SAMPLE_RATES[] = new int[] { 48000, 44100, 32000 };
+    private static final int EAC3_REDUCED_SAMPLE_RATES[] = new int[] { 24000, 22050, 16000 };
+    private static final int AC3_CHANNELS[] = new int[] { 2, 1, 2, 3, 3, 4, 4, 5 };
+    private static final int AAC_SAMPLE_RATES[] = new int[] {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final int desiredProgram;
+
+    private final byte packet[] = new byte[VideoUtil.MTS_PACKET_LEN];
+    private int packetBytes;
+    private long bytesProcessed;
+    private long bytesNeeded = -1;
+
+    // Program number to PMT PID from the PAT.
+    private final Map<Integer, Integer> pmtPids = new HashMap<>();
+    private final Map<Integer, Section> sections = new HashMap<>();
+    private boolean patFound;
+    // Programs with a PMT that was parsed, but couldn't be used.
+    private final Set<Integer> unusablePrograms = new HashSet<>();
+
+    private int program;
+    private int pcrPid = -1;
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final List<Stream> streamList = new ArrayList<>();
+
+    /**
+     * Create a new stream detector.
+     *
+     * @param desiredProgram The program to detect or 0 to use the first program with video.
+     */
+    public TsStreamDetector(int desiredProgram) {
+        this.desiredProgram = desiredProgram;
+    }
+
+    /**
+     * Process more of the stream.
+     * <p/>
+     * Data can be provided in any size. Packets split between calls are put back together.
+     *
+     * @param data The stream.
+     * @param offset The offset of the first byte to process.
+     * @param length The number of bytes to process.
+     * @return <i>true</i> if detection is complete.
+     */
+    public boolean process(byte data[], int offset, int length) {
+        int end = offset + length;
+
+        while (offset < end && bytesNeeded == -1) {
+            if (packetBytes == 0) {
+                bytesProcessed += 1;
+
+                // Drop bytes until we find something that looks like the start of a packet.
+                if (data[offset++] != VideoUtil.MTS_SYNC_BYTE) {
+                    continue;
+                }
+
+                packet[0] = VideoUtil.MTS_SYNC_BYTE;
+                packetBytes = 1;
+            }
+
+            int copy = Math.min(VideoUtil.MTS_PACKET_LEN - packetBytes, end - offset);
+            System.arraycopy(data, offset, packet, packetBytes, copy);
+            packetBytes += copy;
+            offset += copy;
+            bytesProcessed += copy;
+
+            if (packetBytes == VideoUtil.MTS_PACKET_LEN) {
+                packetBytes = 0;
+                processPacket();
+
+                if (isHeadersFound()) {
+                    bytesNeeded = bytesProcessed;
+                }
+            }
+        }
+
+        return bytesNeeded != -1;
+    }
+
+    private void processPacket() {
+        // Transport error indicator.
+        if ((packet[1] & 0x80) != 0) {
+            return;
+        }
+
+        int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+        int payloadStart = payloadStart();
+
+        if (payloadStart < 0) {
+            return;
+        }
+
+        boolean unitStart = (packet[1] & 0x40) != 0;
+
+        if (pid == 0 || (program == 0 && pmtPids.containsValue(pid))) {
+            collectSections(pid, unitStart, payloadStart);
+        } else {
+            Stream stream = streams.get(pid);
+
+            if (stream != null && !stream.headerFound) {
+                stream.append(packet, payloadStart, unitStart);
+            }
+        }
+    }
+
+    private int payloadStart() {
+        int adaptationFieldControl = (packet[3] >> 4) & 0x03;
+
+        if ((adaptationFieldControl & 0x01) == 0) {
+            return -1;
+        }
+
+        int payloadStart = 4;
+
+        if ((adaptationFieldControl & 0x02) != 0) {
+            payloadStart += 1 + (packet[4] & 0xff);
+        }
+
+        return payloadStart < VideoUtil.MTS_PACKET_LEN ? payloadStart : -1;
+    }
+
+    /**
+     * Put PSI sections back together and parse each one that is complete.
+     */
+    private void collectSections(int pid, boolean unitStart, int payloadStart) {
+        Section section = sections.get(pid);
+
+        if (section == null) {
+            section = new Section();
+            sections.put(pid, section);
+        }
+
+        if (!unitStart) {
+            // Nothing is collected until the start of a section has been seen.
+            if (section.length != -1) {
+                appendSection(pid, section, payloadStart, VideoUtil.MTS_PACKET_LEN);
+            }
+
+            return;
+        }
+
+        int offset = payloadStart + 1;
+        int sectionStart = Math.min(offset + (packet[payloadStart] & 0xff), VideoUtil.MTS_PACKET_LEN);
+
+        // The bytes before the pointer are the end of the section started in an earlier packet.
+        if (section.length != -1) {
+            appendSection(pid, section, offset, sectionStart);
+            section.length = -1;
+        }
+
+        offset = sectionStart;
+
+        // More than one section can start in this packet. The rest of the packet is stuffed with
+        // 0xFF after the last one.
+        while (offset < VideoUtil.MTS_PACKET_LEN && packet[offset] != (byte) 0xff) {
+            section.bytes = 0;
+            section.length = 0;
+            offset = appendSection(pid, section, offset, VideoUtil.MTS_PACKET_LEN);
+        }
+    }
+
+    /**
+     * Add bytes from the current packet to a section and parse the section if it is complete.
+     *
+     * @return The offset after the last byte used.
+     */
+    private int appendSection(int pid, Section section, int offset, int end) {
+        while (true) {
+            // The length of the section isn't known until the first 3 bytes are here.
+            int needed = section.length > 0 ? section.length : 3;
+            int length = Math.min(end - offset, needed - section.bytes);
+
+            System.arraycopy(packet, offset, section.data, section.bytes, length);
+            section.bytes += length;
+            offset += length;
+
+            if (section.bytes < needed) {
+                return offset;
+            }
+
+            if (section.length > 0) {
+                break;
+            }
+
+            section.length = 3 + (((section.data[1] & 0x0f) << 8) | (section.data[2] & 0xff));
+
+            if (section.length > section.data.length) {
+                section.length = -1;
+                return end;
+            }
+        }
+
+        int sectionLength = section.length;
+        section.length = -1;
+
+        if (sectionLength < 12 || TsProgramFilter.crc32(section.data, 0, sectionLength) != 0) {
+            return offset;
+        }
+
+        byte complete[] = new byte[sectionLength];
+        System.arraycopy(section.data, 0, complete, 0, sectionLength);
+
+        if (pid == 0) {
+            parsePat(complete);
+        } else if (program == 0) {
+            parsePmt(complete);
+        }
+
+        return offset;
+    }
+
+    private void parsePat(byte section[]) {
+        if (section[0] != 0x00) {
+            return;
+        }
+
+        // The last 4 bytes of the section are the CRC.
+        for (int i = 8; i + 4 <= section.length - 4; i += 4) {
+            int programNumber = ((section[i] & 0xff) << 8) | (section[i + 1] & 0xff);
+
+            // Program 0 is the network PID.
+            if (programNumber == 0 || (desiredProgram > 0 && programNumber != desiredProgram)) {
+                continue;
+            }
+
+            pmtPids.put(programNumber, ((section[i + 2] & 0x1f) << 8) | (section[i + 3] & 0xff));
+        }
+
+        // A PAT can be split into several sections. It's only known to be complete after the last.
+        if (section[6] == section[7]) {
+            patFound = true;
+        }
+    }
+
+    private void parsePmt(byte section[]) {
+        int programNumber = ((section[3] & 0xff) << 8) | (section[4] & 0xff);
+
+        if (section[0] != 0x02 || !pmtPids.containsKey(programNumber)) {
+            return;
+        }
+
+        List<Stream> newStreams = new ArrayList<>();
+        boolean hasVideo = false;
+
+        int programInfoLength = ((section[10] & 0x0f) << 8) | (section[11] & 0xff);
+        int streamsEnd = section.length - 4;
+
+        for (int i = 12 + programInfoLength; i + 5 <= streamsEnd; ) {
+            int streamType = section[i] & 0xff;
+            int elementaryPid = ((section[i + 1] & 0x1f) << 8) | (section[i + 2] & 0xff);
+            int esInfoLength = ((section[i + 3] & 0x0f) << 8) | (section[i + 4] & 0xff);
+
+            Stream stream = new Stream(elementaryPid, streamType,
+                    getCodec(streamType, section, i + 5, Math.min(i + 5 + esInfoLength, streamsEnd)));
+
+            newStreams.add(stream);
+            hasVideo |= stream.isVideo();
+            i += 5 + esInfoLength;
+        }
+
+        // When a program was not requested, use the first program with video.
+        if (!hasVideo && desiredProgram == 0) {
+            unusablePrograms.add(programNumber);
+            return;
+        }
+
+        program = programNumber;
+        pcrPid = ((section[8] & 0x1f) << 8) | (section[9] & 0xff);
+
+        for (Stream stream : newStreams) {
+            streams.put(stream.pid, stream);
+            streamList.add(stream);
+        }
+
+        logger.debug("Program {} has the streams {}.", program, streamList);
+    }
+
+    /**
+     * Get the codec for a PMT stream type.
+     *
+     * @return The name FFmpeg uses for the codec or <i>null</i> if the stream is not video or audio
+     *         this class can detect.
+     */
+    private static String getCodec(int streamType, byte section[], int descriptorsStart, int descriptorsEnd) {
+        switch (streamType) {
+            case 0x01:
+            case 0x02:
+            case 0x80:
+                // 0x80 is used by DigiCipher II for MPEG-2 video.
+                return "mpeg2video";
+            case 0x1b:
+                return "h264";
+            case 0x24:
+                return "hevc";
+            case 0x03:
+            case 0x04:
+                return "mp2";
+            case 0x0f:
+                return "aac";
+            case 0x81:
+                return "ac3";
+            case 0x87:
+                return "eac3";
+            case 0x06:
+                // DVB carries AC-3 as private data with a descriptor saying what it is.
+                for (int i = descriptorsStart; i + 2 <= descriptorsEnd; ) {
+                    int tag = section[i] & 0xff;
+                    int length = section[i + 1] & 0xff;
+
+                    if (tag == 0x6a) {
+                        return "ac3";
+                    } else if (tag == 0x7a) {
+                        return "eac3";
+                    } else if (tag == 0x05 && length >= 4 && i + 6 <= descriptorsEnd) {
+                        String format = new String(section, i + 2, 4, StandardCharsets.US_ASCII);
+
+                        if (format.equals("AC-3")) {
+                            return "ac3";
+                        } else if (format.equals("EAC3")) {
+                            return "eac3";
+                        }
+                    }
+
+                    i += 2 + length;
+                }
+
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * <i>true</i> if the PMT of the program has been found and a video and an audio stream have a
+     * header.
+     */
+    private boolean isHeadersFound() {
+        if (program == 0) {
+            return false;
+        }
+
+        boolean hasVideo = false;
+        boolean videoFound = false;
+        boolean hasAudio = false;
+        boolean audioFound = false;
+
+        for (Stream stream : streamList) {
+            if (stream.isVideo()) {
+                hasVideo = true;
+                videoFound |= stream.headerFound;
+            } else if (stream.isAudio()) {
+                hasAudio = true;
+                audioFound |= stream.headerFound;
+            }
+        }
+
+        return (!hasVideo || videoFound) && (!hasAudio || audioFound);
+    }
+
+    /**
+     * <i>true</i> if the PMT of the program has been found and a video and an audio stream have a
+     * header.
+     */
+    public boolean isComplete() {
+        return bytesNeeded != -1;
+    }
+
+    /**
+     * <i>true</i> if the PMT of the program has been found.
+     */
+    public boolean isProgramFound() {
+        return program != 0;
+    }
+
+    /**
+     * <i>true</i> if the PAT has been found and detection can't complete because none of the
+     * programs it lists can be used. This happens when the desired program isn't in the PAT or
+     * no program has video when a program was not requested.
+     */
+    public boolean isProgramMissing() {
+        return patFound && program == 0 && unusablePrograms.containsAll(pmtPids.keySet());
+    }
+
+    /**
+     * The program that was detected or 0 if a program hasn't been detected yet.
+     */
+    public int getProgram() {
+        return program;
+    }
+
+    /**
+     * The PCR PID of the program or -1 if a program hasn't been detected yet.
+     */
+    public int getPcrPid() {
+        return pcrPid;
+    }
+
+    /**
+     * The streams in the program in the order they are listed in the PMT.
+     */
+    public List<Stream> getStreams() {
+        return Collections.unmodifiableList(streamList);
+    }
+
+    /**
+     * The number of bytes processed.
+     */
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    /**
+     * The number of bytes from the start of the stream that were needed to complete detection or
+     * -1 if detection is not complete.
+     */
+    public long getBytesNeeded() {
+        return bytesNeeded;
+    }
+
+    private static class Section {
+        private final byte data[] = new byte[MAX_SECTION_LENGTH + 3];
+        private int bytes;
+        private int length = -1;
+    }
+
+    /**
+     * A stream listed in the PMT.
+     */
+    public static class Stream {
+        private final int pid;
+        private final int streamType;
+        private final String codec;
+
+        private final byte esBuffer[];
+        private int esBytes;
+        private boolean pesStarted;
+
+        private boolean headerFound;
+        private int width;
+        private int height;
+        private double frameRate;
+        private int channels;
+        private int sampleRate;
+
+        private Stream(int pid, int streamType, String codec) {
+            this.pid = pid;
+            this.streamType = streamType;
+            this.codec = codec;
+            esBuffer = codec != null ? new byte[ES_BUFFER_SIZE] : null;
+        }
+
+        /**
+         * Add the payload of a packet and look for a header.
+         */
+        private void append(byte packet[], int payloadStart, boolean unitStart) {
+            if (codec == null) {
+                return;
+            }
+
+            int offset = payloadStart;
+
+            if (unitStart) {
+                // Skip the PES header.
+                if (payloadStart + 9 > VideoUtil.MTS_PACKET_LEN || packet[offset] != 0 ||
+                        packet[offset + 1] != 0 || packet[offset + 2] != 1) {
+
+                    return;
+                }
+
+                offset += 9 + (packet[offset + 8] & 0xff);
+                pesStarted = true;
+            } else if (!pesStarted) {
+                // Anything before the first PES header could be the end of a header we can't use.
+                return;
+            }
+
+            if (offset >= VideoUtil.MTS_PACKET_LEN) {
+                return;
+            }
+
+            int length = VideoUtil.MTS_PACKET_LEN - offset;
+
+            if (esBytes + length > esBuffer.length) {
+                System.arraycopy(esBuffer, esBytes - ES_BUFFER_KEEP, esBuffer, 0, ES_BUFFER_KEEP);
+                esBytes = ES_BUFFER_KEEP;
+            }
+
+            System.arraycopy(packet, offset, esBuffer, esBytes, length);
+            esBytes += length;
+
+            switch (codec) {
+                case "mpeg2video":
+                    headerFound = parseMpeg2Video();
+                    break;
+                case "h264":
+                    headerFound = parseH264();
+                    break;
+                case "hevc":
+                    headerFound = parseHevc();
+                    break;
+                case "mp2":
+                    headerFound = parseMpegAudio();
+                    break;
+                case "aac":
+                    headerFound = parseAdts();
+                    break;
+                case "ac3":
+                case "eac3":
+                    headerFound = parseAc3();
+                    break;
+            }
+
+            if (headerFound) {
+                logger.debug("Found the header for {}.", this);
+            }
+        }
+
+        private boolean parseMpeg2Video() {
+            for (int i = 0; i + 8 <= esBytes; i++) {
+                if (esBuffer[i] != 0 || esBuffer[i + 1] != 0 || esBuffer[i + 2] != 1 ||
+                        (esBuffer[i + 3] & 0xff) != 0xb3) {
+
+                    continue;
+                }
+
+                width = ((esBuffer[i + 4] & 0xff) << 4) | ((esBuffer[i + 5] & 0xf0) >> 4);
+                height = ((esBuffer[i + 5] & 0x0f) << 8) | (esBuffer[i + 6] & 0xff);
+                int frameRateCode = esBuffer[i + 7] & 0x0f;
+                frameRate = frameRateCode < MPEG2_FRAME_RATES.length ?
+                        MPEG2_FRAME_RATES[frameRateCode] : 0;
+
+                return width > 0 && height > 0;
+            }
+
+            return false;
+        }
+
+        private boolean parseH264() {
+            int nal = findNal(0x1f, 7, 1);
+
+            if (nal < 0) {
+                return false;
+            }
+
+            int nalEnd = findStartCode(nal);
+
+            // Wait for the next NAL so we know we have the entire SPS.
+            if (nalEnd < 0) {
+                return false;
+            }
+
+            BitReader bits = new BitReader(removeEmulationPrevention(nal + 1, nalEnd));
+
+            try {
+                int profile = bits.readBits(8);
+                bits.skipBits(16);
+                bits.readUe();
+
+                int chromaFormat = 1;
+
+                if (profile == 100 || profile == 110 || profile == 122 || profile == 244 ||
+                        profile == 44 || profile == 83 || profile == 86 || profile == 118 ||
+                        profile == 128 || profile == 138 || profile == 139 || profile == 134 ||
+                        profile == 135) {
+
+                    chromaFormat = bits.readUe();
+
+                    if (chromaFormat == 3) {
+                        bits.skipBits(1);
+                    }
+
+                    bits.readUe();
+                    bits.readUe();
+                    bits.skipBits(1);
+
+                    if (bits.readBits(1) == 1) {
+                        int lists = chromaFormat != 3 ? 8 : 12;
+
+                        for (int i = 0; i < lists; i++) {
+                            if (bits.readBits(1) == 1) {
+                                skipScalingList(bits, i < 6 ? 16 : 64);
+                            }
+                        }
+                    }
+                }
+
+                bits.readUe();
+                int picOrderCountType = bits.readUe();
+
+                if (picOrderCountType == 0) {
+                    bits.readUe();
+                } else if (picOrderCountType == 1) {
+                    bits.skipBits(1);
+                    bits.readSe();
+                    bits.readSe();
+                    int cycle = bits.readUe();
+
+                    for (int i = 0; i < cycle; i++) {
+                        bits.readSe();
+                    }
+                }
+
+                bits.readUe();
+                bits.skipBits(1);
+
+                int widthInMbs = bits.readUe() + 1;
+                int heightInMapUnits = bits.readUe() + 1;
+                int frameMbsOnly = bits.readBits(1);
+
+                if (frameMbsOnly == 0) {
+                    bits.skipBits(1);
+                }
+
+                bits.skipBits(1);
+
+                width = widthInMbs * 16;
+                height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+
+                if (bits.readBits(1) == 1) {
+                    int cropUnitX = chromaFormat == 1 || chromaFormat == 2 ? 2 : 1;
+                    int cropUnitY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMbsOnly);
+
+                    width -= cropUnitX * (bits.readUe() + bits.readUe());
+                    height -= cropUnitY * (bits.readUe() + bits.readUe());
+                }
+            } catch (IndexOutOfBoundsException e) {
+                logger.debug("The H.264 SPS for PID {} is not valid.", pid);
+                return false;
+            }
+
+            return width > 0 && height > 0;
+        }
+
+        private static void skipScalingList(BitReader bits, int size) {
+            int lastScale = 8;
+            int nextScale = 8;
+
+            for (int i = 0; i < size; i++) {
+                if (nextScale != 0) {
+                    nextScale = (lastScale + bits.readSe() + 256) % 256;
+                }
+
+                lastScale = nextScale == 0 ? lastScale : nextScale;
+            }
+        }
+
+        private boolean parseHevc() {
+            // The SPS is much harder to read than H.264, so only make sure there is one.
+            return findNal(0x7e, 33 << 1, 2) >= 0;
+        }
+
+        private boolean parseMpegAudio() {
+            for (int i = 0; i + 4 <= esBytes; i++) {
+                if ((esBuffer[i] & 0xff) != 0xff || (esBuffer[i + 1] & 0xe0) != 0xe0) {
+                    continue;
+                }
+
+                int version = (esBuffer[i + 1] >> 3) & 0x03;
+                int layer = (esBuffer[i + 1] >> 1) & 0x03;
+                int bitrateIndex = (esBuffer[i + 2] >> 4) & 0x0f;
+                int sampleRateIndex = (esBuffer[i + 2] >> 2) & 0x03;
+
+                if (version == 1 || layer == 0 || bitrateIndex == 0x0f || sampleRateIndex == 3) {
+                    continue;
+                }
+
+                // MPEG-2 is half of the MPEG-1 rate and MPEG-2.5 is a quarter.
+                sampleRate = MPEG_AUDIO_SAMPLE_RATES[sampleRateIndex] >>
+                        (version == 3 ? 0 : version == 2 ? 1 : 2);
+                channels = ((esBuffer[i + 3] >> 6) & 0x03) == 3 ? 1 : 2;
+
+                return true;
+            }
+
+            return false;
+        }
+
+        private boolean parseAdts() {
+            for (int i = 0; i + 4 <= esBytes; i++) {
+                if ((esBuffer[i] & 0xff) != 0xff || (esBuffer[i + 1] & 0xf6) != 0xf0) {
+                    continue;
+                }
+
+                int sampleRateIndex = (esBuffer[i + 2] >> 2) & 0x0f;
+
+                if (sampleRateIndex >= AAC_SAMPLE_RATES.length) {
+                    continue;
+                }
+
+                sampleRate = AAC_SAMPLE_RATES[sampleRateIndex];
+                channels = ((esBuffer[i + 2] & 0x01) << 2) | ((esBuffer[i + 3] >> 6) & 0x03);
+
+                return true;
+            }
+
+            return false;
+        }
+
+        private boolean parseAc3() {
+            for (int i = 0; i + 8 <= esBytes; i++) {
+                if (esBuffer[i] != 0x0b || (esBuffer[i + 1] & 0xff) != 0x77) {
+                    continue;
+                }
+
+                int bsid = (esBuffer[i + 5] >> 3) & 0x1f;
+
+                if (bsid <= 10) {
+                    int sampleRateCode = (esBuffer[i + 4] >> 6) & 0x03;
+                    int frameSizeCode = esBuffer[i + 4] & 0x3f;
+
+                    if (sampleRateCode == 3 || frameSizeCode >= 38) {
+                        continue;
+                    }
+
+                    BitReader bits = new BitReader(esBuffer, i + 6, esBytes - i - 6);
+                    int audioCodingMode = bits.readBits(3);
+
+                    // The mix levels are only present for some channel layouts.
+                    if ((audioCodingMode & 0x01) != 0 && audioCodingMode != 1) {
+                        bits.skipBits(2);
+                    }
+
+                    if ((audioCodingMode & 0x04) != 0) {
+                        bits.skipBits(2);
+                    }
+
+                    if (audioCodingMode == 2) {
+                        bits.skipBits(2);
+                    }
+
+                    sampleRate = AC3_SAMPLE_RATES[sampleRateCode];
+                    channels = AC3_CHANNELS[audioCodingMode] + bits.readBits(1);
+                } else if (bsid <= 16) {
+                    int sampleRateCode = (esBuffer[i + 4] >> 6) & 0x03;
+                    int sampleRateCode2 = (esBuffer[i + 4] >> 4) & 0x03;
+                    int audioCodingMode = (esBuffer[i + 4] >> 1) & 0x07;
+
+                    if (sampleRateCode == 3) {
+                        if (sampleRateCode2 == 3) {
+                            continue;
+                        }
+
+                        sampleRate = EAC3_REDUCED_SAMPLE_RATES[sampleRateCode2];
+                    } else {
+                        sampleRate = AC3_SAMPLE_RATES[sampleRateCode];
+                    }
+
+                    channels = AC3_CHANNELS[audioCodingMode] + (esBuffer[i + 4] & 0x01);
+                } else {
+                    continue;
+                }
+
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Find a NAL unit of the requested type.
+         *
+         * @param mask The bits of the first NAL header byte that contain the type.
+         * @param type The type in the position of <b>mask</b>.
+         * @param headerLength The length of the NAL header.
+         * @return The index of the first NAL header byte or -1 if it wasn't found.
+         */
+        private int findNal(int mask, int type, int headerLength) {
+            for (int i = 0; i + 3 + headerLength <= esBytes; i++) {
+                if (esBuffer[i] == 0 && esBuffer[i + 1] == 0 && esBuffer[i + 2] == 1 &&
+                        (esBuffer[i + 3] & mask) == type) {
+
+                    return i + 3;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Find the next start code after an index.
+         *
+         * @return The index of the first byte of the start code or -1 if it wasn't found.
+         */
+        private int findStartCode(int start) {
+            for (int i = start; i + 3 <= esBytes; i++) {
+                if (esBuffer[i] == 0 && esBuffer[i + 1] == 0 &&
+                        (esBuffer[i + 2] == 1 || esBuffer[i + 2] == 0)) {
+
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private byte[] removeEmulationPrevention(int start, int end) {
+            byte returnValue[] = new byte[end - start];
+            int length = 0;
+
+            for (int i = start; i < end; i++) {
+                if (i >= start + 2 && esBuffer[i] == 3 && esBuffer[i - 1] == 0 &&
+                        esBuffer[i - 2] == 0) {
+
+                    continue;
+                }
+
+                returnValue[length++] = esBuffer[i];
+            }
+
+            byte trimmed[] = new byte[length];
+            System.arraycopy(returnValue, 0, trimmed, 0, length);
+            return trimmed;
+        }
+
+        public int getPid() {
+            return pid;
+        }
+
+        public int getStreamType() {
+            return streamType;
+        }
+
+        /**
+         * The name FFmpeg uses for the codec or <i>null</i> if this stream is not video or audio
+         * that can be detected.
+         */
+        public String getCodec() {
+            return codec;
+        }
+
+        public boolean isVideo() {
+            return "mpeg2video".equals(codec) || "h264".equals(codec) || "hevc".equals(codec);
+        }
+
+        public boolean isAudio() {
+            return codec != null && !isVideo();
+        }
+
+        /**
+         * <i>true</i> if a header was found for this stream.
+         */
+        public boolean isHeaderFound() {
+            return headerFound;
+        }
+
+        /**
+         * The width of the video or 0 if it is not known.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * The height of the video or 0 if it is not known.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * The frame rate of the video or 0 if it is not known.
+         */
+        public double getFrameRate() {
+            return frameRate;
+        }
+
+        /**
+         * The number of audio channels or 0 if it is not known.
+         */
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * The audio sample rate or 0 if it is not known.
+         */
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append("PID ").append(pid).append(" type 0x")
+                    .append(Integer.toHexString(streamType)).append(' ').append(codec);
+
+            if (width > 0) {
+                stringBuilder.append(' ').append(width).append('x').append(height);
+            }
+
+            if (sampleRate > 0) {
+                stringBuilder.append(' ').append(channels).append("ch ").append(sampleRate).append("Hz");
+            }
+
+            return stringBuilder.toString();
+        }
+    }
+
+    /**
+     * Reads bits and Exp-Golomb codes from a byte array.
+     */
+    private static class BitReader {
+        private final byte data[];
+        private final int end;
+        private int bitIndex;
+
+        private BitReader(byte data[]) {
+            this(data, 0, data.length);
+        }
+
+        private BitReader(byte data[], int offset, int length) {
+            this.data = data;
+            this.end = (offset + length) * 8;
+            this.bitIndex = offset * 8;
+        }
+
+        private int readBits(int count) {
+            int returnValue = 0;
+
+            for (int i = 0; i < count; i++) {
+                if (bitIndex >= end) {
+                    throw new IndexOutOfBoundsException("Read past the end of the data.");
+                }
+
+                returnValue = (returnValue << 1) | ((data[bitIndex >> 3] >> (7 - (bitIndex & 7))) & 0x01);
+                bitIndex += 1;
+            }
+
+            return returnValue;
+        }
+
+        private void skipBits(int count) {
+            bitIndex += count;
+        }
+
+        private int readUe() {
+            int leadingZeros = 0;
+
+            while (readBits(1) == 0) {
+                // Anything this long isn't a valid SPS.
+                if (++leadingZeros > 31) {
+                    throw new IndexOutOfBoundsException("Invalid Exp-Golomb code.");
+                }
+            }
+
+            return (1 << leadingZeros) - 1 + readBits(leadingZeros);
+        }
+
+        private int readSe() {
+            int value = readUe();
+            return (value & 0x01) != 0 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+}
@@ -20,36 +20,36 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the health of a single RTP stream.
+ * <p/>
+ * Each RTP producer has its own instance. Only the receiving thread is allowed to call
+ * <i>findMissingRTPPackets()</i>, but the statistics can be read from any thread. There are no
+ * locks and nothing is allocated per packet, so streams from different tuners never have to wait
+ * on each other.
+ * <p/>
+ * Sequence tracking follows RFC 3550 Appendix A.1. The full 16-bit sequence number is compared
+ * modulo 2^16 so gaps are never miscounted at the rollover. Packets that arrive behind
+ * the highest sequence number seen are sorted into duplicates, reordered packets that fill a gap
+ * counted earlier as lost, or late packets that are too far behind to tell. Interarrival jitter is
+ * calculated as described in RFC 3550 Section 6.4.1 assuming the 90kHz clock used for MPEG-TS.
+ */
 public class RTPPacketProcessor {
     private final Logger logger = LogManager.getLogger(RTPPacketProcessor.class);
-    private static final ReentrantReadWriteLock statisticLock = new ReentrantReadWriteLock();
-    private volatile int missedRTPPackets = 0;
-
-    // These are really 8-bit values, but since we can't make it unsigned,
-    // that's not an option. Also the actual number is two bytes, but the
-    // least significant byte is enough since I doubt we will skip exactly
-    // 255 packets and cause the checks to not detect the dropped packets.
-    int currentRTPPacket = 0;
-    int lastRTPPacket = -1;
-
-    boolean unexpectedRTPPacket;
-    boolean rollover;
-    int protocol;
-    int timeStamp;
-    int ssrc;
 
-    public void ResetCounters() {
-        statisticLock.writeLock().lock();
-        try {
-            missedRTPPackets = 0;
-            currentRTPPacket = 0;
-            lastRTPPacket = -1;
-        } finally {
-            statisticLock.writeLock().unlock();
-        }
-    }
+    // The same values suggested by RFC 3550.
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int RTP_SEQ_MOD = 1 << 16;
+
+    // The number of sequence numbers behind the highest sequence number that we can still tell
+    // apart from duplicates. This is the number of bits in receivedHistory.
+    private static final int HISTORY_SIZE = 64;
+
+    // MPEG-TS over RTP always uses a 90kHz timestamp clock.
+    private static final long CLOCK_RATE = 90000;
 
     /*
     The first 12 bytes are RTP header data and do not need to be written out to the file.
@@ -58,120 +58,294 @@ public class RTPPacketProcessor {
     In our situation, these can be stripped away without issue.
 
     Bytes 3-4 (index 2-3) is incremented for each new packet.
-    We can track missed packets this way. I'm just using the last byte since it's all the same.
+    We can track missed, duplicated and reordered packets this way.
 
     Bytes 5-8 (index 4-7) is a timestamp.
-    This is used to correct jitter. Since our goal is to move data quickly and not play it
-    back here, this doesn't really matter to us.
+    This is used to calculate jitter.
 
     Bytes 9-12 (index 8-11) is the SSRC field. It is used to identify the synchronization source.
-    We could use this to ensure we are reading all the same stream after a few packets with this
-    same value, we can start to filter out unrelated data if needed.
+    When this changes, the source has restarted and the sequence numbers start over.
 
     Byte 13-16 (index 12-15) should be a 32-bit CSRC list of sources.
 
     Source: Wikipedia
     */
 
+    // Sequence state. These are only accessed by the receiving thread.
+    private boolean initialized;
+    private int ssrc;
+    private int maxSeq;
+    private int badSeq;
+    private long receivedHistory;
+    private int transit;
+    private long jitter;
+    private long firstArrival;
+
+    // Statistics. These are only written by the receiving thread. They are published to other
+    // threads by the ordered store to packetsReceived which is always the last thing updated, so
+    // readers must always read packetsReceived first.
+    private long packetsLost;
+    private long packetsDuplicated;
+    private long packetsReordered;
+    private long packetsLate;
+    private long ssrcChanges;
+    private long sequenceResets;
+    private long publishedJitter;
+    private final AtomicLong packetsReceived = new AtomicLong(0);
+
+    // Set by any thread and cleared by the receiving thread on the next packet.
+    private volatile boolean resetRequested;
+
     /**
-     * Reads an RTP packet and determines if we have missed any packets.
+     * Resets all statistics and sequence tracking.
      * <p/>
-     * This method also increments a counter every time we are out of sync.
+     * This can be called from any thread. The receiving thread clears everything and restarts the
+     * sequence tracking when the next packet arrives.
+     */
+    public void ResetCounters() {
+        resetRequested = true;
+    }
+
+    /**
+     * Reads an RTP packet and determines if we have missed any packets.
      *
      * @param datagramPacket The RTP datagram bytes.
-     * @return <i>true</i> if there are no problems with the synchronicity.
+     * @return <i>true</i> if there was a problem with the sequence.
      */
     public boolean findMissingRTPPackets(byte[] datagramPacket) {
-        logger.entry();
+        if (datagramPacket.length < 12) {
+            return true;
+        }
 
-        unexpectedRTPPacket = false;
+        int sequence = ((datagramPacket[2] & 0xff) << 8) | (datagramPacket[3] & 0xff);
 
-        statisticLock.writeLock().lock();
+        int timestamp = ((datagramPacket[4] & 0xff) << 24) |
+                ((datagramPacket[5] & 0xff) << 16) |
+                ((datagramPacket[6] & 0xff) << 8) |
+                (datagramPacket[7] & 0xff);
 
-        try {
-            currentRTPPacket = datagramPacket[3] & 0xff;
+        int newSsrc = ((datagramPacket[8] & 0xff) << 24) |
+                ((datagramPacket[9] & 0xff) << 16) |
+                ((datagramPacket[10] & 0xff) << 8) |
+                (datagramPacket[11] & 0xff);
 
-            if (lastRTPPacket == 255 && currentRTPPacket != 0) {
-                logger.warn("Expected frame number {}, received frame number {}", 0, currentRTPPacket);
-                missedRTPPackets++;
-                unexpectedRTPPacket = true;
-            } else if (lastRTPPacket != -1 && lastRTPPacket != 255) {
-                if ((lastRTPPacket + 1) != currentRTPPacket) {
-                    logger.warn("Expected frame number {}, received frame number {}", (lastRTPPacket + 1), currentRTPPacket);
-                    missedRTPPackets++;
-                    unexpectedRTPPacket = true;
-                }
-            }
-
-            lastRTPPacket = currentRTPPacket;
-        } finally {
-            statisticLock.writeLock().unlock();
-        }
-
-        return logger.exit(unexpectedRTPPacket);
+        return processPacket(sequence, timestamp, newSsrc);
     }
 
+    /**
+     * Reads an RTP packet and determines if we have missed any packets.
+     * <p/>
+     * The position of the buffer is moved past the 12 byte RTP header.
+     *
+     * @param datagramPacket The RTP datagram bytes.
+     * @return <i>true</i> if there was a problem with the sequence.
+     */
     public boolean findMissingRTPPackets(ByteBuffer datagramPacket) {
-        logger.entry();
+        int position = datagramPacket.position();
 
-        unexpectedRTPPacket = false;
+        if (datagramPacket.remaining() < 12) {
+            return true;
+        }
 
-        statisticLock.writeLock().lock();
+        int sequence = datagramPacket.getShort(position + 2) & 0xffff;
+        int timestamp = datagramPacket.getInt(position + 4);
+        int newSsrc = datagramPacket.getInt(position + 8);
 
-        try {
-            //protocol = datagramPacket.getShort() & 0xffff;
-            datagramPacket.position(datagramPacket.position() + 2);
-            currentRTPPacket = datagramPacket.getShort() & 0xffff;
-            datagramPacket.position(datagramPacket.position() + 8);
-            //timeStamp = datagramPacket.getInt();
-            //ssrc = datagramPacket.getInt();
-            //ssrcList = datagramPacket.getInt();
+        // datagramPacket will return with the read index at
+        // 12 which is where we want it.
+        datagramPacket.position(position + 12);
 
-            // datagramPacket will return with the read index at
-            // 12 which is where we want it.
+        return processPacket(sequence, timestamp, newSsrc);
+    }
 
-            //65535
-            if (lastRTPPacket != -1) {
-                rollover = false;
+    private boolean processPacket(int sequence, int timestamp, int newSsrc) {
+        boolean unexpectedRTPPacket = false;
+        long received = packetsReceived.get();
+
+        if (resetRequested) {
+            resetRequested = false;
+            initialized = false;
+            received = 0;
+            packetsLost = 0;
+            packetsDuplicated = 0;
+            packetsReordered = 0;
+            packetsLate = 0;
+            ssrcChanges = 0;
+            sequenceResets = 0;
+            publishedJitter = 0;
+        }
 
-                if (lastRTPPacket == 65535 && currentRTPPacket == 0) {
-                    rollover = true;
-                } else if (lastRTPPacket == 65535) {
+        if (!initialized) {
+            initSequence(sequence, timestamp, newSsrc);
+        } else if (newSsrc != ssrc) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("RTP SSRC changed from {} to {}.",
+                        Integer.toHexString(ssrc), Integer.toHexString(newSsrc));
+            }
+
+            ssrcChanges++;
+            unexpectedRTPPacket = true;
+            initSequence(sequence, timestamp, newSsrc);
+        } else {
+            int delta = (sequence - maxSeq) & (RTP_SEQ_MOD - 1);
+
+            if (delta == 0) {
+                packetsDuplicated++;
+                unexpectedRTPPacket = true;
+            } else if (delta < MAX_DROPOUT) {
+                // In order, with a gap if delta is more than 1. The delta is calculated modulo
+                // 2^16 so a rollover to 0 is just the next packet.
+                if (delta > 1) {
                     if (logger.isWarnEnabled()) {
-                        logger.warn("Expected frame number {}, got {}", 0, currentRTPPacket);
+                        logger.warn("Expected frame number {}, got {}",
+                                (maxSeq + 1) & (RTP_SEQ_MOD - 1), sequence);
                     }
-                    rollover = true;
+
+                    packetsLost += delta - 1;
+                    unexpectedRTPPacket = true;
                 }
 
-                if (!rollover && (lastRTPPacket + 1) != currentRTPPacket) {
-                    if (logger.isWarnEnabled()) {
-                        logger.warn("Expected frame number {}, got {}", (lastRTPPacket + 1), currentRTPPacket);
+                receivedHistory = delta >= HISTORY_SIZE ? 1 : (receivedHistory << delta) | 1;
+                maxSeq = sequence;
+                updateJitter(timestamp);
+            } else if (delta >= RTP_SEQ_MOD - MAX_MISORDER) {
+                // Behind the highest sequence number we have seen.
+                int behind = RTP_SEQ_MOD - delta;
+
+                if (behind < HISTORY_SIZE) {
+                    long mask = 1L << behind;
+
+                    if ((receivedHistory & mask) != 0) {
+                        packetsDuplicated++;
+                    } else {
+                        receivedHistory |= mask;
+                        packetsReordered++;
+                        packetsLost--;
                     }
-                    missedRTPPackets++;
-                    unexpectedRTPPacket = true;
+                } else {
+                    packetsLate++;
+                }
+
+                unexpectedRTPPacket = true;
+            } else if (sequence == badSeq) {
+                // Two sequential packets after a very large jump. Assume the source restarted
+                // without changing the SSRC.
+                if (logger.isWarnEnabled()) {
+                    logger.warn("RTP sequence restarted at {}.", sequence);
                 }
+
+                sequenceResets++;
+                unexpectedRTPPacket = true;
+                initSequence(sequence, timestamp, newSsrc);
+            } else {
+                // A very large jump. This packet is ignored unless the next one follows it.
+                badSeq = (sequence + 1) & (RTP_SEQ_MOD - 1);
+                packetsLate++;
+                unexpectedRTPPacket = true;
             }
+        }
+
+        publishedJitter = jitter >> 4;
+        packetsReceived.lazySet(received + 1);
+
+        return unexpectedRTPPacket;
+    }
+
+    private void initSequence(int sequence, int timestamp, int newSsrc) {
+        initialized = true;
+        ssrc = newSsrc;
+        maxSeq = sequence;
+        badSeq = RTP_SEQ_MOD + 1;
+        receivedHistory = 1;
+        jitter = 0;
+        firstArrival = System.nanoTime();
+        transit = -timestamp;
+    }
+
+    private void updateJitter(int timestamp) {
+        // The arrival time is kept relative to the start of the stream so it can be converted to
+        // clock units without overflowing. The transit time is allowed to wrap the same way the
+        // timestamp does since only the difference between two of them is used.
+        long arrival = (System.nanoTime() - firstArrival) * CLOCK_RATE / 1000000000L;
+        int newTransit = (int) arrival - timestamp;
+
+        int d = newTransit - transit;
+        transit = newTransit;
 
-            lastRTPPacket = currentRTPPacket;
-        } finally {
-            statisticLock.writeLock().unlock();
+        if (d < 0) {
+            d = -d;
         }
 
-        return logger.exit(unexpectedRTPPacket);
+        // RFC 3550 A.8: J(i) = J(i-1) + (|D(i-1,i)| - J(i-1))/16 with the jitter scaled by 16.
+        jitter += d - ((jitter + 8) >> 4);
     }
 
+    /**
+     * The number of packets that were never received.
+     * <p/>
+     * A missing packet that arrives later out of order is removed from this count.
+     */
     public int getMissedRTPPackets() {
-        logger.entry();
-        int returnValue = 0;
+        packetsReceived.get();
+        return (int) Math.max(0, packetsLost);
+    }
+
+    /**
+     * The number of packets received including duplicates and late packets.
+     */
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
 
-        statisticLock.readLock().lock();
+    public long getPacketsDuplicated() {
+        packetsReceived.get();
+        return packetsDuplicated;
+    }
 
-        try {
-            returnValue = missedRTPPackets;
-        } finally {
-            statisticLock.readLock().unlock();
-        }
+    /**
+     * The number of packets that arrived out of order, but soon enough to fill their gap.
+     */
+    public long getPacketsReordered() {
+        packetsReceived.get();
+        return packetsReordered;
+    }
+
+    /**
+     * The number of packets that arrived too far out of order to be placed in the stream.
+     */
+    public long getPacketsLate() {
+        packetsReceived.get();
+        return packetsLate;
+    }
+
+    /**
+     * The number of times the SSRC of the stream has changed.
+     */
+    public long getSSRCChanges() {
+        packetsReceived.get();
+        return ssrcChanges;
+    }
 
-        return logger.exit(returnValue);
+    /**
+     * The number of times the sequence numbers restarted without the SSRC changing.
+     */
+    public long getSequenceResets() {
+        packetsReceived.get();
+        return sequenceResets;
+    }
+
+    /**
+     * The current interarrival jitter in 90kHz clock units.
+     */
+    public long getJitter() {
+        packetsReceived.get();
+        return publishedJitter;
+    }
+
+    /**
+     * The current interarrival jitter in milliseconds.
+     */
+    public double getJitterMillis() {
+        return getJitter() * 1000.0 / CLOCK_RATE;
     }
 }
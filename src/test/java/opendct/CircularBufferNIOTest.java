@@ -17,6 +17,8 @@
 
 package opendct;
 
+import opendct.consumer.buffers.CircularBufferReader;
+import opendct.consumer.buffers.DirectBufferPool;
 import opendct.consumer.buffers.FFmpegCircularBuffer;
 import opendct.consumer.buffers.FFmpegCircularBufferNIO;
 import opendct.consumer.buffers.SeekableCircularBuffer;
@@ -26,8 +28,11 @@ import org.apache.logging.log4j.Logger;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public final class CircularBufferNIOTest {
     private static final Logger logger = LogManager.getLogger(CircularBufferNIOTest.class);
@@ -366,6 +371,590 @@ public final class CircularBufferNIOTest {
         }
     }
 
+    @Test(groups = { "buffer", "byteArray", "spsc" }, dataProvider = "getBufferPattern", threadPoolSize = 3)
+    public void testSPSCArrayBufferFull(int bufferSize, int dataSize, int addIncrement) throws InterruptedException {
+        SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize, true);
+        byte writeData[] = generateByteData(dataSize);
+        byte readData[] = new byte[dataSize];
+        int readPosition = 0;
+
+        int dataWritten = 0;
+
+
+        while(true) {
+            if (dataWritten + addIncrement < dataSize) {
+                seekableCircularBuffer.write(writeData, dataWritten, addIncrement);
+                dataWritten += addIncrement;
+            } else {
+                // Don't worry about the remaining random data.
+                break;
+            }
+
+            // Stop reading about half-way through the buffer.
+            if (readPosition < (bufferSize / 2)) {
+                readPosition += seekableCircularBuffer.read(readData, readPosition, bufferSize);
+            }
+        }
+
+        int filledReadPosition = readPosition;
+
+        while (seekableCircularBuffer.readAvailable() > 0) {
+            readPosition += seekableCircularBuffer.read(readData, readPosition, bufferSize);
+
+            // This is normally only called by the producer, but in this test the producer and
+            // consumer are the same thread.
+            seekableCircularBuffer.processQueue();
+        }
+
+        for (int i = 0; i < readPosition; i++) {
+            assert writeData[i] == readData[i] : "At index " + i + ": " + writeData[i] + " != " + readData[i] + " buffer was filled at index " + filledReadPosition;
+        }
+    }
+
+    @Test(groups = { "buffer", "byteBuffer", "spsc" }, dataProvider = "getBufferPattern", threadPoolSize = 3)
+    public void testSPSCByteBufferThreadedIntegrity(int bufferSize, int dataSize, final int addIncrement) throws InterruptedException {
+        final SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize / 8, true);
+        final byte writeData[] = generateByteData(dataSize);
+        final ByteBuffer readData = ByteBuffer.allocateDirect(dataSize);
+        final ByteBuffer readChunk = ByteBuffer.allocateDirect(addIncrement / 3);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int dataWritten = 0;
+
+                try {
+                    while (dataWritten < writeData.length) {
+                        int length = Math.min(addIncrement, writeData.length - dataWritten);
+                        seekableCircularBuffer.writeBlocked(writeData, dataWritten, length);
+                        dataWritten += length;
+                    }
+                } catch (InterruptedException e) {
+                    logger.error("Producer was interrupted => ", e);
+                }
+            }
+        });
+
+        producer.start();
+
+        while (readData.position() < dataSize) {
+            readChunk.clear();
+            readChunk.limit(Math.min(readChunk.capacity(), readData.remaining()));
+            seekableCircularBuffer.read(readChunk);
+            readChunk.flip();
+            readData.put(readChunk);
+        }
+
+        producer.join();
+
+        readData.flip();
+
+        for (int i = 0; i < dataSize; i++) {
+            byte newByte = readData.get();
+            assert writeData[i] == newByte : "At index " + i + ": " + writeData[i] + " != " + newByte;
+        }
+    }
+
+    @DataProvider
+    private static Object[][] getLockModes() {
+        return new Object[][] { { false }, { true } };
+    }
+
+    @Test(groups = { "buffer", "wait" }, dataProvider = "getLockModes")
+    public void testWaitForBytes(boolean spsc) throws InterruptedException {
+        final SeekableCircularBufferNIO seekableCircularBuffer =
+                new SeekableCircularBufferNIO(65536, spsc);
+        final byte writeData[] = generateByteData(4096);
+
+        // Nothing is ever written, so this must time out.
+        long startTime = System.currentTimeMillis();
+        int available = seekableCircularBuffer.waitForBytes(1024, 100);
+        long waited = System.currentTimeMillis() - startTime;
+        assert available == 0 : "Expected 0 bytes, got " + available;
+        assert waited >= 90 : "Returned after " + waited + "ms before the timeout.";
+
+        // Writing enough bytes must wake the reader well before the timeout.
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    seekableCircularBuffer.write(writeData, 0, 512);
+                    Thread.sleep(50);
+                    seekableCircularBuffer.write(writeData, 512, 1024);
+                } catch (InterruptedException e) {
+                    logger.error("Producer was interrupted => ", e);
+                }
+            }
+        });
+        producer.start();
+
+        startTime = System.currentTimeMillis();
+        available = seekableCircularBuffer.waitForBytes(1024, 5000);
+        waited = System.currentTimeMillis() - startTime;
+        producer.join();
+        assert available >= 1024 : "Expected at least 1024 bytes, got " + available;
+        assert waited < 2500 : "Waited " + waited + "ms for bytes that were already written.";
+
+        // Waking the reader must return early without any new data.
+        Thread waker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    logger.error("Waker was interrupted => ", e);
+                }
+                seekableCircularBuffer.wakeReader();
+            }
+        });
+        waker.start();
+
+        startTime = System.currentTimeMillis();
+        available = seekableCircularBuffer.waitForBytes(4096, 5000);
+        waited = System.currentTimeMillis() - startTime;
+        waker.join();
+        assert available == 1536 : "Expected 1536 bytes, got " + available;
+        assert waited < 2500 : "wakeReader() did not wake up the reader.";
+    }
+
+    @DataProvider
+    private static Object[][] getOverflowModes() {
+        return new Object[][] {
+                { false, false },
+                { false, true },
+                { true, false },
+                { true, true }
+        };
+    }
+
+    // The overflow file is created in the background.
+    private static void waitForOverflowFile(SeekableCircularBufferNIO seekableCircularBuffer)
+            throws InterruptedException {
+
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!seekableCircularBuffer.isOverflowFileReady() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(1);
+        }
+
+        assert seekableCircularBuffer.isOverflowFileReady();
+    }
+
+    @Test(groups = { "buffer", "overflowFile" }, dataProvider = "getOverflowModes")
+    public void testOverflowFile(boolean spsc, boolean byteBuffer) throws InterruptedException {
+        int bufferSize = 65536;
+        // The overflow queue would start losing data after 4 times the buffer size.
+        int dataSize = bufferSize * 16 + 1234;
+        int addIncrement = 1316;
+
+        SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize, spsc);
+        seekableCircularBuffer.enableOverflowFile(
+                new File(System.getProperty("java.io.tmpdir")), dataSize);
+        waitForOverflowFile(seekableCircularBuffer);
+
+        byte writeData[] = generateByteData(dataSize);
+        ByteBuffer readData = ByteBuffer.allocateDirect(dataSize);
+
+        // Nothing is read until everything is written, so almost everything goes to the file.
+        for (int dataWritten = 0; dataWritten < dataSize; dataWritten += addIncrement) {
+            int length = Math.min(addIncrement, dataSize - dataWritten);
+
+            if (byteBuffer) {
+                seekableCircularBuffer.write(ByteBuffer.wrap(writeData, dataWritten, length));
+            } else {
+                seekableCircularBuffer.write(writeData, dataWritten, length);
+            }
+        }
+
+        assert seekableCircularBuffer.getBytesLost() == 0;
+        assert seekableCircularBuffer.getBytesOverflow() > bufferSize * 4;
+
+        // The file is read back in the background, so the queue might need to be processed a
+        // few times before the next bytes are available.
+        long timeout = System.currentTimeMillis() + 10000;
+        while (readData.position() < dataSize && System.currentTimeMillis() < timeout) {
+            if (seekableCircularBuffer.readAvailable() > 0) {
+                seekableCircularBuffer.read(readData);
+            } else {
+                Thread.sleep(1);
+            }
+
+            seekableCircularBuffer.processQueue();
+        }
+
+        assert readData.position() == dataSize : "Expected " + dataSize + " bytes, got " + readData.position();
+        assert seekableCircularBuffer.getBytesOverflow() == 0;
+
+        readData.flip();
+
+        for (int i = 0; i < dataSize; i++) {
+            byte newByte = readData.get();
+            assert writeData[i] == newByte : "At index " + i + ": " + writeData[i] + " != " + newByte;
+        }
+
+        seekableCircularBuffer.clear();
+    }
+
+    @Test(groups = { "buffer", "overflowFile" }, dataProvider = "getLockModes")
+    public void testOverflowFileFull(boolean spsc) throws InterruptedException {
+        int bufferSize = 65536;
+        int fileSize = bufferSize * 2;
+        int dataSize = bufferSize * 8;
+        int addIncrement = 1316;
+
+        SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize, spsc);
+        seekableCircularBuffer.enableOverflowFile(
+                new File(System.getProperty("java.io.tmpdir")), fileSize);
+        waitForOverflowFile(seekableCircularBuffer);
+
+        byte writeData[] = generateByteData(dataSize);
+
+        for (int dataWritten = 0; dataWritten < dataSize; dataWritten += addIncrement) {
+            int length = Math.min(addIncrement, dataSize - dataWritten);
+            seekableCircularBuffer.write(writeData, dataWritten, length);
+        }
+
+        // Everything that didn't fit in the buffer or the file must be counted as lost.
+        long lost = seekableCircularBuffer.getBytesLost();
+        long kept = seekableCircularBuffer.readAvailable() + seekableCircularBuffer.getBytesOverflow();
+
+        assert seekableCircularBuffer.getBytesOverflow() <= fileSize;
+        assert lost > 0;
+        assert lost + kept == dataSize : "Expected " + dataSize + " bytes, got " + (lost + kept);
+
+        seekableCircularBuffer.clear();
+    }
+
+    @Test(groups = { "buffer", "readers" }, dataProvider = "getLockModes")
+    public void testReaderFanOut(boolean spsc) throws InterruptedException {
+        int bufferSize = 65536;
+        final int dataSize = bufferSize * 64 + 1234;
+        final int addIncrement = 1316;
+
+        final SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize, spsc);
+        final CircularBufferReader reader =
+                seekableCircularBuffer.addReader("test", CircularBufferReader.SlowReaderPolicy.BLOCK);
+
+        final byte writeData[] = generateByteData(dataSize);
+        final ByteBuffer readData = ByteBuffer.allocateDirect(dataSize);
+        final ByteBuffer readerData = ByteBuffer.allocateDirect(dataSize);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int dataWritten = 0;
+
+                try {
+                    while (dataWritten < writeData.length) {
+                        int length = Math.min(addIncrement, writeData.length - dataWritten);
+                        seekableCircularBuffer.writeBlocked(writeData, dataWritten, length);
+                        dataWritten += length;
+                    }
+                } catch (InterruptedException e) {
+                    logger.error("Producer was interrupted => ", e);
+                }
+            }
+        });
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (readerData.hasRemaining()) {
+                        reader.read(readerData);
+                    }
+                } catch (InterruptedException e) {
+                    logger.error("Consumer was interrupted => ", e);
+                }
+            }
+        });
+
+        producer.start();
+        consumer.start();
+
+        while (readData.hasRemaining()) {
+            seekableCircularBuffer.read(readData);
+        }
+
+        producer.join();
+        consumer.join();
+
+        // The writer waited for both readers, so nothing was queued or lost.
+        assert seekableCircularBuffer.getBytesOverflow() == 0;
+        assert seekableCircularBuffer.getBytesLost() == 0;
+        assert reader.getBytesRead() == dataSize;
+        assert reader.getBytesSkipped() == 0;
+
+        readData.flip();
+        readerData.flip();
+
+        for (int i = 0; i < dataSize; i++) {
+            byte newByte = readData.get();
+            byte readerByte = readerData.get();
+            assert writeData[i] == newByte : "At index " + i + ": " + writeData[i] + " != " + newByte;
+            assert writeData[i] == readerByte : "At index " + i + ": " + writeData[i] + " != " + readerByte;
+        }
+
+        reader.close();
+        assert seekableCircularBuffer.getReaders().length == 0;
+    }
+
+    @Test(groups = { "buffer", "readers" }, dataProvider = "getLockModes")
+    public void testSkippingReader(boolean spsc) throws InterruptedException {
+        int bufferSize = 65536;
+        int dataSize = bufferSize * 3;
+        int addIncrement = 1316;
+
+        final SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize, spsc);
+        CircularBufferReader reader =
+                seekableCircularBuffer.addReader("test", CircularBufferReader.SlowReaderPolicy.SKIP);
+
+        final byte writeData[] = generateByteData(dataSize + addIncrement);
+        ByteBuffer readData = ByteBuffer.allocateDirect(dataSize);
+
+        // The primary reader keeps up, the added reader never reads.
+        for (int dataWritten = 0; dataWritten < dataSize; dataWritten += addIncrement) {
+            int length = Math.min(addIncrement, dataSize - dataWritten);
+            seekableCircularBuffer.write(writeData, dataWritten, length);
+            seekableCircularBuffer.read(readData);
+        }
+
+        // The reader that skips never holds back the writer.
+        assert seekableCircularBuffer.getBytesOverflow() == 0;
+        assert reader.getLag() == dataSize : "Expected a lag of " + dataSize + ", got " + reader.getLag();
+
+        final int finalDataSize = dataSize;
+        final int finalAddIncrement = addIncrement;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    seekableCircularBuffer.write(writeData, finalDataSize, finalAddIncrement);
+                } catch (InterruptedException e) {
+                    logger.error("Producer was interrupted => ", e);
+                }
+            }
+        });
+        producer.start();
+
+        // The reader skips to the newest data and then waits for the next write.
+        ByteBuffer readerData = ByteBuffer.allocate(addIncrement * 2);
+        int length = reader.read(readerData);
+        producer.join();
+
+        assert length == addIncrement : "Expected " + addIncrement + " bytes, got " + length;
+        assert reader.getBytesSkipped() == dataSize;
+        assert reader.getSkips() == 1;
+
+        readerData.flip();
+
+        for (int i = 0; i < length; i++) {
+            byte newByte = readerData.get();
+            assert writeData[dataSize + i] == newByte : "At index " + i + ": " + writeData[dataSize + i] + " != " + newByte;
+        }
+
+        // Closing the buffer releases the reader.
+        seekableCircularBuffer.close();
+        readerData.clear();
+        assert reader.read(readerData) == -1;
+    }
+
+    @Test(groups = { "buffer", "readers" })
+    public void testBlockingReaderOverflow() throws InterruptedException {
+        int bufferSize = 65536;
+        int dataSize = bufferSize * 2;
+        int addIncrement = 1316;
+
+        SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize);
+        CircularBufferReader reader =
+                seekableCircularBuffer.addReader("test", CircularBufferReader.SlowReaderPolicy.BLOCK);
+
+        byte writeData[] = generateByteData(dataSize);
+        ByteBuffer readData = ByteBuffer.allocateDirect(dataSize);
+        ByteBuffer readerData = ByteBuffer.allocateDirect(dataSize);
+
+        // The primary reader keeps up, but the added reader holds back the writer.
+        for (int dataWritten = 0; dataWritten < dataSize; dataWritten += addIncrement) {
+            int length = Math.min(addIncrement, dataSize - dataWritten);
+            seekableCircularBuffer.write(writeData, dataWritten, length);
+
+            if (seekableCircularBuffer.readAvailable() > 0) {
+                seekableCircularBuffer.read(readData);
+            }
+        }
+
+        assert seekableCircularBuffer.getBytesOverflow() > 0;
+
+        while (readerData.hasRemaining()) {
+            reader.read(readerData);
+            seekableCircularBuffer.processQueue();
+
+            if (seekableCircularBuffer.readAvailable() > 0) {
+                seekableCircularBuffer.read(readData);
+            }
+        }
+
+        assert readData.position() == dataSize : "Expected " + dataSize + " bytes, got " + readData.position();
+        assert seekableCircularBuffer.getBytesLost() == 0;
+
+        readData.flip();
+        readerData.flip();
+
+        for (int i = 0; i < dataSize; i++) {
+            byte newByte = readData.get();
+            byte readerByte = readerData.get();
+            assert writeData[i] == newByte : "At index " + i + ": " + writeData[i] + " != " + newByte;
+            assert writeData[i] == readerByte : "At index " + i + ": " + writeData[i] + " != " + readerByte;
+        }
+    }
+
+    @Test(groups = { "buffer", "spsc" })
+    public void testSPSCClearWhileRunning() throws InterruptedException {
+        final SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(65536, true);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread writeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte writeData[] = generateByteData(1316);
+
+                try {
+                    while (running.get()) {
+                        seekableCircularBuffer.write(writeData, 0, writeData.length);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+
+        Thread readThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer readData = ByteBuffer.allocate(1000);
+
+                try {
+                    while (running.get()) {
+                        if (seekableCircularBuffer.waitForBytes(1, 10) > 0) {
+                            readData.clear();
+                            seekableCircularBuffer.read(readData);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+
+        writeThread.start();
+        readThread.start();
+
+        // Clearing from a third thread must never leave the cursors in a state the reader or
+        // writer can't use.
+        for (int i = 0; i < 2000; i++) {
+            seekableCircularBuffer.clear();
+
+            int available = seekableCircularBuffer.readAvailable();
+            assert available >= 0 && available <= seekableCircularBuffer.getCurrentBufferSize() : available;
+        }
+
+        running.set(false);
+        seekableCircularBuffer.close();
+        writeThread.join();
+        readThread.join();
+
+        assert failure.get() == null : failure.get();
+    }
+
+    @Test(groups = { "buffer", "pool" }, dataProvider = "getLockModes")
+    public void testReleaseAndReuse(boolean spsc) throws InterruptedException {
+        int bufferSize = 65536;
+        SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize, spsc);
+        byte writeData[] = generateByteData(1000);
+        byte readData[] = new byte[1000];
+
+        seekableCircularBuffer.write(writeData, 0, writeData.length);
+        long releases = DirectBufferPool.getReleases();
+
+        seekableCircularBuffer.release();
+
+        assert seekableCircularBuffer.isReleased();
+        assert seekableCircularBuffer.isClosed();
+        assert seekableCircularBuffer.readAvailable() == 0;
+        assert DirectBufferPool.getReleases() == releases + 1;
+
+        // Nothing can be written until the buffer is cleared.
+        seekableCircularBuffer.write(writeData, 0, writeData.length);
+        assert seekableCircularBuffer.readAvailable() == 0;
+
+        long acquires = DirectBufferPool.getAcquires();
+        seekableCircularBuffer.clear();
+
+        assert !seekableCircularBuffer.isReleased();
+        assert DirectBufferPool.getAcquires() == acquires + 1;
+
+        seekableCircularBuffer.write(writeData, 0, writeData.length);
+        assert seekableCircularBuffer.read(readData, 0, readData.length) == readData.length;
+
+        for (int i = 0; i < readData.length; i++) {
+            assert writeData[i] == readData[i] : "At index " + i + ": " + writeData[i] + " != " + readData[i];
+        }
+
+        seekableCircularBuffer.release();
+    }
+
+    @Test(groups = { "buffer", "peek" }, dataProvider = "getLockModes")
+    public void testPeekAndSkip(boolean spsc) throws InterruptedException {
+        int bufferSize = 4096;
+        int dataSize = bufferSize * 10;
+        SeekableCircularBufferNIO seekableCircularBuffer = new SeekableCircularBufferNIO(bufferSize, spsc);
+        byte writeData[] = generateByteData(dataSize);
+        ByteBuffer readData = ByteBuffer.allocate(dataSize);
+        ByteBuffer segments[] = new ByteBuffer[2];
+        boolean wrapped = false;
+
+        // Writes that don't line up with the buffer size so the data wraps at different places.
+        for (int dataWritten = 0; dataWritten < dataSize; dataWritten += 1500) {
+            int length = Math.min(1500, dataSize - dataWritten);
+            seekableCircularBuffer.write(writeData, dataWritten, length);
+
+            int count = seekableCircularBuffer.peek(segments, 2000);
+            int peeked = 0;
+
+            for (int i = 0; i < count; i++) {
+                peeked += segments[i].remaining();
+                readData.put(segments[i]);
+            }
+
+            wrapped |= count == 2;
+            assert peeked <= 2000;
+            seekableCircularBuffer.skip(peeked);
+        }
+
+        while (seekableCircularBuffer.readAvailable() > 0) {
+            int count = seekableCircularBuffer.peek(segments, 2000);
+            int peeked = 0;
+
+            for (int i = 0; i < count; i++) {
+                peeked += segments[i].remaining();
+                readData.put(segments[i]);
+            }
+
+            seekableCircularBuffer.skip(peeked);
+        }
+
+        assert wrapped;
+        assert readData.position() == dataSize : "Expected " + dataSize + " bytes, got " + readData.position();
+
+        readData.flip();
+        for (int i = 0; i < dataSize; i++) {
+            byte newByte = readData.get();
+            assert writeData[i] == newByte : "At index " + i + ": " + writeData[i] + " != " + newByte;
+        }
+    }
+
     public byte[] generateByteData(int length) {
         byte data[] = new byte[length];
         Random random = new Random(length);
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.consumer.buffers.DirectBufferPool;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+public class DirectBufferPoolTest {
+
+    @DataProvider
+    private static Object[][] getBufferSizes() {
+        return new Object[][] {
+                { 1500 },
+                { 32768 },
+                { 1048476 },
+                { 2097152 * 3 }
+        };
+    }
+
+    @Test(groups = { "buffer", "pool" }, dataProvider = "getBufferSizes")
+    public void testAcquireRelease(int size) {
+        String owner = "DirectBufferPoolTest-" + size;
+
+        ByteBuffer buffer = DirectBufferPool.acquire(size, owner);
+
+        assert buffer.isDirect();
+        assert buffer.capacity() == size : "Expected " + size + " bytes, got " + buffer.capacity();
+        assert buffer.position() == 0;
+        assert buffer.limit() == size;
+
+        Map<String, long[]> outstanding = DirectBufferPool.getOutstandingByOwner();
+        assert outstanding.get(owner) != null;
+        assert outstanding.get(owner)[0] == 1;
+        assert outstanding.get(owner)[1] == size;
+
+        buffer.put(new byte[Math.min(size, 1024)]);
+        DirectBufferPool.release(buffer);
+
+        assert DirectBufferPool.getOutstandingByOwner().get(owner) == null;
+
+        // The same memory should come back from the pool.
+        long hits = DirectBufferPool.getPoolHits();
+        buffer = DirectBufferPool.acquire(size, owner);
+        assert DirectBufferPool.getPoolHits() == hits + 1;
+        assert buffer.position() == 0;
+        assert buffer.capacity() == size;
+        DirectBufferPool.release(buffer);
+    }
+
+    @Test(groups = { "buffer", "pool" })
+    public void testSlabIsolation() {
+        ByteBuffer buffer1 = DirectBufferPool.acquire(4096, "DirectBufferPoolTest");
+        ByteBuffer buffer2 = DirectBufferPool.acquire(4096, "DirectBufferPoolTest");
+
+        while (buffer2.hasRemaining()) {
+            buffer2.put((byte) 2);
+        }
+
+        while (buffer1.hasRemaining()) {
+            buffer1.put((byte) 1);
+        }
+
+        buffer2.flip();
+        while (buffer2.hasRemaining()) {
+            assert buffer2.get() == 2 : "Buffers carved from the same slab overlap.";
+        }
+
+        try {
+            buffer1.put((byte) 1);
+            assert false : "Slices must not be able to write past their own capacity.";
+        } catch (java.nio.BufferOverflowException e) {
+            // Expected.
+        }
+
+        DirectBufferPool.release(buffer1);
+        DirectBufferPool.release(buffer2);
+    }
+
+    @Test(groups = { "buffer", "pool" })
+    public void testUnknownRelease() {
+        long unknown = DirectBufferPool.getUnknownReleases();
+        long releases = DirectBufferPool.getReleases();
+
+        DirectBufferPool.release(ByteBuffer.allocateDirect(4096));
+        DirectBufferPool.release(ByteBuffer.allocate(4096));
+        DirectBufferPool.release(null);
+
+        assert DirectBufferPool.getUnknownReleases() == unknown + 1;
+        assert DirectBufferPool.getReleases() == releases;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.ffmpeg.FFmpegCallbackRegistry;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FFmpegCallbackRegistryTest {
+
+    @Test(groups = { "ffmpeg", "registry" })
+    public void testRegisterAndGrow() {
+        FFmpegCallbackRegistry<String> registry = new FFmpegCallbackRegistry<>("test", 4);
+        Set<Integer> indexes = new HashSet<>();
+
+        assert registry.get(0) == null;
+        assert registry.get(-1) == null;
+        assert registry.get(1000) == null;
+
+        for (int i = 0; i < 20; i++) {
+            int index = registry.register("value" + i);
+
+            // 0 is a null opaque value to FFmpeg.
+            assert index > 0;
+            assert indexes.add(index);
+            assert registry.get(index).equals("value" + i);
+        }
+
+        assert registry.getRegistered() == 20;
+
+        int index = 0;
+        for (int i : indexes) {
+            index = i;
+            break;
+        }
+
+        registry.unregister(index);
+        assert registry.get(index) == null;
+        assert registry.getRegistered() == 19;
+
+        // Removing something that isn't registered doesn't change anything.
+        registry.unregister(index);
+        registry.unregister(0);
+        assert registry.getRegistered() == 19;
+
+        // The free index is used again before the table grows.
+        for (int i = 0; i < 40; i++) {
+            registry.register("reused" + i);
+        }
+
+        assert registry.getRegistered() == 59;
+    }
+
+    @Test(groups = { "ffmpeg", "registry" })
+    public void testConcurrentLookups() throws InterruptedException {
+        final FFmpegCallbackRegistry<Integer> registry = new FFmpegCallbackRegistry<>("test", 2);
+        final int stableIndex = registry.register(-1);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        Thread readers[] = new Thread[4];
+
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        Integer value = registry.get(stableIndex);
+
+                        // The table growing must never hide an entry that is still registered.
+                        if (value == null || value != -1) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            });
+
+            readers[i].start();
+        }
+
+        for (int i = 0; i < 5000; i++) {
+            int index = registry.register(i);
+
+            if (registry.get(index) != i) {
+                failed.set(true);
+            }
+
+            if (i % 2 == 0) {
+                registry.unregister(index);
+            }
+        }
+
+        running.set(false);
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assert !failed.get();
+        assert registry.getRegistered() == 2501;
+    }
+}
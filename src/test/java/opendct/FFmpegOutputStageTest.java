@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.ffmpeg.FFmpegOutputStage;
+import opendct.video.ffmpeg.FFmpegOutputThread;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+public class FFmpegOutputStageTest {
+
+    private static class TestSink implements FFmpegOutputStage.Sink {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final long delay;
+        private int writes;
+
+        private TestSink(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            synchronized (output) {
+                while (buffer.hasRemaining()) {
+                    output.write(buffer.get());
+                }
+
+                writes += 1;
+            }
+        }
+
+        private byte[] getBytes() {
+            synchronized (output) {
+                return output.toByteArray();
+            }
+        }
+
+        private int getWrites() {
+            synchronized (output) {
+                return writes;
+            }
+        }
+    }
+
+    private static byte[] getTestData(int length) {
+        byte data[] = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+
+        return data;
+    }
+
+    @Test(groups = { "transcode", "output" })
+    public void testOrderAndBackPressure() {
+        TestSink sink = new TestSink(2);
+        FFmpegOutputStage stage = new FFmpegOutputStage("Test", sink, 2, 4096, 2048, 0);
+
+        assert stage.start("test");
+
+        byte data[] = getTestData(100000);
+
+        // Writes that don't line up with the slot size.
+        for (int i = 0; i < data.length; i += 1000) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, i, Math.min(1000, data.length - i));
+            assert stage.write(buffer) == Math.min(1000, data.length - i);
+            assert !buffer.hasRemaining();
+        }
+
+        stage.close();
+
+        byte written[] = sink.getBytes();
+        assert written.length == data.length;
+
+        for (int i = 0; i < data.length; i++) {
+            assert written[i] == data[i];
+        }
+
+        assert stage.getBytesWritten() == data.length;
+        // The sink is slower than writing, so writing must have waited for a free slot.
+        assert stage.getBlockedNanos() > 0;
+        assert stage.getHighWater() >= 1;
+        assert stage.write(ByteBuffer.wrap(data)) == -1;
+    }
+
+    @Test(groups = { "transcode", "output" })
+    public void testFlushTime() throws InterruptedException {
+        TestSink sink = new TestSink(0);
+        FFmpegOutputStage stage = new FFmpegOutputStage("Test", sink, 4, 4096, 4096, 50);
+
+        assert stage.start("test");
+
+        stage.write(ByteBuffer.wrap(getTestData(100)));
+
+        // The slot isn't full, so it's only written after the flush time.
+        long timeout = System.currentTimeMillis() + 5000;
+        while (sink.getWrites() == 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+
+        assert sink.getBytes().length == 100;
+
+        stage.write(ByteBuffer.wrap(getTestData(10)));
+        stage.flush();
+        assert sink.getBytes().length == 110;
+
+        stage.close();
+        assert sink.getWrites() == 2;
+    }
+
+    @Test(groups = { "transcode", "output" })
+    public void testSharedThread() {
+        FFmpegOutputThread thread = new FFmpegOutputThread("Test");
+        TestSink sink1 = new TestSink(1);
+        TestSink sink2 = new TestSink(0);
+        FFmpegOutputStage stage1 = new FFmpegOutputStage(thread, "Test1", sink1, 2, 4096, 1024, 0);
+        FFmpegOutputStage stage2 = new FFmpegOutputStage(thread, "Test2", sink2, 2, 4096, 1024, 0);
+
+        assert stage1.start("test1");
+        assert stage2.start("test2");
+
+        byte data[] = getTestData(50000);
+
+        // Both stages are written by the same thread, so neither can be starved by the other.
+        for (int i = 0; i < data.length; i += 500) {
+            assert stage1.write(ByteBuffer.wrap(data, i, 500)) == 500;
+            assert stage2.write(ByteBuffer.wrap(data, i, 500)) == 500;
+        }
+
+        stage1.close();
+
+        // The thread keeps running for the stage that is still open.
+        assert stage2.write(ByteBuffer.wrap(data, 0, 500)) == 500;
+        stage2.close();
+
+        assert sink1.getBytes().length == data.length;
+        assert sink2.getBytes().length == data.length + 500;
+
+        byte written[] = sink1.getBytes();
+        for (int i = 0; i < data.length; i++) {
+            assert written[i] == data[i];
+        }
+    }
+
+    @Test(groups = { "transcode", "output" })
+    public void testDropWhenFull() {
+        final CountDownLatch release = new CountDownLatch(1);
+        final TestSink sink = new TestSink(0);
+        FFmpegOutputStage stage = new FFmpegOutputStage("Test", new FFmpegOutputStage.Sink() {
+            @Override
+            public void write(ByteBuffer buffer) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+
+                sink.write(buffer);
+            }
+        }, 2, 1024, 1024, 0);
+
+        stage.setDropWhenFull(true);
+        assert stage.start("test");
+
+        byte data[] = getTestData(10240);
+
+        // The sink is stuck, so everything after the first two slots is dropped without waiting.
+        for (int i = 0; i < data.length; i += 1024) {
+            assert stage.write(ByteBuffer.wrap(data, i, 1024)) == 1024;
+        }
+
+        assert stage.getBlockedNanos() == 0;
+        assert stage.getBytesDropped() > 0;
+
+        release.countDown();
+        stage.flush();
+
+        assert sink.getBytes().length + stage.getBytesDropped() == data.length;
+
+        // Once the sink catches up, nothing else is dropped.
+        long dropped = stage.getBytesDropped();
+        assert stage.write(ByteBuffer.wrap(data, 0, 1024)) == 1024;
+        stage.close();
+
+        assert stage.getBytesDropped() == dropped;
+        assert sink.getBytes().length + dropped == data.length + 1024;
+    }
+
+    @Test(groups = { "transcode", "output" })
+    public void testWriteError() {
+        FFmpegOutputStage stage = new FFmpegOutputStage("Test", new FFmpegOutputStage.Sink() {
+            @Override
+            public void write(ByteBuffer buffer) throws IOException {
+                throw new IOException("Test failure.");
+            }
+        }, 2, 4096, 1, 0);
+
+        assert stage.start("test");
+        assert stage.write(ByteBuffer.wrap(getTestData(100))) == 100;
+
+        stage.flush();
+
+        // The failure is passed back to the writer.
+        assert stage.getFailure() != null;
+        assert stage.getWriteErrors() == 1;
+        assert stage.write(ByteBuffer.wrap(getTestData(100))) == -1;
+
+        stage.close();
+    }
+}
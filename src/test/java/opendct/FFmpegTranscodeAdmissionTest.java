@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.ffmpeg.FFmpegTranscodeAdmission;
+import opendct.video.ffmpeg.FFmpegTranscodeAdmission.Decision;
+import org.testng.annotations.Test;
+
+public class FFmpegTranscodeAdmissionTest {
+
+    private static class TestAdmission extends FFmpegTranscodeAdmission {
+        private double cpuLoad = 0.6;
+        private long time = 1000;
+
+        private TestAdmission() {
+            super(4, 3000, 0.85, 0.5);
+        }
+
+        @Override
+        public double getCpuLoad() {
+            return cpuLoad;
+        }
+
+        @Override
+        protected long getTime() {
+            return time;
+        }
+    }
+
+    @Test(groups = { "transcode", "admission" })
+    public void testWeightLimit() {
+        TestAdmission admission = new TestAdmission();
+
+        assert admission.requestTranscode("a", "a", 2, 0) == Decision.ADMIT;
+        assert admission.requestTranscode("b", "b", 2, 0) == Decision.ADMIT;
+        assert admission.requestTranscode("c", "c", 2, 1) == Decision.REMUX;
+        assert admission.getWeightUsed() == 4;
+
+        admission.releaseTranscode("a");
+        assert admission.getWeightUsed() == 2;
+        assert admission.requestTranscode("c", "c", 2, 1) == Decision.ADMIT;
+        assert admission.getDecisions().size() == 4;
+    }
+
+    @Test(groups = { "transcode", "admission" })
+    public void testCpuLoad() {
+        TestAdmission admission = new TestAdmission();
+
+        admission.cpuLoad = 0.9;
+        assert admission.requestTranscode("a", "a", 2, 1) == Decision.DOWNGRADE;
+        assert admission.getWeightUsed() == 1;
+        assert admission.requestTranscode("b", "b", 2, 0) == Decision.REMUX;
+
+        // An idle CPU allows the weight limit to be exceeded.
+        admission.cpuLoad = 0.2;
+        assert admission.requestTranscode("c", "c", 3, 0) == Decision.ADMIT;
+        assert admission.requestTranscode("d", "d", 3, 0) == Decision.ADMIT;
+        assert admission.getWeightUsed() == 7;
+    }
+
+    @Test(groups = { "transcode", "admission" })
+    public void testSlowTranscode() {
+        TestAdmission admission = new TestAdmission();
+
+        assert admission.requestTranscode("a", "a", 1, 0) == Decision.ADMIT;
+
+        // Encoding 5 seconds of video every 10 seconds is falling behind.
+        admission.updateProgress("a", 100);
+        admission.time += 10000;
+        admission.updateProgress("a", 105);
+
+        assert admission.getJobs().get(0).lagMs == 5000;
+        assert admission.requestTranscode("b", "b", 1, 1) == Decision.REMUX;
+
+        // Catching back up allows new transcodes again.
+        admission.time += 5000;
+        admission.updateProgress("a", 112);
+        admission.time += 5000;
+        admission.updateProgress("a", 120);
+        assert admission.getJobs().get(0).lagMs == 0;
+        assert admission.requestTranscode("b", "b", 1, 0) == Decision.ADMIT;
+    }
+
+    @Test(groups = { "transcode", "admission" })
+    public void testLiveJitter() {
+        TestAdmission admission = new TestAdmission();
+
+        assert admission.requestTranscode("a", "a", 1, 0) == Decision.ADMIT;
+
+        // The source delivers 2 seconds of video in a burst every 2 seconds. Measured over short
+        // windows this is well under real time, but the transcode never falls further behind.
+        double media = 100;
+
+        for (int i = 0; i < 30; i++) {
+            admission.updateProgress("a", media);
+            admission.time += 1900;
+            media += 2;
+            admission.updateProgress("a", media - 1.9);
+            admission.time += 100;
+        }
+
+        assert admission.getJobs().get(0).lagMs <= 2000;
+        assert admission.requestTranscode("b", "b", 1, 0) == Decision.ADMIT;
+    }
+
+    @Test(groups = { "transcode", "admission" })
+    public void testTimestampJump() {
+        TestAdmission admission = new TestAdmission();
+
+        assert admission.requestTranscode("a", "a", 1, 0) == Decision.ADMIT;
+
+        // A timestamp reset is not the transcode falling behind.
+        admission.updateProgress("a", 100);
+        admission.time += 1000;
+        admission.updateProgress("a", 1);
+        admission.time += 1000;
+        admission.updateProgress("a", 2);
+
+        assert admission.getJobs().get(0).lagMs == 0;
+        assert admission.requestTranscode("b", "b", 1, 0) == Decision.ADMIT;
+    }
+}
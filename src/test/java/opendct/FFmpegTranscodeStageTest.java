@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.ffmpeg.FFmpegTranscodeStage;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class FFmpegTranscodeStageTest {
+
+    private static class TestHandler implements FFmpegTranscodeStage.Handler<Integer> {
+        private final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        private final List<Integer> discarded = Collections.synchronizedList(new ArrayList<Integer>());
+        private final long delay;
+        private final CountDownLatch release;
+
+        private TestHandler(long delay, CountDownLatch release) {
+            this.delay = delay;
+            this.release = release;
+        }
+
+        @Override
+        public void process(Integer item, int streamIndex) throws InterruptedException {
+            if (release != null) {
+                release.await();
+            }
+
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            processed.add(item);
+        }
+
+        @Override
+        public void discard(Integer item) {
+            discarded.add(item);
+        }
+    }
+
+    @Test(groups = { "transcode", "stage" })
+    public void testOrderAndBackPressure() throws InterruptedException {
+        TestHandler handler = new TestHandler(5, null);
+        FFmpegTranscodeStage<Integer> stage = new FFmpegTranscodeStage<>("Test", handler, 2);
+
+        assert stage.start("test");
+
+        for (int i = 0; i < 20; i++) {
+            stage.put(i, 0);
+        }
+
+        stage.drain();
+
+        assert handler.processed.size() == 20;
+
+        for (int i = 0; i < 20; i++) {
+            assert handler.processed.get(i) == i;
+        }
+
+        assert stage.getProcessed() == 20;
+        // The handler is slower than adding work, so the queue must have been full.
+        assert stage.getBlockedNanos() > 0;
+        assert stage.getBusyNanos() >= TimeUnit.MILLISECONDS.toNanos(5 * 20);
+
+        stage.stop();
+        assert handler.discarded.isEmpty();
+    }
+
+    @Test(groups = { "transcode", "stage" })
+    public void testStopDiscards() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        TestHandler handler = new TestHandler(0, release);
+        FFmpegTranscodeStage<Integer> stage = new FFmpegTranscodeStage<>("Test", handler, 4);
+
+        assert stage.start("test");
+
+        for (int i = 0; i < 4; i++) {
+            stage.put(i, 0);
+        }
+
+        // The first item is being processed and can't finish until it's released.
+        release.countDown();
+        stage.stop();
+
+        assert !stage.isRunning();
+        assert handler.processed.size() + handler.discarded.size() == 4;
+
+        // Anything added after the stage stopped is discarded immediately.
+        stage.put(4, 0);
+        assert handler.discarded.contains(4);
+        stage.drain();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.consumer.buffers.MappedCircularFile;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class MappedCircularFileTest {
+
+    @DataProvider
+    private static Object[][] getSyncPolicies() {
+        return new Object[][] {
+                { MappedCircularFile.SyncPolicy.NONE },
+                { MappedCircularFile.SyncPolicy.PERIODIC },
+                { MappedCircularFile.SyncPolicy.WINDOW }
+        };
+    }
+
+    @Test(groups = { "buffer", "mapped" }, dataProvider = "getSyncPolicies")
+    public void testWrapAround(MappedCircularFile.SyncPolicy syncPolicy) throws IOException {
+        File file = File.createTempFile("opendct-mapped", ".ts");
+        file.deleteOnExit();
+
+        // The file size is not a multiple of the window or write size so every kind of boundary
+        // is crossed.
+        int fileSize = 100000;
+        int windowSize = 32768;
+        int writeSize = 7000;
+        int totalBytes = fileSize * 3 + 1234;
+
+        MappedCircularFile circularFile = new MappedCircularFile(
+                file.getAbsolutePath(), fileSize, windowSize, syncPolicy, 0);
+
+        ByteBuffer source = ByteBuffer.allocate(writeSize);
+        int written = 0;
+
+        try {
+            while (written < totalBytes) {
+                source.clear();
+
+                int length = Math.min(writeSize, totalBytes - written);
+                for (int i = 0; i < length; i++) {
+                    source.put(getByte(written + i));
+                }
+                source.flip();
+
+                assert circularFile.write(source) == length;
+                assert !source.hasRemaining();
+
+                written += length;
+
+                assert circularFile.getPosition() == written % fileSize :
+                        "Expected position " + (written % fileSize) + ", got " + circularFile.getPosition();
+            }
+        } finally {
+            circularFile.close();
+        }
+
+        assert file.length() == fileSize : "Expected " + fileSize + " bytes, got " + file.length();
+
+        byte contents[] = new byte[fileSize];
+        RandomAccessFile readFile = new RandomAccessFile(file, "r");
+        try {
+            readFile.readFully(contents);
+        } finally {
+            readFile.close();
+        }
+
+        // Every byte in the file should be from the last pass over that position.
+        for (int i = 0; i < fileSize; i++) {
+            int lastWrite = i < totalBytes % fileSize ?
+                    (totalBytes / fileSize) * fileSize + i :
+                    (totalBytes / fileSize - 1) * fileSize + i;
+
+            assert contents[i] == getByte(lastWrite) : "Unexpected byte at index " + i;
+        }
+
+        assert file.delete() || !file.exists();
+    }
+
+    private static byte getByte(int index) {
+        return (byte) (index * 31 + (index >> 8));
+    }
+}
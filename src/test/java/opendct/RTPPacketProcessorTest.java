@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.rtsp.rtp.RTPPacketProcessor;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+public class RTPPacketProcessorTest {
+    private static final int SSRC = 0x12345678;
+
+    private static ByteBuffer createPacket(int sequence, int ssrc) {
+        ByteBuffer packet = ByteBuffer.allocate(12 + 188);
+        packet.put((byte) 0x80);
+        packet.put((byte) 33);
+        packet.putShort((short) sequence);
+        packet.putInt(sequence * 3003);
+        packet.putInt(ssrc);
+        packet.clear();
+
+        return packet;
+    }
+
+    private static boolean process(RTPPacketProcessor processor, int sequence) {
+        return processor.findMissingRTPPackets(createPacket(sequence, SSRC));
+    }
+
+    @Test(groups = { "rtp" })
+    public void testRollover() {
+        RTPPacketProcessor processor = new RTPPacketProcessor();
+
+        for (int i = 65000; i < 65536 + 1000; i++) {
+            assert !process(processor, i & 0xffff) : "Unexpected packet at " + i;
+        }
+
+        assert processor.getMissedRTPPackets() == 0;
+        assert processor.getPacketsDuplicated() == 0;
+        assert processor.getPacketsReordered() == 0;
+        assert processor.getPacketsReceived() == 1536;
+    }
+
+    @Test(groups = { "rtp" })
+    public void testPosition() {
+        RTPPacketProcessor processor = new RTPPacketProcessor();
+        ByteBuffer packet = createPacket(1, SSRC);
+
+        processor.findMissingRTPPackets(packet);
+
+        assert packet.position() == 12;
+    }
+
+    @Test(groups = { "rtp" })
+    public void testLossAcrossRollover() {
+        RTPPacketProcessor processor = new RTPPacketProcessor();
+
+        process(processor, 65534);
+        assert process(processor, 2);
+
+        // 65535, 0 and 1 are missing.
+        assert processor.getMissedRTPPackets() == 3 : processor.getMissedRTPPackets();
+    }
+
+    @Test(groups = { "rtp" })
+    public void testReorderAndDuplicate() {
+        RTPPacketProcessor processor = new RTPPacketProcessor();
+
+        process(processor, 100);
+        process(processor, 102);
+        assert processor.getMissedRTPPackets() == 1;
+
+        // 101 fills the gap.
+        assert process(processor, 101);
+        assert processor.getMissedRTPPackets() == 0;
+        assert processor.getPacketsReordered() == 1;
+
+        // Both the highest sequence and one behind it are duplicates now.
+        assert process(processor, 102);
+        assert process(processor, 101);
+        assert processor.getPacketsDuplicated() == 2;
+        assert processor.getPacketsReordered() == 1;
+
+        assert !process(processor, 103);
+        assert processor.getMissedRTPPackets() == 0;
+    }
+
+    @Test(groups = { "rtp" })
+    public void testLate() {
+        RTPPacketProcessor processor = new RTPPacketProcessor();
+
+        for (int i = 0; i < 200; i++) {
+            process(processor, i);
+        }
+
+        // Further behind than duplicates can be tracked.
+        assert process(processor, 120);
+        assert processor.getPacketsLate() == 1;
+        assert processor.getPacketsDuplicated() == 0;
+    }
+
+    @Test(groups = { "rtp" })
+    public void testSSRCChange() {
+        RTPPacketProcessor processor = new RTPPacketProcessor();
+
+        process(processor, 1000);
+        process(processor, 1001);
+
+        // A new source starts with its own sequence numbers which are not losses.
+        assert processor.findMissingRTPPackets(createPacket(5, SSRC + 1));
+        assert !processor.findMissingRTPPackets(createPacket(6, SSRC + 1));
+
+        assert processor.getSSRCChanges() == 1;
+        assert processor.getMissedRTPPackets() == 0;
+    }
+
+    @Test(groups = { "rtp" })
+    public void testSequenceRestart() {
+        RTPPacketProcessor processor = new RTPPacketProcessor();
+
+        process(processor, 10);
+        process(processor, 11);
+
+        // One large jump is ignored, but two sequential packets restart the sequence.
+        assert process(processor, 30000);
+        assert process(processor, 30001);
+        assert !process(processor, 30002);
+
+        assert processor.getSequenceResets() == 1;
+        assert processor.getMissedRTPPackets() == 0;
+    }
+
+    @Test(groups = { "rtp" })
+    public void testReset() {
+        RTPPacketProcessor processor = new RTPPacketProcessor();
+
+        process(processor, 10);
+        process(processor, 20);
+        assert processor.getMissedRTPPackets() == 9;
+
+        processor.ResetCounters();
+        assert !process(processor, 500);
+
+        assert processor.getMissedRTPPackets() == 0;
+        assert processor.getPacketsReceived() == 1;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.sagetv.SageTVPreTune;
+import org.testng.annotations.Test;
+
+public class SageTVPreTuneTest {
+    private static final String CHANNELS[] = new String[] { "2", "4", "5", "7", "11" };
+
+    @Test(groups = { "pool", "pretune" })
+    public void testPredictSurfing() {
+        // No history assumes the viewer will go up.
+        assert "5".equals(SageTVPreTune.predictNextChannel(CHANNELS, null, "4"));
+
+        // Keep going in the same direction.
+        assert "7".equals(SageTVPreTune.predictNextChannel(CHANNELS, "4", "5"));
+        assert "4".equals(SageTVPreTune.predictNextChannel(CHANNELS, "7", "5"));
+
+        // The lineup wraps around in both directions.
+        assert "2".equals(SageTVPreTune.predictNextChannel(CHANNELS, "7", "11"));
+        assert "11".equals(SageTVPreTune.predictNextChannel(CHANNELS, "4", "2"));
+        assert "4".equals(SageTVPreTune.predictNextChannel(CHANNELS, "11", "2"));
+    }
+
+    @Test(groups = { "pool", "pretune" })
+    public void testPredictJump() {
+        // Jumping to a channel probably means jumping back.
+        assert "11".equals(SageTVPreTune.predictNextChannel(CHANNELS, "11", "4"));
+
+        // A channel that isn't in the lineup can still be predicted as the previous channel.
+        assert "4".equals(SageTVPreTune.predictNextChannel(CHANNELS, "4", "9"));
+        assert SageTVPreTune.predictNextChannel(CHANNELS, null, "9") == null;
+
+        // A channel the lineup doesn't have anymore isn't surfing.
+        assert "5".equals(SageTVPreTune.predictNextChannel(CHANNELS, "9", "4"));
+
+        // Nothing to change to.
+        assert SageTVPreTune.predictNextChannel(new String[] { "4" }, null, "4") == null;
+    }
+}
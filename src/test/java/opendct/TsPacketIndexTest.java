@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.consumer.buffers.SeekableCircularBufferNIO;
+import opendct.consumer.buffers.TsPacketIndex;
+import opendct.video.java.VideoUtil;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class TsPacketIndexTest {
+    private static final int PMT_PID = 0x30;
+    private static final int VIDEO_PID = 0x100;
+
+    /**
+     * Create a stream where every 10th packet is a PAT, every 10th packet + 1 is a PMT, every 20th
+     * packet + 2 is a video PES start with the random access indicator and everything else is
+     * video payload.
+     */
+    private static byte[] createStream(int leadingBytes, int packets) {
+        byte stream[] = new byte[leadingBytes + packets * VideoUtil.MTS_PACKET_LEN];
+        byte pat[] = TsTestStreams.createPat(new int[] { 1 }, new int[] { PMT_PID });
+        byte pes[] = TsTestStreams.createPes(0xe0, new byte[0]);
+
+        Arrays.fill(stream, 0, leadingBytes, (byte) 0xff);
+
+        for (int i = 0; i < packets; i++) {
+            int offset = leadingBytes + i * VideoUtil.MTS_PACKET_LEN;
+
+            if (i % 10 == 0) {
+                TsTestStreams.writeHeader(stream, offset, 0, true, i);
+                TsTestStreams.writeSection(stream, offset + 4, pat);
+            } else if (i % 10 == 1) {
+                TsTestStreams.writeHeader(stream, offset, PMT_PID, true, i);
+            } else if (i % 20 == 2) {
+                int payload = TsTestStreams.writeRandomAccessHeader(stream, offset, VIDEO_PID, i);
+                System.arraycopy(pes, 0, stream, payload, pes.length);
+            } else {
+                TsTestStreams.writeHeader(stream, offset, VIDEO_PID, false, i);
+            }
+        }
+
+        return stream;
+    }
+
+    private static SeekableCircularBufferNIO writeStream(byte stream[], int writeSize) {
+        SeekableCircularBufferNIO buffer = new SeekableCircularBufferNIO(stream.length * 2);
+        buffer.enablePacketIndex();
+
+        for (int i = 0; i < stream.length; i += writeSize) {
+            buffer.write(ByteBuffer.wrap(stream, i, Math.min(writeSize, stream.length - i)));
+        }
+
+        return buffer;
+    }
+
+    @Test(groups = { "buffer", "tsIndex" })
+    public void testPacketKinds() {
+        int leadingBytes = 77;
+        byte stream[] = createStream(leadingBytes, 200);
+
+        // Write sizes that don't line up with the packets.
+        for (int writeSize : new int[] { 1, 100, 188, 1316, 5000 }) {
+            TsPacketIndex index = writeStream(stream, writeSize).getPacketIndex();
+
+            assert index.isSynced();
+            assert index.getCount(TsPacketIndex.Kind.PAT) == 20;
+            assert index.getCount(TsPacketIndex.Kind.PMT) == 20;
+            assert index.getCount(TsPacketIndex.Kind.VIDEO_PES) == 10;
+            assert index.getCount(TsPacketIndex.Kind.RANDOM_ACCESS) == 10;
+
+            long packet = VideoUtil.MTS_PACKET_LEN;
+
+            assert index.next(TsPacketIndex.Kind.PAT, 0) == leadingBytes;
+            assert index.next(TsPacketIndex.Kind.PAT, leadingBytes + 1) == leadingBytes + packet * 10;
+            assert index.next(TsPacketIndex.Kind.PMT, leadingBytes + packet * 10) == leadingBytes + packet * 11;
+            assert index.next(TsPacketIndex.Kind.RANDOM_ACCESS, 0) == leadingBytes + packet * 2;
+            assert index.next(TsPacketIndex.Kind.VIDEO_PES, leadingBytes + packet * 3) == leadingBytes + packet * 22;
+            assert index.next(TsPacketIndex.Kind.PAT, leadingBytes + packet * 191) == -1;
+        }
+    }
+
+    @Test(groups = { "buffer", "tsIndex" })
+    public void testMatchesVideoUtil() throws InterruptedException {
+        byte stream[] = createStream(5, 100);
+        SeekableCircularBufferNIO buffer = writeStream(stream, 1000);
+        TsPacketIndex index = buffer.getPacketIndex();
+
+        long readOffset = buffer.getReadOffset();
+        ByteBuffer readBuffer = ByteBuffer.allocate(stream.length);
+        buffer.read(readBuffer);
+        readBuffer.flip();
+        readBuffer.position(1000);
+
+        int patIndex = VideoUtil.getTsVideoPatStartByte(readBuffer, false);
+        int randomAccessIndex = VideoUtil.getTsVideoRandomAccessIndicator(readBuffer, false);
+
+        assert index.next(TsPacketIndex.Kind.PAT, readOffset + 1000) == readOffset + patIndex;
+        assert index.next(TsPacketIndex.Kind.RANDOM_ACCESS, readOffset + 1000) == readOffset + randomAccessIndex;
+    }
+
+    @Test(groups = { "buffer", "tsIndex" })
+    public void testResync() {
+        byte stream[] = createStream(0, 50);
+
+        // Corrupt the sync byte of packet 15.
+        stream[15 * VideoUtil.MTS_PACKET_LEN] = 0x00;
+
+        TsPacketIndex index = writeStream(stream, 333).getPacketIndex();
+
+        assert index.isSynced();
+        assert index.getSyncLosses() >= 1;
+
+        // PAT 20 is found again after the index re-syncs.
+        assert index.next(TsPacketIndex.Kind.PAT, 11 * VideoUtil.MTS_PACKET_LEN) ==
+                20 * VideoUtil.MTS_PACKET_LEN;
+    }
+
+    @Test(groups = { "buffer", "tsIndex" })
+    public void testWrapAround() throws InterruptedException {
+        byte stream[] = createStream(0, 100);
+        // The capacity is not a multiple of the packet size, so packets are split at the end.
+        SeekableCircularBufferNIO buffer = new SeekableCircularBufferNIO(5000);
+        TsPacketIndex index = buffer.enablePacketIndex();
+        ByteBuffer readBuffer = ByteBuffer.allocate(5000);
+
+        for (int i = 0; i < stream.length; i += 1000) {
+            buffer.write(ByteBuffer.wrap(stream, i, Math.min(1000, stream.length - i)));
+
+            readBuffer.clear();
+            buffer.read(readBuffer);
+        }
+
+        // The offsets keep counting up with every pass.
+        assert buffer.getReadOffset() == stream.length;
+        assert index.getCount(TsPacketIndex.Kind.PAT) == 10;
+        assert index.next(TsPacketIndex.Kind.PAT, 81 * VideoUtil.MTS_PACKET_LEN) ==
+                90 * VideoUtil.MTS_PACKET_LEN;
+    }
+}
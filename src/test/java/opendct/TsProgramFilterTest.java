@@ -0,0 +1,373 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.java.TsProgramFilter;
+import opendct.video.java.VideoUtil;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+public class TsProgramFilterTest {
+    private static final int PROGRAMS[] = new int[] { 1, 2, 3 };
+    private static final int PACKETS = 300;
+
+    private static int pmtPid(int program) {
+        return 0x30 + program;
+    }
+
+    private static int videoPid(int program) {
+        return 0x100 * program;
+    }
+
+    private static int audioPid(int program) {
+        return 0x100 * program + 1;
+    }
+
+    private static byte[] createPat() {
+        int pmtPids[] = new int[PROGRAMS.length];
+
+        for (int i = 0; i < PROGRAMS.length; i++) {
+            pmtPids[i] = pmtPid(PROGRAMS[i]);
+        }
+
+        return TsTestStreams.createPat(PROGRAMS, pmtPids);
+    }
+
+    private static byte[] createPmt(int program) {
+        return TsTestStreams.createPmt(program, videoPid(program), new int[] { 0x02, 0x81 },
+                new int[] { videoPid(program), audioPid(program) }, 0);
+    }
+
+    /**
+     * Create a stream with a PAT and every PMT every 20 packets and the video and audio of every
+     * program in between. The payload of every elementary stream packet is the packet number.
+     */
+    private static byte[] createMux() {
+        byte stream[] = new byte[PACKETS * VideoUtil.MTS_PACKET_LEN];
+        byte pat[] = createPat();
+        int packet = 0;
+
+        while (packet < PACKETS) {
+            int offset = packet * VideoUtil.MTS_PACKET_LEN;
+
+            if (packet % 20 == 0) {
+                TsTestStreams.writePacket(stream, offset, 0, true, packet / 20);
+                TsTestStreams.writeSection(stream, offset + 4, pat);
+            } else if (packet % 20 <= PROGRAMS.length) {
+                int program = PROGRAMS[packet % 20 - 1];
+                TsTestStreams.writePacket(stream, offset, pmtPid(program), true, packet / 20);
+                TsTestStreams.writeSection(stream, offset + 4, createPmt(program));
+            } else {
+                int program = PROGRAMS[packet % PROGRAMS.length];
+                int pid = packet % 2 == 0 ? videoPid(program) : audioPid(program);
+                TsTestStreams.writePacket(stream, offset, pid, false, packet);
+                stream[offset + 4] = (byte) (packet >> 8);
+                stream[offset + 5] = (byte) packet;
+            }
+
+            packet++;
+        }
+
+        return stream;
+    }
+
+    @Test(groups = { "programFilter" })
+    public void testFilterProgram() {
+        byte stream[] = createMux();
+
+        // Sizes that don't line up with the packets.
+        for (int writeSize : new int[] { 1, 100, 188, 1316, stream.length }) {
+            TsProgramFilter filter = new TsProgramFilter(2);
+            ByteBuffer out = ByteBuffer.allocate(stream.length + VideoUtil.MTS_PACKET_LEN);
+
+            for (int i = 0; i < stream.length; i += writeSize) {
+                filter.filter(ByteBuffer.wrap(stream, i, Math.min(writeSize, stream.length - i)), out);
+            }
+
+            assert filter.isProgramFound();
+            assert filter.getPacketsIn() == PACKETS;
+            assert out.position() % VideoUtil.MTS_PACKET_LEN == 0;
+            assert filter.getPacketsOut() == out.position() / VideoUtil.MTS_PACKET_LEN;
+
+            out.flip();
+            int pats = 0;
+            int pmts = 0;
+            int elementary = 0;
+            byte packet[] = new byte[VideoUtil.MTS_PACKET_LEN];
+
+            while (out.hasRemaining()) {
+                out.get(packet);
+                assert packet[0] == VideoUtil.MTS_SYNC_BYTE;
+                int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+
+                if (pid == 0) {
+                    // Only program 2 remains in the PAT and the CRC is still correct.
+                    int sectionLength = ((packet[6] & 0x0f) << 8) | (packet[7] & 0xff);
+                    assert sectionLength == 13;
+                    assert packet[8] == 0x12 && packet[9] == 0x34;
+                    assert packet[14] == 2;
+                    assert (((packet[15] & 0x1f) << 8) | (packet[16] & 0xff)) == pmtPid(2);
+                    assert TsProgramFilter.crc32(packet, 5, 3 + sectionLength) == 0;
+                    assert (packet[3] & 0x0f) == (pats & 0x0f);
+                    pats++;
+                } else if (pid == pmtPid(2)) {
+                    pmts++;
+                } else {
+                    assert pid == videoPid(2) || pid == audioPid(2) : "Unexpected PID " + pid;
+
+                    int number = ((packet[4] & 0xff) << 8) | (packet[5] & 0xff);
+                    assert PROGRAMS[number % PROGRAMS.length] == 2;
+                    elementary++;
+                }
+            }
+
+            assert pats == PACKETS / 20;
+            assert pmts == PACKETS / 20;
+            // The first PMT comes before any elementary stream packets.
+            assert elementary == (PACKETS - (PACKETS / 20) * 4) / 3 : elementary;
+        }
+    }
+
+    @Test(groups = { "programFilter" })
+    public void testMissingProgram() {
+        byte stream[] = createMux();
+        TsProgramFilter filter = new TsProgramFilter(9);
+        ByteBuffer out = ByteBuffer.allocate(stream.length + VideoUtil.MTS_PACKET_LEN);
+
+        filter.filter(ByteBuffer.wrap(stream), out);
+
+        assert !filter.isProgramFound();
+        assert out.position() == 0;
+    }
+
+    @Test(groups = { "programFilter" })
+    public void testResync() {
+        byte stream[] = createMux();
+        byte shifted[] = new byte[stream.length + 7];
+        System.arraycopy(stream, 0, shifted, 7, stream.length);
+
+        TsProgramFilter filter = new TsProgramFilter(1);
+        ByteBuffer out = ByteBuffer.allocate(shifted.length + VideoUtil.MTS_PACKET_LEN);
+
+        filter.filter(ByteBuffer.wrap(shifted), out);
+
+        assert filter.isProgramFound();
+        assert filter.getPacketsIn() == PACKETS;
+    }
+
+    @Test(groups = { "programFilter" })
+    public void testFirstProgramSharedPmt() {
+        // Program 0 is the network PID and programs 5 and 6 send their PMT on the same PID.
+        byte pat[] = TsTestStreams.createPat(new int[] { 0, 5, 6 }, new int[] { 0x10, 0x40, 0x40 });
+        byte stream[] = new byte[PACKETS * VideoUtil.MTS_PACKET_LEN];
+        int pmtContinuity = 0;
+
+        for (int packet = 0; packet < PACKETS; packet++) {
+            int offset = packet * VideoUtil.MTS_PACKET_LEN;
+
+            if (packet % 10 == 0) {
+                TsTestStreams.writePacket(stream, offset, 0, true, packet / 10);
+                TsTestStreams.writeSection(stream, offset + 4, pat);
+            } else if (packet % 10 == 1 || packet % 10 == 2) {
+                TsTestStreams.writePacket(stream, offset, 0x40, true, pmtContinuity++);
+                TsTestStreams.writeSection(stream, offset + 4, createPmt(packet % 10 == 1 ? 6 : 5));
+            } else if (packet % 10 == 3) {
+                TsTestStreams.writePacket(stream, offset, 0x1fff, false, 0);
+            } else {
+                int program = packet % 2 == 0 ? 5 : 6;
+                TsTestStreams.writePacket(stream, offset, videoPid(program), false, packet);
+            }
+        }
+
+        TsProgramFilter filter = new TsProgramFilter(TsProgramFilter.FIRST_PROGRAM);
+        ByteBuffer out = ByteBuffer.allocate(stream.length + VideoUtil.MTS_PACKET_LEN);
+
+        filter.filter(ByteBuffer.wrap(stream), out);
+
+        assert filter.isProgramFound();
+        assert filter.getProgram() == 5;
+
+        out.flip();
+        int pmts = 0;
+        int elementary = 0;
+        byte packet[] = new byte[VideoUtil.MTS_PACKET_LEN];
+
+        while (out.hasRemaining()) {
+            out.get(packet);
+            int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+
+            if (pid == 0) {
+                assert packet[14] == 5;
+            } else if (pid == 0x40) {
+                // Only the PMT of program 5 is kept and the continuity counter has no gaps.
+                assert packet[9] == 5;
+                assert (packet[3] & 0x0f) == (pmts & 0x0f);
+                pmts++;
+            } else {
+                assert pid == videoPid(5) : "Unexpected PID " + pid;
+                elementary++;
+            }
+        }
+
+        assert pmts == PACKETS / 10;
+        assert elementary == PACKETS / 10 * 3;
+    }
+
+    @Test(groups = { "programFilter" })
+    public void testSharedPmtPacket() {
+        // Programs 5 and 6 send their PMT on the same PID and both sections are in one packet.
+        byte pat[] = TsTestStreams.createPat(new int[] { 5, 6 }, new int[] { 0x40, 0x40 });
+        byte stream[] = new byte[PACKETS * VideoUtil.MTS_PACKET_LEN];
+        byte pmt5[] = createPmt(5);
+        byte pmt6[] = createPmt(6);
+
+        for (int packet = 0; packet < PACKETS; packet++) {
+            int offset = packet * VideoUtil.MTS_PACKET_LEN;
+
+            if (packet % 10 == 0) {
+                TsTestStreams.writePacket(stream, offset, 0, true, packet / 10);
+                TsTestStreams.writeSection(stream, offset + 4, pat);
+            } else if (packet % 10 == 1) {
+                TsTestStreams.writePacket(stream, offset, 0x40, true, packet / 10);
+
+                // Alternate which program comes first.
+                byte first[] = packet % 20 == 1 ? pmt6 : pmt5;
+                byte second[] = packet % 20 == 1 ? pmt5 : pmt6;
+                TsTestStreams.writeSection(stream, offset + 4, first);
+                // Only the first section has a pointer field. Writing the first section again
+                // replaces the pointer field written before the second section.
+                TsTestStreams.writeSection(stream, offset + 4 + first.length, second);
+                TsTestStreams.writeSection(stream, offset + 4, first);
+            } else {
+                int program = packet % 2 == 0 ? 5 : 6;
+                TsTestStreams.writePacket(stream, offset, videoPid(program), false, packet);
+            }
+        }
+
+        TsProgramFilter filter = new TsProgramFilter(5);
+        ByteBuffer out = ByteBuffer.allocate(stream.length + VideoUtil.MTS_PACKET_LEN);
+
+        filter.filter(ByteBuffer.wrap(stream), out);
+
+        assert filter.isProgramFound();
+
+        out.flip();
+        int pmts = 0;
+        byte packet[] = new byte[VideoUtil.MTS_PACKET_LEN];
+
+        while (out.hasRemaining()) {
+            out.get(packet);
+            int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+
+            if (pid != 0x40) {
+                continue;
+            }
+
+            // The pointer field leads to a valid PMT for program 5 followed only by stuffing.
+            int sectionStart = 5 + (packet[4] & 0xff);
+            int sectionLength = ((packet[sectionStart + 1] & 0x0f) << 8) |
+                    (packet[sectionStart + 2] & 0xff);
+
+            assert packet[sectionStart] == 0x02;
+            assert packet[sectionStart + 4] == 5;
+            assert TsProgramFilter.crc32(packet, sectionStart, 3 + sectionLength) == 0;
+
+            for (int i = 5; i < VideoUtil.MTS_PACKET_LEN; i++) {
+                if (i < sectionStart || i >= sectionStart + 3 + sectionLength) {
+                    assert packet[i] == (byte) 0xff : "Byte " + i + " was not stuffing.";
+                }
+            }
+
+            pmts++;
+        }
+
+        assert pmts == PACKETS / 10;
+    }
+
+    @Test(groups = { "programFilter" })
+    public void testMultiPacketPmt() {
+        // This PMT is too long for one packet. Each section ends in a packet that also starts the
+        // next section, so the end of each section comes before the pointer field.
+        int streams = 41;
+        int streamTypes[] = new int[streams];
+        int streamPids[] = new int[streams];
+
+        for (int i = 0; i < streams; i++) {
+            streamTypes[i] = 0x06;
+            streamPids[i] = videoPid(5) + i;
+        }
+
+        byte pmt[] = TsTestStreams.createPmt(5, videoPid(5), streamTypes, streamPids, 0);
+
+        byte pat[] = TsTestStreams.createPat(new int[] { 5 }, new int[] { 0x40 });
+        int lastPid = videoPid(5) + streams - 1;
+        int firstPart = VideoUtil.MTS_PACKET_LEN - 5;
+        int secondPart = VideoUtil.MTS_PACKET_LEN - 5 - (pmt.length - firstPart);
+        byte stream[] = new byte[PACKETS * VideoUtil.MTS_PACKET_LEN];
+        int pmtContinuity = 0;
+
+        for (int packet = 0; packet < PACKETS; packet++) {
+            int offset = packet * VideoUtil.MTS_PACKET_LEN;
+
+            if (packet % 20 == 0) {
+                TsTestStreams.writePacket(stream, offset, 0, true, packet / 20);
+                TsTestStreams.writeSection(stream, offset + 4, pat);
+            } else if (packet % 20 == 1) {
+                TsTestStreams.writePacket(stream, offset, 0x40, true, pmtContinuity++);
+                stream[offset + 4] = 0;
+                System.arraycopy(pmt, 0, stream, offset + 5, firstPart);
+            } else if (packet % 20 == 2) {
+                // The end of the first section, then the start of the next one.
+                TsTestStreams.writePacket(stream, offset, 0x40, true, pmtContinuity++);
+                stream[offset + 4] = (byte) (pmt.length - firstPart);
+                System.arraycopy(pmt, firstPart, stream, offset + 5, pmt.length - firstPart);
+                System.arraycopy(pmt, 0, stream, offset + 5 + pmt.length - firstPart, secondPart);
+            } else if (packet % 20 == 3) {
+                // The end of the second section followed by stuffing.
+                TsTestStreams.writePacket(stream, offset, 0x40, true, pmtContinuity++);
+                stream[offset + 4] = (byte) (pmt.length - secondPart);
+                System.arraycopy(pmt, secondPart, stream, offset + 5, pmt.length - secondPart);
+            } else {
+                TsTestStreams.writePacket(stream, offset, packet % 2 == 0 ? videoPid(5) : lastPid, false, packet);
+            }
+        }
+
+        TsProgramFilter filter = new TsProgramFilter(5);
+        ByteBuffer out = ByteBuffer.allocate(stream.length + VideoUtil.MTS_PACKET_LEN);
+
+        filter.filter(ByteBuffer.wrap(stream), out);
+
+        assert filter.isProgramFound();
+
+        out.flip();
+        int elementary = 0;
+        byte packet[] = new byte[VideoUtil.MTS_PACKET_LEN];
+
+        while (out.hasRemaining()) {
+            out.get(packet);
+            int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+
+            if (pid == videoPid(5) || pid == lastPid) {
+                elementary++;
+            }
+        }
+
+        // The first section is complete by the second packet, so every elementary packet is kept.
+        assert elementary == PACKETS / 20 * 16 : elementary;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.java.TsStreamDetector;
+import opendct.video.java.VideoUtil;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+public class TsStreamDetectorTest {
+    private static final int PMT_PID = 0x30;
+    private static final int VIDEO_PID = 0x100;
+    private static final int AUDIO_PID = 0x101;
+    private static final int SAP_PID = 0x102;
+    // Packets of elementary stream data before the headers.
+    private static final int FILLER_PACKETS = 20;
+
+    // 720x480 at 29.97 frames per second.
+    private static final byte MPEG2_SEQUENCE_HEADER[] = new byte[] {
+            0, 0, 1, (byte) 0xb3, 0x2d, 0x01, (byte) 0xe0, 0x24, (byte) 0xff, (byte) 0xff
+    };
+
+    // 48kHz, 3/2 channels with LFE.
+    private static final byte AC3_HEADER[] = new byte[] {
+            0x0b, 0x77, 0x12, 0x34, 0x0e, 0x40, (byte) 0xf9, 0x00
+    };
+
+    // 48kHz, 2 channels.
+    private static final byte ADTS_HEADER[] = new byte[] {
+            (byte) 0xff, (byte) 0xf1, 0x4c, (byte) 0x80, 0x00, 0x1f, (byte) 0xfc
+    };
+
+    private static byte[] createPat(int program) {
+        return TsTestStreams.createSectionPayload(
+                TsTestStreams.createPat(new int[] { program }, new int[] { PMT_PID }));
+    }
+
+    private static byte[] createPmt(int program, int videoType, int audioType, int sapType) {
+        return createPmt(program, videoType, audioType, sapType, 0);
+    }
+
+    /**
+     * Create a PMT with a program descriptor that makes it <b>descriptorLength</b> bytes longer.
+     */
+    private static byte[] createPmt(int program, int videoType, int audioType, int sapType, int descriptorLength) {
+        int streamTypes[] = sapType != 0 ?
+                new int[] { videoType, audioType, sapType } : new int[] { videoType, audioType };
+        int streamPids[] = sapType != 0 ?
+                new int[] { VIDEO_PID, AUDIO_PID, SAP_PID } : new int[] { VIDEO_PID, AUDIO_PID };
+
+        return TsTestStreams.createSectionPayload(TsTestStreams.createPmt(
+                program, VIDEO_PID, streamTypes, streamPids, descriptorLength));
+    }
+
+    /**
+     * Create a stream that starts in the middle of a PES packet for both elementary streams, then
+     * has the PAT, the PMT and finally PES packets that start with the headers.
+     */
+    private static byte[] createStream(int videoType, byte video[], int audioType, byte audio[]) {
+        return createStream(videoType, video, audioType, audio, 0);
+    }
+
+    /**
+     * Create a stream that also lists a second audio stream in the PMT that never has any data.
+     */
+    private static byte[] createStream(int videoType, byte video[], int audioType, byte audio[], int sapType) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte filler[] = new byte[VideoUtil.MTS_PACKET_LEN];
+
+        for (int i = 0; i < FILLER_PACKETS; i++) {
+            byte packet[] = TsTestStreams.createPacket(
+                    i % 2 == 0 ? VIDEO_PID : AUDIO_PID, false, i, filler, 0);
+            stream.write(packet, 0, packet.length);
+        }
+
+        byte packet[] = TsTestStreams.createPacket(0, true, 0, createPat(1), 0);
+        stream.write(packet, 0, packet.length);
+        packet = TsTestStreams.createPacket(
+                PMT_PID, true, 0, createPmt(1, videoType, audioType, sapType), 0);
+        stream.write(packet, 0, packet.length);
+
+        byte videoPes[] = TsTestStreams.createPes(0xe0, video);
+        packet = TsTestStreams.createPacket(VIDEO_PID, true, 0, videoPes, 0);
+        stream.write(packet, 0, packet.length);
+
+        for (int i = VideoUtil.MTS_PACKET_LEN - 4, continuity = 1; i < videoPes.length;
+             i += VideoUtil.MTS_PACKET_LEN - 4) {
+
+            packet = TsTestStreams.createPacket(VIDEO_PID, false, continuity++, videoPes, i);
+            stream.write(packet, 0, packet.length);
+        }
+
+        packet = TsTestStreams.createPacket(
+                AUDIO_PID, true, 0, TsTestStreams.createPes(0xbd, audio), 0);
+        stream.write(packet, 0, packet.length);
+
+        return stream.toByteArray();
+    }
+
+    /**
+     * Create an H.264 Main profile SPS for 1920x1080.
+     */
+    private static byte[] createSps() {
+        BitWriter bits = new BitWriter();
+        // Forbidden zero bit, NAL reference and NAL type.
+        bits.writeBits(0x67, 8);
+        // Profile, constraints and level.
+        bits.writeBits(77, 8);
+        bits.writeBits(0, 8);
+        bits.writeBits(40, 8);
+        // SPS ID, max frame number, picture order count type and max picture order count.
+        bits.writeUe(0);
+        bits.writeUe(0);
+        bits.writeUe(0);
+        bits.writeUe(0);
+        // Reference frames and gaps allowed.
+        bits.writeUe(1);
+        bits.writeBits(0, 1);
+        // 120x68 macroblocks.
+        bits.writeUe(119);
+        bits.writeUe(67);
+        // Frame macroblocks only and direct 8x8 inference.
+        bits.writeBits(1, 1);
+        bits.writeBits(1, 1);
+        // Crop 8 lines from the bottom.
+        bits.writeBits(1, 1);
+        bits.writeUe(0);
+        bits.writeUe(0);
+        bits.writeUe(0);
+        bits.writeUe(4);
+        // No VUI and the stop bit.
+        bits.writeBits(0, 1);
+        bits.writeBits(1, 1);
+
+        byte nal[] = bits.toByteArray();
+        byte returnValue[] = new byte[3 + nal.length + 4];
+        returnValue[2] = 1;
+        System.arraycopy(nal, 0, returnValue, 3, nal.length);
+        // The start of the PPS so we know the SPS is complete.
+        returnValue[returnValue.length - 2] = 1;
+        returnValue[returnValue.length - 1] = 0x68;
+
+        return returnValue;
+    }
+
+    private static TsStreamDetector.Stream getStream(TsStreamDetector detector, int pid) {
+        List<TsStreamDetector.Stream> streams = detector.getStreams();
+
+        for (TsStreamDetector.Stream stream : streams) {
+            if (stream.getPid() == pid) {
+                return stream;
+            }
+        }
+
+        return null;
+    }
+
+    @Test(groups = { "streamDetection" })
+    public void testMpeg2Ac3() {
+        // The sequence header is split across two packets.
+        byte video[] = new byte[VideoUtil.MTS_PACKET_LEN];
+        System.arraycopy(MPEG2_SEQUENCE_HEADER, 0,
+                video, video.length - 18 - 4, MPEG2_SEQUENCE_HEADER.length);
+        byte stream[] = createStream(0x02, video, 0x81, AC3_HEADER);
+
+        // Sizes that don't line up with the packets.
+        for (int writeSize : new int[] { 1, 100, 188, 1316, stream.length }) {
+            TsStreamDetector detector = new TsStreamDetector(0);
+
+            for (int i = 0; i < stream.length; i += writeSize) {
+                detector.process(stream, i, Math.min(writeSize, stream.length - i));
+            }
+
+            assert detector.isComplete();
+            assert detector.getProgram() == 1;
+            assert detector.getBytesNeeded() == stream.length : detector.getBytesNeeded();
+            assert detector.getStreams().size() == 2;
+
+            TsStreamDetector.Stream videoStream = getStream(detector, VIDEO_PID);
+            assert "mpeg2video".equals(videoStream.getCodec());
+            assert videoStream.isVideo();
+            assert videoStream.getWidth() == 720;
+            assert videoStream.getHeight() == 480;
+            assert Math.abs(videoStream.getFrameRate() - 29.97) < 0.01;
+
+            TsStreamDetector.Stream audioStream = getStream(detector, AUDIO_PID);
+            assert "ac3".equals(audioStream.getCodec());
+            assert audioStream.isAudio();
+            assert audioStream.getSampleRate() == 48000;
+            assert audioStream.getChannels() == 6;
+        }
+    }
+
+    @Test(groups = { "streamDetection" })
+    public void testH264Aac() {
+        byte stream[] = createStream(0x1b, createSps(), 0x0f, ADTS_HEADER);
+
+        TsStreamDetector detector = new TsStreamDetector(1);
+        assert detector.process(stream, 0, stream.length);
+
+        TsStreamDetector.Stream videoStream = getStream(detector, VIDEO_PID);
+        assert "h264".equals(videoStream.getCodec());
+        assert videoStream.getWidth() == 1920 : videoStream.getWidth();
+        assert videoStream.getHeight() == 1080 : videoStream.getHeight();
+
+        TsStreamDetector.Stream audioStream = getStream(detector, AUDIO_PID);
+        assert "aac".equals(audioStream.getCodec());
+        assert audioStream.getSampleRate() == 48000;
+        assert audioStream.getChannels() == 2;
+    }
+
+    @Test(groups = { "streamDetection" })
+    public void testIdleStream() {
+        byte stream[] = createStream(0x02, MPEG2_SEQUENCE_HEADER, 0x81, AC3_HEADER, 0x81);
+
+        // The second audio stream never has any data, but it doesn't need to be waited for.
+        TsStreamDetector detector = new TsStreamDetector(0);
+        assert detector.process(stream, 0, stream.length);
+        assert detector.getBytesNeeded() == stream.length : detector.getBytesNeeded();
+        assert detector.getStreams().size() == 3;
+        assert getStream(detector, AUDIO_PID).isHeaderFound();
+        assert !getStream(detector, SAP_PID).isHeaderFound();
+    }
+
+    @Test(groups = { "streamDetection" })
+    public void testIncomplete() {
+        byte stream[] = createStream(0x02, MPEG2_SEQUENCE_HEADER, 0x81, AC3_HEADER);
+
+        // The program is not in the stream.
+        TsStreamDetector detector = new TsStreamDetector(2);
+        assert !detector.process(stream, 0, stream.length);
+        assert detector.getProgram() == 0;
+        assert detector.isProgramMissing();
+
+        // The audio header is missing.
+        detector = new TsStreamDetector(0);
+        int audioStart = stream.length - VideoUtil.MTS_PACKET_LEN;
+        assert !detector.process(stream, 0, audioStart);
+        assert detector.getProgram() == 1;
+        assert !detector.isProgramMissing();
+        assert getStream(detector, VIDEO_PID).isHeaderFound();
+        assert !getStream(detector, AUDIO_PID).isHeaderFound();
+        assert detector.getBytesNeeded() == -1;
+    }
+
+    @Test(groups = { "streamDetection" })
+    public void testMultiPacketPmt() {
+        byte stream[] = createStream(0x02, MPEG2_SEQUENCE_HEADER, 0x81, AC3_HEADER);
+        // The pointer field and the part of the PMT that fits in the first packet.
+        byte pmt[] = createPmt(1, 0x02, 0x81, 0, 200);
+        int firstPart = VideoUtil.MTS_PACKET_LEN - 4;
+        int pmtStart = (FILLER_PACKETS + 1) * VideoUtil.MTS_PACKET_LEN;
+
+        // The end of the PMT comes before the pointer field of the next packet, which points to
+        // stuffing.
+        byte tail[] = new byte[1 + pmt.length - firstPart];
+        tail[0] = (byte) (pmt.length - firstPart);
+        System.arraycopy(pmt, firstPart, tail, 1, pmt.length - firstPart);
+
+        ByteArrayOutputStream multiPacket = new ByteArrayOutputStream();
+        multiPacket.write(stream, 0, pmtStart);
+        byte packet[] = TsTestStreams.createPacket(PMT_PID, true, 0, pmt, 0);
+        multiPacket.write(packet, 0, packet.length);
+        packet = TsTestStreams.createPacket(PMT_PID, true, 1, tail, 0);
+        multiPacket.write(packet, 0, packet.length);
+        multiPacket.write(stream, pmtStart + VideoUtil.MTS_PACKET_LEN,
+                stream.length - pmtStart - VideoUtil.MTS_PACKET_LEN);
+        stream = multiPacket.toByteArray();
+
+        TsStreamDetector detector = new TsStreamDetector(0);
+        assert detector.process(stream, 0, stream.length);
+        assert detector.getProgram() == 1;
+        assert detector.getStreams().size() == 2;
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current;
+        private int bits;
+
+        private void writeBits(int value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                current = (current << 1) | ((value >> i) & 0x01);
+
+                if (++bits == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    bits = 0;
+                }
+            }
+        }
+
+        private void writeUe(int value) {
+            int length = 32 - Integer.numberOfLeadingZeros(value + 1);
+            writeBits(0, length - 1);
+            writeBits(value + 1, length);
+        }
+
+        private byte[] toByteArray() {
+            if (bits > 0) {
+                writeBits(0, 8 - bits);
+            }
+
+            return bytes.toByteArray();
+        }
+    }
+}
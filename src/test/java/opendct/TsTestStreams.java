@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.java.TsProgramFilter;
+import opendct.video.java.VideoUtil;
+
+import java.util.Arrays;
+
+/**
+ * Builders for the transport stream packets, PSI sections and PES headers used by tests and
+ * benchmarks.
+ * <p/>
+ * Sections are returned with a valid CRC. Anything written into a section after it is created
+ * needs <b>setCrc()</b> to be called again.
+ */
+public class TsTestStreams {
+
+    /**
+     * Write the 4 byte header of a packet with a payload and no adaptation field.
+     */
+    public static void writeHeader(byte stream[], int offset, int pid, boolean start, int continuity) {
+        stream[offset] = VideoUtil.MTS_SYNC_BYTE;
+        stream[offset + 1] = (byte) (((pid >> 8) & 0x1f) | (start ? 0x40 : 0));
+        stream[offset + 2] = (byte) (pid & 0xff);
+        stream[offset + 3] = (byte) (0x10 | (continuity & 0x0f));
+    }
+
+    /**
+     * Write the header of a packet that starts a PES packet with the random access indicator set
+     * in its adaptation field.
+     *
+     * @return The offset of the payload.
+     */
+    public static int writeRandomAccessHeader(byte stream[], int offset, int pid, int continuity) {
+        writeHeader(stream, offset, pid, true, continuity);
+        // Adaptation field and payload.
+        stream[offset + 3] = (byte) (0x30 | (continuity & 0x0f));
+        stream[offset + 4] = 1;
+        stream[offset + 5] = 0x40;
+
+        return offset + 6;
+    }
+
+    /**
+     * Write the header of a packet and fill the rest of it with stuffing.
+     */
+    public static void writePacket(byte stream[], int offset, int pid, boolean start, int continuity) {
+        Arrays.fill(stream, offset, offset + VideoUtil.MTS_PACKET_LEN, (byte) 0xff);
+        writeHeader(stream, offset, pid, start, continuity);
+    }
+
+    /**
+     * Create a packet filled with as much of the payload as fits starting at <b>offset</b> and
+     * stuffing after that.
+     */
+    public static byte[] createPacket(int pid, boolean start, int continuity, byte payload[], int offset) {
+        byte packet[] = new byte[VideoUtil.MTS_PACKET_LEN];
+        writePacket(packet, 0, pid, start, continuity);
+        System.arraycopy(payload, offset,
+                packet, 4, Math.min(payload.length - offset, VideoUtil.MTS_PACKET_LEN - 4));
+
+        return packet;
+    }
+
+    /**
+     * Write a pointer field of 0 followed by a section.
+     */
+    public static void writeSection(byte stream[], int offset, byte section[]) {
+        stream[offset] = 0;
+        System.arraycopy(setCrc(section), 0, stream, offset + 1, section.length);
+    }
+
+    /**
+     * Create the payload of a packet that starts with a section.
+     */
+    public static byte[] createSectionPayload(byte section[]) {
+        byte payload[] = new byte[section.length + 1];
+        writeSection(payload, 0, section);
+
+        return payload;
+    }
+
+    /**
+     * Calculate the CRC of a section and write it into the last 4 bytes.
+     *
+     * @return The section.
+     */
+    public static byte[] setCrc(byte section[]) {
+        int crc = TsProgramFilter.crc32(section, 0, section.length - 4);
+        section[section.length - 4] = (byte) (crc >> 24);
+        section[section.length - 3] = (byte) (crc >> 16);
+        section[section.length - 2] = (byte) (crc >> 8);
+        section[section.length - 1] = (byte) crc;
+
+        return section;
+    }
+
+    /**
+     * Create a PAT section with the transport stream ID 0x1234.
+     *
+     * @param programs The program numbers.
+     * @param pmtPids The PMT PID of each program.
+     */
+    public static byte[] createPat(int programs[], int pmtPids[]) {
+        byte section[] = new byte[8 + programs.length * 4 + 4];
+        int sectionLength = section.length - 3;
+        section[0] = 0x00;
+        section[1] = (byte) (0xb0 | (sectionLength >> 8));
+        section[2] = (byte) sectionLength;
+        section[3] = 0x12;
+        section[4] = 0x34;
+        section[5] = (byte) 0xc1;
+
+        for (int i = 0; i < programs.length; i++) {
+            int offset = 8 + i * 4;
+            section[offset] = (byte) (programs[i] >> 8);
+            section[offset + 1] = (byte) programs[i];
+            section[offset + 2] = (byte) (0xe0 | (pmtPids[i] >> 8));
+            section[offset + 3] = (byte) pmtPids[i];
+        }
+
+        return setCrc(section);
+    }
+
+    /**
+     * Create a PMT section.
+     *
+     * @param program The program number.
+     * @param pcrPid The PCR PID.
+     * @param streamTypes The type of each stream.
+     * @param streamPids The PID of each stream.
+     * @param descriptorLength The length of a program descriptor to make the section longer or 0
+     *                         for no program descriptors.
+     */
+    public static byte[] createPmt(int program, int pcrPid, int streamTypes[], int streamPids[],
+                                   int descriptorLength) {
+
+        byte section[] = new byte[12 + descriptorLength + streamTypes.length * 5 + 4];
+        int sectionLength = section.length - 3;
+        section[0] = 0x02;
+        section[1] = (byte) (0xb0 | (sectionLength >> 8));
+        section[2] = (byte) sectionLength;
+        section[3] = (byte) (program >> 8);
+        section[4] = (byte) program;
+        section[5] = (byte) 0xc1;
+        section[8] = (byte) (0xe0 | (pcrPid >> 8));
+        section[9] = (byte) pcrPid;
+        section[10] = (byte) (0xf0 | (descriptorLength >> 8));
+        section[11] = (byte) descriptorLength;
+
+        if (descriptorLength > 0) {
+            // A user private descriptor.
+            section[12] = (byte) 0x88;
+            section[13] = (byte) (descriptorLength - 2);
+        }
+
+        for (int i = 0; i < streamTypes.length; i++) {
+            int offset = 12 + descriptorLength + i * 5;
+            section[offset] = (byte) streamTypes[i];
+            section[offset + 1] = (byte) (0xe0 | (streamPids[i] >> 8));
+            section[offset + 2] = (byte) streamPids[i];
+            section[offset + 3] = (byte) 0xf0;
+        }
+
+        return setCrc(section);
+    }
+
+    /**
+     * Create a PES packet with a PTS.
+     */
+    public static byte[] createPes(int streamId, byte elementary[]) {
+        byte pes[] = new byte[14 + elementary.length];
+        pes[2] = 1;
+        pes[3] = (byte) streamId;
+        pes[6] = (byte) 0x80;
+        pes[7] = (byte) 0x80;
+        pes[8] = 5;
+        Arrays.fill(pes, 9, 14, (byte) 0x21);
+        System.arraycopy(elementary, 0, pes, 14, elementary.length);
+
+        return pes;
+    }
+}